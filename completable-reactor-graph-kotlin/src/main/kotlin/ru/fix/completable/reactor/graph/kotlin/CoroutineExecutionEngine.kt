@@ -0,0 +1,43 @@
+package ru.fix.completable.reactor.graph.kotlin
+
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.asCoroutineDispatcher
+import ru.fix.completable.reactor.graph.kotlin.internal.CoroutineExecution
+import ru.fix.completable.reactor.runtime.execution.ExecutionBuilder
+import ru.fix.completable.reactor.runtime.execution.ExecutionEngine
+import ru.fix.completable.reactor.runtime.execution.ExecutionPlan
+import ru.fix.completable.reactor.runtime.execution.ReactorGraphExecution
+import ru.fix.completable.reactor.runtime.tracing.Tracer
+import java.util.concurrent.Executor
+
+/**
+ * Runs graph execution as structured coroutines on single dispatcher.
+ *
+ * Each vertex is processed by a coroutine that suspends until its incoming transitions complete.
+ * Suspend handlers, see [Graph.suspendHandler], run directly within coroutine of the vertex
+ * instead of being bridged to future.
+ * Handlers of other kinds are awaited without blocking.
+ * Vertex timeout and execution cancellation cancel coroutines of running handlers.
+ *
+ * Engine produces the same results as built-in engine and supports the same vertex policies.
+ * It is selected per payload type:
+ * ```
+ * reactor.setExecutionEngine(MyPayload::class.java, CoroutineExecutionEngine())
+ * ```
+ *
+ * @param dispatcher runs all coroutines of the execution, by default executor of the payload type is used
+ */
+class CoroutineExecutionEngine @JvmOverloads constructor(
+        private val dispatcher: CoroutineDispatcher? = null) : ExecutionEngine {
+
+    override fun <PayloadType> build(
+            builder: ExecutionBuilder,
+            plan: ExecutionPlan,
+            executor: Executor,
+            blockingExecutor: Executor,
+            isProfiled: Boolean,
+            tracer: Tracer?): ReactorGraphExecution<PayloadType> =
+
+            CoroutineExecution<PayloadType>(builder, plan, executor, blockingExecutor, isProfiled, tracer)
+                    .build(dispatcher ?: executor.asCoroutineDispatcher())
+}
@@ -1,16 +1,15 @@
 package ru.fix.completable.reactor.graph.kotlin
 
 import kotlinx.coroutines.*
-import kotlinx.coroutines.future.future
 import org.slf4j.LoggerFactory
 import ru.fix.completable.reactor.graph.*
 import ru.fix.completable.reactor.graph.internal.*
 import ru.fix.completable.reactor.graph.kotlin.internal.DslMergerBuilder
+import ru.fix.completable.reactor.graph.kotlin.internal.RuntimeSuspendHandler
 import ru.fix.completable.reactor.graph.runtime.RuntimeGraph
 import ru.fix.completable.reactor.graph.runtime.RuntimeVertex
 import java.util.concurrent.CompletableFuture
 import java.util.concurrent.ForkJoinPool
-import kotlin.coroutines.CoroutineContext
 import kotlin.reflect.KClass
 
 open class Graph<Payload> : Graphable {
@@ -22,16 +21,14 @@ open class Graph<Payload> : Graphable {
          * suspendHandler works as a bridge to Kotlin coroutines.
          * This bridge will use [defaultCoroutineScope] scope to execute coroutines.
          * You can redefine defaultCoroutineScope globally.
+         * Scope is created once, so all suspend handlers share the same dispatcher and supervisor job.
          */
-        var defaultCoroutineScope: CoroutineScope = object : CoroutineScope {
-
-            override val coroutineContext: CoroutineContext
-                get() = ForkJoinPool.commonPool().asCoroutineDispatcher() +
+        var defaultCoroutineScope: CoroutineScope = CoroutineScope(
+                ForkJoinPool.commonPool().asCoroutineDispatcher() +
                         SupervisorJob() +
                         CoroutineExceptionHandler { context, thr ->
                             log.error(context.toString(), thr)
-                        }
-        }
+                        })
     }
 
     // Field accessed via reflection by field name
@@ -78,15 +75,72 @@ open class Graph<Payload> : Graphable {
      * Coroutine context is inherited from a [coroutineScope].
      * By default [Graph.defaultCoroutineScope] will be used.
      * Default [Graph.defaultCoroutineScope] could be redefined by user globally.
+     * [CoroutineExecutionEngine] invokes the handler directly within coroutine of the vertex.
      */
     protected fun <HandlerResult> suspendHandler(coroutineScope: CoroutineScope? = null, handler: suspend Payload.() -> HandlerResult):
             MergerBuilder<Payload, HandlerResult> {
 
-        return handler {
-            (coroutineScope ?: defaultCoroutineScope).future {
-                handler()
-            }
-        }
+        val vertex = Vertex()
+        val vx = InternalDslAccessor.vx(vertex)
+        graph.vertices.add(vx)
+
+        graphBuilderValidator.validateHandler(vx)
+
+        @Suppress("UNCHECKED_CAST")
+        vx.handler = RuntimeSuspendHandler(coroutineScope, handler) as Handler<Any?, Any?>
+
+        return DslMergerBuilder(vertex)
+    }
+
+    /**
+     * Builds new handler from function that blocks.
+     * Function is invoked by blocking executor of the reactor, virtual threads are used if JVM supports them.
+     */
+    protected fun <HandlerResult> blockingHandler(handler: Payload.() -> HandlerResult):
+            MergerBuilder<Payload, HandlerResult> {
+
+        val vertex = Vertex()
+        val vx = InternalDslAccessor.vx(vertex)
+        graph.vertices.add(vx)
+
+        graphBuilderValidator.validateHandler(vx)
+
+        @Suppress("UNCHECKED_CAST")
+        vx.handler = RuntimeBlockingHandler(object : BlockingHandler<Payload, HandlerResult> {
+            override fun handle(payload: Payload): HandlerResult = payload.handler()
+        } as BlockingHandler<Any?, Any?>)
+
+        return DslMergerBuilder(vertex)
+    }
+
+    /**
+     * Builds new handler that collects keys of concurrent executions into batches according to [batchPolicy]
+     * and handles each batch by single [batchHandler] invocation.
+     */
+    protected fun <Key, HandlerResult> batchHandler(
+            batchPolicy: BatchPolicy,
+            key: Payload.() -> Key,
+            batchHandler: (keys: List<Key>) -> CompletableFuture<Map<Key, HandlerResult>>):
+            MergerBuilder<Payload, HandlerResult> {
+
+        val vertex = Vertex()
+        val vx = InternalDslAccessor.vx(vertex)
+        graph.vertices.add(vx)
+
+        graphBuilderValidator.validateHandler(vx)
+
+        @Suppress("UNCHECKED_CAST")
+        vx.handler = RuntimeBatchHandler(
+                object : BatchKey<Payload, Key> {
+                    override fun key(payload: Payload): Key = payload.key()
+                } as BatchKey<Any?, Any?>,
+                object : BatchHandler<Key, HandlerResult> {
+                    override fun handle(keys: List<Key>): CompletableFuture<Map<Key, HandlerResult>> =
+                            batchHandler(keys)
+                } as BatchHandler<Any?, Any?>,
+                batchPolicy)
+
+        return DslMergerBuilder(vertex)
     }
 
     protected fun mutator(mutator: Payload.() -> Unit): Vertex {
@@ -1,9 +1,85 @@
 package ru.fix.completable.reactor.graph.kotlin
 
+import ru.fix.completable.reactor.graph.CachePolicy
+import ru.fix.completable.reactor.graph.CircuitBreakerPolicy
+import ru.fix.completable.reactor.graph.HedgingPolicy
+import ru.fix.completable.reactor.graph.RetryPolicy
 import ru.fix.completable.reactor.graph.Vertex
+import java.util.concurrent.Executor
 
 interface MergerBuilder<Payload, HandlerResult> {
 
+    /**
+     * Limits amount of concurrent handler invocations of the vertex across all executions of the graph.
+     * Excess invocations wait in FIFO queue until running invocations complete.
+     */
+    fun withMaxConcurrency(maxConcurrency: Int): MergerBuilder<Payload, HandlerResult>
+
+    /**
+     * Limits amount of concurrent handler invocations of the vertex across all executions of the graph.
+     * Up to [maxQueueSize] excess invocations wait in FIFO queue until running invocations complete.
+     * Other invocations fail fast: handler and merger are not invoked and vertex routes by [rejectionStatus].
+     */
+    fun withMaxConcurrency(
+            maxConcurrency: Int,
+            maxQueueSize: Int,
+            rejectionStatus: Enum<*>): MergerBuilder<Payload, HandlerResult>
+
+    /**
+     * Limits duration of handler invocation.
+     * Vertex stops waiting for handler future that is not completed within [timeoutMs] milliseconds
+     * and fails the execution with timeout exception. Handler future itself is left intact.
+     */
+    fun withTimeout(timeoutMs: Long): MergerBuilder<Payload, HandlerResult>
+
+    /**
+     * Limits duration of handler invocation.
+     * Vertex stops waiting for handler future that is not completed within [timeoutMs] milliseconds,
+     * merger is not invoked and vertex routes by [timeoutStatus]. Handler future itself is left intact.
+     */
+    fun withTimeout(timeoutMs: Long, timeoutStatus: Enum<*>): MergerBuilder<Payload, HandlerResult>
+
+    /**
+     * Failed handler invocations are retried according to [retryPolicy] before failing the execution.
+     * Retries are scheduled after backoff delay without blocking threads.
+     * Vertex timeout limits all attempts together.
+     */
+    fun withRetry(retryPolicy: RetryPolicy): MergerBuilder<Payload, HandlerResult>
+
+    /**
+     * Successful handler results are cached by [key] according to [cachePolicy] and shared by all executions
+     * of the graph. Cached result is passed to merger without handler invocation.
+     * Result of payload with NULL key is not cached.
+     */
+    fun withCache(cachePolicy: CachePolicy, key: Payload.() -> Any?): MergerBuilder<Payload, HandlerResult>
+
+    /**
+     * Concurrent handler invocations of the vertex with equal [key] share single invocation and its result.
+     * Invocation with NULL key is not coalesced.
+     */
+    fun withSingleFlight(key: Payload.() -> Any?): MergerBuilder<Payload, HandlerResult>
+
+    /**
+     * Slow handler invocations are hedged according to [hedgingPolicy]:
+     * second invocation is started after hedge delay and the first successful one is merged.
+     * Should be used only for idempotent handlers.
+     */
+    fun withHedging(hedgingPolicy: HedgingPolicy): MergerBuilder<Payload, HandlerResult>
+
+    /**
+     * Handler invocations are guarded by circuit breaker shared by all executions of the graph.
+     * While breaker is open handler and merger are not invoked and vertex routes by [openStatus].
+     */
+    fun withCircuitBreaker(
+            circuitBreakerPolicy: CircuitBreakerPolicy,
+            openStatus: Enum<*>): MergerBuilder<Payload, HandlerResult>
+
+    /**
+     * Handler of the vertex is invoked by given executor instead of reactor executor.
+     * Merger is still invoked by reactor executor.
+     */
+    fun withExecutor(executor: Executor): MergerBuilder<Payload, HandlerResult>
+
     //TODO merger that could return any object
 
     fun withRoutingMerger(merger: Payload.(handlerResult: HandlerResult) -> Enum<*>): Vertex
@@ -0,0 +1,549 @@
+package ru.fix.completable.reactor.graph.kotlin.internal
+
+import kotlinx.coroutines.*
+import kotlinx.coroutines.future.await
+import mu.KotlinLogging
+import ru.fix.completable.reactor.runtime.execution.*
+import ru.fix.completable.reactor.runtime.execution.ExecutionBuilder.HandlePayloadContext
+import ru.fix.completable.reactor.runtime.execution.ExecutionBuilder.MergePayloadContext
+import ru.fix.completable.reactor.runtime.execution.ExecutionBuilder.TransitionPayloadContext
+import ru.fix.completable.reactor.runtime.tracing.Tracer
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executor
+import java.util.concurrent.TimeUnit
+import kotlin.coroutines.EmptyCoroutineContext
+import kotlin.coroutines.coroutineContext
+
+private val log = KotlinLogging.logger {}
+
+/**
+ * Single execution of the graph run by [ru.fix.completable.reactor.graph.kotlin.CoroutineExecutionEngine].
+ *
+ * Each vertex is processed by its own coroutine, all of them are children of [executionJob].
+ * Vertex coroutine suspends until all incoming handleBy transitions are completed,
+ * handles the payload, suspends until all merging inputs are completed and merges.
+ * Transitions complete slots of [ProcessingVertex], so debug state of the execution is the same as
+ * in built-in engine.
+ * Merging and routing are done by [MergeByExecutionBuilder] within vertex coroutine.
+ */
+internal class CoroutineExecution<PayloadType>(
+        private val builder: ExecutionBuilder,
+        private val plan: ExecutionPlan,
+        private val executor: Executor,
+        blockingExecutor: Executor,
+        private val isProfiled: Boolean,
+        private val tracer: Tracer?) {
+
+    private val submitFuture = CompletableFuture<PayloadType>()
+    private val executionResultFuture = CompletableFuture<PayloadType>()
+    private val chainExecutionFuture = CompletableFuture<Void>()
+
+    /**
+     * Child executions of subgraph vertices reuse profiling and tracing decisions of this execution
+     */
+    private val runSubgraph = { payload: Any?, parent: ExecutionPlan.PlanVertex ->
+        builder.subgraphRunner(payload, SubgraphParent(parent, isProfiled, tracer))
+    }
+
+    private val processingVertices = Array(plan.vertices.size) { index ->
+        ProcessingVertex(
+                planVertex = plan.vertices[index],
+                subgraphRunner = runSubgraph,
+                debugSerializer = builder.debugSerializer,
+                executor = executor,
+                blockingExecutor = blockingExecutor,
+                profiler = builder.profiler,
+                onStageCompleted = {})
+    }
+
+    private val cancellation = ExecutionCancellation(processingVertices)
+
+    /**
+     * Merging is invoked by vertex coroutine that joined merging inputs
+     */
+    private val mergeBy = MergeByExecutionBuilder(
+            executionResultFuture,
+            builder,
+            Executor { it.run() },
+            Executor { it.run() },
+            isProfiled,
+            tracer,
+            cancellation)
+
+    /**
+     * Parent of all vertex coroutines.
+     * Cancelled when execution result completes exceptionally.
+     */
+    private val executionJob = Job()
+
+    /**
+     * Handling of each vertex runs within its own job.
+     * When execution result completes successfully only handling of vertices with merger is cancelled,
+     * detached handlers keep running.
+     */
+    private val handlingJobs = Array(plan.vertices.size) { Job(executionJob) }
+
+    /**
+     * Completed when all incoming handleBy transitions of the vertex are completed
+     */
+    private val handlingInputs = Array(plan.vertices.size) { CompletableDeferred<Unit>() }
+
+    /**
+     * Completed when handling and all incoming mergeBy transitions of the vertex are completed
+     */
+    private val mergingInputs = Array(plan.vertices.size) { CompletableDeferred<Unit>() }
+
+    fun build(dispatcher: CoroutineDispatcher): ReactorGraphExecution<PayloadType> {
+
+        submitFuture.thenAccept { payload -> start(payload, dispatcher) }
+
+        /**
+         * Failed, timed out or cancelled execution cancels all vertex coroutines.
+         * Successful execution cancels handlers whose results could not be merged anymore
+         * and marks transitions that are not completed yet as dead.
+         */
+        executionResultFuture.whenComplete { _, throwable ->
+            if (throwable != null) {
+                cancellation.cancel()
+                executionJob.cancel()
+            } else {
+                cancellation.cancelMergingHandlers()
+                for (index in processingVertices.indices) {
+                    if (processingVertices[index].vertex.merger != null) {
+                        handlingJobs[index].cancel()
+                    }
+                    for (slot in 0 until processingVertices[index].incomingHandlingFlows.length()) {
+                        completeIncomingHandlingFlow(index, slot, TransitionPayloadContext.DEAD)
+                    }
+                }
+            }
+        }
+
+        /**
+         * Chain execution completes when all vertex coroutines, execution result and subgraphs are completed
+         */
+        executionJob.invokeOnCompletion {
+            executionResultFuture.whenComplete { _, throwable ->
+                builder.completeChainExecution(chainExecutionFuture, processingVertices, throwable)
+            }
+        }
+
+        return ReactorGraphExecution(
+                submitFuture,
+                executionResultFuture,
+                chainExecutionFuture,
+                processingVertices.asList(),
+                cancellation)
+    }
+
+    private fun start(payload: PayloadType, dispatcher: CoroutineDispatcher) {
+        /**
+         * All active handleBy transitions of the execution share the same context
+         */
+        val activeTransitionContext = TransitionPayloadContext(payload = payload)
+
+        /**
+         * Start points are completed before vertex coroutines are launched.
+         * Otherwise execution result could be completed by fast vertices
+         * and mark start points that are not completed yet as dead transitions.
+         */
+        for (startPoint in plan.startPoints) {
+            completeIncomingHandlingFlow(startPoint.target, startPoint.targetSlot, activeTransitionContext)
+        }
+
+        val scope = CoroutineScope(dispatcher + executionJob)
+        for (index in processingVertices.indices) {
+            scope.launch { process(index, activeTransitionContext) }
+        }
+
+        /**
+         * Job completes as soon as all vertex coroutines complete
+         */
+        executionJob.complete()
+    }
+
+    private suspend fun process(index: Int, activeTransitionContext: TransitionPayloadContext) {
+        val pvx = processingVertices[index]
+        try {
+            handlingInputs[index].await()
+            val handlingContext = joinIncomingHandleByFlows(index)
+
+            if (pvx.vertex.merger == null) {
+                /**
+                 * Handler/subgraph without merger does not have outgoing transitions
+                 */
+                pvx.completeHandling(handlingContext)
+                pvx.completeMerging(null)
+                return
+            }
+
+            if (pvx.completeHandling(handlingContext)) {
+                mergingInputs[index].complete(Unit)
+            }
+            mergingInputs[index].await()
+
+            mergeBy.joinIncomingMergeByFlows(pvx)
+            activateOutgoingFlows(pvx, pvx.mergingFuture.getNow(null)!!, activeTransitionContext)
+
+        } catch (exc: CancellationException) {
+            throw exc
+
+        } catch (exc: Exception) {
+            log.error(exc) { "Processing of vertex ${pvx.vertex.name} failed." }
+            executionResultFuture.completeExceptionally(exc)
+
+        } finally {
+            handlingJobs[index].complete()
+
+            /**
+             * Vertex of cancelled execution completes as terminal
+             */
+            pvx.completeHandling(HandlePayloadContext.TERMINAL)
+            pvx.completeMerging(MergePayloadContext.TERMINAL)
+        }
+    }
+
+    private fun completeIncomingHandlingFlow(target: Int, slot: Int, context: TransitionPayloadContext) {
+        if (processingVertices[target].completeIncomingHandlingFlow(slot, context)) {
+            handlingInputs[target].complete(Unit)
+        }
+    }
+
+    private fun completeIncomingMergingFlow(target: Int, slot: Int, context: MergePayloadContext) {
+        if (processingVertices[target].completeIncomingMergingFlow(slot, context)) {
+            mergingInputs[target].complete(Unit)
+        }
+    }
+
+    /**
+     * Completes incoming slots of transition targets based on merging result of the vertex
+     */
+    private fun activateOutgoingFlows(
+            pvx: ProcessingVertex,
+            context: MergePayloadContext,
+            activeTransitionContext: TransitionPayloadContext) {
+
+        val flows = pvx.planVertex.outgoingFlows
+        val activeFlows =
+                if (!context.isTerminal && !context.isDeadTransition) {
+                    pvx.planVertex.route(context.mergeResult).activeFlows
+                } else {
+                    null
+                }
+
+        for (flowIndex in flows.indices) {
+            val flow = flows[flowIndex]
+            val isActive = activeFlows != null && activeFlows[flowIndex]
+
+            if (!flow.isMergeBy) {
+                completeIncomingHandlingFlow(flow.target, flow.targetSlot,
+                        when {
+                            context.isTerminal -> TransitionPayloadContext.TERMINAL
+                            isActive -> activeTransitionContext
+                            else -> TransitionPayloadContext.DEAD
+                        })
+            } else {
+                completeIncomingMergingFlow(flow.target, flow.targetSlot,
+                        when {
+                            context.isTerminal -> MergePayloadContext.TERMINAL
+                            isActive -> context
+                            else -> MergePayloadContext.DEAD
+                        })
+            }
+        }
+    }
+
+    /**
+     * Joins incoming handleBy transitions to single handling invocation.
+     * One of active transitions carries the payload, any terminal transition makes handling terminal.
+     */
+    private suspend fun joinIncomingHandleByFlows(index: Int): HandlePayloadContext {
+        var activeIncomingFlow: TransitionPayloadContext? = null
+        var isTerminal = false
+
+        val incomingFlows = processingVertices[index].incomingHandlingFlows
+        for (slot in 0 until incomingFlows.length()) {
+            val context = incomingFlows[slot]
+            if (context.isTerminal) {
+                isTerminal = true
+            } else if (!context.isDeadTransition && activeIncomingFlow == null) {
+                activeIncomingFlow = context
+            }
+        }
+
+        return when {
+            isTerminal -> HandlePayloadContext.TERMINAL
+            activeIncomingFlow == null -> HandlePayloadContext.DEAD
+            else -> startHandling(index, activeIncomingFlow.payload)
+        }
+    }
+
+    /**
+     * Starts handler invocation within limits of vertex circuit breaker, bulkhead
+     * and on vertex executor if they are configured.
+     * Cached handler result is merged without handler invocation.
+     * Vertex timeout is counted from this moment and covers time spent in bulkhead queue.
+     */
+    private suspend fun startHandling(index: Int, payload: Any?): HandlePayloadContext {
+        val pvx = processingVertices[index]
+
+        val cachedResult = pvx.planVertex.resultCache?.lookup(payload)
+        if (cachedResult != null) {
+            return HandlePayloadContext(payload = payload, handlingResult = cachedResult.value)
+        }
+
+        val circuitBreaker = pvx.planVertex.circuitBreaker
+        val permit = circuitBreaker?.tryAcquire()
+        if (circuitBreaker != null && permit == null) {
+            log.debug {
+                "Handler invocation of vertex ${pvx.vertex.name} is short-circuited by open circuit breaker" +
+                        " with status ${circuitBreaker.openStatus}."
+            }
+            return HandlePayloadContext(payload = payload, fallbackStatus = circuitBreaker.openStatus)
+        }
+
+        val startNanos = System.nanoTime()
+        val handlerDispatcher = pvx.vertex.handlerExecutor?.asCoroutineDispatcher() ?: EmptyCoroutineContext
+
+        return try {
+            withContext(handlingJobs[index] + handlerDispatcher) {
+                handleWithinBulkhead(pvx, payload, permit, startNanos)
+            }
+        } catch (exc: CancellationException) {
+            if (!coroutineContext.isActive) {
+                throw exc
+            }
+            /**
+             * Handling job was cancelled by successful execution result
+             */
+            log.debug { "Handling by vertex ${pvx.vertex.name} is cancelled." }
+            HandlePayloadContext.TERMINAL
+        } finally {
+            /**
+             * Permit of invocation that was rejected by bulkhead or cancelled is returned,
+             * release of recorded permit has no effect
+             */
+            if (permit != null) {
+                circuitBreaker?.release(permit)
+            }
+        }
+    }
+
+    private suspend fun handleWithinBulkhead(
+            pvx: ProcessingVertex,
+            payload: Any?,
+            permit: VertexCircuitBreaker.Permit?,
+            startNanos: Long): HandlePayloadContext {
+        val bulkhead = pvx.planVertex.bulkhead ?: return handle(pvx, payload, permit, startNanos)
+
+        val isAcquired = try {
+            withVertexTimeout(pvx, startNanos) { acquire(bulkhead) }
+        } catch (exc: VertexTimeoutException) {
+            return onQueueTimeout(pvx, payload, exc)
+        }
+
+        if (!isAcquired) {
+            log.debug {
+                "Handler invocation of vertex ${pvx.vertex.name} is rejected by bulkhead" +
+                        " with status ${bulkhead.rejectionStatus}."
+            }
+            return HandlePayloadContext(payload = payload, fallbackStatus = bulkhead.rejectionStatus)
+        }
+
+        /**
+         * Bulkhead permit is held until handler work completes,
+         * including handler future that is not awaited anymore after vertex timeout
+         */
+        pvx.invocationsCompleted.thenRun { bulkhead.release() }
+        try {
+            return handle(pvx, payload, permit, startNanos)
+        } finally {
+            /**
+             * Next queued invocation is started before merging of this one
+             * if underlying work of this one is completed
+             */
+            pvx.finishHandling()
+        }
+    }
+
+    private fun onQueueTimeout(pvx: ProcessingVertex, payload: Any?, timeout: VertexTimeoutException): HandlePayloadContext {
+        val vx = pvx.vertex
+        if (vx.timeoutStatus != null) {
+            log.debug { "Handling by vertex ${vx.name} timed out in bulkhead queue, vertex completes with ${vx.timeoutStatus}." }
+            return HandlePayloadContext(payload = payload, fallbackStatus = vx.timeoutStatus)
+        }
+
+        val exc = RuntimeException(
+                """
+                Failed handling by vertex ${vx.name} for payload ${builder.debugSerializer.dumpObject(payload)}
+                """.trimIndent(),
+                timeout)
+
+        log.error(exc) {}
+        executionResultFuture.completeExceptionally(exc)
+        return HandlePayloadContext.TERMINAL
+    }
+
+    /**
+     * Suspends until bulkhead permit is granted
+     *
+     * @return false if invocation is rejected by full bulkhead queue
+     */
+    private suspend fun acquire(bulkhead: VertexBulkhead): Boolean {
+        if (bulkhead.tryAcquire()) {
+            return true
+        }
+
+        val permit = CompletableDeferred<Unit>()
+        val isQueued = bulkhead.enqueue(Runnable {
+            /**
+             * Permit granted to invocation that was cancelled while waiting is passed to the next one
+             */
+            if (!permit.complete(Unit)) {
+                bulkhead.release()
+            }
+        })
+        if (!isQueued) {
+            return false
+        }
+
+        try {
+            permit.await()
+            return true
+        } catch (exc: CancellationException) {
+            if (!permit.completeExceptionally(exc)) {
+                bulkhead.release()
+            }
+            throw exc
+        }
+    }
+
+    private suspend fun handle(
+            pvx: ProcessingVertex,
+            payload: Any?,
+            permit: VertexCircuitBreaker.Permit?,
+            startNanos: Long): HandlePayloadContext {
+        val vx = pvx.vertex
+
+        val handleCall =
+                if (isProfiled) {
+                    builder.profiler.profiledCall(pvx.planVertex.handleIdentity).start()
+                } else {
+                    null
+                }
+
+        val handleTracingMarker = tracer?.beforeHandle(vx.name, payload)
+        var retryingHandling: RetryingHandling? = null
+
+        var result: Any? = null
+        var throwable: Throwable? = null
+        try {
+            result = withVertexTimeout(pvx, startNanos) {
+                val suspendHandler = vx.handler as? RuntimeSuspendHandler<*, *>
+
+                if (suspendHandler != null && isInvokedDirectly(pvx)) {
+                    @Suppress("UNCHECKED_CAST")
+                    (suspendHandler as RuntimeSuspendHandler<Any?, Any?>).invoke(payload)
+                } else {
+                    /**
+                     * Awaited futures are owned by the engine, see [ProcessingVertex.invokeHandlingMethod]:
+                     * await cancelled by vertex timeout or execution cancellation cancels engine invocation
+                     * and leaves future returned by async handler intact
+                     */
+                    val hedging = pvx.planVertex.hedging
+                    val invokeHandling: () -> CompletableFuture<Any?> =
+                            if (hedging != null) {
+                                { HedgedHandling(pvx, payload, hedging, builder, vx.handlerExecutor ?: executor).start() }
+                            } else {
+                                { pvx.invokeHandlingMethod(payload) }
+                            }
+
+                    val retryPolicy = vx.retryPolicy
+                    if (retryPolicy != null) {
+                        val retrying = RetryingHandling(
+                                pvx, payload, retryPolicy, builder, vx.handlerExecutor ?: executor, tracer, invokeHandling)
+                        retryingHandling = retrying
+                        retrying.start(handleTracingMarker).await()
+                    } else {
+                        invokeHandling().await()
+                    }
+                }
+            }
+        } catch (exc: Throwable) {
+            throwable = exc
+        }
+
+        handleCall?.stop()
+
+        if (permit != null && !pvx.isHandlingCancelled && coroutineContext.isActive) {
+            pvx.planVertex.circuitBreaker?.record(permit, throwable)
+        }
+
+        tracer?.afterHandle(
+                if (retryingHandling != null) retryingHandling!!.tracingMarker else handleTracingMarker,
+                vx.name,
+                result,
+                throwable)
+
+        return when {
+            throwable is CancellationException && !coroutineContext.isActive -> throw throwable
+
+            throwable != null && pvx.isHandlingCancelled -> {
+                /**
+                 * Handler future was cancelled together with execution, execution result is already completed
+                 */
+                log.debug { "Handling by vertex ${vx.name} is cancelled." }
+                HandlePayloadContext.TERMINAL
+            }
+
+            throwable is VertexTimeoutException && vx.timeoutStatus != null -> {
+                log.debug { "Handling by vertex ${vx.name} timed out, vertex completes with ${vx.timeoutStatus}." }
+                HandlePayloadContext(payload = payload, fallbackStatus = vx.timeoutStatus)
+            }
+
+            throwable != null -> {
+                val exc = RuntimeException(
+                        """
+                        Failed handling by vertex ${vx.name} for payload ${builder.debugSerializer.dumpObject(payload)}
+                        """.trimIndent(),
+                        throwable)
+
+                log.error(exc) {}
+                executionResultFuture.completeExceptionally(exc)
+                HandlePayloadContext.TERMINAL
+            }
+
+            else -> {
+                pvx.planVertex.resultCache?.store(payload, result)
+                HandlePayloadContext(payload = payload, handlingResult = result)
+            }
+        }
+    }
+
+    /**
+     * Suspend handler is invoked directly unless vertex policy wraps handler future:
+     * retries, hedging and single flight start invocations independently of the vertex coroutine
+     */
+    private fun isInvokedDirectly(pvx: ProcessingVertex) =
+            pvx.vertex.retryPolicy == null && pvx.planVertex.hedging == null && pvx.planVertex.singleFlight == null
+
+    /**
+     * Cancels handling that is not completed within vertex timeout counted from [startNanos]
+     * and fails it with [VertexTimeoutException]
+     */
+    private suspend fun <T> withVertexTimeout(pvx: ProcessingVertex, startNanos: Long, handling: suspend () -> T): T {
+        val timeoutMs = pvx.vertex.timeoutMs
+        if (timeoutMs <= 0) {
+            return handling()
+        }
+
+        val remainingMs = timeoutMs - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)
+        try {
+            return withTimeout(Math.max(0, remainingMs)) { handling() }
+
+        } catch (exc: TimeoutCancellationException) {
+            builder.profiler.profiledCall(pvx.planVertex.timeoutIdentity).call()
+            throw VertexTimeoutException("Handling by vertex ${pvx.vertex.name} took more than $timeoutMs ms.")
+        }
+    }
+}
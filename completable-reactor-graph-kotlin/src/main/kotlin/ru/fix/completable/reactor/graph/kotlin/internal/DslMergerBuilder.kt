@@ -1,15 +1,86 @@
 package ru.fix.completable.reactor.graph.kotlin.internal
 
+import ru.fix.completable.reactor.graph.CacheKey
+import ru.fix.completable.reactor.graph.CachePolicy
+import ru.fix.completable.reactor.graph.CircuitBreakerPolicy
+import ru.fix.completable.reactor.graph.HedgingPolicy
 import ru.fix.completable.reactor.graph.Merger
+import ru.fix.completable.reactor.graph.RetryPolicy
 import ru.fix.completable.reactor.graph.RoutingMerger
+import ru.fix.completable.reactor.graph.SingleFlightKey
 import ru.fix.completable.reactor.graph.Vertex
 import ru.fix.completable.reactor.graph.kotlin.MergerBuilder
+import java.util.concurrent.Executor
 
 internal class DslMergerBuilder<Payload, HandlerResult>(vertex: Vertex) :
         MergerBuilder<Payload, HandlerResult> {
 
     private val baseMergerBuilder = ru.fix.completable.reactor.graph.internal.DslMergerBuilder<Payload, HandlerResult>(vertex)
 
+    override fun withMaxConcurrency(maxConcurrency: Int): MergerBuilder<Payload, HandlerResult> {
+        baseMergerBuilder.withMaxConcurrency(maxConcurrency)
+        return this
+    }
+
+    override fun withMaxConcurrency(
+            maxConcurrency: Int,
+            maxQueueSize: Int,
+            rejectionStatus: Enum<*>): MergerBuilder<Payload, HandlerResult> {
+        baseMergerBuilder.withMaxConcurrency(maxConcurrency, maxQueueSize, rejectionStatus)
+        return this
+    }
+
+    override fun withTimeout(timeoutMs: Long): MergerBuilder<Payload, HandlerResult> {
+        baseMergerBuilder.withTimeout(timeoutMs)
+        return this
+    }
+
+    override fun withTimeout(timeoutMs: Long, timeoutStatus: Enum<*>): MergerBuilder<Payload, HandlerResult> {
+        baseMergerBuilder.withTimeout(timeoutMs, timeoutStatus)
+        return this
+    }
+
+    override fun withRetry(retryPolicy: RetryPolicy): MergerBuilder<Payload, HandlerResult> {
+        baseMergerBuilder.withRetry(retryPolicy)
+        return this
+    }
+
+    override fun withCache(cachePolicy: CachePolicy, key: Payload.() -> Any?): MergerBuilder<Payload, HandlerResult> {
+        baseMergerBuilder.withCache(
+                cachePolicy,
+                object : CacheKey<Payload> {
+                    override fun key(payload: Payload): Any? = payload.key()
+                }
+        )
+        return this
+    }
+
+    override fun withSingleFlight(key: Payload.() -> Any?): MergerBuilder<Payload, HandlerResult> {
+        baseMergerBuilder.withSingleFlight(
+                object : SingleFlightKey<Payload> {
+                    override fun key(payload: Payload): Any? = payload.key()
+                }
+        )
+        return this
+    }
+
+    override fun withHedging(hedgingPolicy: HedgingPolicy): MergerBuilder<Payload, HandlerResult> {
+        baseMergerBuilder.withHedging(hedgingPolicy)
+        return this
+    }
+
+    override fun withCircuitBreaker(
+            circuitBreakerPolicy: CircuitBreakerPolicy,
+            openStatus: Enum<*>): MergerBuilder<Payload, HandlerResult> {
+        baseMergerBuilder.withCircuitBreaker(circuitBreakerPolicy, openStatus)
+        return this
+    }
+
+    override fun withExecutor(executor: Executor): MergerBuilder<Payload, HandlerResult> {
+        baseMergerBuilder.withExecutor(executor)
+        return this
+    }
+
     override fun withRoutingMerger(merger: Payload.(handlerResult: HandlerResult) -> Enum<*>): Vertex {
         return baseMergerBuilder.withRoutingMerger(
                 object : RoutingMerger<Payload, HandlerResult> {
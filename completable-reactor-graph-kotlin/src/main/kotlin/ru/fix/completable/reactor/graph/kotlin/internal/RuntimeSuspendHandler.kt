@@ -0,0 +1,39 @@
+package ru.fix.completable.reactor.graph.kotlin.internal
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.future.future
+import kotlinx.coroutines.withContext
+import ru.fix.completable.reactor.graph.Handler
+import ru.fix.completable.reactor.graph.internal.RuntimeCancellableHandler
+import ru.fix.completable.reactor.graph.kotlin.Graph
+import java.util.concurrent.CompletableFuture
+
+/**
+ * Handler built from suspend function.
+ *
+ * Built-in engine invokes it through [handle] as coroutine launched in [coroutineScope]
+ * and bridged to future.
+ * [ru.fix.completable.reactor.graph.kotlin.CoroutineExecutionEngine] invokes suspend function directly
+ * within coroutine of the vertex.
+ */
+internal class RuntimeSuspendHandler<Payload, HandlerResult>(
+        /**
+         * NULL if [Graph.defaultCoroutineScope] is used
+         */
+        private val coroutineScope: CoroutineScope?,
+        private val handler: suspend Payload.() -> HandlerResult) : Handler<Payload, HandlerResult>, RuntimeCancellableHandler {
+
+    override fun handle(payload: Payload): CompletableFuture<HandlerResult> =
+            (coroutineScope ?: Graph.defaultCoroutineScope).future { payload.handler() }
+
+    /**
+     * Runs handler within caller coroutine.
+     * Dispatcher and other elements of explicitly given scope are kept, job of the caller is used instead of
+     * scope job, so handler is cancelled together with the vertex.
+     */
+    suspend fun invoke(payload: Payload): HandlerResult {
+        val scope = coroutineScope ?: return payload.handler()
+        return withContext(scope.coroutineContext.minusKey(Job)) { payload.handler() }
+    }
+}
@@ -0,0 +1,130 @@
+package ru.fix.completable.reactor.graph.kotlin
+
+import kotlinx.coroutines.asCoroutineDispatcher
+import kotlinx.coroutines.delay
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import java.util.concurrent.CancellationException
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit.SECONDS
+
+/**
+ * Runs all scenarios of [KotlinGraphTest] on [CoroutineExecutionEngine],
+ * results are expected to be the same as on built-in engine.
+ */
+class CoroutineExecutionEngineTest : KotlinGraphTest() {
+
+    private val dispatcherExecutor = Executors.newSingleThreadExecutor { Thread(it, "graph-dispatcher") }
+
+    @BeforeEach
+    override fun before() {
+        super.before()
+        reactor.setExecutionEngine(CoroutineExecutionEngine())
+    }
+
+    /**
+     * Reactor waits for coroutines of pending executions on close, so dispatcher is shut down after the reactor
+     */
+    @AfterEach
+    override fun after() {
+        super.after()
+        dispatcherExecutor.shutdownNow()
+    }
+
+    class ThreadPayload {
+        var handlerThread: String? = null
+    }
+
+    class SuspendHandlerThreadGraph : Graph<ThreadPayload>() {
+
+        val vertex = suspendHandler {
+            delay(1)
+            Thread.currentThread().name
+        }.withMerger {
+            handlerThread = it
+        }
+
+        init {
+            payload().handleBy(vertex)
+            vertex.onAny().complete()
+        }
+    }
+
+    @Test
+    fun `suspend handler runs directly on engine dispatcher`() {
+        reactor.registerGraph(SuspendHandlerThreadGraph())
+        reactor.setExecutionEngine(
+                ThreadPayload::class.java,
+                CoroutineExecutionEngine(dispatcherExecutor.asCoroutineDispatcher()))
+
+        val result = reactor.submit(ThreadPayload()).resultFuture.get(10, SECONDS)
+
+        assertEquals("graph-dispatcher", result.handlerThread)
+    }
+
+    enum class TimeoutStatus { TIMEOUT }
+
+    class TimeoutPayload {
+        val isCancelled = CompletableFuture<Unit>()
+        var isMerged = false
+    }
+
+    class SuspendHandlerTimeoutGraph : Graph<TimeoutPayload>() {
+
+        val vertex = suspendHandler {
+            try {
+                delay(Long.MAX_VALUE)
+            } catch (exc: CancellationException) {
+                isCancelled.complete(Unit)
+                throw exc
+            }
+        }.withTimeout(50, TimeoutStatus.TIMEOUT).withMerger {
+            isMerged = true
+        }
+
+        init {
+            payload().handleBy(vertex)
+            vertex.onAny().complete()
+        }
+    }
+
+    @Test
+    fun `vertex timeout cancels coroutine of suspend handler and routes by timeout status`() {
+        reactor.registerGraph(SuspendHandlerTimeoutGraph())
+
+        val payload = TimeoutPayload()
+        val result = reactor.submit(payload).resultFuture.get(10, SECONDS)
+
+        payload.isCancelled.get(10, SECONDS)
+        assertFalse(result.isMerged)
+    }
+
+    class SharedFutureTimeoutGraph : Graph<TimeoutPayload>() {
+        val sharedResult = CompletableFuture<Int>()
+
+        val vertex = handler {
+            sharedResult
+        }.withTimeout(50, TimeoutStatus.TIMEOUT).withMerger {
+            isMerged = true
+        }
+
+        init {
+            payload().handleBy(vertex)
+            vertex.onAny().complete()
+        }
+    }
+
+    @Test
+    fun `vertex timeout leaves shared handler future intact`() {
+        val graph = SharedFutureTimeoutGraph()
+        reactor.registerGraph(graph)
+
+        val result = reactor.submit(TimeoutPayload()).resultFuture.get(10, SECONDS)
+
+        assertFalse(result.isMerged)
+        assertFalse(graph.sharedResult.isDone)
+    }
+}
@@ -13,8 +13,11 @@ import org.junit.jupiter.api.Assertions.*
 import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Test
 import ru.fix.aggregating.profiler.AggregatingProfiler
+import ru.fix.completable.reactor.graph.BatchPolicy
 import ru.fix.completable.reactor.runtime.CompletableReactor
 import java.util.*
+import java.util.concurrent.CancellationException
+import java.util.concurrent.CompletableFuture
 import java.util.concurrent.CompletableFuture.completedFuture
 import java.util.concurrent.ConcurrentLinkedDeque
 import java.util.concurrent.Semaphore
@@ -27,19 +30,19 @@ private val log = KotlinLogging.logger {}
 /**
  * @author Kamil Asfandiyarov
  */
-class KotlinGraphTest {
+open class KotlinGraphTest {
 
-    private lateinit var reactor: CompletableReactor
+    protected lateinit var reactor: CompletableReactor
 
 
     @BeforeEach
-    fun before() {
+    open fun before() {
         reactor = CompletableReactor(AggregatingProfiler())
                 .setDebugProcessingVertexGraphState(true)
     }
 
     @AfterEach
-    fun after() {
+    open fun after() {
         reactor.close()
     }
 
@@ -1027,4 +1030,75 @@ class KotlinGraphTest {
 
         return@runBlocking
     }
-}
\ No newline at end of file
+
+    class SuspendHandlerCancellationPayload {
+        val isStarted = CompletableFuture<Unit>()
+        val isCancelled = CompletableFuture<Unit>()
+    }
+
+    class SuspendHandlerCancellationGraph : Graph<SuspendHandlerCancellationPayload>() {
+
+        val vertex = suspendHandler {
+            isStarted.complete(Unit)
+            try {
+                delay(Long.MAX_VALUE)
+            } catch (exc: CancellationException) {
+                isCancelled.complete(Unit)
+                throw exc
+            }
+        }.withMerger { }
+
+        init {
+            payload().handleBy(vertex)
+            vertex.onAny().complete()
+        }
+    }
+
+    @Test
+    fun `execution cancellation cancels coroutine of suspend handler`() {
+        reactor.registerGraph(SuspendHandlerCancellationGraph())
+
+        val payload = SuspendHandlerCancellationPayload()
+        val execution = reactor.submit(payload)
+        payload.isStarted.get(10, SECONDS)
+
+        assertTrue(execution.cancel())
+
+        payload.isCancelled.get(10, SECONDS)
+        assertTrue(execution.resultFuture.isCancelled)
+    }
+
+    class BatchPayload(val userId: Int) {
+        var name: String? = null
+    }
+
+    class BatchGraph : Graph<BatchPayload>() {
+        val bulkCalls = ConcurrentLinkedDeque<List<Int>>()
+
+        val names = batchHandler(
+                BatchPolicy().setMaxBatchSize(3).setMaxDelayMs(10_000),
+                { userId },
+                { userIds: List<Int> ->
+                    bulkCalls.add(userIds)
+                    completedFuture(userIds.associateWith { "user-$it" })
+                }
+        ).withMerger { name = it }
+
+        init {
+            payload().handleBy(names)
+            names.onAny().complete()
+        }
+    }
+
+    @Test
+    fun `batch handler fans out bulk call results to each execution`() {
+        val graph = BatchGraph()
+        reactor.registerGraph(graph)
+
+        val results = listOf(1, 2, 3).map { reactor.submit(BatchPayload(it)).resultFuture }
+
+        assertEquals(listOf("user-1", "user-2", "user-3"), results.map { it.get(10, SECONDS).name })
+        assertEquals(1, graph.bulkCalls.size)
+        assertEquals(setOf(1, 2, 3), graph.bulkCalls.first().toSet())
+    }
+}
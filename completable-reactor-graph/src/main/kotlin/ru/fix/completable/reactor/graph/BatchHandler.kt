@@ -0,0 +1,15 @@
+package ru.fix.completable.reactor.graph
+
+import java.util.concurrent.CompletableFuture
+
+/**
+ * Handles keys collected from concurrent executions by single bulk call, see [Graph.batchHandler]
+ */
+@FunctionalInterface
+interface BatchHandler<Key, HandlerResult> {
+    /**
+     * @param keys distinct keys of the batch
+     * @return results by key, execution which key is absent in result map receives NULL result
+     */
+    fun handle(keys: @JvmSuppressWildcards List<Key>): CompletableFuture<Map<Key, HandlerResult>>
+}
@@ -0,0 +1,9 @@
+package ru.fix.completable.reactor.graph
+
+/**
+ * Extracts key of batched handler invocation from payload, see [Graph.batchHandler]
+ */
+@FunctionalInterface
+interface BatchKey<Payload, Key> {
+    fun key(payload: Payload): Key
+}
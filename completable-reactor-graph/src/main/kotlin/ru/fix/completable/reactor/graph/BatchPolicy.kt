@@ -0,0 +1,39 @@
+package ru.fix.completable.reactor.graph
+
+/**
+ * Batching window of batch handler vertex, see [Graph.batchHandler].
+ *
+ * Batch is sent to the bulk handler as soon as it collects `maxBatchSize` keys
+ * or `maxDelayMs` milliseconds after its first key arrived.
+ */
+class BatchPolicy {
+
+    private var maxBatchSize = 100
+    private var maxDelayMs = 10L
+
+    fun getMaxBatchSize() = maxBatchSize
+
+    /**
+     * @param maxBatchSize max amount of keys in single bulk call. By default 100
+     */
+    fun setMaxBatchSize(maxBatchSize: Int): BatchPolicy {
+        if (maxBatchSize <= 0) {
+            throw IllegalArgumentException("Max batch size should be positive: $maxBatchSize")
+        }
+        this.maxBatchSize = maxBatchSize
+        return this
+    }
+
+    fun getMaxDelayMs() = maxDelayMs
+
+    /**
+     * @param maxDelayMs max time first key of the batch waits for other keys. By default 10 ms
+     */
+    fun setMaxDelayMs(maxDelayMs: Long): BatchPolicy {
+        if (maxDelayMs <= 0) {
+            throw IllegalArgumentException("Max delay should be positive: $maxDelayMs")
+        }
+        this.maxDelayMs = maxDelayMs
+        return this
+    }
+}
@@ -0,0 +1,14 @@
+package ru.fix.completable.reactor.graph
+
+/**
+ * Synchronous handler that is allowed to block, see [Graph.blockingHandler]
+ */
+@FunctionalInterface
+interface BlockingHandler<Payload, HandlerResult> {
+    /**
+     * Invoked by blocking executor of the reactor.
+     * Thread is interrupted when invocation is cancelled or timed out.
+     */
+    @Throws(Exception::class)
+    fun handle(payload: Payload): HandlerResult
+}
@@ -0,0 +1,13 @@
+package ru.fix.completable.reactor.graph
+
+/**
+ * Key of cached handler result, see [MergerBuilder.withCache].
+ * Should be cheap to compute, it is evaluated on lookup and on store of handler result.
+ */
+@FunctionalInterface
+interface CacheKey<Payload> {
+    /**
+     * @return cache key, NULL if handler result for given payload should not be cached
+     */
+    fun key(payload: Payload): Any?
+}
@@ -0,0 +1,50 @@
+package ru.fix.completable.reactor.graph
+
+/**
+ * Handler result cache policy of a vertex, see [MergerBuilder.withCache].
+ *
+ * Successful handler results are cached by key for `ttlMs` milliseconds.
+ * Cache holds up to `maxEntries` results.
+ * When cache is full, new result is admitted only if its key is requested more frequently than the key
+ * of the eviction candidate, so rare keys do not evict popular ones.
+ *
+ * ```
+ * handler(...)
+ *      .withCache(new CachePolicy()
+ *              .setTtlMs(60_000)
+ *              .setMaxEntries(10_000),
+ *          payload -> payload.getServiceId())
+ *      .withMerger(...)
+ * ```
+ */
+class CachePolicy {
+
+    private var ttlMs = 60_000L
+    private var maxEntries = 10_000
+
+    fun getTtlMs() = ttlMs
+
+    /**
+     * @param ttlMs how long cached result is valid. By default 60 000 ms
+     */
+    fun setTtlMs(ttlMs: Long): CachePolicy {
+        if (ttlMs <= 0) {
+            throw IllegalArgumentException("TTL should be positive: $ttlMs")
+        }
+        this.ttlMs = ttlMs
+        return this
+    }
+
+    fun getMaxEntries() = maxEntries
+
+    /**
+     * @param maxEntries max amount of cached results. By default 10 000
+     */
+    fun setMaxEntries(maxEntries: Int): CachePolicy {
+        if (maxEntries <= 0) {
+            throw IllegalArgumentException("Max entries should be positive: $maxEntries")
+        }
+        this.maxEntries = maxEntries
+        return this
+    }
+}
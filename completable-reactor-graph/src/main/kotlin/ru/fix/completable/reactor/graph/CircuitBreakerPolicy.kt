@@ -0,0 +1,88 @@
+package ru.fix.completable.reactor.graph
+
+import java.util.function.Predicate
+
+/**
+ * Circuit breaker policy of handler or subgraph vertex, see [MergerBuilder.withCircuitBreaker].
+ *
+ * Breaker tracks outcomes of the latest `slidingWindowSize` handler invocations.
+ * When window contains at least `minimumCalls` outcomes and failure rate reaches `failureRateThreshold`
+ * breaker opens: handler is not invoked and vertex routes by configured status.
+ * After `openDurationMs` breaker lets single trial invocation through.
+ * Successful trial closes the breaker, failed trial opens it again.
+ *
+ * ```
+ * handler(...)
+ *      .withCircuitBreaker(new CircuitBreakerPolicy()
+ *              .setFailureRateThreshold(0.5)
+ *              .setSlidingWindow(100, 20)
+ *              .setOpenDurationMs(5_000),
+ *          Status.SERVICE_UNAVAILABLE)
+ *      .withRoutingMerger(...)
+ * ```
+ */
+class CircuitBreakerPolicy {
+
+    private var failureRateThreshold = 0.5
+    private var slidingWindowSize = 100
+    private var minimumCalls = 10
+    private var openDurationMs = 10_000L
+    private var failure: Predicate<Throwable> = Predicate { true }
+
+    fun getFailureRateThreshold() = failureRateThreshold
+
+    /**
+     * @param failureRateThreshold fraction of failed invocations within sliding window that opens the breaker,
+     *                             in range (0, 1]. By default 0.5
+     */
+    fun setFailureRateThreshold(failureRateThreshold: Double): CircuitBreakerPolicy {
+        if (failureRateThreshold <= 0 || failureRateThreshold > 1) {
+            throw IllegalArgumentException("Failure rate threshold should be in range (0, 1]: $failureRateThreshold")
+        }
+        this.failureRateThreshold = failureRateThreshold
+        return this
+    }
+
+    fun getSlidingWindowSize() = slidingWindowSize
+
+    fun getMinimumCalls() = minimumCalls
+
+    /**
+     * @param slidingWindowSize amount of latest invocations which outcomes are tracked. By default 100
+     * @param minimumCalls      amount of tracked outcomes required to evaluate failure rate. By default 10
+     */
+    fun setSlidingWindow(slidingWindowSize: Int, minimumCalls: Int): CircuitBreakerPolicy {
+        if (minimumCalls <= 0 || slidingWindowSize < minimumCalls) {
+            throw IllegalArgumentException(
+                    "Sliding window should satisfy 0 < minimum calls <= size: $slidingWindowSize, $minimumCalls")
+        }
+        this.slidingWindowSize = slidingWindowSize
+        this.minimumCalls = minimumCalls
+        return this
+    }
+
+    fun getOpenDurationMs() = openDurationMs
+
+    /**
+     * @param openDurationMs how long open breaker rejects invocations before trial invocation.
+     *                       By default 10 000 ms
+     */
+    fun setOpenDurationMs(openDurationMs: Long): CircuitBreakerPolicy {
+        if (openDurationMs <= 0) {
+            throw IllegalArgumentException("Open duration should be positive: $openDurationMs")
+        }
+        this.openDurationMs = openDurationMs
+        return this
+    }
+
+    /**
+     * @param failure whether handler invocation that completed with given exception is counted as failure.
+     *                Other exceptions are counted as successful invocations. By default all exceptions are failures
+     */
+    fun setFailure(failure: Predicate<Throwable>): CircuitBreakerPolicy {
+        this.failure = failure
+        return this
+    }
+
+    fun isFailure(exception: Throwable): Boolean = failure.test(exception)
+}
@@ -86,6 +86,50 @@ abstract class Graph<Payload> : Graphable {
         return DslMergerBuilder(vertex)
     }
 
+    /**
+     * Creates vertex based on sync function that blocks, e.g. call of legacy blocking client.
+     * Function is invoked by blocking executor of the reactor instead of reactor threads,
+     * virtual threads are used if JVM supports them.
+     * Amount of concurrent invocations could be limited by [MergerBuilder.withMaxConcurrency].
+     * Function result and payload are passed to Merger if one was specified during graph construction.
+     */
+    protected fun <HandlerResult> blockingHandler(handler: BlockingHandler<Payload, HandlerResult>):
+            MergerBuilder<Payload, HandlerResult> {
+
+        val vertex = Vertex()
+        val vx = InternalDslAccessor.vx(vertex)
+        graph.vertices.add(vx)
+
+        graphBuilderValidator.validateHandler(vx)
+
+        vx.handler = RuntimeBlockingHandler(handler as BlockingHandler<Any?, Any?>)
+        return DslMergerBuilder(vertex)
+    }
+
+    /**
+     * Creates vertex based on bulk async function.
+     * Keys extracted from payloads of concurrent executions are collected into batch
+     * according to [batchPolicy] and passed to [batchHandler] by single invocation.
+     * Result of each key is passed to the Merger of the execution that requested it.
+     */
+    protected fun <Key, HandlerResult> batchHandler(
+            batchPolicy: BatchPolicy,
+            key: BatchKey<Payload, Key>,
+            batchHandler: BatchHandler<Key, HandlerResult>): MergerBuilder<Payload, HandlerResult> {
+
+        val vertex = Vertex()
+        val vx = InternalDslAccessor.vx(vertex)
+        graph.vertices.add(vx)
+
+        graphBuilderValidator.validateHandler(vx)
+
+        vx.handler = RuntimeBatchHandler(
+                key as BatchKey<Any?, Any?>,
+                batchHandler as BatchHandler<Any?, Any?>,
+                batchPolicy)
+        return DslMergerBuilder(vertex)
+    }
+
     /**
      * Creates vertex based on sync method invocation.
      */
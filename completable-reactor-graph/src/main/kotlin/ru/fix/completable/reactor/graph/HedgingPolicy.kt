@@ -0,0 +1,68 @@
+package ru.fix.completable.reactor.graph
+
+/**
+ * Hedging policy of handler or subgraph vertex, see [MergerBuilder.withHedging].
+ *
+ * If handler invocation does not complete within hedge delay, second invocation with the same payload is started.
+ * First successful invocation is merged, the other one is cancelled.
+ * Hedging is suitable only for idempotent handlers, e.g. reads from replicated storage.
+ *
+ * Hedge delay is either fixed `delayMs` or observed percentile of handler latency.
+ * Amount of hedged invocations is limited by `maxHedgeRate` fraction of all invocations of the vertex.
+ *
+ * ```
+ * handler(...)
+ *      .withHedging(new HedgingPolicy()
+ *              .setDelayMs(50)
+ *              .setDelayPercentile(0.95)
+ *              .setMaxHedgeRate(0.05))
+ *      .withMerger(...)
+ * ```
+ */
+class HedgingPolicy {
+
+    private var delayMs = 100L
+    private var delayPercentile = 0.0
+    private var maxHedgeRate = 0.1
+
+    fun getDelayMs() = delayMs
+
+    /**
+     * @param delayMs delay before hedged invocation.
+     *                If percentile delay is configured, used until enough invocations are observed. By default 100 ms
+     */
+    fun setDelayMs(delayMs: Long): HedgingPolicy {
+        if (delayMs < 0) {
+            throw IllegalArgumentException("Delay should not be negative: $delayMs")
+        }
+        this.delayMs = delayMs
+        return this
+    }
+
+    fun getDelayPercentile() = delayPercentile
+
+    /**
+     * @param delayPercentile percentile of observed handler latency used as delay before hedged invocation,
+     *                        in range (0, 1), e.g. 0.95. By default fixed delay is used
+     */
+    fun setDelayPercentile(delayPercentile: Double): HedgingPolicy {
+        if (delayPercentile <= 0 || delayPercentile >= 1) {
+            throw IllegalArgumentException("Delay percentile should be in range (0, 1): $delayPercentile")
+        }
+        this.delayPercentile = delayPercentile
+        return this
+    }
+
+    fun getMaxHedgeRate() = maxHedgeRate
+
+    /**
+     * @param maxHedgeRate max fraction of vertex invocations that could be hedged, in range (0, 1]. By default 0.1
+     */
+    fun setMaxHedgeRate(maxHedgeRate: Double): HedgingPolicy {
+        if (maxHedgeRate <= 0 || maxHedgeRate > 1) {
+            throw IllegalArgumentException("Max hedge rate should be in range (0, 1]: $maxHedgeRate")
+        }
+        this.maxHedgeRate = maxHedgeRate
+        return this
+    }
+}
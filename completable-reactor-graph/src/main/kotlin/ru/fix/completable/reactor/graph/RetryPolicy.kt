@@ -0,0 +1,109 @@
+package ru.fix.completable.reactor.graph
+
+import java.util.concurrent.ThreadLocalRandom
+import java.util.function.Predicate
+
+/**
+ * Retry policy of handler or subgraph vertex, see [MergerBuilder.withRetry].
+ *
+ * Failed handler invocation is retried while attempts are not exhausted
+ * and exception satisfies [setRetryable] predicate.
+ * Delay before n-th retry grows exponentially: `initialBackoffMs * multiplier^(n-1)`, limited by `maxBackoffMs`.
+ * Delay is randomly shortened by up to `jitter` fraction, so retries of concurrent executions do not synchronize.
+ *
+ * ```
+ * handler(...)
+ *      .withRetry(new RetryPolicy()
+ *              .setMaxAttempts(3)
+ *              .setBackoff(100, 2_000)
+ *              .setRetryable(exc -> exc instanceof IOException))
+ *      .withMerger(...)
+ * ```
+ */
+class RetryPolicy {
+
+    private var maxAttempts = 3
+    private var initialBackoffMs = 100L
+    private var maxBackoffMs = 10_000L
+    private var multiplier = 2.0
+    private var jitter = 0.5
+    private var retryable: Predicate<Throwable> = Predicate { true }
+
+    fun getMaxAttempts() = maxAttempts
+
+    /**
+     * @param maxAttempts amount of handler invocations including the first one. By default 3
+     */
+    fun setMaxAttempts(maxAttempts: Int): RetryPolicy {
+        if (maxAttempts <= 0) {
+            throw IllegalArgumentException("Max attempts should be positive: $maxAttempts")
+        }
+        this.maxAttempts = maxAttempts
+        return this
+    }
+
+    fun getInitialBackoffMs() = initialBackoffMs
+
+    fun getMaxBackoffMs() = maxBackoffMs
+
+    /**
+     * @param initialBackoffMs delay before first retry. By default 100 ms
+     * @param maxBackoffMs     limit of exponentially growing delay. By default 10 000 ms
+     */
+    fun setBackoff(initialBackoffMs: Long, maxBackoffMs: Long): RetryPolicy {
+        if (initialBackoffMs < 0 || maxBackoffMs < initialBackoffMs) {
+            throw IllegalArgumentException(
+                    "Backoff should satisfy 0 <= initial <= max: $initialBackoffMs, $maxBackoffMs")
+        }
+        this.initialBackoffMs = initialBackoffMs
+        this.maxBackoffMs = maxBackoffMs
+        return this
+    }
+
+    fun getMultiplier() = multiplier
+
+    /**
+     * @param multiplier growth factor of delay between subsequent retries. By default 2
+     */
+    fun setMultiplier(multiplier: Double): RetryPolicy {
+        if (multiplier < 1.0) {
+            throw IllegalArgumentException("Multiplier should not be less than 1: $multiplier")
+        }
+        this.multiplier = multiplier
+        return this
+    }
+
+    fun getJitter() = jitter
+
+    /**
+     * @param jitter max fraction of delay that is randomly subtracted from it, in range [0, 1]. By default 0.5
+     */
+    fun setJitter(jitter: Double): RetryPolicy {
+        if (jitter < 0 || jitter > 1) {
+            throw IllegalArgumentException("Jitter should be in range [0, 1]: $jitter")
+        }
+        this.jitter = jitter
+        return this
+    }
+
+    /**
+     * @param retryable whether handler invocation that failed with given exception should be retried.
+     *                  By default all exceptions are retried
+     */
+    fun setRetryable(retryable: Predicate<Throwable>): RetryPolicy {
+        this.retryable = retryable
+        return this
+    }
+
+    fun isRetryable(exception: Throwable): Boolean = retryable.test(exception)
+
+    /**
+     * @param retry number of retry starting from 1
+     * @return randomized delay before the retry
+     */
+    fun backoffMs(retry: Int): Long {
+        val exponential = initialBackoffMs * Math.pow(multiplier, (retry - 1).toDouble())
+        val delay = Math.min(exponential, maxBackoffMs.toDouble())
+        return (delay * (1 - jitter * ThreadLocalRandom.current().nextDouble())).toLong()
+    }
+}
@@ -0,0 +1,13 @@
+package ru.fix.completable.reactor.graph
+
+/**
+ * Key of handler or subgraph invocation, see [MergerBuilder.withSingleFlight].
+ * Concurrent invocations of the vertex with equal keys share single invocation.
+ */
+@FunctionalInterface
+interface SingleFlightKey<Payload> {
+    /**
+     * @return invocation key, NULL if invocation should not be coalesced
+     */
+    fun key(payload: Payload): Any?
+}
@@ -1,16 +1,101 @@
 package ru.fix.completable.reactor.graph.internal
 
+import ru.fix.completable.reactor.graph.CacheKey
+import ru.fix.completable.reactor.graph.CachePolicy
+import ru.fix.completable.reactor.graph.CircuitBreakerPolicy
+import ru.fix.completable.reactor.graph.HedgingPolicy
 import ru.fix.completable.reactor.graph.Merger
 import ru.fix.completable.reactor.graph.MergerBuilder
+import ru.fix.completable.reactor.graph.RetryPolicy
 import ru.fix.completable.reactor.graph.RoutingMerger
+import ru.fix.completable.reactor.graph.SingleFlightKey
 import ru.fix.completable.reactor.graph.Vertex
 import ru.fix.completable.reactor.graph.runtime.RuntimeVertex
+import java.util.concurrent.Executor
 
 class DslMergerBuilder<Payload, HandlerResult>(private val vertex: Vertex) :
         MergerBuilder<Payload, HandlerResult> {
 
     private val vx = InternalDslAccessor.vx(vertex)
 
+    override fun withMaxConcurrency(maxConcurrency: Int): MergerBuilder<Payload, HandlerResult> {
+        if (maxConcurrency <= 0) {
+            throw IllegalArgumentException("Max concurrency should be positive: $maxConcurrency")
+        }
+        vx.maxConcurrency = maxConcurrency
+        vx.maxQueueSize = Int.MAX_VALUE
+        vx.rejectionStatus = null
+        return this
+    }
+
+    override fun withMaxConcurrency(
+            maxConcurrency: Int,
+            maxQueueSize: Int,
+            rejectionStatus: Enum<*>): MergerBuilder<Payload, HandlerResult> {
+        if (maxConcurrency <= 0) {
+            throw IllegalArgumentException("Max concurrency should be positive: $maxConcurrency")
+        }
+        if (maxQueueSize < 0) {
+            throw IllegalArgumentException("Max queue size should not be negative: $maxQueueSize")
+        }
+        vx.maxConcurrency = maxConcurrency
+        vx.maxQueueSize = maxQueueSize
+        vx.rejectionStatus = rejectionStatus
+        return this
+    }
+
+    override fun withTimeout(timeoutMs: Long): MergerBuilder<Payload, HandlerResult> {
+        if (timeoutMs <= 0) {
+            throw IllegalArgumentException("Timeout should be positive: $timeoutMs")
+        }
+        vx.timeoutMs = timeoutMs
+        vx.timeoutStatus = null
+        return this
+    }
+
+    override fun withTimeout(timeoutMs: Long, timeoutStatus: Enum<*>): MergerBuilder<Payload, HandlerResult> {
+        if (timeoutMs <= 0) {
+            throw IllegalArgumentException("Timeout should be positive: $timeoutMs")
+        }
+        vx.timeoutMs = timeoutMs
+        vx.timeoutStatus = timeoutStatus
+        return this
+    }
+
+    override fun withRetry(retryPolicy: RetryPolicy): MergerBuilder<Payload, HandlerResult> {
+        vx.retryPolicy = retryPolicy
+        return this
+    }
+
+    override fun withCache(cachePolicy: CachePolicy, key: CacheKey<Payload>): MergerBuilder<Payload, HandlerResult> {
+        vx.cachePolicy = cachePolicy
+        vx.cacheKey = key as CacheKey<Any?>
+        return this
+    }
+
+    override fun withSingleFlight(key: SingleFlightKey<Payload>): MergerBuilder<Payload, HandlerResult> {
+        vx.singleFlightKey = key as SingleFlightKey<Any?>
+        return this
+    }
+
+    override fun withHedging(hedgingPolicy: HedgingPolicy): MergerBuilder<Payload, HandlerResult> {
+        vx.hedgingPolicy = hedgingPolicy
+        return this
+    }
+
+    override fun withCircuitBreaker(
+            circuitBreakerPolicy: CircuitBreakerPolicy,
+            openStatus: Enum<*>): MergerBuilder<Payload, HandlerResult> {
+        vx.circuitBreakerPolicy = circuitBreakerPolicy
+        vx.circuitBreakerStatus = openStatus
+        return this
+    }
+
+    override fun withExecutor(executor: Executor): MergerBuilder<Payload, HandlerResult> {
+        vx.handlerExecutor = executor
+        return this
+    }
+
     override fun withRoutingMerger(merger: RoutingMerger<Payload, HandlerResult>): Vertex {
         if (vx.merger != null) {
             throw IllegalStateException("withMerger/withEmptyMerger/withRoutingMerger method used twice on same vertex")
@@ -0,0 +1,24 @@
+package ru.fix.completable.reactor.graph.internal
+
+import ru.fix.completable.reactor.graph.BatchHandler
+import ru.fix.completable.reactor.graph.BatchKey
+import ru.fix.completable.reactor.graph.BatchPolicy
+import ru.fix.completable.reactor.graph.Handler
+import java.util.concurrent.CompletableFuture
+
+/**
+ * Handler of batch handler vertex.
+ * Invocations of such vertex are collected into batches by the reactor runtime, so handler itself is never invoked.
+ */
+class RuntimeBatchHandler(
+        val batchKey: BatchKey<Any?, Any?>,
+        val batchHandler: BatchHandler<Any?, Any?>,
+        val batchPolicy: BatchPolicy) : Handler<Any?, Any?> {
+
+    override fun handle(payload: Any?): CompletableFuture<Any?> {
+        return CompletableFuture<Any?>().apply {
+            completeExceptionally(IllegalStateException(
+                    "Batch handler should be invoked by reactor runtime that supports batching."))
+        }
+    }
+}
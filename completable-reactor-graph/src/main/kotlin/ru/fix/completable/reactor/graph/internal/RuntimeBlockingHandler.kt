@@ -0,0 +1,20 @@
+package ru.fix.completable.reactor.graph.internal
+
+import ru.fix.completable.reactor.graph.BlockingHandler
+import ru.fix.completable.reactor.graph.Handler
+import java.util.concurrent.CompletableFuture
+
+/**
+ * Handler of blocking handler vertex.
+ * Invocations of such vertex are dispatched to blocking executor by the reactor runtime,
+ * so handler itself is never invoked.
+ */
+class RuntimeBlockingHandler(val blockingHandler: BlockingHandler<Any?, Any?>) : Handler<Any?, Any?> {
+
+    override fun handle(payload: Any?): CompletableFuture<Any?> {
+        return CompletableFuture<Any?>().apply {
+            completeExceptionally(IllegalStateException(
+                    "Blocking handler should be invoked by reactor runtime that supports blocking handlers."))
+        }
+    }
+}
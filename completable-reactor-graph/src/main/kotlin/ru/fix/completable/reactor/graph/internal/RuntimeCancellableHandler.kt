@@ -0,0 +1,8 @@
+package ru.fix.completable.reactor.graph.internal
+
+/**
+ * Handler that creates new future for each invocation, e.g. future of suspend handler coroutine.
+ * Reactor runtime cancels such future to cancel the invocation.
+ * Futures of other handlers could be shared by handler with other callers and are never cancelled by runtime.
+ */
+interface RuntimeCancellableHandler
@@ -2,6 +2,7 @@ package ru.fix.completable.reactor.graph.runtime
 
 import ru.fix.completable.reactor.graph.*
 import java.util.*
+import java.util.concurrent.Executor
 
 class RuntimeVertex(val sourceVertex: Vertex) {
 
@@ -46,6 +47,91 @@ class RuntimeVertex(val sourceVertex: Vertex) {
     @JvmField
     val transitions: MutableList<RuntimeTransition> = ArrayList()
 
+    /**
+     * Max amount of concurrent handler invocations of the vertex across all executions of the graph.
+     * Zero means that concurrency is not limited.
+     */
+    @JvmField
+    var maxConcurrency: Int = 0
+
+    /**
+     * Max amount of handler invocations that wait for running invocations to complete.
+     * Invocations above this amount are rejected.
+     */
+    @JvmField
+    var maxQueueSize: Int = Int.MAX_VALUE
+
+    /**
+     * Merge status of rejected handler invocation.
+     * Rejected vertex does not invoke handler and merger and routes by this status.
+     */
+    @JvmField
+    var rejectionStatus: Enum<*>? = null
+
+    /**
+     * Max duration of handler invocation in milliseconds. Zero means that invocation is limited only
+     * by execution timeout.
+     */
+    @JvmField
+    var timeoutMs: Long = 0
+
+    /**
+     * Merge status of timed out handler invocation.
+     * Timed out vertex does not invoke merger and routes by this status.
+     * NULL if timed out vertex fails the execution with timeout exception.
+     */
+    @JvmField
+    var timeoutStatus: Enum<*>? = null
+
+    /**
+     * Retry policy of failed handler invocations, NULL if failed invocation fails the execution
+     */
+    @JvmField
+    var retryPolicy: RetryPolicy? = null
+
+    /**
+     * Handler result cache policy, NULL if handler results are not cached
+     */
+    @JvmField
+    var cachePolicy: CachePolicy? = null
+
+    /**
+     * Key of cached handler result
+     */
+    @JvmField
+    var cacheKey: CacheKey<Any?>? = null
+
+    /**
+     * Key of coalesced handler invocations, NULL if each execution invokes handler separately
+     */
+    @JvmField
+    var singleFlightKey: SingleFlightKey<Any?>? = null
+
+    /**
+     * Hedging policy of slow handler invocations, NULL if handler is invoked once
+     */
+    @JvmField
+    var hedgingPolicy: HedgingPolicy? = null
+
+    /**
+     * Circuit breaker policy of handler invocations, NULL if handler is always invoked
+     */
+    @JvmField
+    var circuitBreakerPolicy: CircuitBreakerPolicy? = null
+
+    /**
+     * Merge status of invocation short-circuited by open circuit breaker.
+     * Short-circuited vertex does not invoke handler and merger and routes by this status.
+     */
+    @JvmField
+    var circuitBreakerStatus: Enum<*>? = null
+
+    /**
+     * Executor that invokes handler of the vertex instead of reactor executor, NULL if reactor executor is used
+     */
+    @JvmField
+    var handlerExecutor: Executor? = null
+
 
     /**
      * Merger or EmptyMerger or Mutator are non routable, they could participate only in onAny() transition
@@ -0,0 +1,373 @@
+package ru.fix.completable.reactor.runtime;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.fix.completable.reactor.runtime.timer.HashedWheelTimer;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+/**
+ * Bounded FIFO queue of payloads waiting for reactor capacity.
+ * <p>
+ * Payloads are admitted in submission order whenever in-flight execution completes.
+ * All payloads pass through the queue, even when reactor has capacity,
+ * so capacity check and submit of the payload are never interleaved with other admissions of the queue.
+ * Payloads that should not wait, see {@link #tryAdmit(Object, long)}, pass through the queue too
+ * and are rejected instead of waiting when reactor is at capacity.
+ * Admission futures of waiting payloads are completed by executor,
+ * so client callbacks do not run within the drain.
+ * Queue is controlled by target sojourn time: short bursts are absorbed by the queue,
+ * but once every queued payload waits longer than target sojourn time during whole interval
+ * the queue is considered standing and payloads that exceeded target sojourn time are shed.
+ * Latency of admitted payloads stays bounded by target sojourn time plus interval under overload.
+ * <p>
+ * Admission and shedding are serialized by work-in-progress counter without locks:
+ * any thread could request drain, only one thread drains at a time and repeats drain
+ * if requests arrived meanwhile.
+ * While queue is not empty timer periodically hands the drain to executor,
+ * so payloads are shed even if no execution completes.
+ */
+final class AdmissionQueue {
+    private static final Logger log = LoggerFactory.getLogger(AdmissionQueue.class);
+
+    static final class Entry {
+        final Object payload;
+        final long timeoutMs;
+        /**
+         * Entry is rejected instead of waiting for reactor capacity
+         */
+        final boolean isImmediate;
+        final CompletableFuture<CompletableReactor.Execution<?>> admission = new CompletableFuture<>();
+        final long enqueuedNanos = System.nanoTime();
+
+        Entry(Object payload, long timeoutMs, boolean isImmediate) {
+            this.payload = payload;
+            this.timeoutMs = timeoutMs;
+            this.isImmediate = isImmediate;
+        }
+    }
+
+    /**
+     * Shared by admission queues of the reactor
+     */
+    static final class Settings {
+        private volatile int maxSize = 10_000;
+        private volatile long targetSojournTimeNanos = TimeUnit.MILLISECONDS.toNanos(100);
+        private volatile long intervalNanos = TimeUnit.MILLISECONDS.toNanos(100);
+
+        int getMaxSize() {
+            return maxSize;
+        }
+
+        void setMaxSize(int maxSize) {
+            if (maxSize < 0) {
+                throw new IllegalArgumentException("Max admission queue size should not be negative: " + maxSize);
+            }
+            this.maxSize = maxSize;
+        }
+
+        long getTargetSojournTimeNanos() {
+            return targetSojournTimeNanos;
+        }
+
+        long getIntervalNanos() {
+            return intervalNanos;
+        }
+
+        void setTargetSojournTime(long targetSojournTime, long interval, TimeUnit unit) {
+            if (targetSojournTime <= 0 || interval <= 0) {
+                throw new IllegalArgumentException("Target sojourn time and interval should be positive: "
+                        + targetSojournTime + ", " + interval);
+            }
+            this.targetSojournTimeNanos = unit.toNanos(targetSojournTime);
+            this.intervalNanos = unit.toNanos(interval);
+        }
+    }
+
+    private final Queue<Entry> entries = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger drainRequests = new AtomicInteger();
+    private final AtomicBoolean isSweepScheduled = new AtomicBoolean();
+    private final LongAdder shedCount = new LongAdder();
+
+    /**
+     * Thread that drains the queue, NULL when queue is not drained
+     */
+    private volatile Thread drainingThread;
+
+    /**
+     * Start of the period when head of the queue exceeds target sojourn time.
+     * Accessed only by draining thread.
+     */
+    private long aboveTargetSinceNanos;
+    private boolean isAboveTarget;
+
+    private final Settings settings;
+    private final BooleanSupplier hasCapacity;
+    private final BooleanSupplier isClosed;
+    private final Function<Entry, CompletableReactor.Execution<?>> admit;
+    private final Executor executor;
+    private final HashedWheelTimer timer;
+
+    /**
+     * @param settings    size limit and sojourn time policy of the queue
+     * @param hasCapacity whether reactor could accept one more execution
+     * @param isClosed    whether reactor is closed, queued payloads of closed reactor are rejected
+     * @param admit       submits payload of the entry
+     * @param executor    completes admission futures of waiting payloads and runs periodic drain
+     * @param timer       periodically schedules drain of not empty queue
+     */
+    AdmissionQueue(Settings settings,
+                   BooleanSupplier hasCapacity,
+                   BooleanSupplier isClosed,
+                   Function<Entry, CompletableReactor.Execution<?>> admit,
+                   Executor executor,
+                   HashedWheelTimer timer) {
+        this.settings = settings;
+        this.hasCapacity = hasCapacity;
+        this.isClosed = isClosed;
+        this.admit = admit;
+        this.executor = executor;
+        this.timer = timer;
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    boolean isEmpty() {
+        return size.get() == 0;
+    }
+
+    long getShedCount() {
+        return shedCount.sum();
+    }
+
+    /**
+     * @return future that completes with execution when payload is admitted
+     * or with {@link RejectedExecutionException} when queue is full or payload is shed
+     */
+    CompletableFuture<CompletableReactor.Execution<?>> enqueue(Object payload, long timeoutMs) {
+        Entry entry = new Entry(payload, timeoutMs, false);
+
+        /**
+         * Payload that arrives to empty queue while reactor has capacity does not wait,
+         * it is admitted by the drain right away regardless of queue size limit
+         */
+        int maxSize = settings.getMaxSize();
+        int queued = size.incrementAndGet();
+        if (queued > maxSize && !(queued == 1 && hasCapacity.getAsBoolean())) {
+            size.decrementAndGet();
+            entry.admission.completeExceptionally(new RejectedExecutionException(
+                    "Admission queue is full. Max size: " + maxSize + ". Payload " + payload + " is rejected."));
+            return entry.admission;
+        }
+        entries.add(entry);
+
+        drain();
+        scheduleSweep();
+        return entry.admission;
+    }
+
+    /**
+     * Admits payload right away if the queue is empty and reactor has capacity.
+     * Capacity check and submit are serialized with other admissions of the queue:
+     * caller waits until the entry is admitted or rejected by the draining thread.
+     *
+     * @return execution of admitted payload, NULL if payload is rejected
+     */
+    CompletableReactor.Execution<?> tryAdmit(Object payload, long timeoutMs) {
+        if (!isEmpty()) {
+            return null;
+        }
+        Entry entry = new Entry(payload, timeoutMs, true);
+
+        if (drainingThread == Thread.currentThread()) {
+            /**
+             * Payload is submitted by handler that is invoked within the drain,
+             * admissions of the queue are already serialized by this thread
+             */
+            return hasCapacity.getAsBoolean() ? admit.apply(entry) : null;
+        }
+
+        size.incrementAndGet();
+        entries.add(entry);
+        drain();
+
+        try {
+            return entry.admission.join();
+        } catch (CompletionException exc) {
+            if (exc.getCause() instanceof RejectedExecutionException) {
+                return null;
+            }
+            if (exc.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) exc.getCause();
+            }
+            throw exc;
+        }
+    }
+
+    /**
+     * Admits queued payloads while reactor has capacity and sheds payloads of standing queue.
+     * Could be invoked by any thread.
+     */
+    void drain() {
+        if (drainRequests.getAndIncrement() != 0) {
+            return;
+        }
+        do {
+            drainingThread = Thread.currentThread();
+            drainEntries();
+            drainingThread = null;
+        } while (drainRequests.decrementAndGet() != 0);
+    }
+
+    private void drainEntries() {
+        long now = System.nanoTime();
+        long targetSojournTimeNanos = settings.getTargetSojournTimeNanos();
+        long intervalNanos = settings.getIntervalNanos();
+        Entry entry;
+        while ((entry = entries.peek()) != null) {
+
+            if (isClosed.getAsBoolean()) {
+                removeHead();
+                completeExceptionally(entry, new IllegalStateException(
+                        "CompletableReactor is closed. Payload " + entry.payload + " is discarded."));
+                continue;
+            }
+
+            if (entry.admission.isDone()) {
+                /**
+                 * Admission was cancelled by client
+                 */
+                removeHead();
+                continue;
+            }
+
+            long sojournTime = now - entry.enqueuedNanos;
+            if (sojournTime > targetSojournTimeNanos) {
+                if (!isAboveTarget) {
+                    isAboveTarget = true;
+                    aboveTargetSinceNanos = now;
+                } else if (now - aboveTargetSinceNanos >= intervalNanos) {
+                    removeHead();
+                    shedCount.increment();
+                    completeExceptionally(entry, new RejectedExecutionException(
+                            "Payload " + entry.payload + " is shed by admission queue after "
+                                    + TimeUnit.NANOSECONDS.toMillis(sojournTime) + " ms of waiting."));
+                    continue;
+                }
+            } else {
+                isAboveTarget = false;
+            }
+
+            if (!hasCapacity.getAsBoolean()) {
+                rejectImmediateEntries();
+                return;
+            }
+            removeHead();
+            admitEntry(entry);
+        }
+        isAboveTarget = false;
+    }
+
+    private void admitEntry(Entry entry) {
+        CompletableReactor.Execution<?> execution;
+        try {
+            execution = admit.apply(entry);
+        } catch (Exception exc) {
+            completeExceptionally(entry, exc);
+            return;
+        }
+        complete(entry, () -> {
+            if (!entry.admission.complete(execution)) {
+                /**
+                 * Admission was cancelled by client after payload was submitted
+                 */
+                execution.cancel();
+            }
+        });
+    }
+
+    /**
+     * Entries that should not wait are rejected when reactor is at capacity,
+     * even if they are queued behind waiting entries
+     */
+    private void rejectImmediateEntries() {
+        for (Entry entry : entries) {
+            if (entry.isImmediate && entries.remove(entry)) {
+                size.decrementAndGet();
+                entry.admission.completeExceptionally(new RejectedExecutionException(
+                        "Reactor is at capacity. Payload " + entry.payload + " is rejected."));
+            }
+        }
+    }
+
+    private void completeExceptionally(Entry entry, Throwable throwable) {
+        complete(entry, () -> entry.admission.completeExceptionally(throwable));
+    }
+
+    /**
+     * Caller of {@link #tryAdmit(Object, long)} waits for its entry, so it is completed right away.
+     * Admission of waiting entry is completed by executor.
+     */
+    private void complete(Entry entry, Runnable completion) {
+        if (entry.isImmediate) {
+            completion.run();
+            return;
+        }
+        try {
+            executor.execute(completion);
+        } catch (RejectedExecutionException exc) {
+            log.debug("Executor rejected admission completion of payload {}.", entry.payload, exc);
+            completion.run();
+        }
+    }
+
+    private void removeHead() {
+        entries.poll();
+        size.decrementAndGet();
+    }
+
+    private void scheduleSweep() {
+        if (isEmpty() || !isSweepScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            timer.schedule(this::sweep, settings.getIntervalNanos(), TimeUnit.NANOSECONDS);
+        } catch (IllegalStateException exc) {
+            /**
+             * Timer is stopped by closed reactor, queued payloads are rejected by drain
+             */
+            isSweepScheduled.set(false);
+            log.debug("Admission queue sweep is not scheduled.", exc);
+        }
+    }
+
+    private void sweep() {
+        isSweepScheduled.set(false);
+        try {
+            executor.execute(() -> {
+                drain();
+                scheduleSweep();
+            });
+        } catch (RejectedExecutionException exc) {
+            /**
+             * Queue is still drained by completing executions and by the next sweep
+             */
+            log.debug("Executor rejected admission queue sweep.", exc);
+            scheduleSweep();
+        }
+    }
+}
@@ -8,9 +8,18 @@ import ru.fix.completable.reactor.graph.Graphable;
 import ru.fix.completable.reactor.graph.runtime.RuntimeGraph;
 import ru.fix.completable.reactor.runtime.debug.DebugSerializer;
 import ru.fix.completable.reactor.runtime.debug.ToStringDebugSerializer;
+import ru.fix.completable.reactor.runtime.execution.BlockingExecutors;
 import ru.fix.completable.reactor.runtime.execution.ExecutionBuilder;
+import ru.fix.completable.reactor.runtime.execution.ExecutionCancellation;
+import ru.fix.completable.reactor.runtime.execution.ExecutionEngine;
+import ru.fix.completable.reactor.runtime.execution.ExecutionPlan;
 import ru.fix.completable.reactor.runtime.execution.ProcessingVertex;
 import ru.fix.completable.reactor.runtime.execution.ReactorGraphExecution;
+import ru.fix.completable.reactor.runtime.execution.SubgraphParent;
+import ru.fix.completable.reactor.runtime.limit.AdaptiveConcurrencyLimit;
+import ru.fix.completable.reactor.runtime.profiling.ProfilingSampler;
+import ru.fix.completable.reactor.runtime.timer.HashedWheelTimer;
+import ru.fix.completable.reactor.runtime.tracing.AsyncTracer;
 import ru.fix.completable.reactor.runtime.tracing.Tracer;
 
 import java.lang.reflect.Constructor;
@@ -19,9 +28,9 @@ import java.lang.reflect.Type;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
 import java.util.function.Function;
 
 /**
@@ -51,9 +60,75 @@ public class CompletableReactor implements AutoCloseable {
      */
     private final Map<Class<?>, Function> inlinePayloadGraphs = new ConcurrentHashMap<>();
 
-    private final ScheduledExecutorService timeoutExecutorService = newScheduledThreadPool(
-            1,
-            "completable-reactor-check-timeout-");
+    /**
+     * Runs internal asynchronous stages of executions: transitions, handling and merging continuations,
+     * profiling and pending request accounting.
+     * By default {@link ForkJoinPool#commonPool()} is used.
+     */
+    private volatile Executor executor = ForkJoinPool.commonPool();
+
+    /**
+     * Reactor-owned executor of blocking handlers, released when reactor is closed.
+     */
+    private final ExecutorService defaultBlockingExecutor = BlockingExecutors.newBlockingExecutor(
+            "completable-reactor-blocking",
+            BlockingExecutors.DEFAULT_MAX_POOL_SIZE);
+
+    /**
+     * Runs handlers of blocking handler vertices.
+     * By default virtual thread per task executor is used if JVM supports virtual threads,
+     * otherwise bounded pool of platform threads.
+     */
+    private volatile Executor blockingExecutor = defaultBlockingExecutor;
+
+    /**
+     * Executors provided during graph registration.
+     * Override reactor executor for executions of graph payload type.
+     */
+    private final ConcurrentHashMap<Class<?>, Executor> graphExecutors = new ConcurrentHashMap<>();
+
+    /**
+     * Executors provided for particular payload types.
+     * Override both reactor and graph executors.
+     */
+    private final ConcurrentHashMap<Class<?>, Executor> payloadExecutors = new ConcurrentHashMap<>();
+
+    /**
+     * Runs executions of all payload types instead of built-in engine, NULL if built-in engine is used.
+     */
+    private volatile ExecutionEngine executionEngine;
+
+    /**
+     * Execution engines for particular payload types.
+     * Override reactor execution engine.
+     */
+    private final ConcurrentHashMap<Class<?>, ExecutionEngine> payloadExecutionEngines = new ConcurrentHashMap<>();
+
+    /**
+     * Decides whether handlers and mergers of submitted execution are profiled.
+     * By default all executions are profiled.
+     */
+    private volatile ProfilingSampler profilingSampler = ProfilingSampler.always();
+
+    /**
+     * Profiling samplers for particular payload types.
+     * Override reactor profiling sampler.
+     */
+    private final ConcurrentHashMap<Class<?>, ProfilingSampler> payloadProfilingSamplers = new ConcurrentHashMap<>();
+
+    /**
+     * How many nested continuations of synchronous vertices (Router, Mutator) could run on the thread
+     * that completed their incoming transitions before falling back to executor.
+     * <p>
+     * By default direct continuations are disabled.
+     */
+    private volatile int directContinuationDepth = 0;
+
+    /**
+     * Shared by execution timeouts of all submitted payloads.
+     * Timeout is cancelled when execution completes and does not retain payload afterwards.
+     */
+    private final HashedWheelTimer timer = new HashedWheelTimer("completable-reactor-timer");
 
     private volatile long executionTimeoutMs = TimeUnit.MINUTES.toMillis(15);
 
@@ -64,14 +139,43 @@ public class CompletableReactor implements AutoCloseable {
     private final AtomicLong maxPendingRequestCount = new AtomicLong(Long.MAX_VALUE);
 
     /**
-     * Used as a synchronized monitor.
-     * Notify when reach 0.
+     * Executions that are submitted and not completed yet.
      */
-    private final AtomicLong pendingRequestCount = new AtomicLong();
+    private final InFlightCounter inFlightRequests = new InFlightCounter();
+
+    /**
+     * Completes when reactor is closed and reactor-owned threads are released.
+     */
+    private final CompletableFuture<Void> closeFuture = new CompletableFuture<>();
 
     private final AtomicLong closeTimeoutMs = new AtomicLong(120_000);
 
-    private final ConcurrentHashMap<Class<?>, RuntimeGraph> glPayloadGraphs = new ConcurrentHashMap<>();
+    /**
+     * Size limit and sojourn time policy shared by all admission queues.
+     */
+    private final AdmissionQueue.Settings admissionSettings = new AdmissionQueue.Settings();
+
+    /**
+     * Payloads submitted by {@link #submitAsync(Object)} that wait for reactor capacity.
+     */
+    private final AdmissionQueue admissionQueue;
+
+    /**
+     * Adaptive limits of in-flight executions for particular payload types.
+     */
+    private final ConcurrentHashMap<Class<?>, AdaptiveConcurrencyLimit> concurrencyLimits = new ConcurrentHashMap<>();
+
+    /**
+     * Admission queues of payload types with concurrency limit,
+     * so payloads of a type that reached its limit do not block admission of other payload types.
+     */
+    private final ConcurrentHashMap<Class<?>, AdmissionQueue> payloadAdmissionQueues = new ConcurrentHashMap<>();
+
+    /**
+     * Execution plans compiled during graph registration.
+     * Single plan is shared by all executions of the payload type.
+     */
+    private final ConcurrentHashMap<Class<?>, ExecutionPlan> glPayloadPlans = new ConcurrentHashMap<>();
     private final ConcurrentHashMap<Class<? extends Graphable>, Boolean> glGraphConfigs = new ConcurrentHashMap<>();
 
     /**
@@ -81,6 +185,18 @@ public class CompletableReactor implements AutoCloseable {
      */
     public <GraphConfigType extends Graphable>
     boolean registerGraphIfAbsent(GraphConfigType graphConfig) {
+        return registerGraphIfAbsent(graphConfig, null);
+    }
+
+    /**
+     * @param graphConfig
+     * @param graphExecutor executor that runs executions of the graph instead of reactor executor,
+     *                      NULL if reactor executor should be used
+     * @param <GraphConfigType>
+     * @return true if graph is built and registered, false - if graph already registered
+     */
+    public <GraphConfigType extends Graphable>
+    boolean registerGraphIfAbsent(GraphConfigType graphConfig, Executor graphExecutor) {
         Objects.requireNonNull(graphConfig, "graphConfig");
 
         AtomicBoolean isComputed = new AtomicBoolean(false);
@@ -89,8 +205,9 @@ public class CompletableReactor implements AutoCloseable {
 
             Class payloadType = getPayloadTypeForGraphConfigBasedClass(graphConfig.getClass());
             RuntimeGraph graph = graphBuilder.buildGraph(graphConfig);
+            ExecutionPlan plan = glExecutionBuilder.compile(graph, payloadType);
 
-            Object prevGraph = glPayloadGraphs.putIfAbsent(payloadType, graph);
+            Object prevGraph = glPayloadPlans.putIfAbsent(payloadType, plan);
             if (prevGraph != null) {
                 throw new IllegalArgumentException(""
                         + "New graph config: " + graphConfig
@@ -98,6 +215,9 @@ public class CompletableReactor implements AutoCloseable {
                         + " is registering graph for payload " + payloadType + "."
                         + " But this payload was already registered by another graph config.");
             }
+            if (graphExecutor != null) {
+                graphExecutors.put(payloadType, graphExecutor);
+            }
 
             isComputed.set(true);
             return true;
@@ -118,6 +238,18 @@ public class CompletableReactor implements AutoCloseable {
         }
     }
 
+    /**
+     * @param graphExecutor executor that runs executions of the graph instead of reactor executor
+     * @throws IllegalStateException if graph already registered.
+     */
+    public <GraphConfigType extends Graphable>
+    void registerGraph(GraphConfigType graphConfig, Executor graphExecutor) {
+        Objects.requireNonNull(graphExecutor, "graphExecutor");
+        if (!registerGraphIfAbsent(graphConfig, graphExecutor)) {
+            throw new IllegalStateException("Graph '" + graphConfig.getClass().getName() + "' already registered.");
+        }
+    }
+
     public <GraphConfigType extends Graphable>
     void registerGraph(Class<GraphConfigType> graphConfigClass) {
         if (!registerGraphIfAbsent(graphConfigClass)) {
@@ -125,6 +257,18 @@ public class CompletableReactor implements AutoCloseable {
         }
     }
 
+    /**
+     * @param graphExecutor executor that runs executions of the graph instead of reactor executor
+     * @throws IllegalStateException if graph already registered.
+     */
+    public <GraphConfigType extends Graphable>
+    void registerGraph(Class<GraphConfigType> graphConfigClass, Executor graphExecutor) {
+        Objects.requireNonNull(graphExecutor, "graphExecutor");
+        if (!registerGraphIfAbsent(graphConfigClass, graphExecutor)) {
+            throw new IllegalStateException("Graph '" + graphConfigClass.getName() + "' already registered.");
+        }
+    }
+
 
     private final GraphBuilder graphBuilder = new GraphBuilder();
 
@@ -137,6 +281,16 @@ public class CompletableReactor implements AutoCloseable {
      */
     public <GraphConfigType extends Graphable>
     boolean registerGraphIfAbsent(Class<GraphConfigType> graphConfigClass) {
+        return registerGraphIfAbsent(graphConfigClass, null);
+    }
+
+    /**
+     * @param graphExecutor executor that runs executions of the graph instead of reactor executor,
+     *                      NULL if reactor executor should be used
+     * @see #registerGraphIfAbsent(Class)
+     */
+    public <GraphConfigType extends Graphable>
+    boolean registerGraphIfAbsent(Class<GraphConfigType> graphConfigClass, Executor graphExecutor) {
         Objects.requireNonNull(graphConfigClass, "graphConfigClass");
 
         AtomicBoolean isComputed = new AtomicBoolean(false);
@@ -160,8 +314,12 @@ public class CompletableReactor implements AutoCloseable {
                             exc);
                 }
                 RuntimeGraph graph = graphBuilder.buildGraph(graphConfig);
+                ExecutionPlan plan = glExecutionBuilder.compile(graph, payloadType);
 
-                glPayloadGraphs.putIfAbsent(payloadType, graph);
+                glPayloadPlans.putIfAbsent(payloadType, plan);
+                if (graphExecutor != null) {
+                    graphExecutors.put(payloadType, graphExecutor);
+                }
                 isComputed.set(true);
 
             } catch (Exception exc) {
@@ -248,15 +406,23 @@ public class CompletableReactor implements AutoCloseable {
 
     }
 
+    /**
+     * Protects execution from tracer exceptions.
+     * Tracer of an execution is selected once on submit, see {@link #traceExecution(Object)}
+     */
     private static class ReactorTracer implements Tracer {
         private static final Logger log = LoggerFactory.getLogger(ReactorTracer.class);
 
-        private volatile Tracer tracer;
+        private final Tracer tracer;
+
+        ReactorTracer(Tracer tracer) {
+            this.tracer = tracer;
+        }
 
         @Override
         public boolean isTraceable(Object payload) {
             try {
-                return tracer != null && tracer.isTraceable(payload);
+                return tracer.isTraceable(payload);
             } catch (Exception exc) {
                 log.error("Failed to call isTraceable method of tracer.", exc);
                 return false;
@@ -306,26 +472,22 @@ public class CompletableReactor implements AutoCloseable {
 
     }
 
-    private final ReactorTracer reactorTracer = new ReactorTracer();
+    private volatile ReactorTracer reactorTracer;
 
     public CompletableReactor(Profiler profiler) {
         this.profiler = profiler;
 
-        profiler.attachIndicator(Metrics.PENDING_REQUEST, pendingRequestCount::get);
+        profiler.attachIndicator(Metrics.PENDING_REQUEST, inFlightRequests::sum);
+
+        this.admissionQueue = newAdmissionQueue(this::hasAdmissionCapacity);
+
+        profiler.attachIndicator(Metrics.ADMISSION_QUEUE_SIZE, () -> (long) getAdmissionQueueSize());
 
         this.glExecutionBuilder = new ExecutionBuilder(
                 this.profiler,
-                payload -> {
-                    try {
-                        return this.internalSubmit(payload, executionTimeoutMs).getResultFuture();
-                    } catch (Exception exc) {
-                        CompletableFuture result = new CompletableFuture();
-                        result.completeExceptionally(exc);
-                        return result;
-                    }
-                },
+                this::startSubgraph,
                 debugSerializer,
-                reactorTracer);
+                timer);
     }
 
     /**
@@ -352,11 +514,167 @@ public class CompletableReactor implements AutoCloseable {
      * How many request currently executing within reactor
      */
     public long getPendingRequestCount() {
-        return pendingRequestCount.get();
+        return inFlightRequests.sum();
     }
 
     public CompletableReactor setMaxPendingRequestCount(long value) {
         maxPendingRequestCount.set(value);
+        drainAdmissionQueues();
+        return this;
+    }
+
+    /**
+     * Reactor admits payloads submitted by {@link #submitAsync(Object)} and {@link #trySubmit(Object)}
+     * while there is less than {@link #getMaxPendingRequestCount()} in-flight executions.
+     */
+    private boolean hasAdmissionCapacity() {
+        return inFlightRequests.sum() < maxPendingRequestCount.get();
+    }
+
+    /**
+     * Payload type with concurrency limit is admitted while it has less in-flight executions than the limit
+     * and reactor has capacity.
+     */
+    private boolean hasAdmissionCapacity(Class<?> payloadType) {
+        return hasAdmissionCapacity() && !isConcurrencyLimitReached(payloadType);
+    }
+
+    private boolean isConcurrencyLimitReached(Class<?> payloadType) {
+        AdaptiveConcurrencyLimit concurrencyLimit = concurrencyLimits.get(payloadType);
+        if (concurrencyLimit == null) {
+            return false;
+        }
+        PayloadStatCounters statistics = payloadStatCounters.get(payloadType);
+        return statistics != null && statistics.runningTotal.sum() >= concurrencyLimit.getLimit();
+    }
+
+    private AdmissionQueue newAdmissionQueue(BooleanSupplier hasCapacity) {
+        return new AdmissionQueue(
+                admissionSettings,
+                hasCapacity,
+                isClosed::get,
+                entry -> submit(entry.payload, entry.timeoutMs),
+                task -> executor.execute(task),
+                timer);
+    }
+
+    private AdmissionQueue getAdmissionQueue(Class<?> payloadType) {
+        AdmissionQueue payloadAdmissionQueue = payloadAdmissionQueues.get(payloadType);
+        if (payloadAdmissionQueue != null) {
+            return payloadAdmissionQueue;
+        }
+        return admissionQueue;
+    }
+
+    private void drainAdmissionQueues() {
+        if (!admissionQueue.isEmpty()) {
+            admissionQueue.drain();
+        }
+        if (!payloadAdmissionQueues.isEmpty()) {
+            for (AdmissionQueue payloadAdmissionQueue : payloadAdmissionQueues.values()) {
+                if (!payloadAdmissionQueue.isEmpty()) {
+                    payloadAdmissionQueue.drain();
+                }
+            }
+        }
+    }
+
+    /**
+     * How many payloads submitted by {@link #submitAsync(Object)} wait for reactor capacity
+     */
+    public int getAdmissionQueueSize() {
+        int size = admissionQueue.size();
+        for (AdmissionQueue payloadAdmissionQueue : payloadAdmissionQueues.values()) {
+            size += payloadAdmissionQueue.size();
+        }
+        return size;
+    }
+
+    public int getMaxAdmissionQueueSize() {
+        return admissionSettings.getMaxSize();
+    }
+
+    /**
+     * @param value how many payloads could wait for reactor capacity,
+     *              {@link #submitAsync(Object)} rejects payloads when admission queue is full.
+     *              By default 10 000.
+     */
+    public CompletableReactor setMaxAdmissionQueueSize(int value) {
+        admissionSettings.setMaxSize(value);
+        return this;
+    }
+
+    /**
+     * @return target time in milliseconds that payload waits in admission queue
+     */
+    public long getAdmissionTargetSojournTimeMs() {
+        return TimeUnit.NANOSECONDS.toMillis(admissionSettings.getTargetSojournTimeNanos());
+    }
+
+    /**
+     * @return interval in milliseconds during which admission queue could stay above target sojourn time
+     * before queued payloads are shed
+     */
+    public long getAdmissionIntervalMs() {
+        return TimeUnit.NANOSECONDS.toMillis(admissionSettings.getIntervalNanos());
+    }
+
+    /**
+     * Admission queue sheds payloads that waited longer than target sojourn time
+     * when queue stays above target sojourn time during whole interval.
+     * Short bursts are absorbed, standing queue is shed.
+     * By default target sojourn time is 100 ms and interval is 100 ms.
+     *
+     * @param targetSojournTimeMs target time that payload waits in admission queue
+     * @param intervalMs          how long admission queue could stay above target
+     */
+    public CompletableReactor setAdmissionTargetSojournTime(long targetSojournTimeMs, long intervalMs) {
+        admissionSettings.setTargetSojournTime(targetSojournTimeMs, intervalMs, TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    /**
+     * How many payloads submitted by {@link #submitAsync(Object)} were shed by admission queue
+     */
+    public long getShedAdmissionCount() {
+        long shedCount = admissionQueue.getShedCount();
+        for (AdmissionQueue payloadAdmissionQueue : payloadAdmissionQueues.values()) {
+            shedCount += payloadAdmissionQueue.getShedCount();
+        }
+        return shedCount;
+    }
+
+    /**
+     * Limits in-flight executions of given payload type by adaptive concurrency limit.
+     * Limit is adjusted by latency between submit and execution result of the payload type.
+     * {@link #submitAsync(Object)} queues payloads of the type that reached the limit,
+     * {@link #trySubmit(Object)} rejects them, {@link #submit(Object)} accepts them anyway.
+     * Current limit is exposed as profiler indicator.
+     */
+    public CompletableReactor setConcurrencyLimit(Class<?> payloadType, AdaptiveConcurrencyLimit concurrencyLimit) {
+        Objects.requireNonNull(payloadType, "payloadType");
+        Objects.requireNonNull(concurrencyLimit, "concurrencyLimit");
+
+        concurrencyLimits.put(payloadType, concurrencyLimit);
+        payloadAdmissionQueues.computeIfAbsent(
+                payloadType,
+                type -> newAdmissionQueue(() -> hasAdmissionCapacity(type)));
+
+        profiler.attachIndicator(
+                ProfilerIdentity.concurrencyLimitIdentity(payloadType),
+                () -> (long) concurrencyLimit.getLimit());
+        return this;
+    }
+
+    public AdaptiveConcurrencyLimit getConcurrencyLimit(Class<?> payloadType) {
+        return concurrencyLimits.get(payloadType);
+    }
+
+    public CompletableReactor removeConcurrencyLimit(Class<?> payloadType) {
+        if (concurrencyLimits.remove(payloadType) != null) {
+            profiler.detachIndicator(ProfilerIdentity.concurrencyLimitIdentity(payloadType));
+        }
+        drainAdmissionQueues();
         return this;
     }
 
@@ -390,16 +708,202 @@ public class CompletableReactor implements AutoCloseable {
         executionTimeoutMs = value;
     }
 
+    /**
+     * @return executor that runs internal asynchronous stages of executions
+     * unless it is overridden for graph or payload type
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @param executor runs internal asynchronous stages of executions: transitions, handling and merging continuations,
+     *                 profiling and pending request accounting.
+     *                 By default {@link ForkJoinPool#commonPool()} is used.
+     */
+    public CompletableReactor setExecutor(Executor executor) {
+        this.executor = Objects.requireNonNull(executor, "executor");
+        return this;
+    }
+
+    /**
+     * Override executor for executions of given payload type.
+     * Payload type executor takes precedence over executor provided during graph registration and reactor executor.
+     */
+    public CompletableReactor setExecutor(Class<?> payloadType, Executor executor) {
+        payloadExecutors.put(
+                Objects.requireNonNull(payloadType, "payloadType"),
+                Objects.requireNonNull(executor, "executor"));
+        return this;
+    }
+
+    public CompletableReactor removeExecutor(Class<?> payloadType) {
+        payloadExecutors.remove(payloadType);
+        return this;
+    }
+
+    /**
+     * @return executor that runs executions of given payload type
+     */
+    public Executor getExecutor(Class<?> payloadType) {
+        Executor payloadExecutor = payloadExecutors.get(payloadType);
+        if (payloadExecutor != null) {
+            return payloadExecutor;
+        }
+        Executor graphExecutor = graphExecutors.get(payloadType);
+        if (graphExecutor != null) {
+            return graphExecutor;
+        }
+        return executor;
+    }
+
+    /**
+     * @return executor that runs handlers of blocking handler vertices
+     */
+    public Executor getBlockingExecutor() {
+        return blockingExecutor;
+    }
+
+    /**
+     * @param blockingExecutor runs handlers of blocking handler vertices instead of reactor-owned executor.
+     *                         Executor provided by client is not shut down by reactor.
+     */
+    public CompletableReactor setBlockingExecutor(Executor blockingExecutor) {
+        this.blockingExecutor = Objects.requireNonNull(blockingExecutor, "blockingExecutor");
+        return this;
+    }
+
+    public int getDirectContinuationDepth() {
+        return directContinuationDepth;
+    }
+
+    /**
+     * Enables direct continuation execution mode.
+     * When all incoming transitions of synchronous vertex (Router, Mutator) are complete
+     * vertex runs inline on the current thread instead of being submitted to executor.
+     * Past given nesting depth continuations fall back to executor so the stack stays bounded.
+     *
+     * @param depth max depth of nested direct continuations, 0 disables direct continuations.
+     */
+    public CompletableReactor setDirectContinuationDepth(int depth) {
+        if (depth < 0) {
+            throw new IllegalArgumentException("Direct continuation depth should be non negative: " + depth);
+        }
+        this.directContinuationDepth = depth;
+        return this;
+    }
+
+    public ProfilingSampler getProfilingSampler() {
+        return profilingSampler;
+    }
+
+    /**
+     * @param profilingSampler decides on payload submission whether handlers and mergers of the execution
+     *                         are profiled. Submit and execution metrics are collected for every execution.
+     *                         By default all executions are profiled.
+     */
+    public CompletableReactor setProfilingSampler(ProfilingSampler profilingSampler) {
+        this.profilingSampler = Objects.requireNonNull(profilingSampler, "profilingSampler");
+        return this;
+    }
+
+    /**
+     * Override profiling sampler for executions of given payload type.
+     * Subgraph executions follow sampling decision of their parent execution.
+     */
+    public CompletableReactor setProfilingSampler(Class<?> payloadType, ProfilingSampler profilingSampler) {
+        payloadProfilingSamplers.put(
+                Objects.requireNonNull(payloadType, "payloadType"),
+                Objects.requireNonNull(profilingSampler, "profilingSampler"));
+        return this;
+    }
+
+    public CompletableReactor removeProfilingSampler(Class<?> payloadType) {
+        payloadProfilingSamplers.remove(payloadType);
+        return this;
+    }
+
+    /**
+     * @return profiling sampler that is used for executions of given payload type
+     */
+    public ProfilingSampler getProfilingSampler(Class<?> payloadType) {
+        ProfilingSampler payloadProfilingSampler = payloadProfilingSamplers.get(payloadType);
+        if (payloadProfilingSampler != null) {
+            return payloadProfilingSampler;
+        }
+        return profilingSampler;
+    }
+
+    /**
+     * @param executionEngine runs executions of all payload types instead of built-in engine.
+     *                        Direct continuations are used only by built-in engine.
+     */
+    public CompletableReactor setExecutionEngine(ExecutionEngine executionEngine) {
+        this.executionEngine = Objects.requireNonNull(executionEngine, "executionEngine");
+        return this;
+    }
+
+    /**
+     * Restores built-in engine for payload types without own execution engine.
+     */
+    public CompletableReactor removeExecutionEngine() {
+        this.executionEngine = null;
+        return this;
+    }
+
+    /**
+     * Override execution engine for executions of given payload type.
+     */
+    public CompletableReactor setExecutionEngine(Class<?> payloadType, ExecutionEngine executionEngine) {
+        payloadExecutionEngines.put(
+                Objects.requireNonNull(payloadType, "payloadType"),
+                Objects.requireNonNull(executionEngine, "executionEngine"));
+        return this;
+    }
+
+    public CompletableReactor removeExecutionEngine(Class<?> payloadType) {
+        payloadExecutionEngines.remove(payloadType);
+        return this;
+    }
+
+    /**
+     * @return execution engine that runs executions of given payload type, NULL if built-in engine is used
+     */
+    public ExecutionEngine getExecutionEngine(Class<?> payloadType) {
+        ExecutionEngine payloadExecutionEngine = payloadExecutionEngines.get(payloadType);
+        if (payloadExecutionEngine != null) {
+            return payloadExecutionEngine;
+        }
+        return executionEngine;
+    }
+
+    /**
+     * @param tracer decides on payload submission whether the execution is traced.
+     *               Tracer is invoked synchronously by reactor threads,
+     *               wrap slow tracer implementations by {@link AsyncTracer}.
+     */
     public void setTracer(Tracer tracer) {
-        this.reactorTracer.tracer = tracer;
+        this.reactorTracer = tracer != null ? new ReactorTracer(tracer) : null;
     }
 
     public Tracer getTracer() {
-        return this.reactorTracer.tracer;
+        ReactorTracer reactorTracer = this.reactorTracer;
+        return reactorTracer != null ? reactorTracer.tracer : null;
     }
 
     public void removeTracer() {
-        this.reactorTracer.tracer = null;
+        this.reactorTracer = null;
+    }
+
+    /**
+     * @return tracer of the execution or null if payload is not traceable
+     */
+    private Tracer traceExecution(Object payload) {
+        ReactorTracer reactorTracer = this.reactorTracer;
+        if (reactorTracer != null && reactorTracer.isTraceable(payload)) {
+            return reactorTracer;
+        }
+        return null;
     }
 
 
@@ -438,7 +942,7 @@ public class CompletableReactor implements AutoCloseable {
     //TODO extract statistics
 
     static class PayloadStatCounters {
-        final LongAdder runningTotal = new LongAdder();
+        final InFlightCounter runningTotal = new InFlightCounter();
         final LongAdder runningWithoutResult = new LongAdder();
 
     }
@@ -458,18 +962,6 @@ public class CompletableReactor implements AutoCloseable {
         final Map<Class<?>, PayloadStatisticsReport> payloadStatisticsReports = new HashMap<>();
     }
 
-    private static ScheduledThreadPoolExecutor newScheduledThreadPool(int poolSize, String threadsNamePrefix) {
-        AtomicInteger counter = new AtomicInteger();
-        ThreadFactory threadFactory = runnable -> new Thread(
-                runnable,
-                threadsNamePrefix + counter.getAndIncrement());
-
-        ScheduledThreadPoolExecutor scheduledThreadPoolExecutor =
-                new ScheduledThreadPoolExecutor(poolSize, threadFactory);
-        scheduledThreadPoolExecutor.setRemoveOnCancelPolicy(true);
-        return scheduledThreadPoolExecutor;
-    }
-
     public StatisticsReport buildStatisticsReport() {
         StatisticsReport report = new StatisticsReport();
 
@@ -499,13 +991,27 @@ public class CompletableReactor implements AutoCloseable {
          */
         private final Collection debugProcessingVertexGraphState;
 
+        /**
+         * Graph execution that runs payload, NULL in case of inline graph
+         */
+        private final ReactorGraphExecution<PayloadType> graphExecution;
+
         public Execution(
                 CompletableFuture<PayloadType> resultFuture,
                 CompletableFuture<Void> chainExecutionFuture,
                 Collection debugProcessingVertexGraphState) {
+            this(resultFuture, chainExecutionFuture, debugProcessingVertexGraphState, null);
+        }
+
+        Execution(
+                CompletableFuture<PayloadType> resultFuture,
+                CompletableFuture<Void> chainExecutionFuture,
+                Collection debugProcessingVertexGraphState,
+                ReactorGraphExecution<PayloadType> graphExecution) {
             this.chainExecutionFuture = chainExecutionFuture;
             this.resultFuture = resultFuture;
             this.debugProcessingVertexGraphState = debugProcessingVertexGraphState;
+            this.graphExecution = graphExecution;
         }
 
         public CompletableFuture<Void> getChainExecutionFuture() {
@@ -515,18 +1021,62 @@ public class CompletableReactor implements AutoCloseable {
         public CompletableFuture<PayloadType> getResultFuture() {
             return resultFuture;
         }
+
+        /**
+         * Cancels execution.
+         * Result future completes with {@link CancellationException} if it is not completed yet.
+         * Running handler invocations are cancelled, including subgraph executions, coroutines of suspend handlers
+         * and detached handlers without merger. Futures returned by async handlers are not awaited anymore
+         * and left intact. Vertices that have not started are not invoked.
+         *
+         * @return true if execution result was completed by this invocation
+         */
+        public boolean cancel() {
+            if (graphExecution == null) {
+                return resultFuture.completeExceptionally(new CancellationException("Execution is cancelled."));
+            }
+            return graphExecution.cancel();
+        }
     }
 
 
+    public <PayloadType> CompletableFuture<Execution<PayloadType>> submitAsync(PayloadType payload) {
+        return submitAsync(payload, executionTimeoutMs);
+    }
+
+    /**
+     * Submits payload as soon as reactor has capacity, see {@link #getMaxPendingRequestCount()}.
+     * While reactor is at capacity payloads wait in bounded admission queue and are admitted in FIFO order
+     * when in-flight executions complete.
+     *
+     * @return future that completes with execution when payload is admitted.
+     * Completes with {@link RejectedExecutionException} when admission queue is full or payload is shed
+     * by admission queue, see {@link #setAdmissionTargetSojournTime(long, long)}.
+     * Completes with {@link IllegalStateException} when reactor is closed.
+     */
+    public <PayloadType> CompletableFuture<Execution<PayloadType>> submitAsync(PayloadType payload, long timeoutMs) {
+        /**
+         * Payload always passes through the queue.
+         * Capacity check and submit are done by single draining thread,
+         * so concurrent callers could not exceed the limit or overtake queued payloads.
+         */
+        return (CompletableFuture) getAdmissionQueue(payload.getClass()).enqueue(payload, timeoutMs);
+    }
+
     public <PayloadType> Optional<Execution<PayloadType>> trySubmit(PayloadType payload) {
         return trySubmit(payload, executionTimeoutMs);
     }
 
+    /**
+     * Submits payload if reactor has capacity and no payloads wait in admission queue of its type.
+     * Capacity check and submit are serialized with admissions of the queue,
+     * so concurrent callers could not exceed the limit or overtake queued payloads.
+     *
+     * @return execution of submitted payload or empty if payload is rejected
+     */
     public <PayloadType> Optional<Execution<PayloadType>> trySubmit(PayloadType payload, long timeoutMs) {
-        if (pendingRequestCount.get() > maxPendingRequestCount.get()) {
-            return Optional.empty();
-        }
-        return Optional.of(submit(payload, timeoutMs));
+        return Optional.ofNullable(
+                (Execution<PayloadType>) getAdmissionQueue(payload.getClass()).tryAdmit(payload, timeoutMs));
     }
 
     public <PayloadType> Execution<PayloadType> submit(PayloadType payload) {
@@ -534,10 +1084,22 @@ public class CompletableReactor implements AutoCloseable {
     }
 
     public <PayloadType> Execution<PayloadType> submit(PayloadType payload, long timeoutMs) {
-        if (isClosed.get()) {
-            throw new IllegalStateException("CompletableReactor is closed. Payload " + payload + " is discarded.");
+        /**
+         * Request is accounted as in-flight before closed state check,
+         * so concurrent close either rejects the request or waits for its execution.
+         * The same slot is held by the execution and is released when the execution completes.
+         */
+        int stripe = inFlightRequests.stripe();
+        inFlightRequests.acquire(stripe);
+        try {
+            if (isClosed.get()) {
+                throw new IllegalStateException("CompletableReactor is closed. Payload " + payload + " is discarded.");
+            }
+            return internalSubmit(payload, timeoutMs, stripe);
+        } catch (RuntimeException | Error exc) {
+            inFlightRequests.release(stripe);
+            throw exc;
         }
-        return internalSubmit(payload, timeoutMs);
     }
 
     /**
@@ -546,12 +1108,14 @@ public class CompletableReactor implements AutoCloseable {
      *
      * @param payload
      * @param timeoutMs
+     * @param stripe    stripe of in-flight slot acquired for the request,
+     *                  released when execution completes
      * @param <PayloadType>
      * @return
      */
-    private <PayloadType> Execution<PayloadType> internalSubmit(PayloadType payload, long timeoutMs) {
+    private <PayloadType> Execution<PayloadType> internalSubmit(PayloadType payload, long timeoutMs, int stripe) {
 
-        if (pendingRequestCount.get() > maxPendingRequestCount.get()) {
+        if (inFlightRequests.sum() > maxPendingRequestCount.get()) {
             log.error("Max pending request count is reached. Request will be accepted but there is a possibility of " +
                     "OOM or something wrong with back pressure logic in client code.\n" +
                     "Use trySubmit method that supports back pressure or correctly handle the load on " +
@@ -559,12 +1123,14 @@ public class CompletableReactor implements AutoCloseable {
         }
 
 
+        Executor executor = getExecutor(payload.getClass());
+
         ProfiledCall submitCall = profiler
-                .profiledCall(ProfilerIdentity.submitIdentity(payload.getClass().getName()))
+                .profiledCall(ProfilerIdentity.submitIdentity(payload.getClass()))
                 .start();
 
         ProfiledCall executionCall = profiler
-                .profiledCall(ProfilerIdentity.executionIdentity(payload.getClass().getName()))
+                .profiledCall(ProfilerIdentity.executionIdentity(payload.getClass()))
                 .start();
 
         /**
@@ -578,7 +1144,10 @@ public class CompletableReactor implements AutoCloseable {
             inlineGraphResult.whenCompleteAsync((payloadType, throwable) -> {
                 submitCall.stop();
                 executionCall.stop();
-            });
+
+                inFlightRequests.release(stripe);
+                drainAdmissionQueues();
+            }, executor);
 
             return new Execution<>(
                     inlineGraphResult,
@@ -590,37 +1159,39 @@ public class CompletableReactor implements AutoCloseable {
         /**
          * Standard graph execution scenario
          */
-        ReactorGraphExecution<PayloadType> execution;
-
-        RuntimeGraph runtimeGraph = glPayloadGraphs.get(payload.getClass());
-        if (runtimeGraph != null) {
-            execution = glExecutionBuilder.build(runtimeGraph);
-
-        } else {
-            throw new IllegalArgumentException("Rector graph not found for payload " + payload.getClass());
-        }
+        ReactorGraphExecution<PayloadType> execution = buildExecution(
+                getExecutionPlan(payload),
+                executor,
+                getProfilingSampler(payload.getClass()).isSampled(),
+                traceExecution(payload));
 
 
         /**
-         * Handling pending request counts
+         * Handling pending request counts.
+         * Execution is released within the same stripe its in-flight slot was acquired by submit.
          */
-        pendingRequestCount.incrementAndGet();
-
         PayloadStatCounters statistics = payloadStatCounters.computeIfAbsent(
                 payload.getClass(),
                 key -> new PayloadStatCounters());
 
-        statistics.runningTotal.increment();
+        statistics.runningTotal.acquire(stripe);
 
-        execution.getChainExecutionFuture().handleAsync((result, thr) -> {
-            statistics.runningTotal.decrement();
-            return null;
-        });
+        AdaptiveConcurrencyLimit concurrencyLimit = concurrencyLimits.get(payload.getClass());
+        if (concurrencyLimit != null) {
+            long submitNanos = System.nanoTime();
+            execution.getResultFuture().whenComplete((result, throwable) -> {
+                if (throwable == null) {
+                    concurrencyLimit.onSample(System.nanoTime() - submitNanos, statistics.runningTotal.sum());
+                } else if (throwable instanceof TimeoutException || throwable.getCause() instanceof TimeoutException) {
+                    concurrencyLimit.onOverload();
+                }
+            });
+        }
 
         execution.getResultFuture().handleAsync((result, thr) -> {
             statistics.runningWithoutResult.decrement();
             return null;
-        });
+        }, executor);
 
         /**
          * Launching chain execution
@@ -632,47 +1203,37 @@ public class CompletableReactor implements AutoCloseable {
         /**
          * Add timeout protection to execution
          */
-        ScheduledFuture<?> schedule = timeoutExecutorService.schedule(
+        HashedWheelTimer.Timeout timeout = timer.schedule(
                 () -> {
                     /**
-                     * Temporary solution.
-                     * Should be fixed by completing all futures in processor chain
+                     * Timer thread is shared by all executions,
+                     * state dump and callbacks of completed futures run on executor
                      */
-                    if (!execution.getResultFuture().isDone()) {
-                        execution.getResultFuture().completeExceptionally(
-                                new TimeoutException("" +
-                                        "Response for payload " + payload +
-                                        " took more than " + timeoutMs + " ms.\n" +
-                                        dumpExecutionState(execution)));
-                    }
-                    if (!execution.getChainExecutionFuture().isDone()) {
-                        execution.getChainExecutionFuture().completeExceptionally(
-                                new TimeoutException("" +
-                                        "Execution of payload " + payload +
-                                        " took more than " + timeoutMs + " ms.\n" +
-                                        dumpExecutionState(execution)));
+                    try {
+                        executor.execute(() -> completeTimedOutExecution(execution, payload, timeoutMs));
+                    } catch (RejectedExecutionException exc) {
+                        log.warn("Executor rejected timeout of execution for payload {}.", payload, exc);
+                        completeTimedOutExecution(execution, payload, timeoutMs);
                     }
                 },
                 timeoutMs,
                 TimeUnit.MILLISECONDS);
 
         execution.getChainExecutionFuture().handleAsync((result, throwable) -> {
-            long count = pendingRequestCount.decrementAndGet();
-            if (count == 0) {
-                synchronized (pendingRequestCount) {
-                    pendingRequestCount.notifyAll();
-                }
-            }
+            timeout.cancel();
 
-            schedule.cancel(false);
+            statistics.runningTotal.release(stripe);
+            inFlightRequests.release(stripe);
+
+            drainAdmissionQueues();
 
             return null;
-        });
+        }, executor);
 
         execution.getResultFuture()
-                .whenCompleteAsync((payloadType, throwable) -> submitCall.stop());
+                .whenCompleteAsync((payloadType, throwable) -> submitCall.stop(), executor);
         execution.getChainExecutionFuture()
-                .whenCompleteAsync((payloadType, throwable) -> executionCall.stop());
+                .whenCompleteAsync((payloadType, throwable) -> executionCall.stop(), executor);
 
         //TODO: replace by interface and hide debugProcessingVertexGraphState
         return new Execution<>(
@@ -680,10 +1241,98 @@ public class CompletableReactor implements AutoCloseable {
                 execution.getChainExecutionFuture(),
                 debugProcessingVertexGraphState
                         ? execution.getDebugProcessingVertexGraphState()
-                        : null
+                        : null,
+                execution
         );
     }
 
+    private ExecutionPlan getExecutionPlan(Object payload) {
+        ExecutionPlan plan = glPayloadPlans.get(payload.getClass());
+        if (plan == null) {
+            throw new IllegalArgumentException("Rector graph not found for payload " + payload.getClass());
+        }
+        return plan;
+    }
+
+    private <PayloadType> ReactorGraphExecution<PayloadType> buildExecution(ExecutionPlan plan,
+                                                                          Executor executor,
+                                                                          boolean isProfiled,
+                                                                          Tracer tracer) {
+        ExecutionEngine engine = getExecutionEngine(plan.getPayloadType());
+        if (engine != null) {
+            return engine.build(
+                    glExecutionBuilder,
+                    plan,
+                    executor,
+                    blockingExecutor,
+                    isProfiled,
+                    tracer);
+        }
+        return glExecutionBuilder.build(
+                plan,
+                executor,
+                blockingExecutor,
+                directContinuationDepth,
+                isProfiled,
+                tracer);
+    }
+
+    /**
+     * Runs subgraph payload as a child of the execution that invokes subgraph vertex.
+     * Child execution does not pass admission, is not accounted as in-flight request
+     * and does not schedule own timeout: parent timeout or cancellation cancels handler future of the subgraph vertex,
+     * that is result of the child execution, and parent chain execution waits for child chain execution.
+     * Child execution is profiled by subgraph vertex of the parent instead of submit and execution metrics.
+     * It is profiled and traced if the parent execution is,
+     * profiler identities of its vertices are tagged by path of the parent vertex.
+     */
+    private <PayloadType> ReactorGraphExecution<PayloadType> startSubgraph(PayloadType payload, SubgraphParent parent) {
+        Function inlineGraphFunction = inlinePayloadGraphs.get(payload.getClass());
+        if (inlineGraphFunction != null) {
+            CompletableFuture<PayloadType> inlineGraphResult =
+                    (CompletableFuture<PayloadType>) inlineGraphFunction.apply(payload);
+
+            return new ReactorGraphExecution<>(
+                    CompletableFuture.completedFuture(payload),
+                    inlineGraphResult,
+                    inlineGraphResult.thenAccept(any -> {/* do nothing */}),
+                    Collections.emptyList(),
+                    new ExecutionCancellation(new ProcessingVertex[0]));
+        }
+
+        ReactorGraphExecution<PayloadType> execution = buildExecution(
+                parent.getPlanVertex().subgraphPlan(getExecutionPlan(payload)),
+                getExecutor(payload.getClass()),
+                parent.isProfiled(),
+                parent.getTracer());
+        execution.getSubmitFuture().complete(payload);
+        return execution;
+    }
+
+    private <PayloadType> void completeTimedOutExecution(ReactorGraphExecution<PayloadType> execution,
+                                                         PayloadType payload,
+                                                         long timeoutMs) {
+        if (execution.getResultFuture().isDone() && execution.getChainExecutionFuture().isDone()) {
+            return;
+        }
+        String executionState = dumpExecutionState(execution);
+
+        /**
+         * Exceptional completion of the result cancels running handlers of the execution
+         * and vertices that have not started yet
+         */
+        execution.getResultFuture().completeExceptionally(
+                new TimeoutException("" +
+                        "Response for payload " + payload +
+                        " took more than " + timeoutMs + " ms.\n" +
+                        executionState));
+        execution.getChainExecutionFuture().completeExceptionally(
+                new TimeoutException("" +
+                        "Execution of payload " + payload +
+                        " took more than " + timeoutMs + " ms.\n" +
+                        executionState));
+    }
+
     private <PayloadType> String dumpExecutionState(ReactorGraphExecution<PayloadType> execution) {
         Collection state = execution.getDebugProcessingVertexGraphState();
         if (state.isEmpty()) {
@@ -698,39 +1347,90 @@ public class CompletableReactor implements AutoCloseable {
     }
 
     /**
-     * Blocks until all pending request is complete or {@link #getCloseTimeoutMs()} time elapsed
-     *
-     * @throws Exception
+     * Waits for in-flight executions of given payload type.
+     * Reactor keeps accepting payloads, so returned future completes at first moment
+     * when there is no in-flight executions of given payload type,
+     * e.g. after client stopped submitting such payloads.
      */
-    @Override
-    public void close() throws Exception {
-        isClosed.set(true);
+    public CompletableFuture<Void> drainAsync(Class<?> payloadType) {
+        PayloadStatCounters statistics = payloadStatCounters.computeIfAbsent(
+                payloadType,
+                key -> new PayloadStatCounters());
+        return statistics.runningTotal.drainAsync();
+    }
 
-        if (pendingRequestCount.get() > 0) {
+    /**
+     * Stops accepting new payloads and waits for in-flight executions without blocking current thread.
+     * When all in-flight executions are complete or {@link #getCloseTimeoutMs()} time elapsed
+     * reactor-owned threads are released and returned future completes.
+     * Executors provided by client are not shut down by reactor.
+     */
+    public CompletableFuture<Void> closeAsync() {
+        if (!isClosed.compareAndSet(false, true)) {
+            return closeFuture;
+        }
 
-            log.info("Closing Completable Reactor. Waiting for pending requests: {}. Max waiting time {} ms",
-                    pendingRequestCount.get(),
-                    closeTimeoutMs);
+        /**
+         * Payloads waiting in admission queues are not accepted yet and are rejected
+         */
+        drainAdmissionQueues();
 
-            long deadline = System.currentTimeMillis() + closeTimeoutMs.get();
+        CompletableFuture<Void> drainFuture = inFlightRequests.drainAsync();
+        if (drainFuture.isDone()) {
+            releaseThreads();
+            return closeFuture;
+        }
 
-            synchronized (pendingRequestCount) {
-                while (pendingRequestCount.get() > 0) {
-                    long timeoutLeft = deadline - System.currentTimeMillis();
-                    if (timeoutLeft <= 0) {
-                        break;
-                    }
-                    pendingRequestCount.wait(timeoutLeft);
-                }
-            }
+        log.info("Closing Completable Reactor. Waiting for pending requests: {}. Max waiting time {} ms",
+                inFlightRequests.sum(),
+                closeTimeoutMs);
 
+        CompletableFuture<Boolean> isDrained = new CompletableFuture<>();
+        drainFuture.thenRun(() -> isDrained.complete(true));
 
-            if (pendingRequestCount.get() > 0) {
-                log.error("Completable Reactor forced to be closed due to timeout." +
-                        " There are {} pending request left.", pendingRequestCount.get());
-            } else {
+        HashedWheelTimer.Timeout closeTimeout = timer.schedule(
+                () -> isDrained.complete(false),
+                closeTimeoutMs.get(),
+                TimeUnit.MILLISECONDS);
+
+        isDrained.thenAccept(drained -> {
+            closeTimeout.cancel();
+            if (drained) {
                 log.info("Completable Reactor closed without any pending request left to process.");
+            } else {
+                log.error("Completable Reactor forced to be closed due to timeout." +
+                        " There are {} pending request left.", inFlightRequests.sum());
             }
+            releaseThreads();
+        });
+
+        return closeFuture;
+    }
+
+    /**
+     * Stops reactor-owned threads and completes {@link #closeFuture}
+     */
+    private void releaseThreads() {
+        try {
+            timer.close();
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted while stopping reactor timer.", exc);
+        } catch (Exception exc) {
+            log.error("Failed to stop reactor timer.", exc);
         }
+        defaultBlockingExecutor.shutdown();
+        closeFuture.complete(null);
+    }
+
+    /**
+     * Blocks until all pending request is complete or {@link #getCloseTimeoutMs()} time elapsed
+     *
+     * @throws Exception
+     * @see #closeAsync()
+     */
+    @Override
+    public void close() throws Exception {
+        closeAsync().get();
     }
 }
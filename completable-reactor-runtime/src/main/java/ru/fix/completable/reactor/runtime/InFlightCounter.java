@@ -0,0 +1,85 @@
+package ru.fix.completable.reactor.runtime;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts in-flight executions without taking locks on submit and completion paths.
+ * <p>
+ * Counter is split into stripes located in separate cache lines.
+ * Execution is acquired and released within the same stripe, so every stripe is non negative
+ * and stripe of an execution stays positive while execution is in-flight.
+ * Thus {@link #sum()} could not observe zero while any execution spans the whole summation.
+ * <p>
+ * Waiters for drain are notified by the release that observes zero sum.
+ * Until someone waits for drain release costs single striped decrement and one volatile read.
+ */
+final class InFlightCounter {
+
+    /**
+     * Amount of longs between neighbour stripes, keeps stripes in separate cache lines
+     */
+    private static final int STRIPE_PADDING = 16;
+
+    private final AtomicLongArray stripes;
+    private final int mask;
+
+    private volatile CompletableFuture<Void> drainFuture;
+
+    InFlightCounter() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        int stripeCount = Integer.highestOneBit(Math.max(processors * 2 - 1, 1)) << 1;
+        this.stripes = new AtomicLongArray(stripeCount * STRIPE_PADDING);
+        this.mask = stripeCount - 1;
+    }
+
+    /**
+     * @return stripe of current thread
+     */
+    int stripe() {
+        long id = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return (int) (id >>> 32) & mask;
+    }
+
+    void acquire(int stripe) {
+        stripes.incrementAndGet(stripe * STRIPE_PADDING);
+    }
+
+    /**
+     * @param stripe the same stripe that was used to acquire execution
+     */
+    void release(int stripe) {
+        stripes.decrementAndGet(stripe * STRIPE_PADDING);
+
+        CompletableFuture<Void> drainFuture = this.drainFuture;
+        if (drainFuture != null && !drainFuture.isDone() && sum() == 0) {
+            drainFuture.complete(null);
+        }
+    }
+
+    long sum() {
+        long sum = 0;
+        for (int index = 0; index < stripes.length(); index += STRIPE_PADDING) {
+            sum += stripes.get(index);
+        }
+        return sum;
+    }
+
+    /**
+     * @return future that completes when there is no in-flight executions left
+     */
+    CompletableFuture<Void> drainAsync() {
+        CompletableFuture<Void> drainFuture;
+        synchronized (this) {
+            drainFuture = this.drainFuture;
+            if (drainFuture == null || drainFuture.isDone()) {
+                drainFuture = new CompletableFuture<>();
+                this.drainFuture = drainFuture;
+            }
+        }
+        if (sum() == 0) {
+            drainFuture.complete(null);
+        }
+        return drainFuture;
+    }
+}
@@ -1,6 +1,7 @@
 package ru.fix.completable.reactor.runtime.execution;
 
 import java.util.Collection;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 
 /**
@@ -28,16 +29,20 @@ public class ReactorGraphExecution<PayloadType > {
      */
     private final Collection debugProcessingVertexGraphState;
 
+    private final ExecutionCancellation cancellation;
+
 
     public ReactorGraphExecution(
             CompletableFuture<PayloadType> submitFuture,
             CompletableFuture<PayloadType> resultFuture,
             CompletableFuture<Void> chainExecutionFuture,
-            Collection debugProcessingVertexGraphState) {
+            Collection debugProcessingVertexGraphState,
+            ExecutionCancellation cancellation) {
         this.chainExecutionFuture = chainExecutionFuture;
         this.submitFuture = submitFuture;
         this.resultFuture = resultFuture;
         this.debugProcessingVertexGraphState = debugProcessingVertexGraphState;
+        this.cancellation = cancellation;
     }
 
     public CompletableFuture<Void> getChainExecutionFuture() {
@@ -55,4 +60,16 @@ public class ReactorGraphExecution<PayloadType > {
     public Collection getDebugProcessingVertexGraphState() {
         return debugProcessingVertexGraphState;
     }
+
+    /**
+     * Completes execution result with {@link CancellationException}
+     * and cancels all running handlers including detached ones.
+     *
+     * @return true if execution result was completed by this invocation
+     */
+    public boolean cancel() {
+        boolean isCancelled = resultFuture.completeExceptionally(new CancellationException("Execution is cancelled."));
+        cancellation.cancel();
+        return isCancelled;
+    }
 }
@@ -0,0 +1,210 @@
+package ru.fix.completable.reactor.runtime.limit;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Limit of in-flight executions that adapts to observed execution latency.
+ * <p>
+ * Gradient algorithm: long term latency is tracked by exponential moving average over
+ * {@link #setLongWindow(int)} samples and compared with latency of the latest execution.
+ * When latency grows above long term latency multiplied by {@link #setTolerance(double)}
+ * requests are queueing somewhere within graph or its dependencies and the limit shrinks proportionally.
+ * Otherwise the limit grows by square root of current limit, allowing small queue for probing.
+ * Changes are smoothed by {@link #setSmoothing(double)} and clamped between min and max limit.
+ * <p>
+ * Samples taken while less than half of the limit is in-flight do not grow the limit:
+ * such load does not prove that higher limit is sustainable.
+ * <p>
+ * State is updated by CAS of immutable snapshot, so samples could be recorded concurrently
+ * by execution completion threads without locks.
+ */
+public class AdaptiveConcurrencyLimit {
+
+    /**
+     * Long term latency is simple average during first samples
+     */
+    private static final int WARMUP_SAMPLES = 10;
+
+    /**
+     * Limit multiplier applied when execution is dropped due to timeout
+     */
+    private static final double OVERLOAD_BACKOFF = 0.9;
+
+    private volatile int minLimit = 1;
+    private volatile int maxLimit = 1000;
+    private volatile double tolerance = 1.5;
+    private volatile double smoothing = 0.2;
+    private volatile int longWindow = 600;
+
+    private final AtomicReference<State> state;
+
+    private static final class State {
+        final double limit;
+        final double longLatencyNanos;
+        final long samples;
+
+        State(double limit, double longLatencyNanos, long samples) {
+            this.limit = limit;
+            this.longLatencyNanos = longLatencyNanos;
+            this.samples = samples;
+        }
+    }
+
+    public AdaptiveConcurrencyLimit() {
+        this(20);
+    }
+
+    /**
+     * @param initialLimit limit used until latency samples are collected
+     */
+    public AdaptiveConcurrencyLimit(int initialLimit) {
+        if (initialLimit <= 0) {
+            throw new IllegalArgumentException("Initial limit should be positive: " + initialLimit);
+        }
+        this.state = new AtomicReference<>(new State(initialLimit, 0, 0));
+    }
+
+    /**
+     * @return current limit of in-flight executions
+     */
+    public int getLimit() {
+        return (int) state.get().limit;
+    }
+
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    public AdaptiveConcurrencyLimit setMinLimit(int minLimit) {
+        if (minLimit <= 0) {
+            throw new IllegalArgumentException("Min limit should be positive: " + minLimit);
+        }
+        this.minLimit = minLimit;
+        return this;
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    public AdaptiveConcurrencyLimit setMaxLimit(int maxLimit) {
+        if (maxLimit <= 0) {
+            throw new IllegalArgumentException("Max limit should be positive: " + maxLimit);
+        }
+        this.maxLimit = maxLimit;
+        return this;
+    }
+
+    public double getTolerance() {
+        return tolerance;
+    }
+
+    /**
+     * @param tolerance how many times latency could exceed long term latency before limit starts to shrink.
+     *                  By default 1.5
+     */
+    public AdaptiveConcurrencyLimit setTolerance(double tolerance) {
+        if (tolerance < 1.0) {
+            throw new IllegalArgumentException("Tolerance should not be less than 1: " + tolerance);
+        }
+        this.tolerance = tolerance;
+        return this;
+    }
+
+    public double getSmoothing() {
+        return smoothing;
+    }
+
+    /**
+     * @param smoothing weight of new limit estimation in range (0, 1]. By default 0.2
+     */
+    public AdaptiveConcurrencyLimit setSmoothing(double smoothing) {
+        if (smoothing <= 0 || smoothing > 1) {
+            throw new IllegalArgumentException("Smoothing should be in range (0, 1]: " + smoothing);
+        }
+        this.smoothing = smoothing;
+        return this;
+    }
+
+    public int getLongWindow() {
+        return longWindow;
+    }
+
+    /**
+     * @param longWindow amount of samples that form long term latency. By default 600
+     */
+    public AdaptiveConcurrencyLimit setLongWindow(int longWindow) {
+        if (longWindow <= 0) {
+            throw new IllegalArgumentException("Long window should be positive: " + longWindow);
+        }
+        this.longWindow = longWindow;
+        return this;
+    }
+
+    /**
+     * Records latency of completed execution
+     *
+     * @param latencyNanos latency of the execution
+     * @param inFlight     amount of in-flight executions when execution completed
+     */
+    public void onSample(long latencyNanos, long inFlight) {
+        double latency = Math.max(latencyNanos, 1);
+        while (true) {
+            State current = state.get();
+            State next = estimate(current, latency, inFlight);
+            if (state.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Records execution that was dropped due to timeout, limit shrinks multiplicatively
+     */
+    public void onOverload() {
+        while (true) {
+            State current = state.get();
+            State next = new State(
+                    clamp(current.limit * OVERLOAD_BACKOFF),
+                    current.longLatencyNanos,
+                    current.samples);
+            if (state.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    private State estimate(State current, double latency, long inFlight) {
+        long samples = current.samples + 1;
+
+        double longLatency;
+        if (samples <= WARMUP_SAMPLES) {
+            longLatency = current.longLatencyNanos + (latency - current.longLatencyNanos) / samples;
+        } else {
+            longLatency = current.longLatencyNanos + (latency - current.longLatencyNanos) * 2.0 / (longWindow + 1);
+        }
+
+        /**
+         * Latency dropped significantly, e.g. dependency recovered.
+         * Decay long term latency faster so limit does not grow unbounded against stale baseline.
+         */
+        if (longLatency / latency > 2.0) {
+            longLatency *= 0.95;
+        }
+
+        if (inFlight < current.limit / 2) {
+            return new State(current.limit, longLatency, samples);
+        }
+
+        double gradient = Math.max(0.5, Math.min(1.0, tolerance * longLatency / latency));
+        double queueSize = Math.sqrt(current.limit);
+        double newLimit = current.limit * gradient + queueSize;
+        newLimit = current.limit * (1 - smoothing) + newLimit * smoothing;
+
+        return new State(clamp(newLimit), longLatency, samples);
+    }
+
+    private double clamp(double limit) {
+        return Math.max(minLimit, Math.min(maxLimit, limit));
+    }
+}
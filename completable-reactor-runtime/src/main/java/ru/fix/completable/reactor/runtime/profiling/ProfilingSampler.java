@@ -0,0 +1,59 @@
+package ru.fix.completable.reactor.runtime.profiling;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether handlers and mergers of an execution are profiled.
+ * Decision is made once on payload submission and carried through the whole execution.
+ * Submit and execution metrics are collected for every execution regardless of sampling.
+ */
+public interface ProfilingSampler {
+
+    /**
+     * @return true if handlers and mergers of submitted execution should be profiled
+     */
+    boolean isSampled();
+
+    /**
+     * Profile every execution
+     */
+    static ProfilingSampler always() {
+        return () -> true;
+    }
+
+    /**
+     * Do not profile handlers and mergers
+     */
+    static ProfilingSampler never() {
+        return () -> false;
+    }
+
+    /**
+     * Profile one of each {@code executionCount} executions
+     */
+    static ProfilingSampler oneOf(long executionCount) {
+        if (executionCount <= 0) {
+            throw new IllegalArgumentException("Execution count should be positive: " + executionCount);
+        }
+        if (executionCount == 1) {
+            return always();
+        }
+        AtomicLong counter = new AtomicLong();
+        return () -> counter.getAndIncrement() % executionCount == 0;
+    }
+
+    /**
+     * Profile at most {@code executionCount} executions per given period
+     */
+    static ProfilingSampler rate(long executionCount, long period, TimeUnit unit) {
+        if (executionCount <= 0) {
+            throw new IllegalArgumentException("Execution count should be positive: " + executionCount);
+        }
+        long periodNanos = unit.toNanos(period);
+        if (periodNanos <= 0) {
+            throw new IllegalArgumentException("Period should be positive: " + period + " " + unit);
+        }
+        return new RateProfilingSampler(executionCount, periodNanos);
+    }
+}
@@ -0,0 +1,30 @@
+package ru.fix.completable.reactor.runtime.profiling;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Samples at most given amount of executions per period
+ */
+final class RateProfilingSampler implements ProfilingSampler {
+    private final long executionCount;
+    private final long periodNanos;
+
+    private final AtomicLong periodStart = new AtomicLong(System.nanoTime());
+    private final AtomicLong sampledInPeriod = new AtomicLong();
+
+    RateProfilingSampler(long executionCount, long periodNanos) {
+        this.executionCount = executionCount;
+        this.periodNanos = periodNanos;
+    }
+
+    @Override
+    public boolean isSampled() {
+        long now = System.nanoTime();
+        long start = periodStart.get();
+        if (now - start >= periodNanos && periodStart.compareAndSet(start, now)) {
+            sampledInPeriod.set(0);
+        }
+        return sampledInPeriod.get() < executionCount
+                && sampledInPeriod.incrementAndGet() <= executionCount;
+    }
+}
@@ -0,0 +1,365 @@
+package ru.fix.completable.reactor.runtime.timer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Timer optimized for large amount of timeouts that are usually cancelled before expiration.
+ * <p>
+ * Timeouts are stored in a wheel of buckets. Single worker thread moves through the wheel
+ * once per tick and expires timeouts of the current bucket.
+ * Schedule and cancel operations are O(1) and do not take locks.
+ * Cancelled timeout releases its task immediately, so objects captured by the task
+ * (e.g. payload of the execution) are not retained until the deadline.
+ * <p>
+ * Precision of the timer is limited by tick duration.
+ * Tasks are executed by the worker thread, so they should be short and non blocking.
+ * <p>
+ * Worker thread is started on first schedule and stopped by {@link #close()}.
+ */
+public class HashedWheelTimer implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+    public static final long DEFAULT_TICK_DURATION_MS = 10;
+    public static final int DEFAULT_TICKS_PER_WHEEL = 512;
+
+    /**
+     * Limits how many new timeouts worker moves into the wheel during single tick,
+     * so tick processing does not stall under burst of schedule calls.
+     */
+    private static final int MAX_TRANSFERRED_TIMEOUTS_PER_TICK = 100_000;
+
+    private static final int WORKER_STATE_INIT = 0;
+    private static final int WORKER_STATE_STARTED = 1;
+    private static final int WORKER_STATE_SHUTDOWN = 2;
+
+    private final long tickDurationNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+
+    private final Queue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<>();
+
+    private final Thread workerThread;
+    private final AtomicInteger workerState = new AtomicInteger(WORKER_STATE_INIT);
+
+    private final CountDownLatch startTimeInitialized = new CountDownLatch(1);
+    private volatile long startTime;
+
+    public HashedWheelTimer(String threadName) {
+        this(threadName, DEFAULT_TICK_DURATION_MS, TimeUnit.MILLISECONDS, DEFAULT_TICKS_PER_WHEEL);
+    }
+
+    /**
+     * @param threadName    name of worker thread
+     * @param tickDuration  precision of the timer
+     * @param ticksPerWheel amount of buckets in the wheel, rounded up to power of two
+     */
+    public HashedWheelTimer(String threadName, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        Objects.requireNonNull(threadName, "threadName");
+        Objects.requireNonNull(unit, "unit");
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("Tick duration should be positive: " + tickDuration);
+        }
+        if (ticksPerWheel <= 0 || ticksPerWheel > 1 << 30) {
+            throw new IllegalArgumentException("Ticks per wheel should be in range (0, 2^30]: " + ticksPerWheel);
+        }
+
+        int wheelSize = Integer.highestOneBit(ticksPerWheel - 1) << 1;
+        if (wheelSize == 0) {
+            wheelSize = 1;
+        }
+        this.wheel = new Bucket[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = wheelSize - 1;
+
+        this.tickDurationNanos = unit.toNanos(tickDuration);
+        if (tickDurationNanos >= Long.MAX_VALUE / wheelSize) {
+            throw new IllegalArgumentException("Tick duration is too long: " + tickDuration + " " + unit);
+        }
+
+        this.workerThread = new Thread(this::runWorker, threadName);
+        this.workerThread.setDaemon(true);
+    }
+
+    /**
+     * Schedules task for single execution after given delay.
+     *
+     * @return timeout that should be cancelled when task is no longer required
+     * @throws IllegalStateException if timer is closed
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Objects.requireNonNull(task, "task");
+        Objects.requireNonNull(unit, "unit");
+
+        start();
+
+        long deadline = System.nanoTime() + unit.toNanos(Math.max(delay, 0)) - startTime;
+        if (delay > 0 && deadline < 0) {
+            /**
+             * Guard against overflow
+             */
+            deadline = Long.MAX_VALUE;
+        }
+
+        Timeout timeout = new Timeout(this, task, deadline);
+        pendingTimeouts.add(timeout);
+        return timeout;
+    }
+
+    private void start() {
+        switch (workerState.get()) {
+            case WORKER_STATE_INIT:
+                if (workerState.compareAndSet(WORKER_STATE_INIT, WORKER_STATE_STARTED)) {
+                    workerThread.start();
+                }
+                break;
+            case WORKER_STATE_STARTED:
+                break;
+            default:
+                throw new IllegalStateException("Timer is closed.");
+        }
+
+        while (startTime == 0) {
+            try {
+                startTimeInitialized.await();
+            } catch (InterruptedException exc) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for timer to start.", exc);
+            }
+        }
+    }
+
+    /**
+     * Stops worker thread. Timeouts that are not expired yet are discarded.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        if (workerState.getAndSet(WORKER_STATE_SHUTDOWN) != WORKER_STATE_STARTED) {
+            return;
+        }
+        if (Thread.currentThread() == workerThread) {
+            return;
+        }
+        workerThread.interrupt();
+        workerThread.join();
+    }
+
+    private void runWorker() {
+        long now = System.nanoTime();
+        /**
+         * Zero is used as not initialized marker
+         */
+        startTime = now == 0 ? 1 : now;
+        startTimeInitialized.countDown();
+
+        long tick = 0;
+        while (workerState.get() == WORKER_STATE_STARTED) {
+            long deadline = waitForNextTick(tick);
+            if (deadline > 0) {
+                processCancelledTimeouts();
+                transferPendingTimeouts(tick);
+                wheel[(int) (tick & mask)].expireTimeouts();
+                tick++;
+            }
+        }
+
+        pendingTimeouts.clear();
+        cancelledTimeouts.clear();
+        for (Bucket bucket : wheel) {
+            bucket.clear();
+        }
+    }
+
+    /**
+     * @return current time relative to start time or non positive value if timer is closed
+     */
+    private long waitForNextTick(long tick) {
+        long deadline = tickDurationNanos * (tick + 1);
+
+        while (true) {
+            long currentTime = System.nanoTime() - startTime;
+            long sleepTimeMs = TimeUnit.NANOSECONDS.toMillis(deadline - currentTime + 999_999);
+
+            if (sleepTimeMs <= 0) {
+                return currentTime == Long.MIN_VALUE ? -Long.MAX_VALUE : currentTime;
+            }
+
+            try {
+                Thread.sleep(sleepTimeMs);
+            } catch (InterruptedException exc) {
+                if (workerState.get() == WORKER_STATE_SHUTDOWN) {
+                    return Long.MIN_VALUE;
+                }
+            }
+        }
+    }
+
+    private void transferPendingTimeouts(long tick) {
+        for (int i = 0; i < MAX_TRANSFERRED_TIMEOUTS_PER_TICK; i++) {
+            Timeout timeout = pendingTimeouts.poll();
+            if (timeout == null) {
+                return;
+            }
+            if (timeout.isCancelled()) {
+                continue;
+            }
+
+            long expirationTick = timeout.deadline / tickDurationNanos;
+            timeout.remainingRounds = (expirationTick - tick) / wheel.length;
+
+            /**
+             * Timeouts with deadline in the past are expired during current tick
+             */
+            long bucketTick = Math.max(expirationTick, tick);
+            wheel[(int) (bucketTick & mask)].add(timeout);
+        }
+    }
+
+    private void processCancelledTimeouts() {
+        Timeout timeout;
+        while ((timeout = cancelledTimeouts.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    public static final class Timeout {
+        private static final int STATE_INIT = 0;
+        private static final int STATE_CANCELLED = 1;
+        private static final int STATE_EXPIRED = 2;
+
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final HashedWheelTimer timer;
+        private final long deadline;
+        private volatile int state = STATE_INIT;
+
+        /**
+         * Released on cancellation or expiration
+         */
+        private volatile Runnable task;
+
+        /**
+         * Fields below are accessed only by worker thread
+         */
+        long remainingRounds;
+        Timeout next;
+        Timeout prev;
+        Bucket bucket;
+
+        Timeout(HashedWheelTimer timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return true if timeout is cancelled by this invocation,
+         * false if it was already cancelled or expired
+         */
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, STATE_INIT, STATE_CANCELLED)) {
+                return false;
+            }
+            task = null;
+            timer.cancelledTimeouts.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state == STATE_CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state == STATE_EXPIRED;
+        }
+
+        void expire() {
+            if (!STATE.compareAndSet(this, STATE_INIT, STATE_EXPIRED)) {
+                return;
+            }
+            Runnable expiredTask = task;
+            task = null;
+            try {
+                expiredTask.run();
+            } catch (Throwable exc) {
+                log.error("Timeout task failed.", exc);
+            }
+        }
+    }
+
+    /**
+     * Doubly linked list of timeouts. Accessed only by worker thread.
+     */
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void expireTimeouts() {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0) {
+                    remove(timeout);
+                    timeout.expire();
+                } else if (timeout.isCancelled()) {
+                    remove(timeout);
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.bucket != this) {
+                return;
+            }
+            Timeout next = timeout.next;
+            if (timeout.prev != null) {
+                timeout.prev.next = next;
+            }
+            if (next != null) {
+                next.prev = timeout.prev;
+            }
+            if (timeout == head) {
+                head = next;
+            }
+            if (timeout == tail) {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+
+        void clear() {
+            head = null;
+            tail = null;
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package ru.fix.completable.reactor.runtime.tracing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Delivers tracing events to the delegate tracer by single background thread,
+ * so slow tracer implementations (e.g. {@link ru.fix.completable.reactor.runtime.LogTracer})
+ * do not run on reactor threads.
+ * <p>
+ * {@link #isTraceable(Object)} is invoked synchronously, once per execution on submit.
+ * Before and after events are published into bounded lock-free ring buffer.
+ * When buffer is full events are dropped and counted, execution is never blocked by the tracer.
+ * If before event is dropped, corresponding after event is dropped too,
+ * so delegate always receives complete pairs of events.
+ * Tracing marker returned by the delegate is passed to the delegate within background thread.
+ * <p>
+ * Payload is passed to the delegate by reference and could be observed in a state modified
+ * by mergers that ran after the traced event.
+ * <p>
+ * Background thread is started on first event and stopped by {@link #close()}.
+ */
+public class AsyncTracer implements Tracer, AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(AsyncTracer.class);
+
+    public static final int DEFAULT_BUFFER_CAPACITY = 8192;
+
+    /**
+     * How long idle background thread sleeps without being notified by publishers
+     */
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Tracer tracer;
+    private final EventRingBuffer buffer;
+    private final LongAdder droppedEventCount = new LongAdder();
+
+    private final Thread deliveryThread;
+    private final AtomicBoolean isStarted = new AtomicBoolean();
+    private volatile boolean isClosed;
+    private volatile boolean isIdle;
+
+    public AsyncTracer(Tracer tracer) {
+        this(tracer, DEFAULT_BUFFER_CAPACITY);
+    }
+
+    /**
+     * @param tracer         delegate that receives events within background thread
+     * @param bufferCapacity maximum amount of undelivered events, rounded up to power of two
+     */
+    public AsyncTracer(Tracer tracer, int bufferCapacity) {
+        this.tracer = Objects.requireNonNull(tracer, "tracer");
+        if (bufferCapacity <= 0 || bufferCapacity > 1 << 30) {
+            throw new IllegalArgumentException("Buffer capacity should be in range (0, 2^30]: " + bufferCapacity);
+        }
+        this.buffer = new EventRingBuffer(bufferCapacity);
+
+        this.deliveryThread = new Thread(this::deliverEvents, "completable-reactor-async-tracer");
+        this.deliveryThread.setDaemon(true);
+    }
+
+    /**
+     * @return amount of events that were dropped due to buffer overflow or closed tracer
+     */
+    public long getDroppedEventCount() {
+        return droppedEventCount.sum();
+    }
+
+    @Override
+    public boolean isTraceable(Object payload) {
+        return tracer.isTraceable(payload);
+    }
+
+    @Override
+    public Object beforeHandle(String vertexName, Object payload) {
+        return publish(new Event(EventType.BEFORE_HANDLE, null, vertexName, payload, null, null));
+    }
+
+    @Override
+    public void afterHandle(Object tracingMarker, String vertexName, Object handlerResult, Throwable throwable) {
+        publish(new Event(EventType.AFTER_HANDLE, tracingMarker, vertexName, null, handlerResult, throwable));
+    }
+
+    @Override
+    public Object beforeMerge(String vertexName, Object payload, Object handleResult) {
+        return publish(new Event(EventType.BEFORE_MERGE, null, vertexName, payload, handleResult, null));
+    }
+
+    @Override
+    public void afterMerger(Object tracingMarker, String vertexName, Object payload) {
+        publish(new Event(EventType.AFTER_MERGE, tracingMarker, vertexName, payload, null, null));
+    }
+
+    /**
+     * @return published event that serves as tracing marker for the following after event
+     */
+    private Event publish(Event event) {
+        if (event.before != null && event.before.isDropped) {
+            event.isDropped = true;
+            droppedEventCount.increment();
+            return event;
+        }
+
+        if (isClosed || !buffer.offer(event)) {
+            event.isDropped = true;
+            droppedEventCount.increment();
+            return event;
+        }
+
+        if (!isStarted.get() && isStarted.compareAndSet(false, true)) {
+            deliveryThread.start();
+        }
+        if (isIdle) {
+            LockSupport.unpark(deliveryThread);
+        }
+        return event;
+    }
+
+    private void deliverEvents() {
+        while (true) {
+            Event event = buffer.poll();
+            if (event == null) {
+                if (isClosed) {
+                    return;
+                }
+                isIdle = true;
+                event = buffer.poll();
+                if (event == null) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    isIdle = false;
+                    continue;
+                }
+                isIdle = false;
+            }
+            deliver(event);
+        }
+    }
+
+    private void deliver(Event event) {
+        try {
+            switch (event.type) {
+                case BEFORE_HANDLE:
+                    event.delegateMarker = tracer.beforeHandle(event.vertexName, event.payload);
+                    break;
+                case AFTER_HANDLE:
+                    tracer.afterHandle(event.delegateMarker(), event.vertexName, event.result, event.throwable);
+                    break;
+                case BEFORE_MERGE:
+                    event.delegateMarker = tracer.beforeMerge(event.vertexName, event.payload, event.result);
+                    break;
+                case AFTER_MERGE:
+                    tracer.afterMerger(event.delegateMarker(), event.vertexName, event.payload);
+                    break;
+            }
+        } catch (Exception exc) {
+            log.error("Failed to deliver {} event of vertex {} to tracer.", event.type, event.vertexName, exc);
+        }
+    }
+
+    /**
+     * Stops accepting new events and waits until already published events are delivered
+     */
+    @Override
+    public void close() throws InterruptedException {
+        isClosed = true;
+        if (isStarted.get()) {
+            LockSupport.unpark(deliveryThread);
+            deliveryThread.join();
+        }
+    }
+
+    private enum EventType {
+        BEFORE_HANDLE,
+        AFTER_HANDLE,
+        BEFORE_MERGE,
+        AFTER_MERGE
+    }
+
+    private static final class Event {
+        final EventType type;
+        /**
+         * Before event of the same vertex invocation, null for before events
+         */
+        final Event before;
+        final String vertexName;
+        final Object payload;
+        final Object result;
+        final Throwable throwable;
+
+        /**
+         * Written by publisher before event is returned as tracing marker
+         */
+        volatile boolean isDropped;
+
+        /**
+         * Tracing marker returned by the delegate, accessed only by delivery thread
+         */
+        Object delegateMarker;
+
+        Event(EventType type,
+              Object tracingMarker,
+              String vertexName,
+              Object payload,
+              Object result,
+              Throwable throwable) {
+            this.type = type;
+            this.before = tracingMarker instanceof Event ? (Event) tracingMarker : null;
+            this.vertexName = vertexName;
+            this.payload = payload;
+            this.result = result;
+            this.throwable = throwable;
+        }
+
+        Object delegateMarker() {
+            return before != null ? before.delegateMarker : null;
+        }
+    }
+
+    /**
+     * Bounded multi producer single consumer queue.
+     * Each slot carries a sequence number: producers claim slot by advancing tail
+     * and publish event by updating slot sequence, consumer frees slot the same way.
+     */
+    private static final class EventRingBuffer {
+        private final int capacity;
+        private final int mask;
+        private final AtomicReferenceArray<Event> events;
+        private final AtomicLongArray sequences;
+        private final AtomicLong tail = new AtomicLong();
+
+        /**
+         * Accessed only by consumer thread
+         */
+        private long head;
+
+        EventRingBuffer(int requestedCapacity) {
+            int capacity = Integer.highestOneBit(requestedCapacity - 1) << 1;
+            if (capacity == 0) {
+                capacity = 1;
+            }
+            this.capacity = capacity;
+            this.mask = capacity - 1;
+            this.events = new AtomicReferenceArray<>(capacity);
+            this.sequences = new AtomicLongArray(capacity);
+            for (int slot = 0; slot < capacity; slot++) {
+                sequences.set(slot, slot);
+            }
+        }
+
+        boolean offer(Event event) {
+            long position = tail.get();
+            while (true) {
+                int slot = (int) (position & mask);
+                long difference = sequences.get(slot) - position;
+                if (difference == 0) {
+                    if (tail.compareAndSet(position, position + 1)) {
+                        events.lazySet(slot, event);
+                        sequences.set(slot, position + 1);
+                        return true;
+                    }
+                    position = tail.get();
+                } else if (difference < 0) {
+                    /**
+                     * Slot is not released by consumer yet, buffer is full
+                     */
+                    return false;
+                } else {
+                    position = tail.get();
+                }
+            }
+        }
+
+        Event poll() {
+            int slot = (int) (head & mask);
+            if (sequences.get(slot) != head + 1) {
+                return null;
+            }
+            Event event = events.get(slot);
+            events.lazySet(slot, null);
+            sequences.set(slot, head + capacity);
+            head++;
+            return event;
+        }
+    }
+}
@@ -5,6 +5,30 @@ import ru.fix.aggregating.profiler.Identity
 object Metrics {
     const val PENDING_REQUEST = "pending_request"
 
+    const val ADMISSION_QUEUE_SIZE = "admission_queue_size"
+
+    const val CONCURRENCY_LIMIT = "concurrency_limit"
+
+    const val VERTEX_QUEUE_SIZE = "vertex_queue_size"
+
+    const val VERTEX_REJECTED = "vertex_rejected"
+
+    const val VERTEX_CIRCUIT_BREAKER_STATE = "vertex_circuit_breaker_state"
+
+    const val VERTEX_SHORT_CIRCUITED = "vertex_short_circuited"
+
+    const val VERTEX_SINGLE_FLIGHT_LEADER = "vertex_single_flight_leader"
+
+    const val VERTEX_SINGLE_FLIGHT_COALESCED = "vertex_single_flight_coalesced"
+
+    const val VERTEX_CACHE_HIT = "vertex_cache_hit"
+
+    const val VERTEX_CACHE_MISS = "vertex_cache_miss"
+
+    const val VERTEX_CACHE_EVICTION = "vertex_cache_eviction"
+
+    const val VERTEX_BATCH_QUEUE_SIZE = "vertex_batch_queue_size"
+
     const val COMPLETABLE_REACTOR = "completable_reactor"
 
     const val COMPLETABLE_REACTOR_GRAPH = "completable_reactor_graph"
@@ -15,6 +39,22 @@ object Tags {
 
     const val HANDLE = "handle"
 
+    const val TIMEOUT = "timeout"
+
+    const val RETRY = "retry"
+
+    const val HEDGE = "hedge"
+
+    const val HEDGE_WIN = "hedge_win"
+
+    const val BLOCKING = "blocking"
+
+    const val BATCH = "batch"
+
+    const val BATCH_WAIT = "batch_wait"
+
+    const val SUBGRAPH = "subgraph"
+
     const val SUBMIT = "submit"
 
     const val EXECUTION = "execution"
@@ -22,25 +62,100 @@ object Tags {
 
 object ProfilerIdentity {
 
-    fun mergeIdentity(payload: String?, vertexName: String?) =
+    /**
+     * Identities of submit and execution metrics resolved once per payload type
+     */
+    private val submitIdentities = object : ClassValue<Identity>() {
+        override fun computeValue(payloadType: Class<*>) = submitIdentity(payloadType.name)
+    }
+
+    private val executionIdentities = object : ClassValue<Identity>() {
+        override fun computeValue(payloadType: Class<*>) = executionIdentity(payloadType.name)
+    }
+
+    fun mergeIdentity(payload: String?, vertexName: String?, parent: String? = null) =
             Identity(
                     Metrics.COMPLETABLE_REACTOR_GRAPH,
-                    tags(payload, Tags.MERGE, vertexName)
+                    tags(payload, Tags.MERGE, vertexName, parent)
             )
 
-    fun handleIdentity(payload: String?, vertexName: String?) =
+    fun handleIdentity(payload: String?, vertexName: String?, parent: String? = null) =
             Identity(
                     Metrics.COMPLETABLE_REACTOR_GRAPH,
-                    tags(payload, Tags.HANDLE, vertexName)
+                    tags(payload, Tags.HANDLE, vertexName, parent)
             )
 
-    private fun tags(payload: String?, operation: String, vertexName: String?) =
-            mapOf(
-                    "payload" to payload,
-                    "operation" to operation,
-                    "vertex" to vertexName
+    fun timeoutIdentity(payload: String?, vertexName: String?, parent: String? = null) =
+            Identity(
+                    Metrics.COMPLETABLE_REACTOR_GRAPH,
+                    tags(payload, Tags.TIMEOUT, vertexName, parent)
             )
 
+    fun retryIdentity(payload: String?, vertexName: String?, parent: String? = null) =
+            Identity(
+                    Metrics.COMPLETABLE_REACTOR_GRAPH,
+                    tags(payload, Tags.RETRY, vertexName, parent)
+            )
+
+    fun hedgeIdentity(payload: String?, vertexName: String?, parent: String? = null) =
+            Identity(
+                    Metrics.COMPLETABLE_REACTOR_GRAPH,
+                    tags(payload, Tags.HEDGE, vertexName, parent)
+            )
+
+    fun hedgeWinIdentity(payload: String?, vertexName: String?, parent: String? = null) =
+            Identity(
+                    Metrics.COMPLETABLE_REACTOR_GRAPH,
+                    tags(payload, Tags.HEDGE_WIN, vertexName, parent)
+            )
+
+    fun blockingIdentity(payload: String?, vertexName: String?, parent: String? = null) =
+            Identity(
+                    Metrics.COMPLETABLE_REACTOR_GRAPH,
+                    tags(payload, Tags.BLOCKING, vertexName, parent)
+            )
+
+    fun batchIdentity(payload: String?, vertexName: String?) =
+            Identity(
+                    Metrics.COMPLETABLE_REACTOR_GRAPH,
+                    tags(payload, Tags.BATCH, vertexName)
+            )
+
+    fun batchWaitIdentity(payload: String?, vertexName: String?) =
+            Identity(
+                    Metrics.COMPLETABLE_REACTOR_GRAPH,
+                    tags(payload, Tags.BATCH_WAIT, vertexName)
+            )
+
+    /**
+     * Subgraph execution is profiled as a child of parent payload vertex instead of top-level submission
+     */
+    fun subgraphIdentity(payload: String?, vertexName: String?, subgraphPayload: String?, parent: String? = null) =
+            Identity(
+                    Metrics.COMPLETABLE_REACTOR_GRAPH,
+                    tags(payload, Tags.SUBGRAPH, vertexName, parent) + ("subgraph" to subgraphPayload)
+            )
+
+    /**
+     * Vertices of subgraph execution are tagged by path of parent vertices that started it,
+     * see [ru.fix.completable.reactor.runtime.execution.ExecutionPlan.PlanVertex.path]
+     */
+    private fun tags(payload: String?, operation: String, vertexName: String?, parent: String? = null) =
+            if (parent == null) {
+                mapOf(
+                        "payload" to payload,
+                        "operation" to operation,
+                        "vertex" to vertexName
+                )
+            } else {
+                mapOf(
+                        "payload" to payload,
+                        "operation" to operation,
+                        "vertex" to vertexName,
+                        "parent" to parent
+                )
+            }
+
     @JvmStatic
     fun submitIdentity(payload: String?) =
             Identity(
@@ -48,6 +163,9 @@ object ProfilerIdentity {
                     tags(payload, Tags.SUBMIT)
             )
 
+    @JvmStatic
+    fun submitIdentity(payloadType: Class<*>): Identity = submitIdentities.get(payloadType)
+
     @JvmStatic
     fun executionIdentity(payload: String?) =
             Identity(
@@ -55,6 +173,89 @@ object ProfilerIdentity {
                     tags(payload, Tags.EXECUTION)
             )
 
+    @JvmStatic
+    fun executionIdentity(payloadType: Class<*>): Identity = executionIdentities.get(payloadType)
+
+    @JvmStatic
+    fun concurrencyLimitIdentity(payloadType: Class<*>) =
+            Identity(
+                    Metrics.CONCURRENCY_LIMIT,
+                    mapOf("payload" to payloadType.name)
+            )
+
+    @JvmStatic
+    fun vertexQueueSizeIdentity(payload: String?, vertexName: String?) =
+            Identity(
+                    Metrics.VERTEX_QUEUE_SIZE,
+                    mapOf("payload" to payload, "vertex" to vertexName)
+            )
+
+    @JvmStatic
+    fun vertexRejectedIdentity(payload: String?, vertexName: String?) =
+            Identity(
+                    Metrics.VERTEX_REJECTED,
+                    mapOf("payload" to payload, "vertex" to vertexName)
+            )
+
+    /**
+     * Indicator value is ordinal of circuit breaker state: 0 - closed, 1 - open, 2 - half open
+     */
+    @JvmStatic
+    fun vertexCircuitBreakerStateIdentity(payload: String?, vertexName: String?) =
+            Identity(
+                    Metrics.VERTEX_CIRCUIT_BREAKER_STATE,
+                    mapOf("payload" to payload, "vertex" to vertexName)
+            )
+
+    @JvmStatic
+    fun vertexShortCircuitedIdentity(payload: String?, vertexName: String?) =
+            Identity(
+                    Metrics.VERTEX_SHORT_CIRCUITED,
+                    mapOf("payload" to payload, "vertex" to vertexName)
+            )
+
+    @JvmStatic
+    fun vertexSingleFlightLeaderIdentity(payload: String?, vertexName: String?) =
+            Identity(
+                    Metrics.VERTEX_SINGLE_FLIGHT_LEADER,
+                    mapOf("payload" to payload, "vertex" to vertexName)
+            )
+
+    @JvmStatic
+    fun vertexSingleFlightCoalescedIdentity(payload: String?, vertexName: String?) =
+            Identity(
+                    Metrics.VERTEX_SINGLE_FLIGHT_COALESCED,
+                    mapOf("payload" to payload, "vertex" to vertexName)
+            )
+
+    @JvmStatic
+    fun vertexCacheHitIdentity(payload: String?, vertexName: String?) =
+            Identity(
+                    Metrics.VERTEX_CACHE_HIT,
+                    mapOf("payload" to payload, "vertex" to vertexName)
+            )
+
+    @JvmStatic
+    fun vertexCacheMissIdentity(payload: String?, vertexName: String?) =
+            Identity(
+                    Metrics.VERTEX_CACHE_MISS,
+                    mapOf("payload" to payload, "vertex" to vertexName)
+            )
+
+    @JvmStatic
+    fun vertexCacheEvictionIdentity(payload: String?, vertexName: String?) =
+            Identity(
+                    Metrics.VERTEX_CACHE_EVICTION,
+                    mapOf("payload" to payload, "vertex" to vertexName)
+            )
+
+    @JvmStatic
+    fun vertexBatchQueueSizeIdentity(payload: String?, vertexName: String?) =
+            Identity(
+                    Metrics.VERTEX_BATCH_QUEUE_SIZE,
+                    mapOf("payload" to payload, "vertex" to vertexName)
+            )
+
     private fun tags(payload: String?, operation: String) =
             mapOf(
                     "payload" to payload,
@@ -0,0 +1,71 @@
+package ru.fix.completable.reactor.runtime.execution
+
+import mu.KotlinLogging
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicInteger
+
+private val log = KotlinLogging.logger {}
+
+/**
+ * Creates executors for blocking handlers, see [BlockingHandling].
+ *
+ * Virtual thread per task executor is used if JVM supports virtual threads.
+ * It is resolved by reflection, so the reactor still runs on JVMs without virtual threads
+ * where bounded pool of platform threads is used instead.
+ */
+object BlockingExecutors {
+
+    const val DEFAULT_MAX_POOL_SIZE = 64
+
+    /**
+     * @param threadName prefix of names of executor threads
+     * @param maxPoolSize max amount of platform threads, used only if virtual threads are not supported
+     */
+    @JvmStatic
+    fun newBlockingExecutor(threadName: String, maxPoolSize: Int): ExecutorService {
+        if (maxPoolSize <= 0) {
+            throw IllegalArgumentException("Max pool size should be positive: $maxPoolSize")
+        }
+        return newVirtualThreadExecutor(threadName) ?: newPlatformThreadExecutor(threadName, maxPoolSize)
+    }
+
+    private fun newVirtualThreadExecutor(threadName: String): ExecutorService? {
+        return try {
+            val builderType = Class.forName("java.lang.Thread\$Builder")
+            var builder = Thread::class.java.getMethod("ofVirtual").invoke(null)
+            builder = builderType.getMethod("name", String::class.java, Long::class.javaPrimitiveType)
+                    .invoke(builder, "$threadName-", 0L)
+            val threadFactory = builderType.getMethod("factory").invoke(builder) as ThreadFactory
+
+            val executor = Executors::class.java
+                    .getMethod("newThreadPerTaskExecutor", ThreadFactory::class.java)
+                    .invoke(null, threadFactory) as ExecutorService
+
+            log.debug { "Blocking handlers of Completable Reactor run on virtual threads." }
+            executor
+
+        } catch (exc: ReflectiveOperationException) {
+            /**
+             * Virtual threads are not available or are preview feature that is not enabled
+             */
+            log.debug(exc) { "Blocking handlers of Completable Reactor run on platform threads." }
+            null
+        }
+    }
+
+    private fun newPlatformThreadExecutor(threadName: String, maxPoolSize: Int): ExecutorService {
+        val threadCounter = AtomicInteger()
+        return ThreadPoolExecutor(
+                maxPoolSize,
+                maxPoolSize,
+                1,
+                TimeUnit.MINUTES,
+                LinkedBlockingQueue(),
+                ThreadFactory { task ->
+                    Thread(task, "$threadName-${threadCounter.getAndIncrement()}").apply { isDaemon = true }
+                }
+        ).apply {
+            allowCoreThreadTimeOut(true)
+        }
+    }
+}
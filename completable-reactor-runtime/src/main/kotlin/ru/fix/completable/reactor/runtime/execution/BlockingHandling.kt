@@ -0,0 +1,91 @@
+package ru.fix.completable.reactor.runtime.execution
+
+import ru.fix.aggregating.profiler.Profiler
+import ru.fix.completable.reactor.graph.internal.RuntimeBlockingHandler
+import ru.fix.completable.reactor.runtime.debug.DebugSerializer
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executor
+
+/**
+ * Invocation of blocking handler vertex.
+ *
+ * Handler is invoked by blocking executor, its result is bridged into [result]
+ * that continues the execution as result of ordinary async handler.
+ * When [result] is completed from outside, e.g. cancelled with execution or completed by vertex timeout,
+ * the thread that runs the handler is interrupted.
+ * Interruption never leaks to the next task of the thread: the handler thread detaches itself and clears
+ * interrupted flag under the same lock that interruption is performed with.
+ */
+class BlockingHandling(
+        private val pvx: ProcessingVertex,
+        private val payload: Any?,
+        private val blockingHandler: RuntimeBlockingHandler,
+        private val profiler: Profiler,
+        private val debugSerializer: DebugSerializer) {
+
+    val result = CompletableFuture<Any?>()
+
+    /**
+     * Completes when handler invocation returns or when it is skipped,
+     * interrupted handler could keep running after [result] is completed
+     */
+    val completion = CompletableFuture<Unit>()
+
+    private val lock = Any()
+
+    /**
+     * Thread that runs the handler, NULL before invocation starts and after it completes
+     */
+    private var runner: Thread? = null
+
+    fun start(executor: Executor): CompletableFuture<Any?> {
+        result.whenComplete { _, _ ->
+            synchronized(lock) {
+                runner?.interrupt()
+            }
+        }
+        executor.execute { run() }
+        return result
+    }
+
+    private fun run() {
+        synchronized(lock) {
+            if (result.isDone) {
+                completion.complete(Unit)
+                return
+            }
+            runner = Thread.currentThread()
+        }
+
+        /**
+         * Time that the thread is blocked by the handler
+         */
+        val blockingCall = profiler.profiledCall(pvx.planVertex.blockingIdentity).start()
+        var value: Any? = null
+        var failure: Throwable? = null
+        try {
+            value = blockingHandler.blockingHandler.handle(payload)
+        } catch (exc: Throwable) {
+            failure = exc
+        } finally {
+            blockingCall.stop()
+            synchronized(lock) {
+                runner = null
+                Thread.interrupted()
+            }
+            completion.complete(Unit)
+        }
+
+        if (failure == null) {
+            result.complete(value)
+        } else {
+            result.completeExceptionally(
+                    IllegalArgumentException(
+                            """
+                            Exception during blocking handler invocation for vertex ${pvx.vertex.name}.
+                            Payload: ${debugSerializer.dumpObject(payload)}
+                            """.trimIndent(),
+                            failure))
+        }
+    }
+}
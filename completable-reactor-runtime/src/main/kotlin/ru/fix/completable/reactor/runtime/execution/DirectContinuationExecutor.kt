@@ -0,0 +1,37 @@
+package ru.fix.completable.reactor.runtime.execution
+
+import java.util.concurrent.Executor
+
+/**
+ * Runs continuations on the current thread while nesting depth of direct continuations is below [maxDepth].
+ * Past that depth continuation is submitted to [executor], so the stack of the current thread stays bounded.
+ *
+ * Used for cheap synchronous vertices (Router, Mutator, vertices with empty handler)
+ * in order to avoid queueing on the pool between consecutive graph transitions.
+ */
+class DirectContinuationExecutor(
+        private val executor: Executor,
+        private val maxDepth: Int) : Executor {
+
+    override fun execute(command: Runnable) {
+        val depth = DEPTH.get()
+        if (depth[0] >= maxDepth) {
+            executor.execute(command)
+            return
+        }
+        depth[0]++
+        try {
+            command.run()
+        } finally {
+            depth[0]--
+        }
+    }
+
+    companion object {
+        /**
+         * Depth is shared between all executions that run on the same thread,
+         * nested submission of subgraph continues to consume the stack of its parent.
+         */
+        private val DEPTH = ThreadLocal.withInitial { IntArray(1) }
+    }
+}
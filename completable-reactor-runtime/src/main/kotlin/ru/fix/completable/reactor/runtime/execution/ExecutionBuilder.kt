@@ -4,14 +4,39 @@ package ru.fix.completable.reactor.runtime.execution
 import mu.KotlinLogging
 import ru.fix.aggregating.profiler.Profiler
 import ru.fix.completable.reactor.graph.runtime.RuntimeGraph
-import ru.fix.completable.reactor.graph.runtime.RuntimeTransition
-import ru.fix.completable.reactor.graph.runtime.RuntimeVertex
+import ru.fix.completable.reactor.runtime.ProfilerIdentity
 import ru.fix.completable.reactor.runtime.debug.DebugSerializer
+import ru.fix.completable.reactor.runtime.timer.HashedWheelTimer
 import ru.fix.completable.reactor.runtime.tracing.Tracer
-import java.util.*
 import java.util.concurrent.CompletableFuture
-
-typealias SubgraphRunner = (Any?) -> CompletableFuture<Any?>
+import java.util.concurrent.CompletionException
+import java.util.concurrent.Executor
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+/**
+ * Starts subgraph execution as a child of the execution that invokes subgraph vertex.
+ * Child execution shares deadline, cancellation and accounting of the parent execution:
+ * it is cancelled together with handler future of the subgraph vertex
+ * and parent chain execution waits for its chain execution.
+ * Child execution is profiled and traced by decisions made on submit of the parent execution.
+ */
+typealias SubgraphRunner = (payload: Any?, parent: SubgraphParent) -> ReactorGraphExecution<Any?>
+
+/**
+ * Subgraph vertex of the parent execution that starts child execution
+ */
+class SubgraphParent(
+        val planVertex: ExecutionPlan.PlanVertex,
+        /**
+         * Whether the parent execution is profiled
+         */
+        val isProfiled: Boolean,
+        /**
+         * Tracer of the parent execution, null if it is not traced
+         */
+        val tracer: Tracer?)
 
 private val log = KotlinLogging.logger {}
 
@@ -19,271 +44,330 @@ class ExecutionBuilder(
         val profiler: Profiler,
         val subgraphRunner: SubgraphRunner,
         val debugSerializer: DebugSerializer,
-        val tracer: Tracer) {
+        /**
+         * Timer of the reactor shared by execution, vertex and retry timeouts
+         */
+        val timer: HashedWheelTimer) {
 
 
+    /**
+     * Contexts are immutable.
+     * Dead and terminal signals do not carry payload and are shared constants: [DEAD] and [TERMINAL].
+     * Live contexts are created once per execution or once per vertex invocation and reused by all transitions
+     * that carry them.
+     */
     data class MergePayloadContext(
-            var payload: Any? = null,
+            val payload: Any? = null,
             /**
              * Transition marked as dead when merge status does not match transition condition
              */
-            var isDeadTransition: Boolean = false,
+            val isDeadTransition: Boolean = false,
             /**
              * Terminal graph state reached.
              * No further merging (or payload modification) is allowed.
              * All transitions except copy-transition for detached processors is allowed.
              */
-            var isTerminal: Boolean = false,
+            val isTerminal: Boolean = false,
 
-            var mergeResult: Any? = null
-    )
+            val mergeResult: Any? = null
+    ) {
+        companion object {
+            val DEAD = MergePayloadContext(isDeadTransition = true)
+            val TERMINAL = MergePayloadContext(isTerminal = true)
+        }
+    }
 
 
     data class TransitionPayloadContext(
-            var payload: Any? = null,
+            val payload: Any? = null,
             /**
              * Transition marked as dead when merge status does not match transition condition
              */
-            var isDeadTransition: Boolean = false,
+            val isDeadTransition: Boolean = false,
             /**
              * Terminal graph state reached.
              * No further merging (or payload modification) is allowed.
              * All transitions except copy-transition for detached processors is allowed.
              */
-            var isTerminal: Boolean = false
-    )
+            val isTerminal: Boolean = false
+    ) {
+        companion object {
+            val DEAD = TransitionPayloadContext(isDeadTransition = true)
+            val TERMINAL = TransitionPayloadContext(isTerminal = true)
+        }
+    }
 
     data class HandlePayloadContext(
 
-            var payload: Any? = null,
+            val payload: Any? = null,
             /**
              * Transition marked as dead when merge status does not match transition condition
              */
-            var isDeadTransition: Boolean = false,
+            val isDeadTransition: Boolean = false,
             /**
              * Terminal graph state reached.
              * No further merging (or payload modification) is allowed.
              * All transitions except copy-transition for detached processors is allowed.
              */
-            var isTerminal: Boolean = false,
-            var handlingResult: Any? = null
-    )
-
-    companion object {
-        val INVALID_MERGE_PAYLOAD_CONTEXT = MergePayloadContext()
-        val INVALID_TRANSITION_PAYLOAD_CONTEXT = TransitionPayloadContext()
-        val INVALID_HANDLE_PAYLOAD_CONTEXT = HandlePayloadContext()
+            val isTerminal: Boolean = false,
+            val handlingResult: Any? = null,
+            /**
+             * Handler invocation was rejected by vertex bulkhead, short-circuited by circuit breaker or timed out.
+             * Merger is not invoked, vertex routes by this status.
+             */
+            val fallbackStatus: Enum<*>? = null
+    ) {
+        companion object {
+            val DEAD = HandlePayloadContext(isDeadTransition = true)
+            val TERMINAL = HandlePayloadContext(isTerminal = true)
+        }
     }
 
-
     /**
-     * Represent deferred computation result of a transition
-     * //TODO replace with type alias
+     * Compiles runtime graph into execution plan that is shared by all executions of the graph.
      */
-    class TransitionFuture<PayloadContextType>(
-            val feature: CompletableFuture<PayloadContextType>
-    )
+    fun compile(runtimeGraph: RuntimeGraph, payloadType: Class<*>): ExecutionPlan {
+        val plan = ExecutionPlan.compile(runtimeGraph, payloadType, timer, profiler)
+
+        /**
+         * Bulkheads, circuit breakers, single flights, result caches and batchers are shared by all executions of the plan,
+         * their state is reported by indicators
+         */
+        for (planVertex in plan.vertices) {
+            val bulkhead = planVertex.bulkhead
+            if (bulkhead != null) {
+                profiler.attachIndicator(
+                        ProfilerIdentity.vertexQueueSizeIdentity(payloadType.name, planVertex.vertex.name)
+                ) { bulkhead.queuedInvocations.toLong() }
+                profiler.attachIndicator(
+                        ProfilerIdentity.vertexRejectedIdentity(payloadType.name, planVertex.vertex.name)
+                ) { bulkhead.rejectedInvocations }
+            }
+
+            val circuitBreaker = planVertex.circuitBreaker
+            if (circuitBreaker != null) {
+                profiler.attachIndicator(
+                        ProfilerIdentity.vertexCircuitBreakerStateIdentity(payloadType.name, planVertex.vertex.name)
+                ) { circuitBreaker.state.ordinal.toLong() }
+                profiler.attachIndicator(
+                        ProfilerIdentity.vertexShortCircuitedIdentity(payloadType.name, planVertex.vertex.name)
+                ) { circuitBreaker.shortCircuitedInvocations }
+            }
 
+            val singleFlight = planVertex.singleFlight
+            if (singleFlight != null) {
+                profiler.attachIndicator(
+                        ProfilerIdentity.vertexSingleFlightLeaderIdentity(payloadType.name, planVertex.vertex.name)
+                ) { singleFlight.leaderInvocations }
+                profiler.attachIndicator(
+                        ProfilerIdentity.vertexSingleFlightCoalescedIdentity(payloadType.name, planVertex.vertex.name)
+                ) { singleFlight.coalescedInvocations }
+            }
+
+            val resultCache = planVertex.resultCache
+            if (resultCache != null) {
+                profiler.attachIndicator(
+                        ProfilerIdentity.vertexCacheHitIdentity(payloadType.name, planVertex.vertex.name)
+                ) { resultCache.hits }
+                profiler.attachIndicator(
+                        ProfilerIdentity.vertexCacheMissIdentity(payloadType.name, planVertex.vertex.name)
+                ) { resultCache.misses }
+                profiler.attachIndicator(
+                        ProfilerIdentity.vertexCacheEvictionIdentity(payloadType.name, planVertex.vertex.name)
+                ) { resultCache.evictions }
+            }
+
+            val batcher = planVertex.batcher
+            if (batcher != null) {
+                profiler.attachIndicator(
+                        ProfilerIdentity.vertexBatchQueueSizeIdentity(payloadType.name, planVertex.vertex.name)
+                ) { batcher.queueSize.toLong() }
+            }
+        }
+        return plan
+    }
 
     /**
-     * @param reactorGraph
+     * @param plan execution plan compiled by [compile]
+     * @param executor runs all asynchronous stages of the execution: transitions, handling and merging
+     * @param blockingExecutor runs handlers of blocking handler vertices
+     * @param directContinuationDepth how many nested continuations of synchronous vertices could run on the
+     * current thread before falling back to [executor]. Zero disables direct continuations.
+     * @param isProfiled whether handlers and mergers of the execution are profiled, decided by sampling on submit
+     * @param tracer traces handlers and mergers of the execution, null if payload is not traceable.
+     * Traceable decision is made once on submit.
      * @param <PayloadType>
      * @return
      */
-    fun <PayloadType> build(runtimeGraph: RuntimeGraph): ReactorGraphExecution<PayloadType> {
-
+    fun <PayloadType> build(
+            plan: ExecutionPlan,
+            executor: Executor,
+            blockingExecutor: Executor,
+            directContinuationDepth: Int,
+            isProfiled: Boolean,
+            tracer: Tracer?): ReactorGraphExecution<PayloadType> {
 
         /**
-         * Internal representation of processing graph based on processing vertices.
-         * //TODO: check, maybe we do not need map and simple list is enough fo rCR2
+         * Runs transitions and synchronous vertices inline when direct continuations are enabled
          */
-        val processingVertices = IdentityHashMap<RuntimeVertex, ProcessingVertex>()
-
+        val continuationExecutor =
+                if (directContinuationDepth > 0) {
+                    DirectContinuationExecutor(executor, directContinuationDepth)
+                } else {
+                    executor
+                }
 
         val submitFuture = CompletableFuture<PayloadType>()
 
         /**
-         * Will be completed on payload submission to processor chain
+         * Will be completed with payload when terminal graph state would be reached.
          */
-        val startPointTransitionFuture = submitFuture.thenApplyAsync { payload ->
-            TransitionPayloadContext(payload = payload)
-        }
+        val executionResultFuture = CompletableFuture<PayloadType>()
 
         /**
-         * Will be completed with payload when terminal graph state would be reached.
+         * Completes when execution result and handling and merging state of all vertices are completed.
+         * Handlers without mergers could complete much later than main flow.
+         * We have to keep chainExecutionFuture in pending state until all vertices are completed.
          */
-        val executionResultFuture = CompletableFuture<PayloadType>()
+        val chainExecutionFuture = CompletableFuture<Void>()
+        val pendingStages = AtomicInteger(plan.vertices.size * 2 + 1)
 
         /**
-         * Init Processing Vertices based on graph model vertices
-         *
+         * Execution state of processing vertices.
+         * Processing vertex is located at the same index as corresponding vertex of the plan.
          */
-        runtimeGraph.vertices.forEach { vx ->
-            val pvx = ProcessingVertex(
-                    vertex = vx,
-                    subgraphRunner = subgraphRunner,
-                    debugSerializer = debugSerializer)
+        lateinit var processingVertices: Array<ProcessingVertex>
 
-            /**
-             * Populate MergePoints transitions
-             */
-            if (vx.transitions.isNotEmpty()) {
-                //TODO: replace copy with delegation since outgoingTransitions is immutable
-                pvx.outgoingTransitions.addAll(vx.transitions)
+        val onStageCompleted = {
+            if (pendingStages.decrementAndGet() == 0) {
+                /**
+                 * Execution result is already completed since it is one of pending stages
+                 */
+                executionResultFuture.whenComplete { _, throwable ->
+                    completeChainExecution(chainExecutionFuture, processingVertices, throwable)
+                }
             }
-
-            processingVertices[vx] = pvx
         }
 
         /**
-         * Populate start point transition
+         * Child executions of subgraph vertices reuse profiling and tracing decisions of this execution
          */
-        for (vx in runtimeGraph.startPoint) {
-            val pvx = processingVertices[vx]!!
-            pvx.incomingHandlingFlows.add(TransitionFuture(startPointTransitionFuture))
+        val runSubgraph = { payload: Any?, parent: ExecutionPlan.PlanVertex ->
+            subgraphRunner(payload, SubgraphParent(parent, isProfiled, tracer))
         }
 
+        processingVertices = Array(plan.vertices.size) { index ->
+            ProcessingVertex(
+                    planVertex = plan.vertices[index],
+                    subgraphRunner = runSubgraph,
+                    debugSerializer = debugSerializer,
+                    executor = executor,
+                    blockingExecutor = blockingExecutor,
+                    profiler = profiler,
+                    onStageCompleted = onStageCompleted)
+        }
 
-        /**
-         * Populate outgoing flows
-         */
-        processingVertices.values.asSequence().filter { it.vertex.isMergerable }.forEach { mergerablePvx ->
-
-            /**
-             * Completion of Mergerable feature triggers completion of outgoing transitions.
-             */
-            val mergingFeature = mergerablePvx.mergingFuture
-
-            for (transition in mergerablePvx.outgoingTransitions) {
+        val cancellation = ExecutionCancellation(processingVertices)
 
-                /**
-                 * Terminal merge point vertex handled synchronously with merging process
-                 * Skip that kind of transition during pre-processing.
-                 */
-                if (!transition.isComplete) {
-                    /**
-                     * Populate outgoing handleBy flows
-                     * activates when Mergerable feature is completed
-                     */
-                    if (transition.handleBy != null) {
-                        val target = transition.handleBy
-
-                        processingVertices[target]!!.incomingHandlingFlows.add(TransitionFuture(
-                                mergingFeature.thenApplyAsync { context ->
-
-                                    if (context.isTerminal) {
-                                        TransitionPayloadContext(isTerminal = true)
-
-                                    } else if (context.isDeadTransition) {
-                                        TransitionPayloadContext(isDeadTransition = true)
-
-                                    } else if (
-                                            transition.isOnAny ||
-                                            context.mergeResult in transition.mergeStatuses ||
-                                            isOnElse(transition, mergerablePvx, context)
-                                    ) {
-                                        TransitionPayloadContext(payload = context.payload)
-                                    } else {
-                                        TransitionPayloadContext(
-                                                payload = context.payload,
-                                                isDeadTransition = true)
-                                    }
-
-                                }.exceptionally { exc ->
-                                    log.error(exc) {
-                                        """
-                                        Failed to activate handleBy transition.
-                                        Mark transition as dead.
-                                        Transition from ${mergerablePvx.vertex.name} to ${target?.name}.
-                                        Transition: $transition
-                                        """.trimIndent()
-                                    }
-
-                                    TransitionPayloadContext(isDeadTransition = true)
-                                }
-                        ))
+        val mergeBy = MergeByExecutionBuilder(
+                executionResultFuture,
+                this,
+                executor,
+                continuationExecutor,
+                isProfiled,
+                tracer,
+                cancellation)
+
+        val handleBy = HandleByExecutionBuilder(
+                executionResultFuture,
+                this,
+                mergeBy,
+                executor,
+                continuationExecutor,
+                isProfiled,
+                tracer,
+                cancellation)
 
-                    }
+        /**
+         * Single payload instance is used for whole graph execution.
+         * All active handleBy transitions of the execution share the same context.
+         */
+        val activeTransitionContext = AtomicReference<TransitionPayloadContext>()
 
-                    /**
-                     * Populate outgoing mergeBy flows
-                     */
-                    if (transition.mergeBy != null) {
-                        val target = transition.mergeBy
-
-                        processingVertices[target]!!.incomingMergingFlows.add(TransitionFuture(
-                                mergingFeature.thenApplyAsync { context ->
-                                    if (context.isTerminal) {
-                                        MergePayloadContext(isTerminal = true)
-
-                                    } else if (context.isDeadTransition) {
-                                        MergePayloadContext(isDeadTransition = true)
-
-                                    } else if (
-                                            transition.isOnAny ||
-                                            context.mergeResult in transition.mergeStatuses ||
-                                            isOnElse(transition, mergerablePvx, context)
-                                    ) {
-                                        MergePayloadContext(
-                                                payload = context.payload,
-                                                mergeResult = context.mergeResult)
-                                    } else {
-                                        MergePayloadContext(isDeadTransition = true)
-                                    }
-                                }.exceptionally { exc ->
-                                    log.error(exc) {
-                                        """
-                                        Failed to activate mergeBy transition.
-                                        Mark transition as dead.
-                                        Transition from ${mergerablePvx.vertex.name} to ${target?.name}.
-                                        Transition: $transition
-                                        """.trimIndent()
-                                    }
-
-                                    MergePayloadContext(isDeadTransition = true)
-                                }
-                        ))
+        /**
+         * Activate start point transitions on payload submission to processor chain.
+         * Slots of all start points are reserved before any vertex is joined.
+         * Otherwise execution result completed by fast handlers
+         * could mark start points that are not activated yet as dead transitions.
+         */
+        submitFuture.thenAcceptAsync({ payload ->
+            val context = TransitionPayloadContext(payload = payload)
+            activeTransitionContext.set(context)
 
-                    }
+            for (startPoint in plan.startPoints) {
+                processingVertices[startPoint.target].reserveIncomingHandlingFlow(startPoint.targetSlot, context)
+            }
+            for (startPoint in plan.startPoints) {
+                val targetPvx = processingVertices[startPoint.target]
+                if (targetPvx.completeReservedIncomingHandlingFlow(startPoint.targetSlot, context)) {
+                    handleBy.joinIncomingHandleByFlows(targetPvx)
                 }
             }
-        }
+        }, executor)
 
-        HandleByExecutionBuilder(
-                processingVertices,
-                executionResultFuture,
-                this
-        ).joinIncomingHandleByFlowsToSingleHandlingInvocation()
+        /**
+         * Populate outgoing flows.
+         * Completion of Mergerable feature triggers completion of outgoing transitions.
+         * Activation of transition is cheap and could run as direct continuation of merging.
+         */
+        for (mergerablePvx in processingVertices) {
+            if (mergerablePvx.planVertex.outgoingFlows.isEmpty()) {
+                continue
+            }
 
+            mergerablePvx.mergingFuture.whenCompleteAsync({ context, throwable ->
+                val flows = mergerablePvx.planVertex.outgoingFlows
+                for (flowIndex in flows.indices) {
+                    activateOutgoingFlow(
+                            processingVertices,
+                            handleBy,
+                            mergeBy,
+                            activeTransitionContext.get(),
+                            mergerablePvx,
+                            flowIndex,
+                            context,
+                            throwable)
+                }
+            }, continuationExecutor)
+        }
 
-        MergeByExecutionBuilder(
-                processingVertices,
-                executionResultFuture,
-                this
-        ).joinIncomingMergeByFlowsToSingleMergingInvocation()
+        executionResultFuture.whenComplete { _, _ -> onStageCompleted() }
 
+        /**
+         * Failed, timed out or cancelled execution cancels all running handlers.
+         * Successful execution cancels handlers whose results could not be merged anymore.
+         */
+        executionResultFuture.whenComplete { _, throwable ->
+            if (throwable != null) {
+                cancellation.cancel()
+            } else {
+                cancellation.cancelMergingHandlers()
+            }
+        }
 
         /**
          * Handle terminal vertices.
          * When execution reaches 'complete' vertex all transitions should be marked dead and complete.
          */
-        executionResultFuture.thenRunAsync {
-            processingVertices.values
-                    .asSequence()
-                    .flatMap { it.incomingHandlingFlows.asSequence() }
-                    .map { it.feature }
-                    .forEach { future ->
-                        future.complete(TransitionPayloadContext(isDeadTransition = true))
+        executionResultFuture.thenRunAsync({
+            for (pvx in processingVertices) {
+                for (slot in 0 until pvx.incomingHandlingFlows.length()) {
+                    if (pvx.completeIncomingHandlingFlow(slot, TransitionPayloadContext.DEAD)) {
+                        handleBy.joinIncomingHandleByFlows(pvx)
                     }
-
-            processingVertices.values
-                    .asSequence()
-                    .flatMap { it.incomingHandlingFlows.asSequence() }
-                    .map { it.feature }
-                    .forEach { future ->
-                        future.complete(TransitionPayloadContext(isDeadTransition = true))
-                    }
-        }.exceptionally { throwable ->
+                }
+            }
+        }, executor).exceptionally { throwable ->
             log.error(throwable) {
                 "Marking transitions as dead " +
                         "after execution result feature is completed is failed."
@@ -291,46 +375,137 @@ class ExecutionBuilder(
             null
         }
 
-        /**
-         * Collect chain execution handling futures.
-         * Handling futures holds handle invocation result or dead or terminated context.
-         * Handlers without mergers could complete much later than main flow.
-         * We have to keep chainExecutionFuture in pending state until all vertices are completed.
-         * Then all handling and merging futures completes, then chainExecutionFuture completes too.
-         * Joint executionResultFuture to list of pending features too.
-         */
-
-        val chainExecutionFuture = CompletableFuture.allOf(
-                executionResultFuture,
-                * processingVertices.values
-                        .asSequence()
-                        .flatMap { listOf(it.handlingFuture, it.mergingFuture).asSequence() }
-                        .toList()
-                        .toTypedArray()
-        )
-
         return ReactorGraphExecution(
                 submitFuture,
                 executionResultFuture,
                 chainExecutionFuture,
-                processingVertices.values)
+                processingVertices.asList(),
+                cancellation)
     }
 
     /**
-     * Check if transition is marked as `onElse`
-     * and merge results are not satisfied by another existing transitions
+     * Completes incoming slot of transition target based on merging result of source vertex
      */
-    private fun isOnElse(
-            transition: RuntimeTransition,
+    private fun <PayloadType> activateOutgoingFlow(
+            processingVertices: Array<ProcessingVertex>,
+            handleBy: HandleByExecutionBuilder<PayloadType>,
+            mergeBy: MergeByExecutionBuilder<PayloadType>,
+            activeTransitionContext: TransitionPayloadContext,
             mergerablePvx: ProcessingVertex,
-            context: ExecutionBuilder.MergePayloadContext
-    ): Boolean {
-        return transition.isOnElse &&
-                mergerablePvx.outgoingTransitions.asSequence()
-                        .filter { !it.isOnElse }
-                        .all { !it.mergeStatuses.contains(context.mergeResult) }
+            flowIndex: Int,
+            context: MergePayloadContext?,
+            throwable: Throwable?) {
+
+        val flow = mergerablePvx.planVertex.outgoingFlows[flowIndex]
+        val transition = flow.transition
+        val targetPvx = processingVertices[flow.target]
+
+        try {
+            if (throwable != null) {
+                throw throwable
+            }
+            context!!
+
+            val isActive = !context.isTerminal &&
+                    !context.isDeadTransition &&
+                    mergerablePvx.planVertex.route(context.mergeResult).activeFlows[flowIndex]
+
+            if (!flow.isMergeBy) {
+                /**
+                 * Outgoing handleBy flow
+                 */
+                completeIncomingHandlingFlow(handleBy, targetPvx, flow,
+                        when {
+                            context.isTerminal -> TransitionPayloadContext.TERMINAL
+                            isActive -> activeTransitionContext
+                            else -> TransitionPayloadContext.DEAD
+                        })
+            } else {
+                /**
+                 * Outgoing mergeBy flow
+                 */
+                completeIncomingMergingFlow(mergeBy, targetPvx, flow,
+                        when {
+                            context.isTerminal -> MergePayloadContext.TERMINAL
+                            /**
+                             * Merge context of the source vertex carries both payload and merge result
+                             */
+                            isActive -> context
+                            else -> MergePayloadContext.DEAD
+                        })
+            }
+
+        } catch (exc: Throwable) {
+            val kind = if (flow.isMergeBy) "mergeBy" else "handleBy"
+            log.error(exc) {
+                """
+                Failed to activate $kind transition.
+                Mark transition as dead.
+                Transition from ${mergerablePvx.vertex.name} to ${targetPvx.vertex.name}.
+                Transition: $transition
+                """.trimIndent()
+            }
+
+            if (flow.isMergeBy) {
+                completeIncomingMergingFlow(mergeBy, targetPvx, flow, MergePayloadContext.DEAD)
+            } else {
+                completeIncomingHandlingFlow(handleBy, targetPvx, flow, TransitionPayloadContext.DEAD)
+            }
+        }
+    }
+
+    /**
+     * Last incoming handleBy transition triggers handling of target vertex
+     */
+    private fun <PayloadType> completeIncomingHandlingFlow(
+            handleBy: HandleByExecutionBuilder<PayloadType>,
+            targetPvx: ProcessingVertex,
+            flow: ExecutionPlan.PlanTransition,
+            context: TransitionPayloadContext) {
+
+        if (targetPvx.completeIncomingHandlingFlow(flow.targetSlot, context)) {
+            handleBy.joinIncomingHandleByFlows(targetPvx)
+        }
+    }
+
+    /**
+     * Last merging input triggers merging of target vertex
+     */
+    private fun <PayloadType> completeIncomingMergingFlow(
+            mergeBy: MergeByExecutionBuilder<PayloadType>,
+            targetPvx: ProcessingVertex,
+            flow: ExecutionPlan.PlanTransition,
+            context: MergePayloadContext) {
+
+        if (targetPvx.completeIncomingMergingFlow(flow.targetSlot, context)) {
+            mergeBy.joinIncomingMergeByFlows(targetPvx)
+        }
     }
 
+    /**
+     * Completes chain execution when chain executions of all subgraphs started by the execution are completed.
+     * All subgraphs are already started since handling of all vertices is completed.
+     *
+     * @param throwable failure of execution result, NULL if execution result is completed successfully
+     */
+    fun completeChainExecution(
+            chainExecutionFuture: CompletableFuture<Void>,
+            processingVertices: Array<ProcessingVertex>,
+            throwable: Throwable?) {
+
+        val subgraphChains = processingVertices.flatMap { it.subgraphChains }
+        CompletableFuture.allOf(*subgraphChains.toTypedArray()).whenComplete { _, _ ->
+            if (throwable != null) {
+                chainExecutionFuture.completeExceptionally(
+                        throwable as? CompletionException ?: CompletionException(throwable))
+            } else {
+                chainExecutionFuture.complete(null)
+            }
+        }
+    }
+
+    private fun isCompleted(slots: AtomicReferenceArray<*>) = (0 until slots.length()).all { slots[it] != null }
+
     fun <PayloadType> dumpExecutionState(execution: ReactorGraphExecution<PayloadType>): String {
         try {
 
@@ -345,8 +520,8 @@ class ExecutionBuilder(
                     vx.handlingFuture.isDone
                             && vx.mergingFuture.isDone -> completed.add(vx)
 
-                    vx.incomingHandlingFlows.all { it.feature.isDone }
-                            && vx.incomingMergingFlows.all { it.feature.isDone } -> possiblyExecuting.add(vx)
+                    isCompleted(vx.incomingHandlingFlows)
+                            && isCompleted(vx.incomingMergingFlows) -> possiblyExecuting.add(vx)
 
                     else ->
                         others.add(vx)
@@ -357,13 +532,16 @@ class ExecutionBuilder(
                     "\"(done:${future.isDone}, excptn:${future.isCompletedExceptionally})\""
 
 
+            fun dump(slots: AtomicReferenceArray<*>) =
+                    (0 until slots.length()).joinToString { "\"(done:${slots[it] != null}, excptn:false)\"" }
+
             fun dump(vertices: Collection<ProcessingVertex>): String {
                 return vertices.joinToString(",\n", "\n", "\n") { vx ->
                     "\"${vx.vertex.name}\":{\n" +
                             "\"handlingFuture\":${dump(vx.handlingFuture)},\n" +
                             "\"mergingFuture\":${dump(vx.mergingFuture)},\n" +
-                            "\"incomingHandlingFlows\":[${vx.incomingHandlingFlows.joinToString { dump(it.feature) }}],\n" +
-                            "\"incomingMergingFlows\":[${vx.incomingMergingFlows.joinToString { dump(it.feature) }}]\n" +
+                            "\"incomingHandlingFlows\":[${dump(vx.incomingHandlingFlows)}],\n" +
+                            "\"incomingMergingFlows\":[${dump(vx.incomingMergingFlows)}]\n" +
                             "}"
                 }
             }
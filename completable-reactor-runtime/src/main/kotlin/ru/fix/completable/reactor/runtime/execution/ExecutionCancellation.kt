@@ -0,0 +1,54 @@
+package ru.fix.completable.reactor.runtime.execution
+
+/**
+ * Cancellation signal of single execution shared by its processing vertices.
+ *
+ * Execution is cancelled when its result completes exceptionally: by timeout, by failure of a vertex
+ * or by explicit cancellation, see [ru.fix.completable.reactor.runtime.CompletableReactor.Execution.cancel].
+ * Running handling invocations are cancelled. Cancellation of the invocation cancels subgraph execution
+ * or coroutine of suspend handler that stands behind it, future returned by async handler is left intact,
+ * see [ProcessingVertex.invokeHandlingMethod].
+ * Vertices that have not started are not scheduled, their handling and merging complete as terminal.
+ *
+ * When execution result completes successfully by terminal transition only vertices with merger
+ * are cancelled and not started anymore, their results could not affect the execution.
+ * Detached handlers without merger keep running until the whole execution is cancelled.
+ */
+class ExecutionCancellation(private val processingVertices: Array<ProcessingVertex>) {
+
+    @Volatile
+    var isCancelled = false
+        private set
+
+    /**
+     * Execution result is completed successfully, vertices with merger are not started anymore
+     */
+    @Volatile
+    var isResultCompleted = false
+        private set
+
+    /**
+     * @return true if handler of the vertex should not be invoked
+     */
+    fun isHandlingSkipped(pvx: ProcessingVertex) =
+            isCancelled || isResultCompleted && pvx.vertex.merger != null
+
+    /**
+     * Cancels running handlers of vertices with merger, execution result is already completed
+     */
+    fun cancelMergingHandlers() {
+        isResultCompleted = true
+        for (pvx in processingVertices) {
+            if (pvx.vertex.merger != null) {
+                pvx.cancelHandling()
+            }
+        }
+    }
+
+    fun cancel() {
+        isCancelled = true
+        for (pvx in processingVertices) {
+            pvx.cancelHandling()
+        }
+    }
+}
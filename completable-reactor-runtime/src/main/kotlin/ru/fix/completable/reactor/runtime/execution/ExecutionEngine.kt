@@ -0,0 +1,32 @@
+package ru.fix.completable.reactor.runtime.execution
+
+import ru.fix.completable.reactor.runtime.tracing.Tracer
+import java.util.concurrent.Executor
+
+/**
+ * Runs executions of compiled graph instead of built-in engine,
+ * see [ru.fix.completable.reactor.runtime.CompletableReactor.setExecutionEngine].
+ *
+ * Engine follows execution semantics of [ExecutionBuilder]: routing of merge statuses, dead and terminal transitions,
+ * vertex policies, cancellation of running handlers when execution result completes.
+ * Reactor starts the execution by completing [ReactorGraphExecution.getSubmitFuture] with submitted payload
+ * and limits it by execution timeout through [ReactorGraphExecution.getResultFuture].
+ */
+interface ExecutionEngine {
+
+    /**
+     * @param builder built-in engine of the reactor, provides profiler, subgraph runner, debug serializer and timer
+     * @param plan execution plan compiled by [ExecutionBuilder.compile]
+     * @param executor executor of the payload type
+     * @param blockingExecutor runs handlers of blocking handler vertices
+     * @param isProfiled whether handlers and mergers of the execution are profiled
+     * @param tracer traces handlers and mergers of the execution, null if payload is not traceable
+     */
+    fun <PayloadType> build(
+            builder: ExecutionBuilder,
+            plan: ExecutionPlan,
+            executor: Executor,
+            blockingExecutor: Executor,
+            isProfiled: Boolean,
+            tracer: Tracer?): ReactorGraphExecution<PayloadType>
+}
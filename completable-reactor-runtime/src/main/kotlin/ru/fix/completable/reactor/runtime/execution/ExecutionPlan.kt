@@ -0,0 +1,426 @@
+package ru.fix.completable.reactor.runtime.execution
+
+import ru.fix.aggregating.profiler.Identity
+import ru.fix.aggregating.profiler.Profiler
+import ru.fix.completable.reactor.graph.internal.RuntimeBatchHandler
+import ru.fix.completable.reactor.graph.internal.RuntimeEmptyHandler
+import ru.fix.completable.reactor.graph.runtime.RuntimeGraph
+import ru.fix.completable.reactor.graph.runtime.RuntimeTransition
+import ru.fix.completable.reactor.graph.runtime.RuntimeVertex
+import ru.fix.completable.reactor.runtime.ProfilerIdentity
+import ru.fix.completable.reactor.runtime.timer.HashedWheelTimer
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Immutable index based representation of [RuntimeGraph].
+ *
+ * Plan is compiled once during graph registration and shared by all executions of the payload type.
+ * Vertices are addressed by their index within [vertices] array.
+ * Each incoming transition of a vertex occupies its own slot,
+ * so execution state of a single submission could be stored in preallocated arrays.
+ */
+class ExecutionPlan private constructor(
+        /**
+         * Type of payload that graph processes
+         */
+        val payloadType: Class<*>,
+        val vertices: Array<PlanVertex>,
+        /**
+         * Transitions from StartPoint to vertices that handle submitted payload first
+         */
+        val startPoints: Array<PlanTransition>) {
+
+    /**
+     * Plan with the same shared vertex state whose profiler identities are tagged by [parentPath]
+     */
+    private fun withParent(parentPath: String) =
+            ExecutionPlan(payloadType, vertices.map { it.withParent(parentPath) }.toTypedArray(), startPoints)
+
+    class PlanVertex(
+            val index: Int,
+            val vertex: RuntimeVertex,
+            /**
+             * All outgoing transitions of the vertex including terminal ones.
+             * Used to select transitions that match merge status.
+             */
+            val transitions: List<RuntimeTransition>,
+            /**
+             * Non terminal outgoing transitions that activate handleBy or mergeBy flows of other vertices.
+             */
+            val outgoingFlows: Array<PlanTransition>,
+            val incomingHandlingFlowCount: Int,
+            val incomingMergingFlowCount: Int,
+            /**
+             * Enum types of merge statuses used by outgoing transitions.
+             * Usually vertex routes by single enum type.
+             */
+            private val routeTypes: Array<Class<*>>,
+            /**
+             * Routing tables indexed by merge status ordinal, one per type from [routeTypes]
+             */
+            private val routeTables: Array<Array<Route>>,
+            /**
+             * Route for merge status that does not match any transition by status: onAny and onElse transitions
+             */
+            private val unmatchedRoute: Route,
+            private val payloadType: Class<*>,
+            /**
+             * Path of subgraph vertices that start executions of the plan, NULL for executions of submitted payloads
+             */
+            val parentPath: String?,
+            /**
+             * Limits concurrent handler invocations of all executions, NULL if concurrency is not limited
+             */
+            val bulkhead: VertexBulkhead?,
+            /**
+             * Circuit breaker shared by all executions, NULL if handler is always invoked
+             */
+            val circuitBreaker: VertexCircuitBreaker?,
+            /**
+             * Hedge budget and latency statistics shared by all executions, NULL if invocations are not hedged
+             */
+            val hedging: VertexHedging?,
+            /**
+             * In flight invocations shared by all executions, NULL if invocations are not coalesced
+             */
+            val singleFlight: VertexSingleFlight?,
+            /**
+             * Handler results shared by all executions, NULL if handler results are not cached
+             */
+            val resultCache: VertexResultCache?,
+            /**
+             * Collects invocations of all executions into bulk calls, NULL if vertex is not a batch handler
+             */
+            val batcher: VertexBatcher?) {
+
+        /**
+         * Vertex with empty handler (Router, Mutator) completes handling immediately
+         * and invokes merger synchronously.
+         * Such vertex could be run as direct continuation of its incoming transition.
+         */
+        val isSynchronous: Boolean = vertex.handler is RuntimeEmptyHandler
+
+        /**
+         * Profiler identities resolved once for (payload type, vertex, operation, parent path)
+         */
+        val handleIdentity: Identity = ProfilerIdentity.handleIdentity(payloadType.name, vertex.name, parentPath)
+        val mergeIdentity: Identity = ProfilerIdentity.mergeIdentity(payloadType.name, vertex.name, parentPath)
+
+        /**
+         * Counts timed out handler invocations, see [RuntimeVertex.timeoutMs]
+         */
+        val timeoutIdentity: Identity = ProfilerIdentity.timeoutIdentity(payloadType.name, vertex.name, parentPath)
+
+        /**
+         * Counts retried handler invocations, see [RuntimeVertex.retryPolicy]
+         */
+        val retryIdentity: Identity = ProfilerIdentity.retryIdentity(payloadType.name, vertex.name, parentPath)
+
+        /**
+         * Count hedged invocations and hedged invocations that completed first, see [RuntimeVertex.hedgingPolicy]
+         */
+        val hedgeIdentity: Identity = ProfilerIdentity.hedgeIdentity(payloadType.name, vertex.name, parentPath)
+        val hedgeWinIdentity: Identity = ProfilerIdentity.hedgeWinIdentity(payloadType.name, vertex.name, parentPath)
+
+        /**
+         * Measures time that blocking handler blocks the thread, see [BlockingHandling]
+         */
+        val blockingIdentity: Identity = ProfilerIdentity.blockingIdentity(payloadType.name, vertex.name, parentPath)
+
+        /**
+         * Measures child executions of subgraph vertex, see [ProcessingVertex.subgraphChains]
+         */
+        val subgraphIdentity: Identity = ProfilerIdentity.subgraphIdentity(
+                payloadType.name, vertex.name, vertex.subgraphPayloadType?.name, parentPath)
+
+        /**
+         * Parent path of subgraph executions started by the vertex
+         */
+        val path: String = (if (parentPath != null) "$parentPath/" else "") + "${payloadType.name}/${vertex.name}"
+
+        /**
+         * Plans of subgraph executions started by the vertex, see [subgraphPlan]
+         */
+        private val subgraphPlans = ConcurrentHashMap<ExecutionPlan, ExecutionPlan>()
+
+        /**
+         * Plan of subgraph executions started by the vertex.
+         * Its vertices share bulkheads, circuit breakers and other state with vertices of [plan],
+         * profiler identities of its vertices are tagged by [path] of this vertex.
+         */
+        fun subgraphPlan(plan: ExecutionPlan): ExecutionPlan =
+                subgraphPlans.computeIfAbsent(plan) { it.withParent(path) }
+
+        internal fun withParent(parentPath: String) = PlanVertex(
+                index = index,
+                vertex = vertex,
+                transitions = transitions,
+                outgoingFlows = outgoingFlows,
+                incomingHandlingFlowCount = incomingHandlingFlowCount,
+                incomingMergingFlowCount = incomingMergingFlowCount,
+                routeTypes = routeTypes,
+                routeTables = routeTables,
+                unmatchedRoute = unmatchedRoute,
+                payloadType = payloadType,
+                parentPath = parentPath,
+                bulkhead = bulkhead,
+                circuitBreaker = circuitBreaker,
+                hedging = hedging,
+                singleFlight = singleFlight,
+                resultCache = resultCache,
+                batcher = batcher)
+
+        /**
+         * Selects outgoing transitions that match merge status
+         */
+        fun route(mergeStatus: Any?): Route {
+            if (mergeStatus is Enum<*>) {
+                val statusType = enumType(mergeStatus)
+                for (index in routeTypes.indices) {
+                    if (routeTypes[index] === statusType) {
+                        return routeTables[index][mergeStatus.ordinal]
+                    }
+                }
+            }
+            return unmatchedRoute
+        }
+
+        override fun toString() = vertex.toString()
+    }
+
+    /**
+     * Outgoing transitions of the vertex that are active for particular merge status
+     */
+    class Route(
+            /**
+             * Active transitions including terminal ones
+             */
+            val transitions: List<RuntimeTransition>,
+            /**
+             * One of active transitions completes graph execution
+             */
+            val isTerminal: Boolean,
+            /**
+             * Activity flag for each of [PlanVertex.outgoingFlows]
+             */
+            val activeFlows: BooleanArray)
+
+    /**
+     * Flow between source and target vertex
+     */
+    class PlanTransition(
+            val transition: RuntimeTransition,
+            /**
+             * Index of target vertex within [ExecutionPlan.vertices]
+             */
+            val target: Int,
+            /**
+             * Index of incoming handling or merging slot of target vertex
+             */
+            val targetSlot: Int,
+            val isMergeBy: Boolean)
+
+    companion object {
+        /**
+         * Start point activates vertices unconditionally
+         */
+        private val START_POINT_TRANSITION = RuntimeTransition(isOnAny = true)
+
+        /**
+         * @param timer closes batching windows of batch handler vertices
+         * @param profiler records sizes of bulk calls of batch handler vertices
+         */
+        @JvmStatic
+        fun compile(
+                graph: RuntimeGraph,
+                payloadType: Class<*>,
+                timer: HashedWheelTimer,
+                profiler: Profiler): ExecutionPlan {
+
+            val indexes = IdentityHashMap<RuntimeVertex, Int>()
+            graph.vertices.forEachIndexed { index, vx -> indexes[vx] = index }
+
+            fun indexOf(vx: RuntimeVertex): Int = indexes[vx] ?: throw IllegalArgumentException("""
+                    Invalid graph configuration.
+                    Transition targets vertex ${vx.name} that does not belong to the graph.
+                    """.trimIndent())
+
+            val handlingFlowCounts = IntArray(graph.vertices.size)
+            val mergingFlowCounts = IntArray(graph.vertices.size)
+
+            val startPoints = graph.startPoint.map { vx ->
+                val target = indexOf(vx)
+                PlanTransition(START_POINT_TRANSITION, target, handlingFlowCounts[target]++, false)
+            }
+
+            val outgoingFlows = graph.vertices.map { vx ->
+
+                if ((vx.handler != null || vx.subgraphPayloadBuilder != null) && vx.merger == null) {
+                    /**
+                     * Handler/subgraph without merger should not have outgoing transitions
+                     */
+                    if (vx.transitions.isNotEmpty()) {
+                        throw IllegalStateException("""
+                            Invalid graph configuration:
+                            Vertex ${vx.name} does not have merger, but has outgoing transitions
+                            """.trimIndent())
+                    }
+                }
+
+                if (!vx.isMergerable) {
+                    return@map emptyList<PlanTransition>()
+                }
+
+                /**
+                 * Terminal transitions handled synchronously with merging process
+                 */
+                vx.transitions.asSequence()
+                        .filter { !it.isComplete }
+                        .flatMap { transition ->
+                            sequenceOf(
+                                    transition.handleBy?.let { targetVx ->
+                                        val target = indexOf(targetVx)
+                                        PlanTransition(transition, target, handlingFlowCounts[target]++, false)
+                                    },
+                                    transition.mergeBy?.let { targetVx ->
+                                        val target = indexOf(targetVx)
+                                        PlanTransition(transition, target, mergingFlowCounts[target]++, true)
+                                    }
+                            ).filterNotNull()
+                        }
+                        .toList()
+            }
+
+            val vertices = graph.vertices.mapIndexed { index, vx ->
+
+                if (handlingFlowCounts[index] <= 0) {
+                    throw IllegalArgumentException("""
+                            Invalid graph configuration.
+                            Vertex ${vx.name} does not have incoming handling flows.
+                            Probably missing `.handleBy(${vx.name})` transition that targets this vertex in configuration.
+                            """.trimIndent())
+                }
+
+                if ((vx.type == RuntimeVertex.Type.Router || vx.type == RuntimeVertex.Type.Mutator)
+                        && mergingFlowCounts[index] > 0) {
+                    throw IllegalStateException("""
+                            Invalid graph configuration.
+                            Incoming merging flow exist for router or mutator vertex ${vx.name}.
+                            Router vertex could not have incoming merging flows.
+                            """.trimIndent())
+                }
+
+                val flows = outgoingFlows[index].toTypedArray()
+
+                val bulkhead = if (vx.maxConcurrency > 0) {
+                    VertexBulkhead(vx.maxConcurrency, vx.maxQueueSize, vx.rejectionStatus)
+                } else {
+                    null
+                }
+
+                val cacheKey = vx.cacheKey
+                val cachePolicy = vx.cachePolicy
+                val resultCache = if (cacheKey != null && cachePolicy != null) {
+                    VertexResultCache(cacheKey, cachePolicy)
+                } else {
+                    null
+                }
+
+                val handler = vx.handler
+                val batcher = if (handler is RuntimeBatchHandler) {
+                    VertexBatcher(
+                            handler,
+                            vx.name,
+                            timer,
+                            profiler,
+                            ProfilerIdentity.batchIdentity(payloadType.name, vx.name),
+                            ProfilerIdentity.batchWaitIdentity(payloadType.name, vx.name))
+                } else {
+                    null
+                }
+
+                val circuitBreakerPolicy = vx.circuitBreakerPolicy
+                val circuitBreakerStatus = vx.circuitBreakerStatus
+                val circuitBreaker = if (circuitBreakerPolicy != null && circuitBreakerStatus != null) {
+                    VertexCircuitBreaker(circuitBreakerPolicy, circuitBreakerStatus, vx.name)
+                } else {
+                    null
+                }
+
+                /**
+                 * Rejected, short-circuited and timed out vertices route by configured status without merger
+                 */
+                fun validateFallbackStatus(status: Enum<*>?, reason: String) {
+                    if (status != null && vx.isMergerable && route(vx, flows, status).transitions.isEmpty()) {
+                        throw IllegalArgumentException("""
+                                Invalid graph configuration.
+                                Vertex ${vx.name} completes $reason handler invocations with status $status
+                                but does not have outgoing transition for this status.
+                                """.trimIndent())
+                    }
+                }
+                validateFallbackStatus(vx.rejectionStatus, "rejected")
+                validateFallbackStatus(vx.circuitBreakerStatus, "short-circuited")
+                validateFallbackStatus(vx.timeoutStatus, "timed out")
+
+                val routeTypes = vx.transitions.asSequence()
+                        .flatMap { it.mergeStatuses.asSequence() }
+                        .map { enumType(it) }
+                        .distinct()
+                        .toList()
+
+                PlanVertex(
+                        index = index,
+                        vertex = vx,
+                        transitions = vx.transitions.toList(),
+                        outgoingFlows = flows,
+                        incomingHandlingFlowCount = handlingFlowCounts[index],
+                        incomingMergingFlowCount = mergingFlowCounts[index],
+                        routeTypes = routeTypes.toTypedArray(),
+                        routeTables = routeTypes.map { type ->
+                            type.enumConstants.map { status -> route(vx, flows, status as Enum<*>) }.toTypedArray()
+                        }.toTypedArray(),
+                        unmatchedRoute = route(vx, flows, null),
+                        payloadType = payloadType,
+                        parentPath = null,
+                        bulkhead = bulkhead,
+                        circuitBreaker = circuitBreaker,
+                        hedging = vx.hedgingPolicy?.let { VertexHedging(it) },
+                        singleFlight = vx.singleFlightKey?.let { VertexSingleFlight(it) },
+                        resultCache = resultCache,
+                        batcher = batcher)
+            }
+
+            return ExecutionPlan(payloadType, vertices.toTypedArray(), startPoints.toTypedArray())
+        }
+
+        /**
+         * Enum constant with body is an instance of anonymous subclass of the enum type
+         */
+        private fun enumType(status: Enum<*>): Class<*> {
+            val type: Class<*> = status.javaClass
+            return if (type.isEnum) type else type.superclass
+        }
+
+        /**
+         * Resolves onAny, onElse and status transitions for given merge status
+         */
+        private fun route(vx: RuntimeVertex, flows: Array<PlanTransition>, mergeStatus: Enum<*>?): Route {
+            val noMatchesByStatus = vx.transitions.all { mergeStatus !in it.mergeStatuses }
+
+            val transitions = vx.transitions.filter { transition ->
+                transition.isOnAny ||
+                        mergeStatus in transition.mergeStatuses ||
+                        (transition.isOnElse && noMatchesByStatus)
+            }
+
+            return Route(
+                    transitions = transitions,
+                    isTerminal = transitions.any { it.isComplete },
+                    activeFlows = BooleanArray(flows.size) { index ->
+                        transitions.any { it === flows[index].transition }
+                    })
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package ru.fix.completable.reactor.runtime.execution
+
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Approximate access frequency of keys, used by [VertexResultCache] to decide whether new entry is admitted.
+ *
+ * Count-min sketch with four 4-bit counters per key packed into longs.
+ * Counters are incremented by compare and set without locks.
+ * When amount of increments reaches sample size all counters are halved,
+ * so frequency reflects recent popularity of the key.
+ */
+internal class FrequencySketch(maxEntries: Int) {
+
+    companion object {
+        private val SEEDS = longArrayOf(
+                0x97cb3127L, 0x2c5a1e8fL, 0x8f4f6f07L, 0x5e4b3a1dL)
+
+        private const val RESET_MASK = 0x7777777777777777L
+        private const val MAX_COUNTER = 15L
+    }
+
+    private val table = AtomicLongArray(tableSize(maxEntries))
+    private val tableMask = table.length() - 1
+    private val sampleSize = 10 * Math.max(maxEntries, 1)
+    private val additions = AtomicInteger()
+
+    private fun tableSize(maxEntries: Int): Int {
+        var size = 8
+        while (size < maxEntries && size < (1 shl 30)) {
+            size = size shl 1
+        }
+        return size
+    }
+
+    fun frequency(key: Any): Int {
+        val hash = spread(key.hashCode())
+        var frequency = MAX_COUNTER
+        for (row in SEEDS.indices) {
+            val shift = counterShift(hash, row)
+            val count = (table.get(indexOf(hash, row)) ushr shift) and MAX_COUNTER
+            frequency = Math.min(frequency, count)
+        }
+        return frequency.toInt()
+    }
+
+    fun increment(key: Any) {
+        val hash = spread(key.hashCode())
+        var isAdded = false
+        for (row in SEEDS.indices) {
+            isAdded = incrementAt(indexOf(hash, row), counterShift(hash, row)) or isAdded
+        }
+        if (isAdded && additions.incrementAndGet() == sampleSize) {
+            reset()
+        }
+    }
+
+    private fun incrementAt(index: Int, shift: Int): Boolean {
+        val mask = MAX_COUNTER shl shift
+        while (true) {
+            val value = table.get(index)
+            if (value and mask == mask) {
+                return false
+            }
+            if (table.compareAndSet(index, value, value + (1L shl shift))) {
+                return true
+            }
+        }
+    }
+
+    /**
+     * Halves all counters, invoked by the single thread that reached sample size
+     */
+    private fun reset() {
+        for (index in 0 until table.length()) {
+            table.updateAndGet(index) { value -> (value ushr 1) and RESET_MASK }
+        }
+        additions.addAndGet(-sampleSize / 2)
+    }
+
+    private fun indexOf(hash: Int, row: Int): Int {
+        var h = (hash.toLong() + SEEDS[row]) * SEEDS[row]
+        h += h ushr 32
+        return h.toInt() and tableMask
+    }
+
+    /**
+     * Each row uses its own 4-bit counter within selected long
+     */
+    private fun counterShift(hash: Int, row: Int): Int = ((hash ushr (row shl 3)) and 0xF) shl 2
+
+    private fun spread(hashCode: Int): Int {
+        var h = hashCode * -0x61c88647
+        h = h xor (h ushr 16)
+        return h
+    }
+}
@@ -1,162 +1,360 @@
 package ru.fix.completable.reactor.runtime.execution
 
 import mu.KotlinLogging
-import ru.fix.completable.reactor.graph.runtime.RuntimeVertex
-import ru.fix.completable.reactor.runtime.ProfilerIdentity
-import ru.fix.completable.reactor.runtime.execution.ExecutionBuilder.Companion.INVALID_TRANSITION_PAYLOAD_CONTEXT
 import ru.fix.completable.reactor.runtime.execution.ExecutionBuilder.HandlePayloadContext
-import java.util.*
+import ru.fix.completable.reactor.runtime.tracing.Tracer
 import java.util.concurrent.CompletableFuture
-import java.util.stream.Collectors
+import java.util.concurrent.Executor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
 
 private val log = KotlinLogging.logger {}
 
 class HandleByExecutionBuilder<PayloadType>(
-        val processingVertices: IdentityHashMap<RuntimeVertex, ProcessingVertex>,
         val executionResultFuture: CompletableFuture<PayloadType>,
-        val builder: ExecutionBuilder) {
+        val builder: ExecutionBuilder,
+        val mergeBy: MergeByExecutionBuilder<PayloadType>,
+        val executor: Executor,
+        /**
+         * Runs stages of synchronous vertices, see [ExecutionPlan.PlanVertex.isSynchronous]
+         */
+        val continuationExecutor: Executor,
+        /**
+         * Sampling decision of the execution, unsampled executions do not profile vertices
+         */
+        val isProfiled: Boolean,
+        /**
+         * Tracer of the execution, null if execution payload is not traceable
+         */
+        val tracer: Tracer?,
+        val cancellation: ExecutionCancellation) {
+
+    private fun executorFor(pvx: ProcessingVertex) =
+            if (pvx.planVertex.isSynchronous) continuationExecutor else executor
 
     /**
-     * Join incoming handling flows to single handling invocation
-     * All incoming handling transitions should complete.
+     * Join incoming handling flows to single handling invocation.
+     * Invoked by the last incoming handleBy transition that completed its slot,
+     * see [ProcessingVertex.completeIncomingHandlingFlow].
+     * All incoming handling transitions are completed.
      * One of them should carry payload.
      * Other transitions should complete with isDead flag.
      */
-    fun joinIncomingHandleByFlowsToSingleHandlingInvocation() {
+    fun joinIncomingHandleByFlows(pvx: ProcessingVertex) {
         //TODO FIX!! allow detached processor to read data from payload and only after that execute merge point
         // down the flow, so merge point and detached processor would not run concurrently
 
+        if (cancellation.isHandlingSkipped(pvx)) {
+            /**
+             * Vertex of cancelled execution or vertex with merger of completed execution is not scheduled
+             */
+            onHandlingCompleted(pvx, HandlePayloadContext.TERMINAL)
+            return
+        }
+
+        try {
+            executorFor(pvx).execute {
+                try {
+                    joinIncomingHandleByFlowsToSingleHandlingInvocation(pvx)
+                } catch (exc: Throwable) {
+                    log.error(exc) { "Join incoming handleBy flows failed for vertex ${pvx.vertex.name}." }
+                }
+            }
+        } catch (exc: Throwable) {
+            log.error(exc) { "Failed to schedule join of incoming handleBy flows for vertex ${pvx.vertex.name}." }
+            executionResultFuture.completeExceptionally(exc)
+            onHandlingCompleted(pvx, HandlePayloadContext.TERMINAL)
+        }
+    }
+
+    private fun joinIncomingHandleByFlowsToSingleHandlingInvocation(pvx: ProcessingVertex) {
+
+        var activeIncomingFlow: ExecutionBuilder.TransitionPayloadContext? = null
+        var isTerminal = false
+
+        val incomingFlows = pvx.incomingHandlingFlows
+        for (slot in 0 until incomingFlows.length()) {
+            val context = incomingFlows[slot]
+            if (context.isTerminal) {
+                isTerminal = true
+            } else if (!context.isDeadTransition && activeIncomingFlow == null) {
+                activeIncomingFlow = context
+            }
+        }
+
+        when {
+            isTerminal -> {
+                /**
+                 * Terminal state reached.
+                 * Mark as terminal all outgoing flows from vertex
+                 */
+                onHandlingCompleted(pvx, HandlePayloadContext.TERMINAL)
+            }
+
+            activeIncomingFlow == null -> {
+                /**
+                 * There is no active incoming flow for given vertex.
+                 * Vertex will not be invoked.
+                 * All outgoing flows from vertex will be marked as dead.
+                 */
+                onHandlingCompleted(pvx, HandlePayloadContext.DEAD)
+            }
+
+            else -> {
+                /**
+                 * If there is a single active incoming flow - use transition payload context from this flow.
+                 * If there are many active incoming flows - select any of them:
+                 * we are using single payload instance for whole graph execution, no matter from which of
+                 * active transition we will select it.
+                 */
+                startHandling(pvx, activeIncomingFlow)
+            }
+        }
+    }
+
+    /**
+     * Starts handler invocation within limits of vertex circuit breaker, bulkhead
+     * and on vertex executor if they are configured.
+     * Cached handler result is merged without handler invocation.
+     * Vertex timeout is counted from this moment and covers time spent in bulkhead queue.
+     */
+    private fun startHandling(pvx: ProcessingVertex, payloadContext: ExecutionBuilder.TransitionPayloadContext) {
+        if (cancellation.isHandlingSkipped(pvx)) {
+            onHandlingCompleted(pvx, HandlePayloadContext.TERMINAL)
+            return
+        }
+
+        val cachedResult = pvx.planVertex.resultCache?.lookup(payloadContext.payload)
+        if (cachedResult != null) {
+            onHandlingCompleted(pvx, HandlePayloadContext(
+                    payload = payloadContext.payload,
+                    handlingResult = cachedResult.value))
+            return
+        }
+
+        val circuitBreaker = pvx.planVertex.circuitBreaker
+        val permit = circuitBreaker?.tryAcquire()
+        if (circuitBreaker != null && permit == null) {
+            log.debug {
+                "Handler invocation of vertex ${pvx.vertex.name} is short-circuited by open circuit breaker" +
+                        " with status ${circuitBreaker.openStatus}."
+            }
+            onHandlingCompleted(pvx, HandlePayloadContext(
+                    payload = payloadContext.payload,
+                    fallbackStatus = circuitBreaker.openStatus))
+            return
+        }
+
+        val startNanos = System.nanoTime()
+        val bulkhead = pvx.planVertex.bulkhead
 
-        for ((vx, pvx) in processingVertices) {
+        /**
+         * Set by whichever comes first: queued invocation or its timeout
+         */
+        val isDequeued = AtomicBoolean()
 
-            if (pvx.incomingHandlingFlows.size <= 0) {
-                throw IllegalArgumentException("""
-                        Invalid graph configuration.
-                        Vertex ${vx.name} does not have incoming handling flows.
-                        Probably missing `.handleBy(${vx.name})` transition that targets this vertex in configuration.
-                        """.trimIndent())
+        when {
+            bulkhead == null || bulkhead.tryAcquire() -> {
+                val handlerExecutor = pvx.vertex.handlerExecutor
+                if (handlerExecutor == null) {
+                    handle(pvx, payloadContext, permit, startNanos, executionResultFuture)
+                } else {
+                    dispatchHandling(pvx, payloadContext, permit, startNanos, handlerExecutor)
+                }
             }
 
             /**
-             * First we should wait for all incoming handleBy transition to complete
+             * Queued invocation is started by the thread that released permit,
+             * so it is dispatched back to the executor of the vertex.
+             * Invocation that timed out in the queue passes the permit to the next one.
              */
-            CompletableFuture.allOf(
-                    *pvx.incomingHandlingFlows.asSequence().map { it.feature }.toList().toTypedArray()
-
-            ).thenRunAsync {
-
-                val incomingFlows: List<ExecutionBuilder.TransitionPayloadContext> = pvx
-                        .incomingHandlingFlows
-                        .stream()
-                        .map { future ->
-                            try {
-                                /**
-                                 * Future should be already complete.
-                                 */
-                                if (!future.feature.isDone()) {
-                                    val resultException = Exception("""
-                                        Illegal graph execution state.
-                                        Future is not completed. Vertex: ${vx.name}
-                                        """.trimIndent())
-
-                                    log.error(resultException) {}
-                                    executionResultFuture.completeExceptionally(resultException)
-
-                                    INVALID_TRANSITION_PAYLOAD_CONTEXT
-                                } else {
-                                    future.feature.get()
-                                }
-                            } catch (exc: Exception) {
-                                val resultException = Exception("""
-                                        Failed to get incoming processor flow future result
-                                        for vertex: ${vx.name}
-                                        """.trimIndent())
-                                log.error(resultException) {}
-                                executionResultFuture.completeExceptionally(resultException)
-
-                                INVALID_TRANSITION_PAYLOAD_CONTEXT
-                            }
-                        }
-                        .collect(Collectors.toList())
-
-                if (incomingFlows.stream().anyMatch { context -> context === INVALID_TRANSITION_PAYLOAD_CONTEXT }) {
-                    /**
-                     * Invalid graph execution state
-                     * Mark as terminal all outgoing flows from vertex
-                     */
-                    pvx.handlingFuture.complete(ExecutionBuilder.HandlePayloadContext(isTerminal = true))
-
-                } else if (incomingFlows.stream().anyMatch(ExecutionBuilder.TransitionPayloadContext::isTerminal)) {
-                    /**
-                     * Terminal state reached.
-                     * Mark as terminal all outgoing flows from vertex
-                     */
-                    pvx.handlingFuture.complete(ExecutionBuilder.HandlePayloadContext(isTerminal = true))
-
+            bulkhead.enqueue(Runnable {
+                if (isDequeued.compareAndSet(false, true)) {
+                    dispatchHandling(pvx, payloadContext, permit, startNanos, pvx.vertex.handlerExecutor ?: executor)
                 } else {
-                    val activeIncomingFlows: List<ExecutionBuilder.TransitionPayloadContext> = incomingFlows
-                            .stream()
-                            .filter { context -> !context.isDeadTransition }
-                            .collect(Collectors.toList())
-
-                    if (activeIncomingFlows.isEmpty()) {
-                        /**
-                         * There is no active incoming flow for given vertex.
-                         * Vertex will not be invoked.
-                         * All outgoing flows from vertex will be marked as dead.
-                         */
-                        pvx.handlingFuture.complete(ExecutionBuilder.HandlePayloadContext(isDeadTransition = true))
-
-                    } else {
-
-                        /**
-                         * If there is a single active incoming flow - use transition payload context from this flow.
-                         * If there are many active incoming flows - select any of them:
-                         * we are using single payload instance for whole graph execution, no matter from which of
-                         * active transition we will select it.
-                         */
-                        handle(pvx, activeIncomingFlows[0], executionResultFuture)
-                    }
+                    bulkhead.release()
+                }
+            }) -> {
+                if (pvx.vertex.timeoutMs > 0 && !isDequeued.get()) {
+                    scheduleQueueTimeout(pvx, payloadContext, permit, startNanos, isDequeued)
+                }
+            }
+
+            else -> {
+                log.debug {
+                    "Handler invocation of vertex ${pvx.vertex.name} is rejected by bulkhead" +
+                            " with status ${bulkhead.rejectionStatus}."
                 }
+                releasePermit(pvx, permit)
+                onHandlingCompleted(pvx, HandlePayloadContext(
+                        payload = payloadContext.payload,
+                        fallbackStatus = bulkhead.rejectionStatus))
             }
-                    .exceptionally { throwable ->
-                        log.error("Join incoming handleBy flows failed for vertex ${vx.name}.", throwable)
-                        null
+        }
+    }
+
+    private fun dispatchHandling(
+            pvx: ProcessingVertex,
+            payloadContext: ExecutionBuilder.TransitionPayloadContext,
+            permit: VertexCircuitBreaker.Permit?,
+            startNanos: Long,
+            handlerExecutor: Executor) {
+        try {
+            handlerExecutor.execute {
+                try {
+                    handle(pvx, payloadContext, permit, startNanos, executionResultFuture)
+                } catch (exc: Throwable) {
+                    log.error(exc) { "Handling failed for vertex ${pvx.vertex.name}." }
+                }
+            }
+        } catch (exc: Throwable) {
+            log.error(exc) { "Failed to schedule handling for vertex ${pvx.vertex.name}." }
+            pvx.planVertex.bulkhead?.release()
+            releasePermit(pvx, permit)
+            executionResultFuture.completeExceptionally(exc)
+            onHandlingCompleted(pvx, HandlePayloadContext.TERMINAL)
+        }
+    }
+
+    /**
+     * Completes vertex as timed out if invocation is not dequeued from bulkhead queue within vertex timeout
+     */
+    private fun scheduleQueueTimeout(
+            pvx: ProcessingVertex,
+            payloadContext: ExecutionBuilder.TransitionPayloadContext,
+            permit: VertexCircuitBreaker.Permit?,
+            startNanos: Long,
+            isDequeued: AtomicBoolean) {
+        try {
+            builder.timer.schedule({
+                if (isDequeued.compareAndSet(false, true)) {
+                    builder.profiler.profiledCall(pvx.planVertex.timeoutIdentity).call()
+                    releasePermit(pvx, permit)
+                    try {
+                        executorFor(pvx).execute { onQueueTimeout(pvx, payloadContext) }
+                    } catch (exc: Throwable) {
+                        log.error(exc) { "Failed to schedule queue timeout of vertex ${pvx.vertex.name}." }
+                        executionResultFuture.completeExceptionally(exc)
+                        onHandlingCompleted(pvx, HandlePayloadContext.TERMINAL)
                     }
+                }
+            }, remainingTimeoutNanos(pvx, startNanos), TimeUnit.NANOSECONDS)
 
-        }//end of handleBy flows
+        } catch (exc: IllegalStateException) {
+            /**
+             * Timer is stopped by closed reactor, queued invocation is limited by execution timeout only
+             */
+            log.debug(exc) { "Queue timeout of vertex ${pvx.vertex.name} is not scheduled." }
+        }
+    }
+
+    private fun onQueueTimeout(pvx: ProcessingVertex, payloadContext: ExecutionBuilder.TransitionPayloadContext) {
+        val vx = pvx.vertex
+
+        if (cancellation.isHandlingSkipped(pvx)) {
+            onHandlingCompleted(pvx, HandlePayloadContext.TERMINAL)
+
+        } else if (vx.timeoutStatus != null) {
+            log.debug { "Handling by vertex ${vx.name} timed out in bulkhead queue, vertex completes with ${vx.timeoutStatus}." }
+            onHandlingCompleted(pvx, HandlePayloadContext(
+                    payload = payloadContext.payload,
+                    fallbackStatus = vx.timeoutStatus))
+
+        } else {
+            val exc = RuntimeException(
+                    """
+                    Failed handling by vertex ${vx.name} for payload ${builder.debugSerializer.dumpObject(payloadContext.payload)}
+                    """.trimIndent(),
+                    VertexTimeoutException("Handling by vertex ${vx.name} waited in bulkhead queue more than ${vx.timeoutMs} ms."))
+
+            log.error(exc) {}
+            executionResultFuture.completeExceptionally(exc)
+            onHandlingCompleted(pvx, HandlePayloadContext.TERMINAL)
+        }
+    }
+
+    /**
+     * Vertex timeout left for invocation started at [startNanos], zero if it is already expired
+     */
+    private fun remainingTimeoutNanos(pvx: ProcessingVertex, startNanos: Long): Long =
+            Math.max(0, TimeUnit.MILLISECONDS.toNanos(pvx.vertex.timeoutMs) - (System.nanoTime() - startNanos))
+
+    /**
+     * Returns circuit breaker permit of invocation that does not record its outcome
+     */
+    private fun releasePermit(pvx: ProcessingVertex, permit: VertexCircuitBreaker.Permit?) {
+        if (permit != null) {
+            pvx.planVertex.circuitBreaker?.release(permit)
+        }
+    }
+
+    /**
+     * Handling result is an input of merging invocation of the vertex
+     */
+    private fun onHandlingCompleted(pvx: ProcessingVertex, context: HandlePayloadContext) {
+        mergeBy.onHandlingCompleted(pvx, context)
     }
 
 
     private fun <PayloadType> handle(
             pvx: ProcessingVertex,
             payloadContext: ExecutionBuilder.TransitionPayloadContext,
+            permit: VertexCircuitBreaker.Permit?,
+            startNanos: Long,
             executionResultFuture: CompletableFuture<PayloadType>) {
 
         val vx = pvx.vertex
         val payload = payloadContext.payload
+        val bulkhead = pvx.planVertex.bulkhead
+
+        if (cancellation.isHandlingSkipped(pvx)) {
+            /**
+             * Execution was cancelled or its result was completed
+             * while invocation waited for bulkhead or vertex executor
+             */
+            bulkhead?.release()
+            releasePermit(pvx, permit)
+            onHandlingCompleted(pvx, HandlePayloadContext.TERMINAL)
+            return
+        }
 
-        val handleCall = builder.profiler
-                .profiledCall(ProfilerIdentity.handleIdentity(payload?.javaClass?.name, vx.name))
-                .start()
+        if (bulkhead != null) {
+            /**
+             * Bulkhead permit is held until handler work completes,
+             * including handler future that is not awaited anymore after vertex timeout
+             */
+            pvx.invocationsCompleted.thenRun { bulkhead.release() }
+        }
 
-        val isTraceablePayload = builder.tracer.isTraceable(payload)
-        val handleTracingMarker =
-                if (isTraceablePayload) {
-                    builder.tracer.beforeHandle(vx.name, payload)
+        val handleCall =
+                if (isProfiled) {
+                    builder.profiler.profiledCall(pvx.planVertex.handleIdentity).start()
                 } else {
                     null
                 }
-        val handleTracingIdentity =
-                if (isTraceablePayload) {
-                    vx.name
+
+        val handleTracingMarker = tracer?.beforeHandle(vx.name, payload)
+        val invocation: CompletableFuture<Any?>
+
+        val hedging = pvx.planVertex.hedging
+        val invokeHandling: () -> CompletableFuture<Any?> =
+                if (hedging != null) {
+                    { HedgedHandling(pvx, payload, hedging, builder, vx.handlerExecutor ?: executor).start() }
+                } else {
+                    { pvx.invokeHandlingMethod(payload) }
+                }
+
+        val retryPolicy = vx.retryPolicy
+        val retryingHandling =
+                if (retryPolicy != null) {
+                    RetryingHandling(
+                            pvx, payload, retryPolicy, builder, vx.handlerExecutor ?: executor, tracer, invokeHandling)
                 } else {
                     null
                 }
-        val handlingResult: CompletableFuture<Any?>
 
         try {
-            handlingResult = pvx.invokeHandlingMethod(payload)
+            invocation = retryingHandling?.start(handleTracingMarker) ?: invokeHandling()
 
         } catch (handlingException: Exception) {
             val exc = RuntimeException(
@@ -167,23 +365,61 @@ class HandleByExecutionBuilder<PayloadType>(
                     handlingException)
 
             log.error(exc) {}
+            pvx.finishHandling()
+            if (permit != null) {
+                pvx.planVertex.circuitBreaker?.record(permit, handlingException)
+            }
             executionResultFuture.completeExceptionally(exc)
-            pvx.handlingFuture.complete(ExecutionBuilder.HandlePayloadContext(isTerminal = true))
-            handleCall.stop()
+            onHandlingCompleted(pvx, HandlePayloadContext.TERMINAL)
+            handleCall?.stop()
             return
         }
 
-        handlingResult.handleAsync { result, resultThrowable ->
+        val handlingResult =
+                if (vx.timeoutMs > 0 && !invocation.isDone) {
+                    withTimeout(pvx, invocation, startNanos)
+                } else {
+                    invocation
+                }
+
+        handlingResult.handleAsync({ result, resultThrowable ->
 
             var throwable = resultThrowable
 
-            handleCall.stop()
+            handleCall?.stop()
 
-            if (isTraceablePayload) {
-                builder.tracer.afterHandle(handleTracingMarker, handleTracingIdentity, result, throwable)
+            /**
+             * Next queued invocation is started before merging of this one
+             * if underlying work of this one is completed
+             */
+            pvx.finishHandling()
+
+            if (pvx.isHandlingCancelled) {
+                releasePermit(pvx, permit)
+            } else if (permit != null) {
+                pvx.planVertex.circuitBreaker?.record(permit, throwable)
             }
 
-            if (throwable != null) {
+            tracer?.afterHandle(
+                    if (retryingHandling != null) retryingHandling.tracingMarker else handleTracingMarker,
+                    vx.name,
+                    result,
+                    throwable)
+
+            if (throwable != null && pvx.isHandlingCancelled) {
+                /**
+                 * Handler future was cancelled together with execution, execution result is already completed
+                 */
+                log.debug { "Handling by vertex ${vx.name} is cancelled." }
+                onHandlingCompleted(pvx, HandlePayloadContext.TERMINAL)
+
+            } else if (throwable is VertexTimeoutException && vx.timeoutStatus != null) {
+                log.debug { "Handling by vertex ${vx.name} timed out, vertex completes with ${vx.timeoutStatus}." }
+                onHandlingCompleted(pvx, HandlePayloadContext(
+                        payload = payload,
+                        fallbackStatus = vx.timeoutStatus))
+
+            } else if (throwable != null) {
                 val exc = RuntimeException(
                         """
                         Failed handling by vertex ${vx.name} for payload ${builder.debugSerializer.dumpObject(payload)}
@@ -193,17 +429,59 @@ class HandleByExecutionBuilder<PayloadType>(
                 log.error(exc) {}
                 executionResultFuture.completeExceptionally(exc)
 
-                pvx.handlingFuture.complete(HandlePayloadContext(isTerminal = true))
+                onHandlingCompleted(pvx, HandlePayloadContext.TERMINAL)
             } else {
-                pvx.handlingFuture.complete(HandlePayloadContext(payload = payload, handlingResult = result))
+                pvx.planVertex.resultCache?.store(payload, result)
+                onHandlingCompleted(pvx, HandlePayloadContext(payload = payload, handlingResult = result))
             }
 
             null
 
-        }.exceptionally { exc ->
+        }, executorFor(pvx)).exceptionally { exc ->
             log.error(exc) { "Failed to execute afterHandle block for vertex ${pvx.vertex.name}" }
             null
         }
     }
 
-}
\ No newline at end of file
+    /**
+     * Returns future that completes with result of the invocation
+     * or with [VertexTimeoutException] if invocation is not completed within vertex timeout
+     * counted from [startNanos].
+     * Timed out invocation is cancelled, future returned by async handler is not affected,
+     * see [ProcessingVertex.invokeHandlingMethod].
+     */
+    private fun withTimeout(
+            pvx: ProcessingVertex,
+            invocation: CompletableFuture<Any?>,
+            startNanos: Long): CompletableFuture<Any?> {
+        val timeoutMs = pvx.vertex.timeoutMs
+        val result = CompletableFuture<Any?>()
+
+        val timeout = try {
+            builder.timer.schedule({
+                val exc = VertexTimeoutException("Handling by vertex ${pvx.vertex.name} took more than $timeoutMs ms.")
+                if (result.completeExceptionally(exc)) {
+                    builder.profiler.profiledCall(pvx.planVertex.timeoutIdentity).call()
+                    invocation.cancel(true)
+                }
+            }, remainingTimeoutNanos(pvx, startNanos), TimeUnit.NANOSECONDS)
+
+        } catch (exc: IllegalStateException) {
+            /**
+             * Timer is stopped by closed reactor, handling is limited by execution timeout only
+             */
+            log.debug(exc) { "Timeout of vertex ${pvx.vertex.name} is not scheduled." }
+            return invocation
+        }
+
+        invocation.whenComplete { value, throwable ->
+            timeout.cancel()
+            if (throwable == null) {
+                result.complete(value)
+            } else {
+                result.completeExceptionally(throwable)
+            }
+        }
+        return result
+    }
+}
@@ -0,0 +1,147 @@
+package ru.fix.completable.reactor.runtime.execution
+
+import mu.KotlinLogging
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+private val log = KotlinLogging.logger {}
+
+/**
+ * Handling invocation of a vertex with hedging policy.
+ *
+ * Primary invocation is started by current thread.
+ * If it is not completed within hedge delay and vertex hedge budget allows,
+ * hedged invocation is started by [executor].
+ * [result] completes with the first successful invocation and the other invocation is cancelled.
+ * If both invocations fail, [result] completes with the first failure.
+ * When [result] is completed exceptionally from outside, e.g. by vertex timeout, both invocations are cancelled.
+ */
+class HedgedHandling(
+        private val pvx: ProcessingVertex,
+        private val payload: Any?,
+        private val hedging: VertexHedging,
+        private val builder: ExecutionBuilder,
+        /**
+         * Invokes hedged invocation
+         */
+        private val executor: Executor) {
+
+    val result = CompletableFuture<Any?>()
+
+    /**
+     * Count of started invocations that are not completed yet
+     */
+    private val pendingInvocations = AtomicInteger(1)
+
+    @Volatile
+    private var primary: CompletableFuture<Any?>? = null
+
+    @Volatile
+    private var hedge: CompletableFuture<Any?>? = null
+
+    @Volatile
+    private var firstFailure: Throwable? = null
+
+    fun start(): CompletableFuture<Any?> {
+        hedging.onInvocation()
+        result.whenComplete { _, _ ->
+            /**
+             * Loser is cancelled, cancellation of completed winner has no effect
+             */
+            primary?.cancel(true)
+            hedge?.cancel(true)
+        }
+
+        val invocation = invoke(isHedge = false)
+        primary = invocation
+        if (result.isDone) {
+            invocation.cancel(true)
+        } else if (!invocation.isDone) {
+            scheduleHedge()
+        }
+        return result
+    }
+
+    private fun invoke(isHedge: Boolean): CompletableFuture<Any?> {
+        val startNanos = System.nanoTime()
+        val invocation =
+                if (isHedge) {
+                    pvx.invokeHedgedHandlingMethod(payload)
+                } else {
+                    pvx.invokeHandlingMethod(payload)
+                }
+
+        invocation.whenComplete { value, throwable ->
+            /**
+             * Hedge delay is estimated by primary invocations only,
+             * winning hedges are fast by selection and would bias the percentile down.
+             * Primary cancelled by winning hedge is recorded with latency censored at cancellation,
+             * otherwise slow primaries would never be recorded.
+             */
+            if (!isHedge && (throwable == null || result.isDone && !result.isCompletedExceptionally)) {
+                hedging.recordLatency(System.nanoTime() - startNanos)
+            }
+            if (throwable == null) {
+                if (result.complete(value) && isHedge) {
+                    builder.profiler.profiledCall(pvx.planVertex.hedgeWinIdentity).call()
+                }
+            } else {
+                if (firstFailure == null) {
+                    firstFailure = throwable
+                }
+                if (pvx.isHandlingCancelled || pendingInvocations.decrementAndGet() == 0) {
+                    result.completeExceptionally(firstFailure ?: throwable)
+                }
+            }
+        }
+        return invocation
+    }
+
+    private fun scheduleHedge() {
+        val delayNanos = hedging.hedgeDelayNanos
+
+        val hedgeTask = try {
+            builder.timer.schedule({
+                try {
+                    executor.execute { startHedge() }
+                } catch (exc: Throwable) {
+                    log.debug(exc) { "Hedged invocation of vertex ${pvx.vertex.name} is not started." }
+                }
+            }, delayNanos, TimeUnit.NANOSECONDS)
+
+        } catch (exc: IllegalStateException) {
+            /**
+             * Timer is stopped by closed reactor, primary invocation is the only one
+             */
+            log.debug(exc) { "Hedged invocation of vertex ${pvx.vertex.name} is not scheduled." }
+            return
+        }
+
+        result.whenComplete { _, _ -> hedgeTask.cancel() }
+    }
+
+    private fun startHedge() {
+        if (result.isDone || pvx.isHandlingCancelled || primary?.isDone != false) {
+            return
+        }
+        if (!hedging.tryAcquireHedge()) {
+            log.debug { "Hedged invocation of vertex ${pvx.vertex.name} is skipped, hedge budget is exhausted." }
+            return
+        }
+        /**
+         * Primary invocation could fail meanwhile and complete the result,
+         * in this case hedged invocation is cancelled right after start
+         */
+        pendingInvocations.incrementAndGet()
+        builder.profiler.profiledCall(pvx.planVertex.hedgeIdentity).call()
+
+        log.debug { "Handling by vertex ${pvx.vertex.name} is slow, hedged invocation is started." }
+        val invocation = invoke(isHedge = true)
+        hedge = invocation
+        if (result.isDone) {
+            invocation.cancel(true)
+        }
+    }
+}
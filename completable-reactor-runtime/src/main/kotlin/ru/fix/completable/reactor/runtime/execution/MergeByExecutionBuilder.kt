@@ -1,266 +1,179 @@
 package ru.fix.completable.reactor.runtime.execution
 
 import mu.KotlinLogging
-import ru.fix.completable.reactor.graph.runtime.RuntimeTransition
-import ru.fix.completable.reactor.graph.runtime.RuntimeVertex
-import ru.fix.completable.reactor.runtime.ProfilerIdentity
-import ru.fix.completable.reactor.runtime.execution.ExecutionBuilder.Companion.INVALID_HANDLE_PAYLOAD_CONTEXT
-import ru.fix.completable.reactor.runtime.execution.ExecutionBuilder.Companion.INVALID_MERGE_PAYLOAD_CONTEXT
 import ru.fix.completable.reactor.runtime.execution.ExecutionBuilder.HandlePayloadContext
 import ru.fix.completable.reactor.runtime.execution.ExecutionBuilder.MergePayloadContext
-import java.util.*
+import ru.fix.completable.reactor.runtime.tracing.Tracer
 import java.util.concurrent.CompletableFuture
-import java.util.stream.Collectors
+import java.util.concurrent.Executor
 
 private val log = KotlinLogging.logger {}
 
 class MergeByExecutionBuilder<PayloadType>(
-        val processingVertices: IdentityHashMap<RuntimeVertex, ProcessingVertex>,
         val executionResultFuture: CompletableFuture<PayloadType>,
-        val builder: ExecutionBuilder) {
+        val builder: ExecutionBuilder,
+        val executor: Executor,
+        /**
+         * Runs stages of synchronous vertices, see [ExecutionPlan.PlanVertex.isSynchronous]
+         */
+        val continuationExecutor: Executor,
+        /**
+         * Sampling decision of the execution, unsampled executions do not profile vertices
+         */
+        val isProfiled: Boolean,
+        /**
+         * Tracer of the execution, null if execution payload is not traceable
+         */
+        val tracer: Tracer?,
+        val cancellation: ExecutionCancellation) {
+
+    private fun executorFor(pvx: ProcessingVertex) =
+            if (pvx.planVertex.isSynchronous) continuationExecutor else executor
 
     /**
-     * Join incoming merge flows and Handler/Subgraph handing future with single merging invocation
+     * Handling result is one of merging inputs of Handler, Subgraph or Router.
+     * In case of router handling result does not carry result, only the fact that all incoming handleBy
+     * transitions is completed successfully.
      */
-    fun joinIncomingMergeByFlowsToSingleMergingInvocation() {
+    fun onHandlingCompleted(pvx: ProcessingVertex, context: HandlePayloadContext) {
+        if (pvx.vertex.merger == null) {
+            /**
+             * Handler/subgraph without merger simply link handling and merging state.
+             * Execution plan guarantees that they do not have outgoing transitions.
+             * Merging state should be ignored in case of vertex without merger.
+             */
+            pvx.completeHandling(context)
+            pvx.completeMerging(null)
+            return
+        }
 
-        for ((vx, pvx) in processingVertices) {
+        if (pvx.completeHandling(context)) {
+            joinIncomingMergeByFlows(pvx)
+        }
+    }
 
-            if ((vx.handler != null || vx.subgraphPayloadBuilder != null) && vx.merger == null) {
-                /**
-                 * Handler/subgraph without merger simply link handling and merging feature.
-                 * They should not have outgoing transitions
-                 */
-                if (pvx.outgoingTransitions.isNotEmpty()) {
-                    throw IllegalStateException("""
-                        Invalid graph configuration:
-                        Vertex ${vx.name} does not have merger, but has outgoing transitions
-                        """.trimIndent())
-                }
+    /**
+     * Join incoming merge flows and Handler/Subgraph handing result with single merging invocation.
+     * Invoked by the last merging input that completed, see [ProcessingVertex.completeIncomingMergingFlow]
+     * and [ProcessingVertex.completeHandling].
+     */
+    fun joinIncomingMergeByFlows(pvx: ProcessingVertex) {
+        if (cancellation.isCancelled) {
+            /**
+             * Vertex of cancelled execution is not scheduled
+             */
+            pvx.completeMerging(MergePayloadContext.TERMINAL)
+            return
+        }
 
-                pvx.handlingFuture.handleAsync { context, thr ->
-                    if (thr != null) {
-                        log.error(thr) { "Hanlding feature for vertex ${pvx.vertex.name} without merger failed." }
-                        pvx.mergingFuture.complete(MergePayloadContext(isTerminal = true))
-                    } else {
-                        /**
-                         * This feature should be ignored in case of vertex without merger
-                         */
-                        pvx.mergingFuture.complete(null)
-                    }
+        try {
+            executorFor(pvx).execute {
+                try {
+                    joinIncomingMergeByFlowsToSingleMergingInvocation(pvx)
+                } catch (exc: Throwable) {
+                    log.error(exc) { "Joining incoming merge flows failed for veretex ${pvx.vertex.name}." }
                 }
-                continue
             }
+        } catch (exc: Throwable) {
+            log.error(exc) { "Failed to schedule join of incoming merge flows for vertex ${pvx.vertex.name}." }
+            executionResultFuture.completeExceptionally(exc)
+            pvx.completeMerging(MergePayloadContext.TERMINAL)
+        }
+    }
 
+    private fun joinIncomingMergeByFlowsToSingleMergingInvocation(pvx: ProcessingVertex) {
+
+        /**
+         * Handling result of Handler, Subgraph or Router.
+         * Could carry NULL result in case of router.
+         * Handling state is already completed since it is one of merging inputs.
+         */
+        val handlePayloadContext = pvx.handlingFuture.getNow(null)!!
+
+        if (handlePayloadContext.isTerminal) {
             /**
-             * mergeBy transitions with single handler result transition
+             * Handling context was marked as terminal during flow by terminal transition.
+             * Merging will not be applied to payload.
+             * All outgoing flows from merge point will be marked as terminal.
              */
-            val incomingFlows = ArrayList<CompletableFuture<*>>()
-            pvx.incomingMergingFlows
-                    .asSequence()
-                    .map { it.feature }
-                    .forEach { incomingFlows.add(it) }
+            pvx.completeMerging(MergePayloadContext.TERMINAL)
+            return
 
+        } else if (handlePayloadContext.isDeadTransition) {
             /**
-             * Handler, Subgraph and Router wait for Handling future to complte before execute merging action.
-             * In case of router Handling future does not carry result, only the fact that all incoming handleBy
-             * transitions is completed successfully.
+             * Vertex was disabled during flow by dead transition.
+             * Merging will not be applied to payload.
+             * All outgoing flows from merge point will be marked as dead.
              */
-            incomingFlows.add(pvx.handlingFuture)
-
-            CompletableFuture.allOf(*incomingFlows.toTypedArray())
-                    .thenRunAsync {
-
-                        /**
-                         * Handling result could be INVALID_HANDLE_PAYLOAD_CONTEXT in case of exception
-                         * Could carry NULL result in case of router
-                         */
-                        var handlePayloadContext: HandlePayloadContext?
-
-
-                        /**
-                         * This is Handler, Subgraph or Router
-                         */
-                        handlePayloadContext = Optional.of(pvx.handlingFuture)
-                                .map { feature ->
-                                    try {
-                                        if (!feature.isDone) {
-                                            val resultException = RuntimeException(
-                                                    """
-                                                    Illegal graph execution state.
-                                                    Handling feature is not completed.
-                                                    Vertex: ${vx.name}
-                                                    """.trimIndent())
-                                            log.error(resultException) {}
-                                            executionResultFuture.completeExceptionally(resultException)
-
-                                            return@map INVALID_HANDLE_PAYLOAD_CONTEXT
-                                        } else {
-                                            return@map feature.get()
-                                        }
-                                    } catch (exc: Exception) {
-                                        val resultException = RuntimeException("Failed to get vertex handling feature" +
-                                                " result for vertex: ${vx.name}", exc)
-
-                                        log.error(resultException) {}
-                                        executionResultFuture.completeExceptionally(resultException)
-
-                                        return@map INVALID_HANDLE_PAYLOAD_CONTEXT;
-                                    }
-                                }
-                                .orElse(ExecutionBuilder.INVALID_HANDLE_PAYLOAD_CONTEXT)
-
-                        if (handlePayloadContext === ExecutionBuilder.INVALID_HANDLE_PAYLOAD_CONTEXT) {
-                            /**
-                             * Failed to get handler/subgraph result.
-                             * Merging will not be applied to payload.
-                             * All outgoing flows from merge point will be marked as terminal.
-                             * executionResult completed by exception
-                             */
-                            pvx.mergingFuture.complete(MergePayloadContext(isTerminal = true))
-                            return@thenRunAsync
-
-                        } else if (handlePayloadContext.isTerminal) {
-                            /**
-                             * Handling context was marked as terminal during flow by terminal transition.
-                             * Merging will not be applied to payload.
-                             * All outgoing flows from merge point will be marked as terminal.
-                             */
-                            pvx.mergingFuture.complete(MergePayloadContext(isTerminal = true))
-                            return@thenRunAsync
-
-                        } else if (handlePayloadContext.isDeadTransition) {
-                            /**
-                             * Vertex was disabled during flow by dead transition.
-                             * Merging will not be applied to payload.
-                             * All outgoing flows from merge point will be marked as dead.
-                             */
-                            pvx.mergingFuture.complete(MergePayloadContext(isDeadTransition = true))
-                            return@thenRunAsync
-                        }
-
+            pvx.completeMerging(MergePayloadContext.DEAD)
+            return
+        }
 
-                        /**
-                         * Incoming merge flows (mergeBy transitions), could be empty.
-                         */
-                        val incomingMergingFlows = pvx.incomingMergingFlows.stream()
-                                .map { feature ->
-                                    try {
-                                        if (!feature.feature.isDone) {
-
-                                            val resultException = RuntimeException(
-                                                    """
-                                                    Illegal graph execution state.
-                                                    Incoming merge feature is not complete.
-                                                    Vertex: ${vx.name}
-                                                    """.trimIndent())
-                                            log.error(resultException) {}
-                                            executionResultFuture.completeExceptionally(resultException)
-                                            return@map INVALID_MERGE_PAYLOAD_CONTEXT
-                                        } else {
-                                            return@map feature.feature.get()
-                                        }
-                                    } catch (exc: Exception) {
-                                        val resultException = RuntimeException("Failed to get incoming merge flow" +
-                                                " feature result for vertex: ${vx.name}", exc)
-
-                                        log.error(resultException) {}
-                                        executionResultFuture.completeExceptionally(resultException)
-                                        return@map INVALID_MERGE_PAYLOAD_CONTEXT
-                                    }
-                                }.collect(Collectors.toList())
-
-                        /**
-                         * Assert graph consistency
-                         */
-                        if ((pvx.vertex.type == RuntimeVertex.Type.Router
-                                        || pvx.vertex.type == RuntimeVertex.Type.Mutator)
-                                && pvx.incomingMergingFlows.isNotEmpty()) {
-                            throw IllegalStateException(
-                                    """
-                                    Incoming merging flow exist for router or mutator vertex ${pvx.vertex.name}.
-                                    Router vertex could not have incoming merging flows.
-                                    Incoming merging flows: ${pvx.incomingMergingFlows}
-                                    """.trimIndent())
-                        }
+        /**
+         * Incoming merge flows (mergeBy transitions), could be empty.
+         * Execution plan guarantees that Router and Mutator do not have incoming merge flows.
+         * In case of Handler or Subgraph there could be single incoming merging flow.
+         * This merging flow can be marked as dead or as active.
+         */
+        var activeIncomingFlow: MergePayloadContext? = null
+        var isTerminal = false
+        var isDead = false
+
+        val incomingFlows = pvx.incomingMergingFlows
+        for (slot in 0 until incomingFlows.length()) {
+            val context = incomingFlows[slot]
+            when {
+                context.isTerminal -> isTerminal = true
+                context.isDeadTransition -> isDead = true
+                activeIncomingFlow == null -> activeIncomingFlow = context
+            }
+        }
 
-                        if (incomingMergingFlows.any { context -> context === INVALID_MERGE_PAYLOAD_CONTEXT }) {
-                            /**
-                             * Exception during merging
-                             * Mark as terminal all outgoing flows from merge point
-                             */
-                            pvx.mergingFuture.complete(MergePayloadContext(isTerminal = true))
+        when {
+            isTerminal -> {
+                /**
+                 * Terminal state reached.
+                 * Mark as terminal all outgoing flows from merge point
+                 */
+                pvx.completeMerging(MergePayloadContext.TERMINAL)
+            }
 
-                        } else if (incomingMergingFlows.any(MergePayloadContext::isTerminal)) {
-                            /**
-                             * Terminal state reached.
-                             * Mark as terminal all outgoing flows from merge point
-                             */
-                            pvx.mergingFuture.complete(MergePayloadContext(isTerminal = true))
+            isDead -> {
+                /**
+                 * There is incoming transition in dead status
+                 * Mark merge point as dead.
+                 */
+                pvx.completeMerging(MergePayloadContext.DEAD)
+            }
 
-                        } else {
-                            /**
-                             * Handler, Router or Subgraph completed handlingFuture successfully.
-                             */
-                            if (incomingMergingFlows.isEmpty()) {
-                                /**
-                                 * No incoming merge flows, only one flow from handling feature
-                                 * Handler, Router and Subgraph behave in same way - apply merging operation
-                                 */
-                                merge(
-                                        pvx,
-                                        handlePayloadContext.handlingResult,
-                                        handlePayloadContext.payload,
-                                        executionResultFuture)
-                            } else {
-                                /**
-                                 * Incoming merge flows exists.
-                                 */
-                                if (pvx.vertex.type == RuntimeVertex.Type.Router || pvx.vertex.type == RuntimeVertex.Type.Mutator) {
-                                    /**
-                                     * In case of Router or Mutator there should be no such transitions.
-                                     */
-                                    throw IllegalStateException(
-                                            """
-                                            Incoming merging flows exist for Router vertex ${pvx.vertex.name}.
-                                            Incoming merging flows: $incomingMergingFlows
-                                            """.trimIndent())
-
-                                } else {
-                                    /**
-                                     * In case of Handler or Subgraph there could be single incoming merging flow.
-                                     * This merging flow can be marked as dead or as active.
-                                     */
-                                    if (incomingMergingFlows.any { it.isDeadTransition }) {
-                                        /**
-                                         * There is incoming transition in status
-                                         * Mark merge point as dead.
-                                         */
-                                        pvx.mergingFuture.complete(MergePayloadContext(isDeadTransition = true))
-
-                                    } else {
-                                        /**
-                                         * If there is a single active incoming flow - use transition payload context
-                                         * from this flow.
-                                         * If there are many active incoming flows - select any of them:
-                                         * we are using single payload instance for whole graph execution,
-                                         * no matter from which of active transition we will select it.
-                                         */
-                                        merge(
-                                                pvx,
-                                                handlePayloadContext.handlingResult,
-                                                incomingMergingFlows[0].payload,
-                                                executionResultFuture)
-                                    }
-                                }
-                            }
-                        }
-                    }
-                    .exceptionally { throwable ->
-                        log.error(throwable) { "Joining incoming merge flows failed for veretex ${vx.name}." }
-                        return@exceptionally null
-                    }
+            activeIncomingFlow == null -> {
+                /**
+                 * No incoming merge flows, only one flow from handling result
+                 * Handler, Router and Subgraph behave in same way - apply merging operation
+                 */
+                merge(
+                        pvx,
+                        handlePayloadContext.handlingResult,
+                        handlePayloadContext.payload,
+                        executionResultFuture,
+                        handlePayloadContext.fallbackStatus)
+            }
 
+            else -> {
+                /**
+                 * If there is a single active incoming flow - use transition payload context
+                 * from this flow.
+                 * If there are many active incoming flows - select any of them:
+                 * we are using single payload instance for whole graph execution,
+                 * no matter from which of active transition we will select it.
+                 */
+                merge(
+                        pvx,
+                        handlePayloadContext.handlingResult,
+                        activeIncomingFlow.payload,
+                        executionResultFuture,
+                        handlePayloadContext.fallbackStatus)
+            }
         }
     }
 
@@ -269,39 +182,23 @@ class MergeByExecutionBuilder<PayloadType>(
      * @param handlingResult       empty in case of detached merge point
      * @param payload
      * @param executionResultFuture
+     * @param fallbackStatus       merge status of rejected, short-circuited or timed out handler invocation, merger is not invoked
      * @param <PayloadType>
      */
     private fun <PayloadType> merge(
             pvx: ProcessingVertex,
             handlingResult: Any?,
             payload: Any?,
-            executionResultFuture: CompletableFuture<PayloadType>) {
+            executionResultFuture: CompletableFuture<PayloadType>,
+            fallbackStatus: Enum<*>?) {
 
         try {
 
-            val mergeCall = builder.profiler
-                    .profiledCall(ProfilerIdentity.mergeIdentity(payload?.javaClass?.name, pvx.vertex.name))
-                    .start()
-
-            val isTraceablePayload = builder.tracer.isTraceable(payload)
-            val mergeTracingMarker =
-                    if (isTraceablePayload) {
-                        builder.tracer.beforeMerge(pvx.vertex.name, payload, handlingResult)
-                    } else {
-                        null
-                    }
-
-            val mergeStatus = pvx.invokeMergingMethod(payload, handlingResult)
-
-            mergeCall.stop()
-
-            if (isTraceablePayload) {
-                builder.tracer.afterMerger(mergeTracingMarker, pvx.vertex.name, payload)
-            }
+            val mergeStatus = fallbackStatus ?: invokeMerger(pvx, payload, handlingResult)
 
-            val activeTransitions = selectActiveOutgoingTransitions(pvx, mergeStatus)
+            val route = pvx.planVertex.route(mergeStatus)
 
-            if (activeTransitions.isEmpty()) {
+            if (route.transitions.isEmpty()) {
                 throw IllegalStateException("""
                     Merging function returned status: $mergeStatus
                     But outgoing transition of vertex ${pvx.vertex.name}
@@ -314,7 +211,7 @@ class MergeByExecutionBuilder<PayloadType>(
             /**
              * check if this merge point have terminal transitions that matches merge status
              */
-            if (activeTransitions.any { it.isComplete }) {
+            if (route.isTerminal) {
 
                 /**
                  * Handle terminal transition by completing execution result
@@ -352,16 +249,13 @@ class MergeByExecutionBuilder<PayloadType>(
                  * Terminal state reached. Execution result completed.
                  * Throw poison pill - terminal context. All following merge points should be deactivated.
                  */
-                pvx.mergingFuture.complete(MergePayloadContext(
-                        payload = null,
-                        mergeResult = mergeStatus,
-                        isTerminal = true))
+                pvx.completeMerging(MergePayloadContext.TERMINAL)
 
             } else {
                 /**
                  * There is no terminal state reached after merging.
                  */
-                pvx.mergingFuture.complete(MergePayloadContext(
+                pvx.completeMerging(MergePayloadContext(
                         payload = payload,
                         mergeResult = mergeStatus))
             }
@@ -377,25 +271,27 @@ class MergeByExecutionBuilder<PayloadType>(
 
             executionResultFuture.completeExceptionally(exc)
 
-            pvx.mergingFuture.complete(MergePayloadContext(isDeadTransition = true))
+            pvx.completeMerging(MergePayloadContext.DEAD)
 
         }
     }
 
-    /**
-     * Select outgoing transitions that matches mergeStatus
-     */
-    private fun selectActiveOutgoingTransitions(
-            pvx: ProcessingVertex, mergeStatus: Enum<*>?
-    ): MutableList<RuntimeTransition> {
-        val noMatchesByStatus = pvx.outgoingTransitions.all { mergeStatus !in it.mergeStatuses }
-        return pvx.outgoingTransitions
-                .asSequence()
-                .filter { transition ->
-                    transition.isOnAny ||
-                            mergeStatus in transition.mergeStatuses ||
-                            (transition.isOnElse && noMatchesByStatus)
+    private fun invokeMerger(pvx: ProcessingVertex, payload: Any?, handlingResult: Any?): Enum<*>? {
+        val mergeCall =
+                if (isProfiled) {
+                    builder.profiler.profiledCall(pvx.planVertex.mergeIdentity).start()
+                } else {
+                    null
                 }
-                .toMutableList()
+
+        val mergeTracingMarker = tracer?.beforeMerge(pvx.vertex.name, payload, handlingResult)
+
+        val mergeStatus = pvx.invokeMergingMethod(payload, handlingResult)
+
+        mergeCall?.stop()
+
+        tracer?.afterMerger(mergeTracingMarker, pvx.vertex.name, payload)
+
+        return mergeStatus
     }
-}
\ No newline at end of file
+}
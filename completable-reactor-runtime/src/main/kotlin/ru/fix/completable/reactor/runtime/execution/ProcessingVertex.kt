@@ -1,27 +1,104 @@
 package ru.fix.completable.reactor.runtime.execution
 
+import ru.fix.aggregating.profiler.Profiler
+import ru.fix.completable.reactor.graph.internal.RuntimeBatchHandler
+import ru.fix.completable.reactor.graph.internal.RuntimeBlockingHandler
+import ru.fix.completable.reactor.graph.internal.RuntimeCancellableHandler
 import ru.fix.completable.reactor.graph.runtime.RuntimeTransition
 import ru.fix.completable.reactor.graph.runtime.RuntimeVertex
 import ru.fix.completable.reactor.runtime.debug.DebugSerializer
 import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.Executor
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReferenceArray
 
 /**
- * Each Processing Vertex (pvx) is mapped to Vertex (vx).
+ * Each Processing Vertex (pvx) is mapped to Vertex (vx) through [ExecutionPlan.PlanVertex].
  * Tree of vertexes (vx) represents graph model and it is immutable.
- * Tree of Processing Vertexes (pvx) represents execution graph. Runtime build execution graph each time payload
+ * Execution plan is compiled once for the graph and shared between executions.
+ * Processing Vertexes (pvx) hold state of single execution and are created each time payload
  * submitted to ReactorGraph.
  *
  */
-class ProcessingVertex(val vertex: RuntimeVertex,
-                       private val subgraphRunner: SubgraphRunner,
-                       private val debugSerializer: DebugSerializer) {
+class ProcessingVertex(val planVertex: ExecutionPlan.PlanVertex,
+                       /**
+                        * Starts child execution of subgraph vertex within the execution, see [SubgraphRunner]
+                        */
+                       private val subgraphRunner: (Any?, ExecutionPlan.PlanVertex) -> ReactorGraphExecution<Any?>,
+                       private val debugSerializer: DebugSerializer,
+                       /**
+                        * Flushes batch of batch handler vertex when batching window opened by this execution expires
+                        */
+                       private val executor: Executor,
+                       /**
+                        * Runs handlers of blocking handler vertices
+                        */
+                       private val blockingExecutor: Executor,
+                       private val profiler: Profiler,
+                       /**
+                        * Invoked once when handling and once when merging state of the vertex is completed
+                        */
+                       private val onStageCompleted: () -> Unit) {
 
-    val incomingHandlingFlows = ArrayList<ExecutionBuilder.TransitionFuture<ExecutionBuilder.TransitionPayloadContext>>()
+    val vertex: RuntimeVertex
+        get() = planVertex.vertex
 
-    val incomingMergingFlows = ArrayList<ExecutionBuilder.TransitionFuture<ExecutionBuilder.MergePayloadContext>>()
+    /**
+     * Slot per incoming handleBy transition, see [ExecutionPlan.PlanTransition.targetSlot]
+     */
+    val incomingHandlingFlows = AtomicReferenceArray<ExecutionBuilder.TransitionPayloadContext>(
+            planVertex.incomingHandlingFlowCount)
+
+    /**
+     * Count of incoming handleBy transitions that are not completed yet
+     */
+    private val pendingHandlingFlows = AtomicInteger(planVertex.incomingHandlingFlowCount)
+
+    /**
+     * Slot per incoming mergeBy transition, see [ExecutionPlan.PlanTransition.targetSlot]
+     */
+    val incomingMergingFlows = AtomicReferenceArray<ExecutionBuilder.MergePayloadContext>(
+            planVertex.incomingMergingFlowCount)
+
+    /**
+     * Count of incoming mergeBy transitions and handling result that are not completed yet
+     */
+    private val pendingMergingInputs = AtomicInteger(planVertex.incomingMergingFlowCount + 1)
 
     val handlingFuture = CompletableFuture<ExecutionBuilder.HandlePayloadContext>()
 
+    /**
+     * Engine future of running handling invocation, see [invokeHandlingMethod]
+     */
+    @Volatile
+    private var handlingInvocation: CompletableFuture<Any?>? = null
+
+    @Volatile
+    var isHandlingCancelled = false
+        private set
+
+    /**
+     * Count of started invocations that are not completed yet, plus one for handling of the vertex.
+     * Invocation is counted until underlying work completes, e.g. future returned by async handler
+     * that is not awaited anymore after vertex timeout.
+     */
+    private val runningInvocations = AtomicInteger(1)
+
+    /**
+     * Completes when handling of the vertex is finished, see [finishHandling],
+     * and all invocations started by the vertex are completed.
+     * Bulkhead permit of the vertex is held until then.
+     */
+    val invocationsCompleted = CompletableFuture<Unit>()
+
+
+    /**
+     * Chain executions of subgraphs started by the vertex, retried and hedged invocations start several of them.
+     * Chain execution of the parent waits for them.
+     */
+    val subgraphChains = ConcurrentLinkedQueue<CompletableFuture<Void>>()
+
     val mergingFuture = CompletableFuture<ExecutionBuilder.MergePayloadContext>()
 
     /**
@@ -29,17 +106,150 @@ class ProcessingVertex(val vertex: RuntimeVertex,
      * If during merging process we will receive merge status that match any of terminal transitions
      * then we should complete mergingFuture with Terminal MergePayloadContext
      */
-    val outgoingTransitions = ArrayList<RuntimeTransition>()
+    val outgoingTransitions: List<RuntimeTransition>
+        get() = planVertex.transitions
 
+    /**
+     * Stores context of incoming handleBy transition into its slot.
+     * Slot could be completed only once, subsequent completions are ignored.
+     *
+     * @return true if this was the last pending incoming handleBy transition
+     * and vertex is ready for handling
+     */
+    fun completeIncomingHandlingFlow(slot: Int, context: ExecutionBuilder.TransitionPayloadContext): Boolean =
+            incomingHandlingFlows.compareAndSet(slot, null, context)
+                    && pendingHandlingFlows.decrementAndGet() == 0
 
+    /**
+     * Stores context of incoming handleBy transition into its slot without counting it as completed.
+     * Reserved slot is ignored by other completions until it is completed by [completeReservedIncomingHandlingFlow].
+     */
+    fun reserveIncomingHandlingFlow(slot: Int, context: ExecutionBuilder.TransitionPayloadContext) {
+        incomingHandlingFlows.compareAndSet(slot, null, context)
+    }
+
+    /**
+     * Completes slot reserved by [reserveIncomingHandlingFlow] with the same context.
+     *
+     * @return true if this was the last pending incoming handleBy transition
+     * and vertex is ready for handling
+     */
+    fun completeReservedIncomingHandlingFlow(slot: Int, context: ExecutionBuilder.TransitionPayloadContext): Boolean =
+            incomingHandlingFlows[slot] === context
+                    && pendingHandlingFlows.decrementAndGet() == 0
+
+    /**
+     * Stores context of incoming mergeBy transition into its slot.
+     * Slot could be completed only once, subsequent completions are ignored.
+     *
+     * @return true if this was the last pending merging input and vertex is ready for merging
+     */
+    fun completeIncomingMergingFlow(slot: Int, context: ExecutionBuilder.MergePayloadContext): Boolean =
+            incomingMergingFlows.compareAndSet(slot, null, context)
+                    && pendingMergingInputs.decrementAndGet() == 0
+
+    /**
+     * Completes handling state of the vertex.
+     *
+     * @return true if handling result was the last pending merging input and vertex is ready for merging
+     */
+    fun completeHandling(context: ExecutionBuilder.HandlePayloadContext): Boolean {
+        if (!handlingFuture.complete(context)) {
+            return false
+        }
+        onStageCompleted()
+        return pendingMergingInputs.decrementAndGet() == 0
+    }
+
+    /**
+     * Completes merging state of the vertex.
+     * NULL context is used by vertices without merger.
+     */
+    fun completeMerging(context: ExecutionBuilder.MergePayloadContext?) {
+        if (mergingFuture.complete(context)) {
+            onStageCompleted()
+        }
+    }
+
+    /**
+     * Cancels running handling invocation, invocation that starts later is cancelled right after it is started
+     */
+    fun cancelHandling() {
+        isHandlingCancelled = true
+        handlingInvocation?.cancel(true)
+    }
+
+    /**
+     * Marks handling of the vertex as finished, [invocationsCompleted] is completed
+     * as soon as started invocations complete
+     */
+    fun finishHandling() = onInvocationCompleted()
+
+    /**
+     * Counts underlying work of the invocation in [invocationsCompleted]
+     */
+    private fun <T> trackRunningInvocation(completion: CompletableFuture<T>) {
+        runningInvocations.incrementAndGet()
+        completion.whenComplete { _, _ -> onInvocationCompleted() }
+    }
+
+    private fun onInvocationCompleted() {
+        if (runningInvocations.decrementAndGet() == 0) {
+            invocationsCompleted.complete(Unit)
+        }
+    }
+
+    /**
+     * Starts handling invocation and returns future owned by the engine.
+     * Its cancellation cancels subgraph execution, blocking handling or coroutine of suspend handler,
+     * future returned by async handler is detached from it and left intact.
+     */
     fun invokeHandlingMethod(payload: Any?): CompletableFuture<Any?> {
+        val singleFlight = planVertex.singleFlight
+        return trackHandlingInvocation(
+                if (singleFlight != null) {
+                    singleFlight.invoke(payload) { startHandlingInvocation(payload) }
+                } else {
+                    startHandlingInvocation(payload)
+                })
+    }
+
+    /**
+     * Starts hedged invocation of handler or subgraph.
+     * Single flight is bypassed, otherwise hedged invocation would join in-flight invocation it hedges.
+     */
+    fun invokeHedgedHandlingMethod(payload: Any?): CompletableFuture<Any?> =
+            trackHandlingInvocation(startHandlingInvocation(payload))
+
+    private fun trackHandlingInvocation(invocation: CompletableFuture<Any?>): CompletableFuture<Any?> {
+        handlingInvocation = invocation
+
+        /**
+         * Cancellation writes flag before reading invocation, so either cancellation observes the invocation
+         * or invocation observes the flag
+         */
+        if (isHandlingCancelled) {
+            invocation.cancel(true)
+        }
+        return invocation
+    }
+
+    private fun startHandlingInvocation(payload: Any?): CompletableFuture<Any?> {
 
         return when {
+            // Blocking handler
+            this.vertex.handler is RuntimeBlockingHandler -> invokeBlockingHandlingMethod(payload)
+
+            // Batch handler
+            this.vertex.handler is RuntimeBatchHandler ->
+                invokeBatchHandlingMethod(payload).also { trackRunningInvocation(it) }
+
             // Handler
             this.vertex.handler != null -> invokeHandlerHandlingMethod(payload)
 
             // Subgraph
-            this.vertex.subgraphPayloadBuilder != null -> invokeSubgraphHandlingMethod(payload)
+            this.vertex.subgraphPayloadBuilder != null ->
+                invokeSubgraphHandlingMethod(payload).also { trackRunningInvocation(it) }
 
             else -> CompletableFuture<Any?>().apply {
                 completeExceptionally(IllegalStateException(
@@ -67,7 +277,13 @@ class ProcessingVertex(val vertex: RuntimeVertex,
         }
 
         return try {
-            subgraphRunner(subgraphPayload)
+            val subgraphExecution = subgraphRunner(subgraphPayload, planVertex)
+            subgraphChains.add(subgraphExecution.chainExecutionFuture)
+            val subgraphCall = profiler.profiledCall(planVertex.subgraphIdentity).start()
+
+            val result = subgraphExecution.resultFuture
+            result.whenComplete { _, _ -> subgraphCall.stop() }
+            result
 
         } catch (exc: Exception) {
             val result = CompletableFuture<Any?>()
@@ -82,6 +298,41 @@ class ProcessingVertex(val vertex: RuntimeVertex,
         }
     }
 
+    private fun invokeBlockingHandlingMethod(payload: Any?): CompletableFuture<Any?> {
+        val blockingHandling = BlockingHandling(
+                this, payload, vertex.handler as RuntimeBlockingHandler, profiler, debugSerializer)
+        return try {
+            blockingHandling.start(blockingExecutor).also { trackRunningInvocation(blockingHandling.completion) }
+
+        } catch (exc: Exception) {
+            CompletableFuture<Any?>().apply {
+                completeExceptionally(
+                        IllegalStateException(
+                                """
+                                Blocking executor rejected handler invocation for vertex ${vertex.name}.
+                                """.trimIndent(),
+                                exc))
+            }
+        }
+    }
+
+    private fun invokeBatchHandlingMethod(payload: Any?): CompletableFuture<Any?> {
+        return try {
+            planVertex.batcher!!.add(payload, executor)
+
+        } catch (exc: Exception) {
+            CompletableFuture<Any?>().apply {
+                completeExceptionally(
+                        IllegalArgumentException(
+                                """
+                                Exception during batch key extraction for vertex ${this@ProcessingVertex.vertex.name}.
+                                Payload: ${debugSerializer.dumpObject(payload)}
+                                """.trimIndent(),
+                                exc))
+            }
+        }
+    }
+
     private fun invokeHandlerHandlingMethod(payload: Any?): CompletableFuture<Any?> {
 
         var result: CompletableFuture<Any?>?
@@ -110,7 +361,25 @@ class ProcessingVertex(val vertex: RuntimeVertex,
                             """.trimIndent()))
         }
 
-        return result
+        trackRunningInvocation(result)
+
+        if (vertex.handler is RuntimeCancellableHandler) {
+            return result
+        }
+
+        /**
+         * Async handler could share its future with other callers.
+         * Engine awaits detached future instead, so cancellation and timeouts leave handler future intact.
+         */
+        val detached = CompletableFuture<Any?>()
+        result.whenComplete { value, throwable ->
+            if (throwable == null) {
+                detached.complete(value)
+            } else {
+                detached.completeExceptionally(throwable)
+            }
+        }
+        return detached
     }
 
     fun invokeMergingMethod(payload: Any?, handlingResult: Any?): Enum<*>? {
@@ -0,0 +1,135 @@
+package ru.fix.completable.reactor.runtime.execution
+
+import mu.KotlinLogging
+import ru.fix.completable.reactor.graph.RetryPolicy
+import ru.fix.completable.reactor.runtime.tracing.Tracer
+import java.util.concurrent.CancellationException
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.Executor
+import java.util.concurrent.TimeUnit
+
+private val log = KotlinLogging.logger {}
+
+/**
+ * Handling invocation of a vertex with retry policy.
+ *
+ * Handler is invoked until it succeeds, fails with non retryable exception or attempts are exhausted.
+ * Next attempt is scheduled on the reactor timer after backoff delay and invoked by [executor],
+ * so no thread is blocked while waiting.
+ * Each attempt is traced as separate handling: failed attempt is reported by afterHandle with its exception
+ * and retry is reported by beforeHandle.
+ *
+ * [result] completes with result of the last attempt.
+ * When [result] is completed exceptionally from outside, e.g. by vertex timeout, running attempt is cancelled
+ * and no more attempts are made.
+ */
+class RetryingHandling(
+        private val pvx: ProcessingVertex,
+        private val payload: Any?,
+        private val policy: RetryPolicy,
+        private val builder: ExecutionBuilder,
+        /**
+         * Invokes retry attempts
+         */
+        private val executor: Executor,
+        private val tracer: Tracer?,
+        /**
+         * Starts single attempt, e.g. plain or hedged handler invocation
+         */
+        private val invokeAttempt: () -> CompletableFuture<Any?>) {
+
+    val result = CompletableFuture<Any?>()
+
+    @Volatile
+    private var attempt: CompletableFuture<Any?>? = null
+
+    /**
+     * Tracing marker of the latest attempt.
+     * After handle event of the last attempt is reported by the caller that awaits [result].
+     */
+    @Volatile
+    var tracingMarker: Any? = null
+        private set
+
+    /**
+     * Invokes first attempt by current thread
+     *
+     * @param tracingMarker marker of first attempt returned by [Tracer.beforeHandle]
+     */
+    fun start(tracingMarker: Any?): CompletableFuture<Any?> {
+        this.tracingMarker = tracingMarker
+        result.whenComplete { _, throwable ->
+            if (throwable != null) {
+                attempt?.cancel(true)
+            }
+        }
+        invoke(1)
+        return result
+    }
+
+    private fun invoke(attemptNumber: Int) {
+        val future = try {
+            invokeAttempt()
+        } catch (exc: Exception) {
+            CompletableFuture<Any?>().apply { completeExceptionally(exc) }
+        }
+        attempt = future
+        if (result.isDone) {
+            future.cancel(true)
+            return
+        }
+
+        future.whenComplete { value, throwable ->
+            when {
+                throwable == null -> result.complete(value)
+
+                attemptNumber >= policy.getMaxAttempts()
+                        || result.isDone
+                        || pvx.isHandlingCancelled
+                        || !policy.isRetryable(unwrap(throwable)) -> result.completeExceptionally(throwable)
+
+                else -> scheduleRetry(attemptNumber, throwable)
+            }
+        }
+    }
+
+    private fun scheduleRetry(attemptNumber: Int, throwable: Throwable) {
+        tracer?.afterHandle(tracingMarker, pvx.vertex.name, null, throwable)
+        builder.profiler.profiledCall(pvx.planVertex.retryIdentity).call()
+
+        val delayMs = policy.backoffMs(attemptNumber)
+        log.debug { "Handling by vertex ${pvx.vertex.name} failed, attempt ${attemptNumber + 1} in $delayMs ms." }
+
+        try {
+            builder.timer.schedule({
+                try {
+                    executor.execute { retry(attemptNumber + 1) }
+                } catch (exc: Throwable) {
+                    result.completeExceptionally(exc)
+                }
+            }, delayMs, TimeUnit.MILLISECONDS)
+
+        } catch (exc: IllegalStateException) {
+            /**
+             * Timer is stopped by closed reactor, last failure is the result of handling
+             */
+            result.completeExceptionally(throwable)
+        }
+    }
+
+    private fun retry(attemptNumber: Int) {
+        if (result.isDone) {
+            return
+        }
+        if (pvx.isHandlingCancelled) {
+            result.completeExceptionally(CancellationException("Handling by vertex ${pvx.vertex.name} is cancelled."))
+            return
+        }
+        tracingMarker = tracer?.beforeHandle(pvx.vertex.name, payload)
+        invoke(attemptNumber)
+    }
+
+    private fun unwrap(throwable: Throwable): Throwable =
+            if (throwable is CompletionException && throwable.cause != null) throwable.cause!! else throwable
+}
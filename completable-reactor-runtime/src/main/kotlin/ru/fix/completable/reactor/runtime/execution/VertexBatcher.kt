@@ -0,0 +1,164 @@
+package ru.fix.completable.reactor.runtime.execution
+
+import mu.KotlinLogging
+import ru.fix.aggregating.profiler.Identity
+import ru.fix.aggregating.profiler.Profiler
+import ru.fix.completable.reactor.graph.internal.RuntimeBatchHandler
+import ru.fix.completable.reactor.runtime.timer.HashedWheelTimer
+import java.util.*
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.Executor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+private val log = KotlinLogging.logger {}
+
+/**
+ * Collects invocations of batch handler vertex from all executions of the graph into batches,
+ * see [ExecutionPlan.PlanVertex.batcher].
+ *
+ * Invocations are appended to lock-free queue.
+ * Batch is flushed by the thread whose invocation fills the batch up to max batch size,
+ * or by [executor][add] of the invocation that opened batching window when window expires on reactor timer.
+ * Each flush takes up to max batch size invocations and passes their distinct keys to single bulk call.
+ * Invocations cancelled while waiting in the queue, e.g. by vertex timeout, are skipped.
+ */
+class VertexBatcher(
+        private val batchHandler: RuntimeBatchHandler,
+        private val vertexName: String?,
+        private val timer: HashedWheelTimer,
+        private val profiler: Profiler,
+        /**
+         * Size of each bulk call and time that the oldest invocation of the batch waited for the flush
+         */
+        private val batchIdentity: Identity,
+        private val batchWaitIdentity: Identity) {
+
+    private class Invocation(val key: Any?) {
+        val enqueuedNanos = System.nanoTime()
+        val result = CompletableFuture<Any?>()
+    }
+
+    private val maxBatchSize = batchHandler.batchPolicy.getMaxBatchSize()
+    private val maxDelayMs = batchHandler.batchPolicy.getMaxDelayMs()
+
+    private val queue = ConcurrentLinkedQueue<Invocation>()
+    private val queuedInvocations = AtomicInteger()
+
+    /**
+     * Batching window is opened by the first invocation of the batch and is closed by timer flush
+     */
+    private val isWindowOpened = AtomicBoolean()
+
+    val queueSize: Int
+        get() = queuedInvocations.get()
+
+    /**
+     * @param executor runs flush of the window opened by this invocation
+     * @return future completed with result of the payload key from the bulk call
+     */
+    fun add(payload: Any?, executor: Executor): CompletableFuture<Any?> {
+        val invocation = Invocation(batchHandler.batchKey.key(payload))
+        queue.add(invocation)
+
+        if (queuedInvocations.incrementAndGet() >= maxBatchSize) {
+            flush()
+        } else {
+            openWindow(executor)
+        }
+        return invocation.result
+    }
+
+    private fun openWindow(executor: Executor) {
+        if (!isWindowOpened.compareAndSet(false, true)) {
+            return
+        }
+        try {
+            timer.schedule({
+                try {
+                    executor.execute { flushWindow(executor) }
+                } catch (exc: Throwable) {
+                    log.debug(exc) { "Batch of vertex $vertexName is flushed by timer thread." }
+                    flushWindow(executor)
+                }
+            }, maxDelayMs, TimeUnit.MILLISECONDS)
+
+        } catch (exc: IllegalStateException) {
+            /**
+             * Timer is stopped by closed reactor, batch does not wait for other invocations
+             */
+            log.debug(exc) { "Batching window of vertex $vertexName is not scheduled." }
+            flushWindow(executor)
+        }
+    }
+
+    private fun flushWindow(executor: Executor) {
+        /**
+         * Window is closed before flush, so invocation that arrives during flush either is taken by the flush
+         * or opens next window
+         */
+        isWindowOpened.set(false)
+        flush()
+        if (queuedInvocations.get() > 0) {
+            openWindow(executor)
+        }
+    }
+
+    private fun flush() {
+        val polled = ArrayList<Invocation>()
+        while (polled.size < maxBatchSize) {
+            polled.add(queue.poll() ?: break)
+        }
+        if (polled.isEmpty()) {
+            return
+        }
+        queuedInvocations.addAndGet(-polled.size)
+
+        val batch = polled.filter { !it.result.isDone }
+        if (batch.isEmpty()) {
+            return
+        }
+
+        /**
+         * Queue preserves arrival order, the first invocation waited the longest
+         */
+        profiler.profiledCall(batchWaitIdentity)
+                .call(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - batch[0].enqueuedNanos))
+
+        val keys = batch.mapTo(LinkedHashSet()) { it.key }.toList()
+        profiler.profiledCall(batchIdentity).call(keys.size.toLong())
+
+        invokeBulkCall(keys).whenComplete { results, throwable ->
+            if (throwable != null) {
+                batch.forEach { it.result.completeExceptionally(throwable) }
+            } else {
+                batch.forEach { it.result.complete(results?.get(it.key)) }
+            }
+        }
+    }
+
+    private fun invokeBulkCall(keys: List<Any?>): CompletableFuture<Map<Any?, Any?>> {
+        val result = try {
+            batchHandler.batchHandler.handle(keys)
+
+        } catch (exc: Exception) {
+            return CompletableFuture<Map<Any?, Any?>>().apply {
+                completeExceptionally(IllegalArgumentException(
+                        """
+                        Exception during batch handler invocation for vertex $vertexName.
+                        Batch size: ${keys.size}
+                        """.trimIndent(),
+                        exc))
+            }
+        }
+
+        return result ?: CompletableFuture<Map<Any?, Any?>>().apply {
+            completeExceptionally(NullPointerException(
+                    """
+                    Batch handler returned NULL instead of future for vertex $vertexName.
+                    """.trimIndent()))
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package ru.fix.completable.reactor.runtime.execution
+
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Limits concurrent handler invocations of a vertex across all executions of the graph.
+ * Bulkhead is created during plan compilation and shared by all executions, see [ExecutionPlan.PlanVertex.bulkhead].
+ *
+ * Permits are counted by atomic counter without locks.
+ * Invocations that did not acquire permit wait in FIFO queue
+ * and are started by the thread that releases permit.
+ * Queue size is bounded by [maxQueueSize], invocations above it are rejected and counted.
+ */
+class VertexBulkhead(
+        val maxConcurrency: Int,
+        val maxQueueSize: Int,
+        /**
+         * Merge status of rejected invocation, see [ru.fix.completable.reactor.graph.runtime.RuntimeVertex.rejectionStatus]
+         */
+        val rejectionStatus: Enum<*>?) {
+
+    private val activeCount = AtomicInteger()
+    private val queue = ConcurrentLinkedQueue<Runnable>()
+    private val queueSize = AtomicInteger()
+    private val rejectedCount = LongAdder()
+
+    val activeInvocations: Int
+        get() = activeCount.get()
+
+    val queuedInvocations: Int
+        get() = queueSize.get()
+
+    val rejectedInvocations: Long
+        get() = rejectedCount.sum()
+
+    /**
+     * @return true if permit is acquired and invocation could be started by current thread
+     */
+    fun tryAcquire(): Boolean {
+        while (true) {
+            val active = activeCount.get()
+            if (active >= maxConcurrency) {
+                return false
+            }
+            if (activeCount.compareAndSet(active, active + 1)) {
+                return true
+            }
+        }
+    }
+
+    /**
+     * Enqueues invocation that did not acquire permit.
+     * Invocation is run with acquired permit by the thread that releases permit,
+     * or by current thread if permit was released meanwhile.
+     *
+     * @return false if queue is full and invocation is rejected
+     */
+    fun enqueue(invocation: Runnable): Boolean {
+        if (queueSize.incrementAndGet() > maxQueueSize) {
+            queueSize.decrementAndGet()
+            rejectedCount.increment()
+            return false
+        }
+        queue.add(invocation)
+        drain()
+        return true
+    }
+
+    /**
+     * Releases permit of completed invocation and starts next queued invocation
+     */
+    fun release() {
+        activeCount.decrementAndGet()
+        drain()
+    }
+
+    private fun drain() {
+        /**
+         * Releasing thread checks queue after releasing permit,
+         * enqueuing thread acquires permit after adding invocation to the queue.
+         * At least one of them observes the other, so queued invocation is not lost.
+         */
+        while (!queue.isEmpty() && tryAcquire()) {
+            val invocation = queue.poll()
+            if (invocation == null) {
+                /**
+                 * Invocation was taken by concurrent drain
+                 */
+                activeCount.decrementAndGet()
+                continue
+            }
+            queueSize.decrementAndGet()
+            invocation.run()
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package ru.fix.completable.reactor.runtime.execution
+
+import mu.KotlinLogging
+import ru.fix.completable.reactor.graph.CircuitBreakerPolicy
+import java.util.concurrent.CompletionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicIntegerArray
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReference
+import java.util.concurrent.atomic.LongAdder
+
+private val log = KotlinLogging.logger {}
+
+/**
+ * Circuit breaker of a vertex shared by all executions of the graph, see [ExecutionPlan.PlanVertex.circuitBreaker].
+ *
+ * Breaker state is an immutable phase replaced by compare and set, so state transitions do not require locks.
+ * Closed phase owns sliding window of latest invocation outcomes.
+ * Outcomes are written to ring buffer slots by atomic cursor, failure and call counters are adjusted
+ * by replaced slot value.
+ * Each transition to closed state starts with empty window.
+ */
+class VertexCircuitBreaker(
+        private val policy: CircuitBreakerPolicy,
+        /**
+         * Merge status of short-circuited invocation,
+         * see [ru.fix.completable.reactor.graph.runtime.RuntimeVertex.circuitBreakerStatus]
+         */
+        val openStatus: Enum<*>,
+        private val vertexName: String?) {
+
+    enum class State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private class Phase(val state: State, val sinceNanos: Long, val window: OutcomeWindow?)
+
+    /**
+     * Permission to invoke handler granted by [tryAcquire].
+     * Invocation either records its outcome by [record] or returns unused permit by [release].
+     */
+    class Permit internal constructor(
+            /**
+             * Half open phase started by trial invocation, NULL for invocation of closed breaker
+             */
+            internal val trialPhase: Any?)
+
+    private class OutcomeWindow(size: Int) {
+        private val outcomes = AtomicIntegerArray(size)
+        private val cursor = AtomicLong()
+        private val callCount = AtomicInteger()
+        private val failureCount = AtomicInteger()
+
+        val calls: Int
+            get() = callCount.get()
+
+        val failures: Int
+            get() = failureCount.get()
+
+        fun record(isFailure: Boolean) {
+            val slot = (cursor.getAndIncrement() % outcomes.length()).toInt()
+            val previous = outcomes.getAndSet(slot, if (isFailure) FAILURE else SUCCESS)
+            when (previous) {
+                NONE -> callCount.incrementAndGet()
+                FAILURE -> failureCount.decrementAndGet()
+            }
+            if (isFailure) {
+                failureCount.incrementAndGet()
+            }
+        }
+
+        companion object {
+            const val NONE = 0
+            const val SUCCESS = 1
+            const val FAILURE = 2
+        }
+    }
+
+    private val openDurationNanos = TimeUnit.MILLISECONDS.toNanos(policy.getOpenDurationMs())
+    private val phase = AtomicReference(closedPhase())
+    private val shortCircuitedCount = LongAdder()
+
+    val state: State
+        get() = phase.get().state
+
+    val shortCircuitedInvocations: Long
+        get() = shortCircuitedCount.sum()
+
+    private fun closedPhase() = Phase(State.CLOSED, System.nanoTime(), OutcomeWindow(policy.getSlidingWindowSize()))
+
+    /**
+     * @return permit if handler could be invoked, NULL if invocation is short-circuited
+     */
+    fun tryAcquire(): Permit? {
+        while (true) {
+            val current = phase.get()
+            if (current.state == State.CLOSED) {
+                return CLOSED_PERMIT
+            }
+
+            val now = System.nanoTime()
+            if (now - current.sinceNanos < openDurationNanos) {
+                shortCircuitedCount.increment()
+                return null
+            }
+
+            /**
+             * Open duration elapsed, or trial invocation of half open breaker did not report its outcome in time.
+             * Thread that moves breaker to the new half open phase performs single trial invocation.
+             */
+            val trialPhase = Phase(State.HALF_OPEN, now, null)
+            if (phase.compareAndSet(current, trialPhase)) {
+                return Permit(trialPhase)
+            }
+        }
+    }
+
+    /**
+     * Returns permit of invocation that does not record its outcome, e.g. rejected by bulkhead or cancelled.
+     * Unused trial permit is passed to the next invocation, release of recorded permit has no effect.
+     */
+    fun release(permit: Permit) {
+        val trialPhase = permit.trialPhase as Phase? ?: return
+        phase.compareAndSet(trialPhase, Phase(State.HALF_OPEN, System.nanoTime() - openDurationNanos, null))
+    }
+
+    /**
+     * Records outcome of handler invocation
+     *
+     * @param permit permit of the invocation returned by [tryAcquire]
+     * @param throwable exception of failed invocation, NULL if invocation succeeded
+     */
+    fun record(permit: Permit, throwable: Throwable?) {
+        val isFailure = throwable != null && policy.isFailure(unwrap(throwable))
+        val current = phase.get()
+
+        if (permit.trialPhase != null) {
+            /**
+             * Only outcome of trial invocation decides state of half open breaker.
+             * Trial that did not report its outcome in time is replaced by the next one and ignored.
+             */
+            if (permit.trialPhase === current) {
+                if (isFailure) {
+                    open(current)
+                } else if (phase.compareAndSet(current, closedPhase())) {
+                    log.info { "Circuit breaker of vertex $vertexName is closed." }
+                }
+            }
+            return
+        }
+
+        when (current.state) {
+            State.CLOSED -> {
+                val window = current.window!!
+                window.record(isFailure)
+
+                val calls = window.calls
+                if (isFailure
+                        && calls >= policy.getMinimumCalls()
+                        && window.failures >= policy.getFailureRateThreshold() * calls) {
+                    open(current)
+                }
+            }
+
+            /**
+             * Late outcome of invocation that started before breaker opened
+             */
+            State.OPEN, State.HALF_OPEN -> Unit
+        }
+    }
+
+    private fun open(current: Phase) {
+        if (phase.compareAndSet(current, Phase(State.OPEN, System.nanoTime(), null))) {
+            log.warn {
+                "Circuit breaker of vertex $vertexName is open for ${policy.getOpenDurationMs()} ms," +
+                        " vertex routes by status $openStatus."
+            }
+        }
+    }
+
+    private fun unwrap(throwable: Throwable): Throwable =
+            if (throwable is CompletionException && throwable.cause != null) throwable.cause!! else throwable
+
+    companion object {
+        private val CLOSED_PERMIT = Permit(null)
+    }
+}
@@ -0,0 +1,87 @@
+package ru.fix.completable.reactor.runtime.execution
+
+import ru.fix.completable.reactor.graph.HedgingPolicy
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Hedging state of a vertex shared by all executions of the graph, see [ExecutionPlan.PlanVertex.hedging].
+ *
+ * Hedge rate is limited by budget without locks: each invocation deposits [HedgingPolicy.getMaxHedgeRate]
+ * of a hedge into the budget and each hedge withdraws whole one.
+ * Budget is capped, so idle vertex could not accumulate more than [MAX_BUDGET] hedges for a burst.
+ *
+ * Latencies of successful invocations are stored in ring buffer.
+ * Percentile is recomputed by the thread that records every [PERCENTILE_UPDATE_INTERVAL]-th latency,
+ * other threads read cached value.
+ */
+class VertexHedging(val policy: HedgingPolicy) {
+
+    companion object {
+        private const val BUDGET_UNIT = 1_000L
+        private const val MAX_BUDGET = 10 * BUDGET_UNIT
+
+        private const val LATENCY_WINDOW_SIZE = 256
+        private const val PERCENTILE_UPDATE_INTERVAL = 32
+        private const val MIN_LATENCY_SAMPLES = 100
+    }
+
+    private val budget = AtomicLong()
+    private val budgetDeposit = Math.max(1L, (policy.getMaxHedgeRate() * BUDGET_UNIT).toLong())
+
+    private val latencies = AtomicLongArray(LATENCY_WINDOW_SIZE)
+    private val latencyCursor = AtomicLong()
+
+    /**
+     * Observed latency percentile, negative until enough latencies are recorded
+     */
+    @Volatile
+    private var percentileLatencyNanos = -1L
+
+    private val fixedDelayNanos = TimeUnit.MILLISECONDS.toNanos(policy.getDelayMs())
+
+    val hedgeDelayNanos: Long
+        get() {
+            val observed = percentileLatencyNanos
+            return if (observed >= 0) observed else fixedDelayNanos
+        }
+
+    /**
+     * Invoked once per vertex invocation, increases hedge budget
+     */
+    fun onInvocation() {
+        budget.accumulateAndGet(budgetDeposit) { balance, deposit -> Math.min(balance + deposit, MAX_BUDGET) }
+    }
+
+    /**
+     * @return true if budget allows hedged invocation
+     */
+    fun tryAcquireHedge(): Boolean {
+        while (true) {
+            val balance = budget.get()
+            if (balance < BUDGET_UNIT) {
+                return false
+            }
+            if (budget.compareAndSet(balance, balance - BUDGET_UNIT)) {
+                return true
+            }
+        }
+    }
+
+    fun recordLatency(latencyNanos: Long) {
+        if (policy.getDelayPercentile() <= 0) {
+            return
+        }
+        val sample = latencyCursor.getAndIncrement()
+        latencies.set((sample % LATENCY_WINDOW_SIZE).toInt(), latencyNanos)
+
+        val recorded = sample + 1
+        if (recorded >= MIN_LATENCY_SAMPLES && recorded % PERCENTILE_UPDATE_INTERVAL == 0L) {
+            val size = Math.min(recorded, LATENCY_WINDOW_SIZE.toLong()).toInt()
+            val sorted = LongArray(size) { latencies.get(it) }
+            sorted.sort()
+            percentileLatencyNanos = sorted[Math.min(size - 1, (size * policy.getDelayPercentile()).toInt())]
+        }
+    }
+}
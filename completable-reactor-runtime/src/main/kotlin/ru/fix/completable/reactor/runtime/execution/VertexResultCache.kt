@@ -0,0 +1,272 @@
+package ru.fix.completable.reactor.runtime.execution
+
+import ru.fix.completable.reactor.graph.CacheKey
+import ru.fix.completable.reactor.graph.CachePolicy
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Cache of handler results of a vertex shared by all executions of the graph,
+ * see [ExecutionPlan.PlanVertex.resultCache].
+ *
+ * Eviction follows W-TinyLFU scheme.
+ * New entries enter small admission window, entries that leave the window compete for the main region:
+ * candidate is admitted only if its key is more frequent than the key of main region victim
+ * according to [FrequencySketch].
+ * Main region selects victim in FIFO order with second chance for recently read entries.
+ *
+ * Lookups read concurrent map and do not take locks.
+ * Stored entries are appended to write buffer, window and main region are maintained by single draining thread:
+ * any thread could request drain, only one thread drains at a time and repeats drain if requests arrived meanwhile.
+ * Entries replaced by stores or expired by lookups are reported to draining thread through removal buffer,
+ * so sizes of window and main region count live entries only.
+ * Expired entries met by eviction are removed without competing for the main region.
+ */
+class VertexResultCache(private val cacheKey: CacheKey<Any?>, policy: CachePolicy) {
+
+    class Entry(val key: Any, val value: Any?, val expiresAtNanos: Long) {
+        /**
+         * Entry was read since it was last considered for eviction
+         */
+        @Volatile
+        var isAccessed = false
+
+        /**
+         * Region that counts the entry, accessed only by draining thread
+         */
+        var region = NO_REGION
+    }
+
+    private val ttlNanos = TimeUnit.MILLISECONDS.toNanos(policy.getTtlMs())
+    private val windowCapacity = Math.max(1, policy.getMaxEntries() / 100)
+    private val mainCapacity = policy.getMaxEntries() - windowCapacity
+
+    private val entries = ConcurrentHashMap<Any, Entry>()
+    private val sketch = FrequencySketch(policy.getMaxEntries())
+
+    private val writeBuffer = ConcurrentLinkedQueue<Entry>()
+    private val removalBuffer = ConcurrentLinkedQueue<Entry>()
+    private val drainRequests = AtomicInteger()
+
+    /**
+     * Accessed only by draining thread.
+     * Queues could also hold removed entries until they are polled or compacted,
+     * sizes count live entries of the region only.
+     */
+    private val window = ArrayDeque<Entry>()
+    private val main = ArrayDeque<Entry>()
+    private var windowSize = 0
+    private var mainSize = 0
+
+    private val hitCount = LongAdder()
+    private val missCount = LongAdder()
+    private val evictionCount = LongAdder()
+
+    val hits: Long
+        get() = hitCount.sum()
+
+    val misses: Long
+        get() = missCount.sum()
+
+    /**
+     * Entries evicted or not admitted due to size limit
+     */
+    val evictions: Long
+        get() = evictionCount.sum()
+
+    /**
+     * @return cached entry, NULL if result for the payload is not cached or expired
+     */
+    fun lookup(payload: Any?): Entry? {
+        val key = cacheKey.key(payload) ?: return null
+        sketch.increment(key)
+
+        val entry = entries[key]
+        if (entry == null) {
+            missCount.increment()
+            return null
+        }
+        if (isExpired(entry, System.nanoTime())) {
+            if (entries.remove(key, entry)) {
+                removalBuffer.add(entry)
+            }
+            missCount.increment()
+            return null
+        }
+        entry.isAccessed = true
+        hitCount.increment()
+        return entry
+    }
+
+    fun store(payload: Any?, result: Any?) {
+        val key = cacheKey.key(payload) ?: return
+        val entry = Entry(key, result, System.nanoTime() + ttlNanos)
+        val replaced = entries.put(key, entry)
+        if (replaced != null) {
+            removalBuffer.add(replaced)
+        }
+        writeBuffer.add(entry)
+        drain()
+    }
+
+    private fun drain() {
+        if (drainRequests.getAndIncrement() != 0) {
+            return
+        }
+        do {
+            drainBuffers()
+        } while (drainRequests.decrementAndGet() != 0)
+    }
+
+    /**
+     * Entry is replaced, expired or evicted if map holds another entry for its key
+     */
+    private fun isLive(entry: Entry) = entries[entry.key] === entry
+
+    private fun isExpired(entry: Entry, now: Long) = now - entry.expiresAtNanos > 0
+
+    private fun drainBuffers() {
+        while (true) {
+            val removed = removalBuffer.poll() ?: break
+            unplace(removed)
+        }
+
+        val now = System.nanoTime()
+        while (true) {
+            val entry = writeBuffer.poll() ?: return
+            if (!isLive(entry)) {
+                continue
+            }
+            window.addLast(entry)
+            place(entry, WINDOW)
+            compact(window, WINDOW, windowCapacity)
+
+            while (windowSize > windowCapacity) {
+                val candidate = window.pollFirst()
+                when {
+                    !isLive(candidate) -> unplace(candidate)
+                    isExpired(candidate, now) -> remove(candidate, isEviction = false)
+                    else -> admit(candidate, now)
+                }
+            }
+        }
+    }
+
+    private fun admit(candidate: Entry, now: Long) {
+        if (mainSize >= mainCapacity) {
+            val victim = pollVictim(now)
+            when {
+                victim == null -> if (mainCapacity == 0) {
+                    remove(candidate, isEviction = true)
+                    return
+                }
+
+                sketch.frequency(candidate.key) > sketch.frequency(victim.key) -> remove(victim, isEviction = true)
+
+                else -> {
+                    main.addFirst(victim)
+                    remove(candidate, isEviction = true)
+                    return
+                }
+            }
+        }
+        main.addLast(candidate)
+        place(candidate, MAIN)
+        compact(main, MAIN, mainCapacity)
+    }
+
+    /**
+     * Selects victim of main region in FIFO order with second chance for recently read entries.
+     * Removed or expired entry met on the way frees room for the candidate instead.
+     *
+     * @return victim, NULL if main region has room for the candidate
+     */
+    private fun pollVictim(now: Long): Entry? {
+        repeat(main.size) {
+            val entry = main.pollFirst() ?: return null
+            when {
+                !isLive(entry) -> if (entry.region == MAIN) {
+                    unplace(entry)
+                    return null
+                }
+
+                isExpired(entry, now) -> {
+                    remove(entry, isEviction = false)
+                    return null
+                }
+
+                !entry.isAccessed -> return entry
+
+                else -> {
+                    /**
+                     * Second chance for recently read entry
+                     */
+                    entry.isAccessed = false
+                    main.addLast(entry)
+                }
+            }
+        }
+
+        /**
+         * All entries were read recently, the oldest one is the victim
+         */
+        while (true) {
+            val entry = main.pollFirst() ?: return null
+            if (isLive(entry)) {
+                return entry
+            }
+            if (entry.region == MAIN) {
+                unplace(entry)
+                return null
+            }
+        }
+    }
+
+    private fun place(entry: Entry, region: Int) {
+        unplace(entry)
+        entry.region = region
+        if (region == WINDOW) {
+            windowSize++
+        } else {
+            mainSize++
+        }
+    }
+
+    /**
+     * Stops counting removed entry, repeated invocation has no effect
+     */
+    private fun unplace(entry: Entry) {
+        when (entry.region) {
+            WINDOW -> windowSize--
+            MAIN -> mainSize--
+        }
+        entry.region = NO_REGION
+    }
+
+    /**
+     * Drops entries that are no longer counted by the region,
+     * so replaced keys do not grow the queue while region size stays within capacity
+     */
+    private fun compact(queue: ArrayDeque<Entry>, region: Int, capacity: Int) {
+        if (queue.size > 2 * Math.max(capacity, 1)) {
+            queue.removeIf { it.region != region }
+        }
+    }
+
+    private fun remove(entry: Entry, isEviction: Boolean) {
+        unplace(entry)
+        if (entries.remove(entry.key, entry) && isEviction) {
+            evictionCount.increment()
+        }
+    }
+
+    companion object {
+        private const val NO_REGION = 0
+        private const val WINDOW = 1
+        private const val MAIN = 2
+    }
+}
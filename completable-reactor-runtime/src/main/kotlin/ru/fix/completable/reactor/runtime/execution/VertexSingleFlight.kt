@@ -0,0 +1,125 @@
+package ru.fix.completable.reactor.runtime.execution
+
+import ru.fix.completable.reactor.graph.SingleFlightKey
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Coalesces concurrent handler invocations of a vertex with equal keys,
+ * shared by all executions of the graph, see [ExecutionPlan.PlanVertex.singleFlight].
+ *
+ * The first invocation of the key becomes a leader and starts handler or subgraph.
+ * Invocations of the same key that arrive while leader is in flight subscribe to its result.
+ * Each participant receives its own future, so timeout or cancellation of one execution does not affect others.
+ * Underlying invocation is cancelled only when all participants are cancelled.
+ */
+class VertexSingleFlight(private val singleFlightKey: SingleFlightKey<Any?>) {
+
+    private class Flight {
+        val result = CompletableFuture<Any?>()
+
+        @Volatile
+        var invocation: CompletableFuture<Any?>? = null
+
+        /**
+         * Participants that wait for the result, zero means that flight is abandoned and could not be joined
+         */
+        private val participants = AtomicInteger(1)
+
+        fun join(): Boolean {
+            while (true) {
+                val count = participants.get()
+                if (count <= 0) {
+                    return false
+                }
+                if (participants.compareAndSet(count, count + 1)) {
+                    return true
+                }
+            }
+        }
+
+        fun leave() {
+            if (participants.decrementAndGet() == 0) {
+                invocation?.cancel(true)
+            }
+        }
+    }
+
+    private val flights = ConcurrentHashMap<Any, Flight>()
+    private val leaderCount = LongAdder()
+    private val coalescedCount = LongAdder()
+
+    val leaderInvocations: Long
+        get() = leaderCount.sum()
+
+    val coalescedInvocations: Long
+        get() = coalescedCount.sum()
+
+    /**
+     * @param invoke starts underlying invocation if current invocation becomes a leader
+     */
+    fun invoke(payload: Any?, invoke: () -> CompletableFuture<Any?>): CompletableFuture<Any?> {
+        val key = singleFlightKey.key(payload) ?: return invoke()
+
+        while (true) {
+            val flight = Flight()
+            val existing = flights.putIfAbsent(key, flight)
+            if (existing == null) {
+                leaderCount.increment()
+                return lead(key, flight, invoke)
+            }
+            if (existing.join()) {
+                coalescedCount.increment()
+                return participate(existing)
+            }
+            /**
+             * All participants of existing flight are cancelled, it is replaced by new one
+             */
+            flights.remove(key, existing)
+        }
+    }
+
+    private fun lead(key: Any, flight: Flight, invoke: () -> CompletableFuture<Any?>): CompletableFuture<Any?> {
+        val invocation = try {
+            invoke()
+        } catch (exc: Exception) {
+            CompletableFuture<Any?>().apply { completeExceptionally(exc) }
+        }
+        flight.invocation = invocation
+
+        invocation.whenComplete { value, throwable ->
+            /**
+             * Invocations that arrive after completion start new flight
+             */
+            flights.remove(key, flight)
+            if (throwable == null) {
+                flight.result.complete(value)
+            } else {
+                flight.result.completeExceptionally(throwable)
+            }
+        }
+        return participate(flight)
+    }
+
+    private fun participate(flight: Flight): CompletableFuture<Any?> {
+        val participation = CompletableFuture<Any?>()
+        flight.result.whenComplete { value, throwable ->
+            if (throwable == null) {
+                participation.complete(value)
+            } else {
+                participation.completeExceptionally(throwable)
+            }
+        }
+        participation.whenComplete { _, throwable ->
+            if (throwable != null && !flight.result.isDone) {
+                /**
+                 * Participation is cancelled or timed out
+                 */
+                flight.leave()
+            }
+        }
+        return participation
+    }
+}
@@ -0,0 +1,9 @@
+package ru.fix.completable.reactor.runtime.execution
+
+import java.util.concurrent.TimeoutException
+
+/**
+ * Completes handler future that did not complete within vertex timeout,
+ * see [ru.fix.completable.reactor.graph.runtime.RuntimeVertex.timeoutMs]
+ */
+class VertexTimeoutException(message: String) : TimeoutException(message)
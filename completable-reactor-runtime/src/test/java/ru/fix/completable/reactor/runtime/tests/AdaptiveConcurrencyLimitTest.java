@@ -0,0 +1,63 @@
+package ru.fix.completable.reactor.runtime.tests;
+
+import org.junit.jupiter.api.Test;
+import ru.fix.completable.reactor.runtime.limit.AdaptiveConcurrencyLimit;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AdaptiveConcurrencyLimitTest {
+
+    private static final long LATENCY = TimeUnit.MILLISECONDS.toNanos(10);
+
+    @Test
+    void limit_grows_while_latency_is_steady_and_limit_is_utilized() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(10).setMaxLimit(100);
+
+        for (int sample = 0; sample < 1000; sample++) {
+            limit.onSample(LATENCY, limit.getLimit());
+        }
+
+        assertEquals(100, limit.getLimit());
+    }
+
+    @Test
+    void limit_does_not_grow_when_less_than_half_of_limit_is_in_flight() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(10).setMaxLimit(100);
+
+        for (int sample = 0; sample < 1000; sample++) {
+            limit.onSample(LATENCY, 1);
+        }
+
+        assertEquals(10, limit.getLimit());
+    }
+
+    @Test
+    void limit_shrinks_when_latency_grows() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(50).setMaxLimit(50);
+
+        for (int sample = 0; sample < 100; sample++) {
+            limit.onSample(LATENCY, limit.getLimit());
+        }
+        assertEquals(50, limit.getLimit());
+
+        for (int sample = 0; sample < 10; sample++) {
+            limit.onSample(LATENCY * 5, limit.getLimit());
+        }
+        assertTrue(limit.getLimit() < 50, "limit " + limit.getLimit());
+    }
+
+    @Test
+    void limit_shrinks_on_overload_down_to_min_limit() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(20).setMinLimit(5);
+
+        limit.onOverload();
+        assertEquals(18, limit.getLimit());
+
+        for (int drop = 0; drop < 100; drop++) {
+            limit.onOverload();
+        }
+        assertEquals(5, limit.getLimit());
+    }
+}
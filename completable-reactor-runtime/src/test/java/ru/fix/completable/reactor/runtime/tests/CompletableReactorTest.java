@@ -9,18 +9,39 @@ import org.slf4j.LoggerFactory;
 import ru.fix.aggregating.profiler.AggregatingProfiler;
 import ru.fix.aggregating.profiler.NoopProfiler;
 import ru.fix.aggregating.profiler.ProfiledCall;
+import ru.fix.completable.reactor.graph.BatchPolicy;
+import ru.fix.completable.reactor.graph.CachePolicy;
+import ru.fix.completable.reactor.graph.CircuitBreakerPolicy;
 import ru.fix.completable.reactor.graph.Graph;
+import ru.fix.completable.reactor.graph.HedgingPolicy;
+import ru.fix.completable.reactor.graph.RetryPolicy;
 import ru.fix.completable.reactor.graph.Vertex;
 import ru.fix.completable.reactor.runtime.CompletableReactor;
+import ru.fix.completable.reactor.runtime.execution.VertexCircuitBreaker;
+import ru.fix.completable.reactor.runtime.execution.VertexTimeoutException;
+import ru.fix.completable.reactor.runtime.limit.AdaptiveConcurrencyLimit;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 
@@ -1398,6 +1419,1685 @@ class CompletableReactorTest {
         }
     }
 
+    /**
+     * Vertex participates only in mergeBy transition and never receives payload through handleBy transition.
+     */
+    static class VertexWithoutHandleByTransitionGraph extends Graph<IdListPayload> {
+        Vertex vx1 = handler(new IdProcessor(1)::handle)
+                .withMerger((pld, id) -> {
+                    pld.idSequence.add(id);
+                });
+
+        Vertex vx2 = handler(new IdProcessor(2)::handle)
+                .withMerger((pld, id) -> {
+                    pld.idSequence.add(id);
+                });
+
+        {
+            payload()
+                    .handleBy(vx1);
+
+            vx1.onAny().mergeBy(vx2);
+
+            vx2.onAny().complete();
+        }
+    }
+
+    @Test
+    void graph_is_validated_when_execution_plan_is_compiled_during_registration() {
+        Exception exc = assertThrows(
+                IllegalArgumentException.class,
+                () -> reactor.registerGraph(new VertexWithoutHandleByTransitionGraph()));
+
+        assertTrue(exc.getMessage().contains("does not have incoming handling flows"));
+    }
+
+    enum BodyStatus {
+        FIRST {
+            @Override
+            String label() {
+                return "first";
+            }
+        },
+        SECOND {
+            @Override
+            String label() {
+                return "second";
+            }
+        },
+        THIRD {
+            @Override
+            String label() {
+                return "third";
+            }
+        };
+
+        abstract String label();
+    }
+
+    static class BodyStatusPayload {
+        final BodyStatus status;
+        final List<String> labels = new ArrayList<>();
+
+        BodyStatusPayload(BodyStatus status) {
+            this.status = status;
+        }
+    }
+
+    static class BodyStatusGraph extends Graph<BodyStatusPayload> {
+        Vertex route = router(pld -> pld.status);
+
+        Vertex first = mutator(pld -> pld.labels.add(pld.status.label()));
+
+        Vertex other = mutator(pld -> pld.labels.add("else " + pld.status.label()));
+
+        {
+            payload().handleBy(route);
+
+            route.on(BodyStatus.FIRST).handleBy(first);
+            route.onElse().handleBy(other);
+
+            first.onAny().complete();
+            other.onAny().complete();
+        }
+    }
+
+    @Test
+    void routing_table_resolves_enum_constants_with_body() throws Exception {
+        reactor.registerGraph(BodyStatusGraph.class);
+
+        assertEquals(Collections.singletonList("first"),
+                reactor.submit(new BodyStatusPayload(BodyStatus.FIRST)).getResultFuture().get(10, SECONDS).labels);
+
+        assertEquals(Collections.singletonList("else third"),
+                reactor.submit(new BodyStatusPayload(BodyStatus.THIRD)).getResultFuture().get(10, SECONDS).labels);
+    }
+
+    static class ThreadNamePayload {
+        final List<String> mergerThreads = Collections.synchronizedList(new ArrayList<>());
+    }
+
+    static class ThreadNameGraph extends Graph<ThreadNamePayload> {
+        Vertex vx1 = handler(pld -> CompletableFuture.completedFuture(1))
+                .withMerger((pld, id) -> {
+                    pld.mergerThreads.add(Thread.currentThread().getName());
+                });
+
+        Vertex vx2 = router(pld -> {
+            pld.mergerThreads.add(Thread.currentThread().getName());
+            return Status.OK;
+        });
+
+        {
+            payload()
+                    .handleBy(vx1);
+
+            vx1.onAny().handleBy(vx2);
+
+            vx2.onAny().complete();
+        }
+    }
+
+    private static ExecutorService namedThreadPool(String threadNamePrefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(2, runnable ->
+                new Thread(runnable, threadNamePrefix + counter.getAndIncrement()));
+    }
+
+    @Test
+    void reactor_executor_runs_merging_and_transitions() throws Exception {
+        ExecutorService reactorPool = namedThreadPool("reactor-pool-");
+        ExecutorService payloadPool = namedThreadPool("payload-pool-");
+        try {
+            reactor.setExecutor(reactorPool);
+            reactor.registerGraph(ThreadNameGraph.class);
+
+            ThreadNamePayload result = reactor.submit(new ThreadNamePayload()).getResultFuture().get(10, SECONDS);
+            assertEquals(2, result.mergerThreads.size());
+            assertTrue(result.mergerThreads.stream().allMatch(name -> name.startsWith("reactor-pool-")));
+
+            reactor.setExecutor(ThreadNamePayload.class, payloadPool);
+
+            result = reactor.submit(new ThreadNamePayload()).getResultFuture().get(10, SECONDS);
+            assertEquals(2, result.mergerThreads.size());
+            assertTrue(result.mergerThreads.stream().allMatch(name -> name.startsWith("payload-pool-")));
+
+        } finally {
+            /**
+             * Reactor completes pending request accounting on its executors
+             */
+            reactor.close();
+            reactorPool.shutdown();
+            payloadPool.shutdown();
+        }
+    }
+
+    static class MutatorChainPayload {
+        final List<Integer> steps = Collections.synchronizedList(new ArrayList<>());
+    }
+
+    static class MutatorChainGraph extends Graph<MutatorChainPayload> {
+        Vertex start = handler(pld -> CompletableFuture.completedFuture(0))
+                .withMerger((pld, step) -> {
+                    pld.steps.add(step);
+                });
+
+        Vertex step1 = mutator(pld -> pld.steps.add(1));
+        Vertex step2 = mutator(pld -> pld.steps.add(2));
+        Vertex step3 = mutator(pld -> pld.steps.add(3));
+        Vertex step4 = mutator(pld -> pld.steps.add(4));
+
+        {
+            payload().handleBy(start);
+
+            start.onAny().handleBy(step1);
+            step1.onAny().handleBy(step2);
+            step2.onAny().handleBy(step3);
+            step3.onAny().handleBy(step4);
+            step4.onAny().complete();
+        }
+    }
+
+    private int countExecutorTasksForMutatorChain(int directContinuationDepth) throws Exception {
+        AtomicInteger tasks = new AtomicInteger();
+
+        CompletableReactor chainReactor = new CompletableReactor(new NoopProfiler())
+                .setExecutor(command -> {
+                    tasks.incrementAndGet();
+                    ForkJoinPool.commonPool().execute(command);
+                })
+                .setDirectContinuationDepth(directContinuationDepth);
+        try {
+            chainReactor.registerGraph(MutatorChainGraph.class);
+
+            CompletableReactor.Execution<MutatorChainPayload> execution =
+                    chainReactor.submit(new MutatorChainPayload());
+
+            assertEquals(Arrays.asList(0, 1, 2, 3, 4), execution.getResultFuture().get(10, SECONDS).steps);
+            execution.getChainExecutionFuture().get(10, SECONDS);
+            return tasks.get();
+        } finally {
+            chainReactor.close();
+        }
+    }
+
+    @Test
+    void direct_continuation_runs_synchronous_vertices_without_executor() throws Exception {
+        int withoutDirectContinuation = countExecutorTasksForMutatorChain(0);
+        int withDirectContinuation = countExecutorTasksForMutatorChain(64);
+        int withShallowDirectContinuation = countExecutorTasksForMutatorChain(1);
+
+        assertTrue(withDirectContinuation < withoutDirectContinuation,
+                withDirectContinuation + " < " + withoutDirectContinuation);
+        assertTrue(withDirectContinuation <= withShallowDirectContinuation,
+                withDirectContinuation + " <= " + withShallowDirectContinuation);
+    }
+
+    static class PendingPayload {
+        final CompletableFuture<Integer> handlingResult = new CompletableFuture<>();
+    }
+
+    static class PendingGraph extends Graph<PendingPayload> {
+        Vertex pending = handler(pld -> pld.handlingResult)
+                .withMerger((pld, result) -> {
+                });
+
+        {
+            payload().handleBy(pending);
+            pending.onAny().complete();
+        }
+    }
+
+    private static long countReactorTimerThreads() {
+        return Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().equals("completable-reactor-timer"))
+                .count();
+    }
+
+    @Test
+    void close_async_waits_for_in_flight_executions_and_releases_reactor_threads() throws Exception {
+        long timerThreadsBeforeReactor = countReactorTimerThreads();
+
+        CompletableReactor closingReactor = new CompletableReactor(new NoopProfiler());
+        closingReactor.registerGraph(new PendingGraph());
+
+        PendingPayload payload = new PendingPayload();
+        CompletableReactor.Execution<PendingPayload> execution = closingReactor.submit(payload);
+        assertEquals(1, closingReactor.getPendingRequestCount());
+
+        CompletableFuture<Void> drainFuture = closingReactor.drainAsync(PendingPayload.class);
+        CompletableFuture<Void> closeFuture = closingReactor.closeAsync();
+        assertSame(closeFuture, closingReactor.closeAsync());
+        assertFalse(drainFuture.isDone());
+        assertFalse(closeFuture.isDone());
+
+        assertThrows(IllegalStateException.class, () -> closingReactor.submit(new PendingPayload()));
+
+        payload.handlingResult.complete(1);
+
+        execution.getChainExecutionFuture().get(10, SECONDS);
+        drainFuture.get(10, SECONDS);
+        closeFuture.get(10, SECONDS);
+
+        assertEquals(0, closingReactor.getPendingRequestCount());
+        assertEquals(timerThreadsBeforeReactor, countReactorTimerThreads());
+    }
+
+    static class InFlightCountPayload {
+        final CompletableReactor reactor;
+        volatile long pendingRequestCount;
+
+        InFlightCountPayload(CompletableReactor reactor) {
+            this.reactor = reactor;
+        }
+    }
+
+    static class InFlightCountGraph extends Graph<InFlightCountPayload> {
+        Vertex count = handler(pld -> CompletableFuture.completedFuture(pld.reactor.getPendingRequestCount()))
+                .withMerger((pld, result) -> {
+                    pld.pendingRequestCount = result;
+                });
+
+        {
+            payload().handleBy(count);
+            count.onAny().complete();
+        }
+    }
+
+    @Test
+    void submitted_request_is_accounted_by_single_in_flight_slot() throws Exception {
+        reactor.setExecutor(Runnable::run);
+        reactor.registerGraph(new InFlightCountGraph());
+
+        InFlightCountPayload payload = new InFlightCountPayload(reactor);
+        reactor.submit(payload).getChainExecutionFuture().get(10, SECONDS);
+
+        /**
+         * Direct executor runs handler within submit
+         */
+        assertEquals(1, payload.pendingRequestCount);
+    }
+
+    @Test
+    void submit_async_admits_queued_payloads_in_fifo_order() throws Exception {
+        reactor.registerGraph(new PendingGraph());
+        reactor.setMaxPendingRequestCount(1);
+
+        PendingPayload first = new PendingPayload();
+        PendingPayload second = new PendingPayload();
+        PendingPayload third = new PendingPayload();
+
+        CompletableFuture<CompletableReactor.Execution<PendingPayload>> firstAdmission = reactor.submitAsync(first);
+        CompletableFuture<CompletableReactor.Execution<PendingPayload>> secondAdmission = reactor.submitAsync(second);
+        CompletableFuture<CompletableReactor.Execution<PendingPayload>> thirdAdmission = reactor.submitAsync(third);
+
+        firstAdmission.get(10, SECONDS);
+        assertFalse(secondAdmission.isDone());
+        assertFalse(thirdAdmission.isDone());
+        assertEquals(2, reactor.getAdmissionQueueSize());
+
+        first.handlingResult.complete(1);
+        firstAdmission.get().getChainExecutionFuture().get(10, SECONDS);
+        secondAdmission.get(10, SECONDS);
+        assertFalse(thirdAdmission.isDone());
+
+        second.handlingResult.complete(2);
+        thirdAdmission.get(10, SECONDS);
+        assertEquals(0, reactor.getAdmissionQueueSize());
+
+        third.handlingResult.complete(3);
+        thirdAdmission.get().getChainExecutionFuture().get(10, SECONDS);
+    }
+
+    @Test
+    void try_submit_and_submit_async_agree_on_capacity_limit() throws Exception {
+        reactor.registerGraph(new PendingGraph());
+        reactor.setMaxPendingRequestCount(1);
+
+        PendingPayload first = new PendingPayload();
+        reactor.submit(first);
+
+        assertFalse(reactor.trySubmit(new PendingPayload()).isPresent());
+
+        PendingPayload queued = new PendingPayload();
+        CompletableFuture<CompletableReactor.Execution<PendingPayload>> queuedAdmission = reactor.submitAsync(queued);
+        assertFalse(queuedAdmission.isDone());
+
+        first.handlingResult.complete(1);
+        queued.handlingResult.complete(2);
+        queuedAdmission.get(10, SECONDS).getChainExecutionFuture().get(10, SECONDS);
+    }
+
+    @Test
+    void execution_of_admission_cancelled_by_client_is_cancelled() throws Exception {
+        List<Runnable> tasks = new CopyOnWriteArrayList<>();
+        reactor.setExecutor(tasks::add);
+        reactor.registerGraph(new PendingGraph());
+
+        PendingPayload payload = new PendingPayload();
+        CompletableFuture<CompletableReactor.Execution<PendingPayload>> admission = reactor.submitAsync(payload);
+
+        /**
+         * Payload is submitted by the drain, admission is completed by executor after client cancelled it
+         */
+        assertEquals(1, reactor.getPendingRequestCount());
+        assertFalse(admission.isDone());
+        admission.cancel(false);
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (reactor.getPendingRequestCount() != 0) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            for (Runnable task : tasks) {
+                tasks.remove(task);
+                task.run();
+            }
+        }
+        assertFalse(payload.handlingResult.isDone());
+    }
+
+    @Test
+    void concurrent_submit_async_does_not_exceed_capacity() throws Exception {
+        reactor.registerGraph(new PendingGraph());
+        reactor.setMaxPendingRequestCount(2);
+
+        int submitterCount = 8;
+        ExecutorService submitters = Executors.newFixedThreadPool(submitterCount);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<PendingPayload> payloads = new ArrayList<>();
+            List<Future<CompletableFuture<CompletableReactor.Execution<PendingPayload>>>> admissions =
+                    new ArrayList<>();
+            for (int i = 0; i < submitterCount; i++) {
+                PendingPayload payload = new PendingPayload();
+                payloads.add(payload);
+                admissions.add(submitters.submit(() -> {
+                    start.await();
+                    return reactor.submitAsync(payload);
+                }));
+            }
+            start.countDown();
+            for (Future<?> admission : admissions) {
+                admission.get(10, SECONDS);
+            }
+
+            assertEquals(2, reactor.getPendingRequestCount());
+            assertEquals(submitterCount - 2, reactor.getAdmissionQueueSize());
+
+            for (PendingPayload payload : payloads) {
+                payload.handlingResult.complete(1);
+            }
+            for (Future<CompletableFuture<CompletableReactor.Execution<PendingPayload>>> admission : admissions) {
+                admission.get().get(10, SECONDS).getChainExecutionFuture().get(10, SECONDS);
+            }
+        } finally {
+            submitters.shutdown();
+        }
+    }
+
+    @Test
+    void submit_async_rejects_payloads_of_full_admission_queue() throws Exception {
+        reactor.registerGraph(new PendingGraph());
+        reactor.setMaxPendingRequestCount(1)
+                .setMaxAdmissionQueueSize(1);
+
+        PendingPayload first = new PendingPayload();
+        PendingPayload second = new PendingPayload();
+
+        reactor.submitAsync(first).get(10, SECONDS);
+        CompletableFuture<CompletableReactor.Execution<PendingPayload>> secondAdmission = reactor.submitAsync(second);
+        CompletableFuture<CompletableReactor.Execution<PendingPayload>> thirdAdmission =
+                reactor.submitAsync(new PendingPayload());
+
+        ExecutionException rejection = assertThrows(ExecutionException.class, () -> thirdAdmission.get(10, SECONDS));
+        assertTrue(rejection.getCause() instanceof RejectedExecutionException);
+
+        first.handlingResult.complete(1);
+        secondAdmission.get(10, SECONDS);
+        second.handlingResult.complete(2);
+    }
+
+    @Test
+    void admission_queue_sheds_payloads_waiting_longer_than_target_sojourn_time() throws Exception {
+        reactor.registerGraph(new PendingGraph());
+        reactor.setMaxPendingRequestCount(1)
+                .setAdmissionTargetSojournTime(10, 10);
+
+        PendingPayload first = new PendingPayload();
+        reactor.submitAsync(first).get(10, SECONDS);
+
+        CompletableFuture<CompletableReactor.Execution<PendingPayload>> queuedAdmission =
+                reactor.submitAsync(new PendingPayload());
+
+        /**
+         * No execution completes, standing queue is shed by timer
+         */
+        ExecutionException rejection = assertThrows(ExecutionException.class, () -> queuedAdmission.get(10, SECONDS));
+        assertTrue(rejection.getCause() instanceof RejectedExecutionException);
+        assertEquals(1, reactor.getShedAdmissionCount());
+        assertEquals(0, reactor.getAdmissionQueueSize());
+
+        first.handlingResult.complete(1);
+    }
+
+    static class OtherPendingPayload extends PendingPayload {
+    }
+
+    static class OtherPendingGraph extends Graph<OtherPendingPayload> {
+        Vertex pending = handler(pld -> pld.handlingResult)
+                .withMerger((pld, result) -> {
+                });
+
+        {
+            payload().handleBy(pending);
+            pending.onAny().complete();
+        }
+    }
+
+    @Test
+    void concurrency_limit_queues_payloads_of_limited_type_only() throws Exception {
+        reactor.registerGraph(new PendingGraph());
+        reactor.registerGraph(new OtherPendingGraph());
+        reactor.setConcurrencyLimit(PendingPayload.class, new AdaptiveConcurrencyLimit(1).setMaxLimit(1));
+
+        PendingPayload first = new PendingPayload();
+        PendingPayload second = new PendingPayload();
+        OtherPendingPayload other = new OtherPendingPayload();
+
+        CompletableFuture<CompletableReactor.Execution<PendingPayload>> firstAdmission = reactor.submitAsync(first);
+        CompletableFuture<CompletableReactor.Execution<PendingPayload>> secondAdmission = reactor.submitAsync(second);
+        CompletableFuture<CompletableReactor.Execution<OtherPendingPayload>> otherAdmission =
+                reactor.submitAsync(other);
+
+        firstAdmission.get(10, SECONDS);
+        assertFalse(secondAdmission.isDone());
+        otherAdmission.get(10, SECONDS);
+        assertFalse(reactor.trySubmit(new PendingPayload()).isPresent());
+
+        first.handlingResult.complete(1);
+        secondAdmission.get(10, SECONDS);
+
+        second.handlingResult.complete(2);
+        other.handlingResult.complete(3);
+        secondAdmission.get().getChainExecutionFuture().get(10, SECONDS);
+        otherAdmission.get().getChainExecutionFuture().get(10, SECONDS);
+    }
+
+    static class BulkheadGraph extends Graph<PendingPayload> {
+        final ExecutorService vertexExecutor = Executors.newSingleThreadExecutor(
+                runnable -> new Thread(runnable, "bulkhead-vertex"));
+
+        final List<PendingPayload> invokedPayloads = new CopyOnWriteArrayList<>();
+        final List<String> invokingThreads = new CopyOnWriteArrayList<>();
+        final AtomicBoolean isOverlapped = new AtomicBoolean();
+
+        Vertex limited = handler(pld -> {
+            if (invokedPayloads.stream().anyMatch(invoked -> !invoked.handlingResult.isDone())) {
+                isOverlapped.set(true);
+            }
+            invokedPayloads.add(pld);
+            invokingThreads.add(Thread.currentThread().getName());
+            return pld.handlingResult;
+        })
+                .withMaxConcurrency(1)
+                .withExecutor(vertexExecutor)
+                .withMerger((pld, result) -> {
+                });
+
+        {
+            payload().handleBy(limited);
+            limited.onAny().complete();
+        }
+    }
+
+    private static void awaitInvocations(List<?> invocations, int count) throws Exception {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (invocations.size() < count) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new TimeoutException("Expected " + count + " invocations, but got " + invocations.size());
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    void vertex_bulkhead_queues_handler_invocations_above_max_concurrency() throws Exception {
+        BulkheadGraph graph = new BulkheadGraph();
+        reactor.registerGraph(graph);
+
+        List<CompletableReactor.Execution<PendingPayload>> executions = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            executions.add(reactor.submit(new PendingPayload()));
+        }
+
+        for (int i = 0; i < 3; i++) {
+            awaitInvocations(graph.invokedPayloads, i + 1);
+            Thread.sleep(50);
+            assertEquals(i + 1, graph.invokedPayloads.size());
+            graph.invokedPayloads.get(i).handlingResult.complete(i);
+        }
+
+        for (CompletableReactor.Execution<PendingPayload> execution : executions) {
+            execution.getChainExecutionFuture().get(10, SECONDS);
+        }
+        assertFalse(graph.isOverlapped.get());
+        assertEquals(Arrays.asList("bulkhead-vertex", "bulkhead-vertex", "bulkhead-vertex"), graph.invokingThreads);
+
+        graph.vertexExecutor.shutdown();
+    }
+
+    enum BulkheadStatus {
+        HANDLED,
+        REJECTED
+    }
+
+    static class BulkheadStatusPayload extends PendingPayload {
+        volatile BulkheadStatus status;
+    }
+
+    static class RejectingBulkheadGraph extends Graph<BulkheadStatusPayload> {
+        final AtomicInteger handlerInvocations = new AtomicInteger();
+
+        Vertex limited = handler(pld -> {
+            handlerInvocations.incrementAndGet();
+            return pld.handlingResult;
+        })
+                .withMaxConcurrency(1, 0, BulkheadStatus.REJECTED)
+                .withRoutingMerger((pld, result) -> {
+                    pld.status = BulkheadStatus.HANDLED;
+                    return BulkheadStatus.HANDLED;
+                });
+
+        Vertex markRejected = mutator(pld -> pld.status = BulkheadStatus.REJECTED);
+
+        {
+            payload().handleBy(limited);
+            limited.on(BulkheadStatus.HANDLED).complete();
+            limited.on(BulkheadStatus.REJECTED).handleBy(markRejected);
+            markRejected.onAny().complete();
+        }
+    }
+
+    @Test
+    void vertex_bulkhead_fails_fast_into_rejection_status() throws Exception {
+        RejectingBulkheadGraph graph = new RejectingBulkheadGraph();
+        reactor.registerGraph(graph);
+
+        BulkheadStatusPayload first = new BulkheadStatusPayload();
+        BulkheadStatusPayload second = new BulkheadStatusPayload();
+        CompletableFuture<BulkheadStatusPayload> firstResult = reactor.submit(first).getResultFuture();
+        CompletableFuture<BulkheadStatusPayload> secondResult = reactor.submit(second).getResultFuture();
+
+        /**
+         * One of payloads occupies the only permit, another one is rejected without queueing
+         */
+        BulkheadStatusPayload rejected = (BulkheadStatusPayload) CompletableFuture.anyOf(firstResult, secondResult)
+                .get(10, SECONDS);
+        assertEquals(BulkheadStatus.REJECTED, rejected.status);
+        assertEquals(1, graph.handlerInvocations.get());
+
+        first.handlingResult.complete(1);
+        second.handlingResult.complete(2);
+        BulkheadStatusPayload handled = rejected == first ? secondResult.get(10, SECONDS) : firstResult.get(10, SECONDS);
+        assertEquals(BulkheadStatus.HANDLED, handled.status);
+    }
+
+    static class UnroutableRejectionGraph extends Graph<BulkheadStatusPayload> {
+        Vertex limited = handler(pld -> pld.handlingResult)
+                .withMaxConcurrency(1, 0, BulkheadStatus.REJECTED)
+                .withRoutingMerger((pld, result) -> BulkheadStatus.HANDLED);
+
+        {
+            payload().handleBy(limited);
+            limited.on(BulkheadStatus.HANDLED).complete();
+        }
+    }
+
+    @Test
+    void vertex_bulkhead_rejection_status_is_validated_during_registration() {
+        Exception exc = assertThrows(
+                IllegalArgumentException.class,
+                () -> reactor.registerGraph(new UnroutableRejectionGraph()));
+
+        assertTrue(exc.getMessage().contains("does not have outgoing transition for this status"));
+    }
+
+    static class CancellablePayload {
+        final CompletableFuture<Integer> slowResult = new CompletableFuture<>();
+        final CompletableFuture<Integer> detachedResult = new CompletableFuture<>();
+        final CompletableFuture<Void> isSlowHandlerInvoked = new CompletableFuture<>();
+        final AtomicInteger downstreamInvocations = new AtomicInteger();
+    }
+
+    static class CancellableGraph extends Graph<CancellablePayload> {
+        Vertex slow = handler(pld -> {
+            pld.isSlowHandlerInvoked.complete(null);
+            return pld.slowResult;
+        })
+                .withMerger((pld, result) -> {
+                });
+
+        Vertex downstream = handler(pld -> {
+            pld.downstreamInvocations.incrementAndGet();
+            return CompletableFuture.completedFuture(1);
+        })
+                .withMerger((pld, result) -> {
+                });
+
+        {
+            payload().handleBy(slow);
+            slow.onAny().handleBy(downstream);
+            downstream.onAny().complete();
+        }
+    }
+
+    @Test
+    void execution_cancel_cancels_running_handlers_and_skips_vertices_that_have_not_started() throws Exception {
+        reactor.registerGraph(new CancellableGraph());
+
+        CancellablePayload payload = new CancellablePayload();
+        CompletableReactor.Execution<CancellablePayload> execution = reactor.submit(payload);
+        payload.isSlowHandlerInvoked.get(10, SECONDS);
+
+        assertTrue(execution.cancel());
+        assertFalse(execution.cancel());
+
+        assertTrue(execution.getResultFuture().isCancelled());
+        ExecutionException exc = assertThrows(
+                ExecutionException.class,
+                () -> execution.getChainExecutionFuture().get(10, SECONDS));
+        assertTrue(exc.getCause() instanceof CancellationException);
+
+        /**
+         * Handler future could be shared with other callers and is left intact
+         */
+        assertFalse(payload.slowResult.isDone());
+        assertEquals(0, payload.downstreamInvocations.get());
+    }
+
+    static class CompleteWithRunningHandlersGraph extends Graph<CancellablePayload> {
+        Vertex fast = handler(pld -> CompletableFuture.completedFuture(1))
+                .withMerger((pld, result) -> {
+                });
+
+        Vertex slow = handler(pld -> pld.slowResult)
+                .withMerger((pld, result) -> {
+                });
+
+        Vertex detached = handler(pld -> pld.detachedResult)
+                .withoutMerger();
+
+        {
+            payload()
+                    .handleBy(fast)
+                    .handleBy(slow)
+                    .handleBy(detached);
+
+            fast.onAny().complete();
+            slow.onAny().complete();
+        }
+    }
+
+    @Test
+    void completed_execution_stops_waiting_for_handlers_with_merger_and_keeps_detached_handlers() throws Exception {
+        reactor.registerGraph(new CompleteWithRunningHandlersGraph());
+
+        CancellablePayload payload = new CancellablePayload();
+        CompletableReactor.Execution<CancellablePayload> execution = reactor.submit(payload);
+
+        execution.getResultFuture().get(10, SECONDS);
+        assertFalse(execution.getChainExecutionFuture().isDone());
+
+        payload.detachedResult.complete(1);
+        execution.getChainExecutionFuture().get(10, SECONDS);
+        assertFalse(payload.slowResult.isDone());
+    }
+
+    static class LateMergingVertexGraph extends Graph<CancellablePayload> {
+        final List<Runnable> queuedHandlings = new CopyOnWriteArrayList<>();
+        final AtomicInteger lateInvocations = new AtomicInteger();
+
+        Vertex fast = handler(pld -> CompletableFuture.completedFuture(1))
+                .withMerger((pld, result) -> {
+                });
+
+        Vertex late = handler(pld -> {
+            lateInvocations.incrementAndGet();
+            return CompletableFuture.completedFuture(1);
+        })
+                .withExecutor(queuedHandlings::add)
+                .withMerger((pld, result) -> {
+                });
+
+        {
+            payload()
+                    .handleBy(fast)
+                    .handleBy(late);
+
+            fast.onAny().complete();
+            late.onAny().complete();
+        }
+    }
+
+    @Test
+    void completed_execution_does_not_start_handlers_with_merger() throws Exception {
+        LateMergingVertexGraph graph = new LateMergingVertexGraph();
+        reactor.registerGraph(graph);
+
+        CompletableReactor.Execution<CancellablePayload> execution = reactor.submit(new CancellablePayload());
+        execution.getResultFuture().get(10, SECONDS);
+
+        /**
+         * Handling of vertex with merger dispatched to its executor runs after execution result is completed
+         */
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!execution.getChainExecutionFuture().isDone() && System.currentTimeMillis() < deadline) {
+            for (Runnable handling : graph.queuedHandlings) {
+                graph.queuedHandlings.remove(handling);
+                handling.run();
+            }
+            Thread.sleep(10);
+        }
+
+        execution.getChainExecutionFuture().get(10, SECONDS);
+        assertEquals(0, graph.lateInvocations.get());
+    }
+
+    static class CancellableSubgraphPayload {
+        final CancellablePayload childPayload = new CancellablePayload();
+    }
+
+    static class CancellableParentGraph extends Graph<CancellableSubgraphPayload> {
+        Vertex child = subgraph(CancellablePayload.class, pld -> pld.childPayload)
+                .withMerger((pld, result) -> {
+                });
+
+        {
+            payload().handleBy(child);
+            child.onAny().complete();
+        }
+    }
+
+    @Test
+    void execution_timeout_cancels_subgraph_execution() throws Exception {
+        reactor.registerGraph(new CancellableGraph());
+        reactor.registerGraph(new CancellableParentGraph());
+
+        CancellableSubgraphPayload payload = new CancellableSubgraphPayload();
+        CompletableReactor.Execution<CancellableSubgraphPayload> execution = reactor.submit(payload, 100);
+
+        ExecutionException exc = assertThrows(
+                ExecutionException.class,
+                () -> execution.getResultFuture().get(10, SECONDS));
+        assertTrue(exc.getCause() instanceof TimeoutException);
+
+        /**
+         * Parent chain execution waits for cancelled child execution
+         */
+        assertThrows(ExecutionException.class, () -> execution.getChainExecutionFuture().get(10, SECONDS));
+        assertFalse(payload.childPayload.slowResult.isDone());
+        assertEquals(0, payload.childPayload.downstreamInvocations.get());
+    }
+
+    @Test
+    void subgraph_runs_as_child_of_parent_execution() throws Exception {
+        reactor.registerGraph(new CompleteWithRunningHandlersGraph());
+        reactor.registerGraph(new CancellableParentGraph());
+
+        CancellableSubgraphPayload payload = new CancellableSubgraphPayload();
+        CompletableReactor.Execution<CancellableSubgraphPayload> execution = reactor.submit(payload);
+        execution.getResultFuture().get(10, SECONDS);
+
+        /**
+         * Subgraph is not accounted as separate request, parent chain waits for detached handler of the subgraph
+         */
+        assertEquals(1, reactor.getPendingRequestCount());
+        assertFalse(execution.getChainExecutionFuture().isDone());
+
+        payload.childPayload.detachedResult.complete(1);
+        execution.getChainExecutionFuture().get(10, SECONDS);
+    }
+
+    enum TimeoutStatus {
+        HANDLED,
+        TIMED_OUT
+    }
+
+    static class TimeoutPayload extends PendingPayload {
+        volatile TimeoutStatus status;
+    }
+
+    static class TimeoutStatusGraph extends Graph<TimeoutPayload> {
+        Vertex slow = handler(pld -> pld.handlingResult)
+                .withTimeout(100, TimeoutStatus.TIMED_OUT)
+                .withRoutingMerger((pld, result) -> {
+                    pld.status = TimeoutStatus.HANDLED;
+                    return TimeoutStatus.HANDLED;
+                });
+
+        Vertex markTimedOut = mutator(pld -> pld.status = TimeoutStatus.TIMED_OUT);
+
+        {
+            payload().handleBy(slow);
+            slow.on(TimeoutStatus.HANDLED).complete();
+            slow.on(TimeoutStatus.TIMED_OUT).handleBy(markTimedOut);
+            markTimedOut.onAny().complete();
+        }
+    }
+
+    @Test
+    void vertex_timeout_routes_by_timeout_status() throws Exception {
+        reactor.registerGraph(new TimeoutStatusGraph());
+
+        TimeoutPayload payload = new TimeoutPayload();
+        TimeoutPayload result = reactor.submit(payload).getResultFuture().get(10, SECONDS);
+
+        assertEquals(TimeoutStatus.TIMED_OUT, result.status);
+        assertFalse(payload.handlingResult.isDone());
+    }
+
+    static class SharedFutureTimeoutGraph extends Graph<TimeoutPayload> {
+        final CompletableFuture<Object> sharedResult = new CompletableFuture<>();
+
+        Vertex slow = handler(pld -> sharedResult)
+                .withTimeout(100, TimeoutStatus.TIMED_OUT)
+                .withRoutingMerger((pld, result) -> {
+                    pld.status = TimeoutStatus.HANDLED;
+                    return TimeoutStatus.HANDLED;
+                });
+
+        Vertex markTimedOut = mutator(pld -> pld.status = TimeoutStatus.TIMED_OUT);
+
+        {
+            payload().handleBy(slow);
+            slow.on(TimeoutStatus.HANDLED).complete();
+            slow.on(TimeoutStatus.TIMED_OUT).handleBy(markTimedOut);
+            markTimedOut.onAny().complete();
+        }
+    }
+
+    @Test
+    void vertex_timeout_leaves_shared_handler_future_intact() throws Exception {
+        SharedFutureTimeoutGraph graph = new SharedFutureTimeoutGraph();
+        reactor.registerGraph(graph);
+
+        CompletableFuture<Object> otherCaller = graph.sharedResult.thenApply(result -> result);
+
+        TimeoutPayload result = reactor.submit(new TimeoutPayload()).getResultFuture().get(10, SECONDS);
+        assertEquals(TimeoutStatus.TIMED_OUT, result.status);
+        assertFalse(graph.sharedResult.isDone());
+        assertFalse(otherCaller.isDone());
+
+        graph.sharedResult.complete(1);
+        assertEquals(1, otherCaller.get(10, SECONDS));
+    }
+
+    static class TimedOutBulkheadGraph extends Graph<TimeoutPayload> {
+        final List<TimeoutPayload> invokedPayloads = new CopyOnWriteArrayList<>();
+
+        Vertex limited = handler(pld -> {
+            invokedPayloads.add(pld);
+            return pld.handlingResult;
+        })
+                .withMaxConcurrency(1)
+                .withTimeout(100, TimeoutStatus.TIMED_OUT)
+                .withRoutingMerger((pld, result) -> {
+                    pld.status = TimeoutStatus.HANDLED;
+                    return TimeoutStatus.HANDLED;
+                });
+
+        Vertex markTimedOut = mutator(pld -> pld.status = TimeoutStatus.TIMED_OUT);
+
+        {
+            payload().handleBy(limited);
+            limited.on(TimeoutStatus.HANDLED).complete();
+            limited.on(TimeoutStatus.TIMED_OUT).handleBy(markTimedOut);
+            markTimedOut.onAny().complete();
+        }
+    }
+
+    @Test
+    void timed_out_handler_holds_bulkhead_permit_and_queued_invocation_times_out() throws Exception {
+        TimedOutBulkheadGraph graph = new TimedOutBulkheadGraph();
+        reactor.registerGraph(graph);
+
+        TimeoutPayload first = new TimeoutPayload();
+        assertEquals(TimeoutStatus.TIMED_OUT, reactor.submit(first).getResultFuture().get(10, SECONDS).status);
+
+        /**
+         * Handler future of timed out invocation is still running and holds the only permit,
+         * queued invocation times out without being started
+         */
+        TimeoutPayload second = new TimeoutPayload();
+        assertEquals(TimeoutStatus.TIMED_OUT, reactor.submit(second).getResultFuture().get(10, SECONDS).status);
+        assertEquals(Collections.singletonList(first), graph.invokedPayloads);
+
+        first.handlingResult.complete(1);
+
+        TimeoutPayload third = new TimeoutPayload();
+        CompletableFuture<TimeoutPayload> thirdResult = reactor.submit(third).getResultFuture();
+        awaitInvocations(graph.invokedPayloads, 2);
+        assertSame(third, graph.invokedPayloads.get(1));
+        third.handlingResult.complete(3);
+        assertEquals(TimeoutStatus.HANDLED, thirdResult.get(10, SECONDS).status);
+    }
+
+    static class TimeoutFailureGraph extends Graph<PendingPayload> {
+        Vertex slow = handler(pld -> pld.handlingResult)
+                .withTimeout(100)
+                .withMerger((pld, result) -> {
+                });
+
+        {
+            payload().handleBy(slow);
+            slow.onAny().complete();
+        }
+    }
+
+    @Test
+    void vertex_timeout_fails_execution_with_timeout_exception() throws Exception {
+        reactor.registerGraph(new TimeoutFailureGraph());
+
+        CompletableReactor.Execution<PendingPayload> execution = reactor.submit(new PendingPayload());
+
+        ExecutionException exc = assertThrows(
+                ExecutionException.class,
+                () -> execution.getResultFuture().get(10, SECONDS));
+        assertTrue(exc.getCause().getCause() instanceof VertexTimeoutException);
+    }
+
+    static class FlakyPayload {
+        final int failures;
+        final AtomicInteger attempts = new AtomicInteger();
+        volatile Integer result;
+
+        FlakyPayload(int failures) {
+            this.failures = failures;
+        }
+
+        CompletableFuture<Integer> invoke(Supplier<RuntimeException> exception) {
+            int attempt = attempts.incrementAndGet();
+            CompletableFuture<Integer> future = new CompletableFuture<>();
+            if (attempt <= failures) {
+                future.completeExceptionally(exception.get());
+            } else {
+                future.complete(attempt);
+            }
+            return future;
+        }
+    }
+
+    static class RetryGraph extends Graph<FlakyPayload> {
+        Vertex flaky = handler(pld -> pld.invoke(() -> new IllegalStateException("Temporary failure")))
+                .withRetry(new RetryPolicy()
+                        .setMaxAttempts(3)
+                        .setBackoff(10, 50)
+                        .setRetryable(exc -> exc instanceof IllegalStateException))
+                .withMerger((pld, result) -> pld.result = result);
+
+        {
+            payload().handleBy(flaky);
+            flaky.onAny().complete();
+        }
+    }
+
+    static class NonRetryableGraph extends Graph<FlakyPayload> {
+        Vertex flaky = handler(pld -> pld.invoke(() -> new IllegalArgumentException("Permanent failure")))
+                .withRetry(new RetryPolicy()
+                        .setMaxAttempts(3)
+                        .setBackoff(10, 50)
+                        .setRetryable(exc -> exc instanceof IllegalStateException))
+                .withMerger((pld, result) -> pld.result = result);
+
+        {
+            payload().handleBy(flaky);
+            flaky.onAny().complete();
+        }
+    }
+
+    @Test
+    void vertex_retry_policy_retries_failed_handler_until_success() throws Exception {
+        reactor.registerGraph(new RetryGraph());
+
+        FlakyPayload result = reactor.submit(new FlakyPayload(2)).getResultFuture().get(10, SECONDS);
+
+        assertEquals(3, result.attempts.get());
+        assertEquals(Integer.valueOf(3), result.result);
+    }
+
+    @Test
+    void vertex_retry_policy_fails_execution_when_attempts_are_exhausted() throws Exception {
+        reactor.registerGraph(new RetryGraph());
+
+        FlakyPayload payload = new FlakyPayload(5);
+        ExecutionException exc = assertThrows(
+                ExecutionException.class,
+                () -> reactor.submit(payload).getResultFuture().get(10, SECONDS));
+
+        assertTrue(exc.getCause().getCause() instanceof IllegalStateException);
+        assertEquals(3, payload.attempts.get());
+    }
+
+    @Test
+    void vertex_retry_policy_does_not_retry_non_retryable_exception() throws Exception {
+        reactor.registerGraph(new NonRetryableGraph());
+
+        FlakyPayload payload = new FlakyPayload(1);
+        ExecutionException exc = assertThrows(
+                ExecutionException.class,
+                () -> reactor.submit(payload).getResultFuture().get(10, SECONDS));
+
+        assertTrue(exc.getCause().getCause() instanceof IllegalArgumentException);
+        assertEquals(1, payload.attempts.get());
+    }
+
+    enum BreakerStatus {
+        HANDLED,
+        UNAVAILABLE
+    }
+
+    static class BreakerPayload {
+        final boolean fail;
+        volatile BreakerStatus status;
+
+        BreakerPayload(boolean fail) {
+            this.fail = fail;
+        }
+    }
+
+    static class CircuitBreakerGraph extends Graph<BreakerPayload> {
+        final AtomicInteger invocations = new AtomicInteger();
+
+        Vertex service = handler(pld -> {
+            invocations.incrementAndGet();
+            CompletableFuture<Boolean> future = new CompletableFuture<>();
+            if (pld.fail) {
+                future.completeExceptionally(new IllegalStateException("Service failure"));
+            } else {
+                future.complete(true);
+            }
+            return future;
+        })
+                .withCircuitBreaker(new CircuitBreakerPolicy()
+                                .setSlidingWindow(4, 2)
+                                .setFailureRateThreshold(0.5)
+                                .setOpenDurationMs(200),
+                        BreakerStatus.UNAVAILABLE)
+                .withRoutingMerger((pld, result) -> {
+                    pld.status = BreakerStatus.HANDLED;
+                    return BreakerStatus.HANDLED;
+                });
+
+        Vertex markUnavailable = mutator(pld -> pld.status = BreakerStatus.UNAVAILABLE);
+
+        {
+            payload().handleBy(service);
+            service.on(BreakerStatus.HANDLED).complete();
+            service.on(BreakerStatus.UNAVAILABLE).handleBy(markUnavailable);
+            markUnavailable.onAny().complete();
+        }
+    }
+
+    @Test
+    void open_circuit_breaker_routes_by_status_without_invoking_handler() throws Exception {
+        CircuitBreakerGraph graph = new CircuitBreakerGraph();
+        reactor.registerGraph(graph);
+
+        for (int attempt = 0; attempt < 2; attempt++) {
+            CompletableFuture<BreakerPayload> result = reactor.submit(new BreakerPayload(true)).getResultFuture();
+            assertThrows(ExecutionException.class, () -> result.get(10, SECONDS));
+        }
+        assertEquals(2, graph.invocations.get());
+
+        BreakerPayload shortCircuited = reactor.submit(new BreakerPayload(false)).getResultFuture().get(10, SECONDS);
+        assertEquals(BreakerStatus.UNAVAILABLE, shortCircuited.status);
+        assertEquals(2, graph.invocations.get());
+
+        /**
+         * After open duration trial invocation succeeds and closes the breaker
+         */
+        Thread.sleep(300);
+
+        BreakerPayload trial = reactor.submit(new BreakerPayload(false)).getResultFuture().get(10, SECONDS);
+        assertEquals(BreakerStatus.HANDLED, trial.status);
+
+        BreakerPayload next = reactor.submit(new BreakerPayload(false)).getResultFuture().get(10, SECONDS);
+        assertEquals(BreakerStatus.HANDLED, next.status);
+        assertEquals(4, graph.invocations.get());
+    }
+
+    private static VertexCircuitBreaker circuitBreaker() {
+        return new VertexCircuitBreaker(
+                new CircuitBreakerPolicy()
+                        .setSlidingWindow(2, 2)
+                        .setFailureRateThreshold(0.5)
+                        .setOpenDurationMs(100),
+                BreakerStatus.UNAVAILABLE,
+                "service");
+    }
+
+    private static void open(VertexCircuitBreaker breaker) {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            breaker.record(breaker.tryAcquire(), new IllegalStateException("Service failure"));
+        }
+        assertEquals(VertexCircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    void unused_trial_permit_of_half_open_circuit_breaker_is_passed_to_next_invocation() throws Exception {
+        VertexCircuitBreaker breaker = circuitBreaker();
+        open(breaker);
+        Thread.sleep(200);
+
+        VertexCircuitBreaker.Permit trial = breaker.tryAcquire();
+        assertNotNull(trial);
+        assertEquals(VertexCircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertNull(breaker.tryAcquire());
+
+        /**
+         * Trial invocation is rejected by bulkhead or cancelled
+         */
+        breaker.release(trial);
+
+        VertexCircuitBreaker.Permit next = breaker.tryAcquire();
+        assertNotNull(next);
+        breaker.record(next, null);
+        assertEquals(VertexCircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    void half_open_circuit_breaker_counts_only_trial_invocation_outcome() throws Exception {
+        VertexCircuitBreaker breaker = circuitBreaker();
+        /**
+         * Invocation starts before breaker opens and completes while breaker is half open
+         */
+        VertexCircuitBreaker.Permit late = breaker.tryAcquire();
+        open(breaker);
+        Thread.sleep(200);
+
+        VertexCircuitBreaker.Permit trial = breaker.tryAcquire();
+        assertNotNull(trial);
+
+        breaker.record(late, null);
+        assertEquals(VertexCircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        breaker.record(trial, new IllegalStateException("Service failure"));
+        assertEquals(VertexCircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    static class CircuitBreakerWithoutStatusTransitionGraph extends Graph<BreakerPayload> {
+        Vertex service = handler(pld -> CompletableFuture.completedFuture(true))
+                .withCircuitBreaker(new CircuitBreakerPolicy(), BreakerStatus.UNAVAILABLE)
+                .withRoutingMerger((pld, result) -> BreakerStatus.HANDLED);
+
+        {
+            payload().handleBy(service);
+            service.on(BreakerStatus.HANDLED).complete();
+        }
+    }
+
+    @Test
+    void circuit_breaker_status_requires_outgoing_transition() {
+        IllegalArgumentException exc = assertThrows(
+                IllegalArgumentException.class,
+                () -> reactor.registerGraph(new CircuitBreakerWithoutStatusTransitionGraph()));
+        assertTrue(exc.getMessage().contains("does not have outgoing transition for this status"));
+    }
+
+    static class HedgedPayload {
+        final List<CompletableFuture<Integer>> invocations = new CopyOnWriteArrayList<>();
+        volatile Integer result;
+    }
+
+    /**
+     * First invocation hangs, subsequent invocations complete immediately
+     */
+    static CompletableFuture<Integer> slowFirstInvocation(HedgedPayload payload) {
+        CompletableFuture<Integer> invocation = new CompletableFuture<>();
+        payload.invocations.add(invocation);
+        if (payload.invocations.size() > 1) {
+            invocation.complete(payload.invocations.size());
+        }
+        return invocation;
+    }
+
+    static class HedgedGraph extends Graph<HedgedPayload> {
+        Vertex replica = handler(CompletableReactorTest::slowFirstInvocation)
+                .withHedging(new HedgingPolicy()
+                        .setDelayMs(20)
+                        .setMaxHedgeRate(1.0))
+                .withMerger((pld, result) -> pld.result = result);
+
+        {
+            payload().handleBy(replica);
+            replica.onAny().complete();
+        }
+    }
+
+    @Test
+    void slow_handler_invocation_is_hedged_and_loser_future_is_left_intact() throws Exception {
+        reactor.registerGraph(new HedgedGraph());
+
+        HedgedPayload result = reactor.submit(new HedgedPayload()).getResultFuture().get(10, SECONDS);
+
+        assertEquals(Integer.valueOf(2), result.result);
+        assertEquals(2, result.invocations.size());
+        assertFalse(result.invocations.get(0).isDone());
+    }
+
+    static class HedgedSingleFlightGraph extends Graph<HedgedPayload> {
+        Vertex replica = handler(CompletableReactorTest::slowFirstInvocation)
+                .withHedging(new HedgingPolicy()
+                        .setDelayMs(20)
+                        .setMaxHedgeRate(1.0))
+                .withSingleFlight(pld -> "replica")
+                .withMerger((pld, result) -> pld.result = result);
+
+        {
+            payload().handleBy(replica);
+            replica.onAny().complete();
+        }
+    }
+
+    @Test
+    void hedged_invocation_does_not_join_single_flight_of_primary_invocation() throws Exception {
+        reactor.registerGraph(new HedgedSingleFlightGraph());
+
+        HedgedPayload result = reactor.submit(new HedgedPayload()).getResultFuture().get(10, SECONDS);
+
+        assertEquals(Integer.valueOf(2), result.result);
+        assertEquals(2, result.invocations.size());
+        assertFalse(result.invocations.get(0).isDone());
+    }
+
+    static class RareHedgingGraph extends Graph<HedgedPayload> {
+        Vertex replica = handler(pld -> {
+            CompletableFuture<Integer> invocation = new CompletableFuture<>();
+            pld.invocations.add(invocation);
+            return invocation.completeOnTimeout(1, 200, TimeUnit.MILLISECONDS);
+        })
+                .withHedging(new HedgingPolicy()
+                        .setDelayMs(20)
+                        .setMaxHedgeRate(0.1))
+                .withMerger((pld, result) -> pld.result = result);
+
+        {
+            payload().handleBy(replica);
+            replica.onAny().complete();
+        }
+    }
+
+    @Test
+    void hedged_invocations_are_limited_by_max_hedge_rate() throws Exception {
+        reactor.registerGraph(new RareHedgingGraph());
+
+        /**
+         * Single invocation does not accumulate budget for a hedge
+         */
+        HedgedPayload result = reactor.submit(new HedgedPayload()).getResultFuture().get(10, SECONDS);
+
+        assertEquals(Integer.valueOf(1), result.result);
+        assertEquals(1, result.invocations.size());
+    }
+
+    static class ProfilePayload {
+        final String userId;
+        volatile String profile;
+
+        ProfilePayload(String userId) {
+            this.userId = userId;
+        }
+    }
+
+    static class SingleFlightGraph extends Graph<ProfilePayload> {
+        final List<String> keyExtractions = new CopyOnWriteArrayList<>();
+        final List<String> lookups = new CopyOnWriteArrayList<>();
+        final CompletableFuture<String> lookupResult = new CompletableFuture<>();
+
+        Vertex profile = handler(pld -> {
+            lookups.add(pld.userId);
+            return lookupResult.thenApply(result -> result + ":" + pld.userId);
+        })
+                .withSingleFlight(pld -> {
+                    keyExtractions.add(pld.userId);
+                    return pld.userId;
+                })
+                .withMerger((pld, result) -> pld.profile = result);
+
+        {
+            payload().handleBy(profile);
+            profile.onAny().complete();
+        }
+    }
+
+    @Test
+    void concurrent_invocations_with_equal_key_share_single_flight() throws Exception {
+        SingleFlightGraph graph = new SingleFlightGraph();
+        reactor.registerGraph(graph);
+
+        List<CompletableFuture<ProfilePayload>> results = new ArrayList<>();
+        for (String userId : Arrays.asList("user-1", "user-1", "user-1", "user-2")) {
+            results.add(reactor.submit(new ProfilePayload(userId)).getResultFuture());
+        }
+
+        /**
+         * Leader invocations are in flight until lookup result is completed
+         */
+        awaitInvocations(graph.keyExtractions, 4);
+        Thread.sleep(100);
+        graph.lookupResult.complete("profile");
+
+        for (CompletableFuture<ProfilePayload> result : results) {
+            ProfilePayload payload = result.get(10, SECONDS);
+            assertEquals("profile:" + payload.userId, payload.profile);
+        }
+        assertEquals(2, graph.lookups.size());
+        assertTrue(graph.lookups.containsAll(Arrays.asList("user-1", "user-2")));
+    }
+
+    @Test
+    void cancelled_participant_does_not_cancel_shared_invocation() throws Exception {
+        SingleFlightGraph graph = new SingleFlightGraph();
+        reactor.registerGraph(graph);
+
+        CompletableFuture<ProfilePayload> timedOut = reactor.submit(new ProfilePayload("user-1"), 100)
+                .getResultFuture();
+        CompletableFuture<ProfilePayload> waiting = reactor.submit(new ProfilePayload("user-1"))
+                .getResultFuture();
+
+        ExecutionException exc = assertThrows(ExecutionException.class, () -> timedOut.get(10, SECONDS));
+        assertTrue(exc.getCause() instanceof TimeoutException);
+
+        graph.lookupResult.complete("profile");
+
+        assertEquals("profile:user-1", waiting.get(10, SECONDS).profile);
+        assertEquals(1, graph.lookups.size());
+    }
+
+    static class ServicePayload {
+        final String serviceId;
+        volatile String address;
+
+        ServicePayload(String serviceId) {
+            this.serviceId = serviceId;
+        }
+    }
+
+    static class CachedGraph extends Graph<ServicePayload> {
+        final List<String> lookups = new CopyOnWriteArrayList<>();
+
+        final CachePolicy cachePolicy;
+
+        Vertex registry;
+
+        CachedGraph(CachePolicy cachePolicy) {
+            this.cachePolicy = cachePolicy;
+
+            registry = handler(pld -> {
+                lookups.add(pld.serviceId);
+                return CompletableFuture.completedFuture("address-of-" + pld.serviceId);
+            })
+                    .withCache(cachePolicy, pld -> pld.serviceId)
+                    .withMerger((pld, result) -> pld.address = result);
+
+            payload().handleBy(registry);
+            registry.onAny().complete();
+        }
+    }
+
+    private List<String> resolve(CachedGraph graph, String... serviceIds) throws Exception {
+        List<String> addresses = new ArrayList<>();
+        for (String serviceId : serviceIds) {
+            addresses.add(reactor.submit(new ServicePayload(serviceId)).getResultFuture().get(10, SECONDS).address);
+        }
+        return addresses;
+    }
+
+    @Test
+    void cached_handler_result_is_merged_without_handler_invocation() throws Exception {
+        CachedGraph graph = new CachedGraph(new CachePolicy());
+        reactor.registerGraph(graph);
+
+        assertEquals(
+                Arrays.asList("address-of-a", "address-of-a", "address-of-b", "address-of-a"),
+                resolve(graph, "a", "a", "b", "a"));
+        assertEquals(Arrays.asList("a", "b"), graph.lookups);
+    }
+
+    @Test
+    void cached_handler_result_expires_after_ttl() throws Exception {
+        CachedGraph graph = new CachedGraph(new CachePolicy().setTtlMs(50));
+        reactor.registerGraph(graph);
+
+        resolve(graph, "a", "a");
+        Thread.sleep(100);
+        resolve(graph, "a");
+
+        assertEquals(Arrays.asList("a", "a"), graph.lookups);
+    }
+
+    @Test
+    void full_cache_does_not_admit_result_of_less_frequent_key() throws Exception {
+        CachedGraph graph = new CachedGraph(new CachePolicy().setMaxEntries(2));
+        reactor.registerGraph(graph);
+
+        /**
+         * Frequent key "a" stays cached, rare key "b" loses admission to "a" when "c" is stored
+         */
+        resolve(graph, "a", "b", "a", "a", "a", "c", "a", "c");
+        assertEquals(Arrays.asList("a", "b", "c"), graph.lookups);
+
+        resolve(graph, "b");
+        assertEquals(Arrays.asList("a", "b", "c", "b"), graph.lookups);
+    }
+
+    @Test
+    void expired_entry_does_not_compete_with_live_entries_for_admission() throws Exception {
+        CachedGraph graph = new CachedGraph(new CachePolicy().setMaxEntries(2).setTtlMs(200));
+        reactor.registerGraph(graph);
+
+        resolve(graph, "a", "a", "a", "a");
+        Thread.sleep(300);
+
+        /**
+         * Expired frequent key "a" is removed instead of evicting "b" from the main region
+         */
+        resolve(graph, "b", "c", "b");
+        assertEquals(Arrays.asList("a", "b", "c"), graph.lookups);
+    }
+
+    static class BatchedGraph extends Graph<ServicePayload> {
+        final List<List<String>> bulkCalls = new CopyOnWriteArrayList<>();
+
+        Vertex registry;
+
+        BatchedGraph(BatchPolicy batchPolicy) {
+            registry = batchHandler(
+                    batchPolicy,
+                    pld -> pld.serviceId,
+                    (List<String> serviceIds) -> {
+                        bulkCalls.add(serviceIds);
+                        Map<String, String> addresses = new HashMap<>();
+                        for (String serviceId : serviceIds) {
+                            if (!serviceId.startsWith("unknown")) {
+                                addresses.put(serviceId, "address-of-" + serviceId);
+                            }
+                        }
+                        return CompletableFuture.completedFuture(addresses);
+                    })
+                    .withMerger((pld, address) -> pld.address = address);
+
+            payload().handleBy(registry);
+            registry.onAny().complete();
+        }
+    }
+
+    private List<String> resolveConcurrently(BatchedGraph graph, String... serviceIds) throws Exception {
+        List<CompletableFuture<ServicePayload>> results = new ArrayList<>();
+        for (String serviceId : serviceIds) {
+            results.add(reactor.submit(new ServicePayload(serviceId)).getResultFuture());
+        }
+        List<String> addresses = new ArrayList<>();
+        for (CompletableFuture<ServicePayload> result : results) {
+            addresses.add(result.get(10, SECONDS).address);
+        }
+        return addresses;
+    }
+
+    @Test
+    void batch_handler_collects_keys_of_concurrent_executions_into_single_bulk_call() throws Exception {
+        BatchedGraph graph = new BatchedGraph(new BatchPolicy().setMaxBatchSize(4).setMaxDelayMs(10_000));
+        reactor.registerGraph(graph);
+
+        /**
+         * Batch is flushed by the fourth invocation long before window expires
+         */
+        assertEquals(
+                Arrays.asList("address-of-a", "address-of-b", "address-of-a", null),
+                resolveConcurrently(graph, "a", "b", "a", "unknown"));
+
+        assertEquals(1, graph.bulkCalls.size());
+        assertEquals(
+                new HashSet<>(Arrays.asList("a", "b", "unknown")),
+                new HashSet<>(graph.bulkCalls.get(0)));
+        assertEquals(3, graph.bulkCalls.get(0).size());
+    }
+
+    @Test
+    void batch_handler_flushes_incomplete_batch_when_window_expires() throws Exception {
+        BatchedGraph graph = new BatchedGraph(new BatchPolicy().setMaxBatchSize(100).setMaxDelayMs(50));
+        reactor.registerGraph(graph);
+
+        assertEquals(
+                Arrays.asList("address-of-a", "address-of-b"),
+                resolveConcurrently(graph, "a", "b"));
+        assertEquals(
+                Collections.singletonList("address-of-c"),
+                resolveConcurrently(graph, "c"));
+
+        assertEquals(3, graph.bulkCalls.stream().mapToInt(List::size).sum());
+        assertEquals(Collections.singletonList("c"), graph.bulkCalls.get(graph.bulkCalls.size() - 1));
+    }
+
+    static class FailingBatchGraph extends Graph<ServicePayload> {
+        Vertex registry = batchHandler(
+                new BatchPolicy().setMaxBatchSize(2).setMaxDelayMs(10_000),
+                pld -> pld.serviceId,
+                (List<String> serviceIds) -> {
+                    CompletableFuture<Map<String, String>> result = new CompletableFuture<>();
+                    result.completeExceptionally(new IllegalStateException("registry is unavailable"));
+                    return result;
+                })
+                .withMerger((pld, address) -> pld.address = address);
+
+        {
+            payload().handleBy(registry);
+            registry.onAny().complete();
+        }
+    }
+
+    @Test
+    void batch_handler_failure_is_propagated_to_all_executions_of_the_batch() throws Exception {
+        reactor.registerGraph(new FailingBatchGraph());
+
+        CompletableFuture<ServicePayload> first = reactor.submit(new ServicePayload("a")).getResultFuture();
+        CompletableFuture<ServicePayload> second = reactor.submit(new ServicePayload("b")).getResultFuture();
+
+        for (CompletableFuture<ServicePayload> result : Arrays.asList(first, second)) {
+            ExecutionException exc = assertThrows(ExecutionException.class, () -> result.get(10, SECONDS));
+            Throwable cause = exc;
+            while (cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            assertEquals("registry is unavailable", cause.getMessage());
+        }
+    }
+
+    static class BlockingPayload {
+        final long blockingTimeMs;
+        volatile String threadName;
+
+        BlockingPayload(long blockingTimeMs) {
+            this.blockingTimeMs = blockingTimeMs;
+        }
+    }
+
+    static class BlockingGraph extends Graph<BlockingPayload> {
+        final AtomicInteger runningInvocations = new AtomicInteger();
+        final AtomicInteger maxRunningInvocations = new AtomicInteger();
+        final CompletableFuture<Boolean> isInterrupted = new CompletableFuture<>();
+
+        Vertex legacyClient = blockingHandler(pld -> {
+            maxRunningInvocations.accumulateAndGet(runningInvocations.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(pld.blockingTimeMs);
+                return Thread.currentThread().getName();
+            } catch (InterruptedException exc) {
+                isInterrupted.complete(true);
+                throw exc;
+            } finally {
+                runningInvocations.decrementAndGet();
+            }
+        })
+                .withMaxConcurrency(2)
+                .withTimeout(1_000)
+                .withMerger((pld, threadName) -> pld.threadName = threadName);
+
+        {
+            payload().handleBy(legacyClient);
+            legacyClient.onAny().complete();
+        }
+    }
+
+    @Test
+    void blocking_handler_runs_on_blocking_executor() throws Exception {
+        reactor.registerGraph(new BlockingGraph());
+
+        BlockingPayload payload = reactor.submit(new BlockingPayload(10)).getResultFuture().get(10, SECONDS);
+        assertTrue(payload.threadName.startsWith("completable-reactor-blocking-"), payload.threadName);
+    }
+
+    @Test
+    void blocking_handler_invocations_are_limited_by_vertex_max_concurrency() throws Exception {
+        BlockingGraph graph = new BlockingGraph();
+        reactor.registerGraph(graph);
+
+        List<CompletableFuture<BlockingPayload>> results = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            results.add(reactor.submit(new BlockingPayload(50)).getResultFuture());
+        }
+        for (CompletableFuture<BlockingPayload> result : results) {
+            result.get(10, SECONDS);
+        }
+        assertEquals(2, graph.maxRunningInvocations.get());
+    }
+
+    @Test
+    void timed_out_blocking_handler_is_interrupted() throws Exception {
+        BlockingGraph graph = new BlockingGraph();
+        reactor.registerGraph(graph);
+
+        CompletableFuture<BlockingPayload> result = reactor.submit(new BlockingPayload(60_000)).getResultFuture();
+
+        ExecutionException exc = assertThrows(ExecutionException.class, () -> result.get(10, SECONDS));
+        assertTrue(exc.getCause().getCause() instanceof VertexTimeoutException);
+        assertTrue(graph.isInterrupted.get(10, SECONDS));
+    }
+
+    @Test
+    void blocking_handler_runs_on_executor_provided_by_client() throws Exception {
+        ExecutorService blockingExecutor = Executors.newSingleThreadExecutor(task -> new Thread(task, "legacy-pool"));
+        try {
+            reactor.setBlockingExecutor(blockingExecutor);
+            reactor.registerGraph(new BlockingGraph());
+
+            assertEquals(
+                    "legacy-pool",
+                    reactor.submit(new BlockingPayload(10)).getResultFuture().get(10, SECONDS).threadName);
+        } finally {
+            blockingExecutor.shutdown();
+        }
+    }
+
     static class TrackedProfiledCall extends NoopProfiler.NoopProfiledCall {
         private AtomicInteger state = new AtomicInteger();
 
@@ -0,0 +1,73 @@
+package ru.fix.completable.reactor.runtime.tests;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import ru.fix.completable.reactor.runtime.timer.HashedWheelTimer;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HashedWheelTimerTest {
+
+    private final HashedWheelTimer timer = new HashedWheelTimer(
+            "test-timer", 1, TimeUnit.MILLISECONDS, 8);
+
+    @AfterEach
+    void closeTimer() throws Exception {
+        timer.close();
+    }
+
+    @Test
+    void timeout_expires_after_delay_that_spans_several_wheel_rounds() throws Exception {
+        CountDownLatch expired = new CountDownLatch(1);
+        long start = System.nanoTime();
+
+        HashedWheelTimer.Timeout timeout = timer.schedule(expired::countDown, 50, TimeUnit.MILLISECONDS);
+
+        assertTrue(expired.await(10, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 50);
+        assertTrue(timeout.isExpired());
+        assertFalse(timeout.cancel());
+    }
+
+    private static Runnable taskCapturingPayload(Object payload, AtomicBoolean isExecuted) {
+        return () -> isExecuted.set(payload != null);
+    }
+
+    @Test
+    void cancelled_timeout_does_not_run_and_releases_task() throws Exception {
+        AtomicBoolean isExecuted = new AtomicBoolean();
+        Object[] payload = {new Object()};
+        WeakReference<Object> payloadReference = new WeakReference<>(payload[0]);
+
+        HashedWheelTimer.Timeout timeout = timer.schedule(
+                taskCapturingPayload(payload[0], isExecuted),
+                30,
+                TimeUnit.MILLISECONDS);
+
+        assertTrue(timeout.cancel());
+        assertTrue(timeout.isCancelled());
+
+        payload[0] = null;
+        for (int i = 0; i < 100 && payloadReference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(payloadReference.get());
+
+        Thread.sleep(100);
+        assertFalse(isExecuted.get());
+    }
+
+    @Test
+    void closed_timer_rejects_new_timeouts() throws Exception {
+        timer.schedule(() -> { }, 1, TimeUnit.MILLISECONDS);
+        timer.close();
+
+        assertThrows(IllegalStateException.class, () -> timer.schedule(() -> { }, 1, TimeUnit.MILLISECONDS));
+    }
+}
@@ -5,18 +5,29 @@ import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentCaptor;
 import org.mockito.ArgumentMatchers;
 import ru.fix.aggregating.profiler.Identity;
+import ru.fix.aggregating.profiler.Indicator;
 import ru.fix.aggregating.profiler.ProfiledCall;
 import ru.fix.aggregating.profiler.Profiler;
+import ru.fix.completable.reactor.graph.BatchPolicy;
+import ru.fix.completable.reactor.graph.CachePolicy;
 import ru.fix.completable.reactor.graph.Graph;
 import ru.fix.completable.reactor.graph.Vertex;
 import ru.fix.completable.reactor.runtime.CompletableReactor;
 import ru.fix.completable.reactor.runtime.Metrics;
+import ru.fix.completable.reactor.runtime.ProfilerIdentity;
 import ru.fix.completable.reactor.runtime.Tags;
+import ru.fix.completable.reactor.runtime.limit.AdaptiveConcurrencyLimit;
+import ru.fix.completable.reactor.runtime.profiling.ProfilingSampler;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -118,6 +129,451 @@ public class ProfilingTest {
         assertThat(identities, containsInAnyOrder(expected.toArray()));
     }
 
+    @Test
+    public void profiler_identities_are_resolved_once_per_payload_type_vertex_and_operation() throws Exception {
+
+        Profiler profiler = mock(Profiler.class);
+        ProfiledCall profiledCall = mock(ProfiledCall.class);
+
+        when(profiler.profiledCall(ArgumentMatchers.<Identity>any())).thenReturn(profiledCall);
+        when(profiledCall.start()).thenReturn(profiledCall);
+
+        CompletableReactor completableReactor = new CompletableReactor(profiler);
+        completableReactor.registerGraph(new SimpleGraph());
+        for (int num = 0; num < 10; num++) {
+            completableReactor.submit(new TracablePayload().setNumber(num));
+        }
+        completableReactor.close();
+
+        ArgumentCaptor<Identity> identityCapture = ArgumentCaptor.forClass(Identity.class);
+        verify(profiler, times(80)).profiledCall(identityCapture.capture());
+
+        Set<Identity> distinctInstances = Collections.newSetFromMap(new IdentityHashMap<>());
+        distinctInstances.addAll(identityCapture.getAllValues());
+        assertEquals(8, distinctInstances.size());
+    }
+
+    @Test
+    public void unsampled_executions_profile_only_submit_and_execution() throws Exception {
+
+        Profiler profiler = mock(Profiler.class);
+        ProfiledCall profiledCall = mock(ProfiledCall.class);
+
+        when(profiler.profiledCall(ArgumentMatchers.<Identity>any())).thenReturn(profiledCall);
+        when(profiledCall.start()).thenReturn(profiledCall);
+
+        CompletableReactor completableReactor = new CompletableReactor(profiler)
+                .setProfilingSampler(ProfilingSampler.never());
+        completableReactor.registerGraph(new SimpleGraph());
+        for (int num = 0; num < 10; num++) {
+            completableReactor.submit(new TracablePayload().setNumber(num));
+        }
+        completableReactor.close();
+
+        ArgumentCaptor<Identity> identityCapture = ArgumentCaptor.forClass(Identity.class);
+        verify(profiler, times(20)).profiledCall(identityCapture.capture());
+
+        List<Identity> expected = new ArrayList<>();
+        expected.addAll(executionIdentities(Tags.SUBMIT, 10));
+        expected.addAll(executionIdentities(Tags.EXECUTION, 10));
+
+        assertThat(identityCapture.getAllValues(), containsInAnyOrder(expected.toArray()));
+    }
+
+    @Test
+    public void payload_type_profiling_sampler_overrides_reactor_sampler() throws Exception {
+
+        Profiler profiler = mock(Profiler.class);
+        ProfiledCall profiledCall = mock(ProfiledCall.class);
+
+        when(profiler.profiledCall(ArgumentMatchers.<Identity>any())).thenReturn(profiledCall);
+        when(profiledCall.start()).thenReturn(profiledCall);
+
+        CompletableReactor completableReactor = new CompletableReactor(profiler)
+                .setProfilingSampler(ProfilingSampler.never())
+                .setProfilingSampler(TracablePayload.class, ProfilingSampler.oneOf(2));
+        completableReactor.registerGraph(new SimpleGraph());
+        for (int num = 0; num < 10; num++) {
+            completableReactor.submit(new TracablePayload().setNumber(num));
+        }
+        completableReactor.close();
+
+        /*
+         * submit and execution for each of 10 payloads, 6 vertex calls for each of 5 sampled executions
+         */
+        verify(profiler, times(50)).profiledCall(ArgumentMatchers.<Identity>any());
+    }
+
+    @Test
+    public void concurrency_limit_is_exposed_as_indicator() throws Exception {
+
+        Profiler profiler = mock(Profiler.class);
+        ProfiledCall profiledCall = mock(ProfiledCall.class);
+
+        when(profiler.profiledCall(ArgumentMatchers.<Identity>any())).thenReturn(profiledCall);
+        when(profiledCall.start()).thenReturn(profiledCall);
+
+        Map<String, String> tags = new HashMap<>();
+        tags.put("payload", TracablePayload.class.getName());
+        Identity limitIdentity = new Identity(Metrics.CONCURRENCY_LIMIT, tags);
+
+        CompletableReactor completableReactor = new CompletableReactor(profiler)
+                .setConcurrencyLimit(TracablePayload.class, new AdaptiveConcurrencyLimit(7));
+
+        ArgumentCaptor<Indicator> indicatorCapture = ArgumentCaptor.forClass(Indicator.class);
+        verify(profiler).attachIndicator(eq(limitIdentity), indicatorCapture.capture());
+        assertEquals(Long.valueOf(7), indicatorCapture.getValue().mark());
+
+        completableReactor.removeConcurrencyLimit(TracablePayload.class);
+        verify(profiler).detachIndicator(eq(limitIdentity));
+
+        completableReactor.close();
+    }
+
+    static class BulkheadGraph extends Graph<TracablePayload> {
+
+        Vertex limited =
+                handler(p -> completedFuture(null)
+                ).withMaxConcurrency(2).withoutMerger();
+
+        {
+            payload().handleBy(limited);
+        }
+    }
+
+    @Test
+    public void vertex_bulkhead_is_exposed_as_indicators() throws Exception {
+
+        Profiler profiler = mock(Profiler.class);
+        ProfiledCall profiledCall = mock(ProfiledCall.class);
+
+        when(profiler.profiledCall(ArgumentMatchers.<Identity>any())).thenReturn(profiledCall);
+        when(profiledCall.start()).thenReturn(profiledCall);
+
+        Map<String, String> tags = new HashMap<>();
+        tags.put("payload", TracablePayload.class.getName());
+        tags.put("vertex", "limited");
+
+        CompletableReactor completableReactor = new CompletableReactor(profiler);
+        completableReactor.registerGraph(new BulkheadGraph());
+
+        ArgumentCaptor<Indicator> queueSizeCapture = ArgumentCaptor.forClass(Indicator.class);
+        verify(profiler).attachIndicator(eq(new Identity(Metrics.VERTEX_QUEUE_SIZE, tags)), queueSizeCapture.capture());
+        assertEquals(Long.valueOf(0), queueSizeCapture.getValue().mark());
+
+        ArgumentCaptor<Indicator> rejectedCapture = ArgumentCaptor.forClass(Indicator.class);
+        verify(profiler).attachIndicator(eq(new Identity(Metrics.VERTEX_REJECTED, tags)), rejectedCapture.capture());
+        assertEquals(Long.valueOf(0), rejectedCapture.getValue().mark());
+
+        completableReactor.close();
+    }
+
+    @Test
+    public void vertex_circuit_breaker_is_exposed_as_indicators() throws Exception {
+
+        Profiler profiler = mock(Profiler.class);
+        ProfiledCall profiledCall = mock(ProfiledCall.class);
+
+        when(profiler.profiledCall(ArgumentMatchers.<Identity>any())).thenReturn(profiledCall);
+        when(profiledCall.start()).thenReturn(profiledCall);
+
+        Map<String, String> tags = new HashMap<>();
+        tags.put("payload", CompletableReactorTest.BreakerPayload.class.getName());
+        tags.put("vertex", "service");
+
+        CompletableReactor completableReactor = new CompletableReactor(profiler);
+        completableReactor.registerGraph(new CompletableReactorTest.CircuitBreakerGraph());
+
+        ArgumentCaptor<Indicator> stateCapture = ArgumentCaptor.forClass(Indicator.class);
+        verify(profiler).attachIndicator(
+                eq(new Identity(Metrics.VERTEX_CIRCUIT_BREAKER_STATE, tags)), stateCapture.capture());
+        assertEquals(Long.valueOf(0), stateCapture.getValue().mark());
+
+        ArgumentCaptor<Indicator> shortCircuitedCapture = ArgumentCaptor.forClass(Indicator.class);
+        verify(profiler).attachIndicator(
+                eq(new Identity(Metrics.VERTEX_SHORT_CIRCUITED, tags)), shortCircuitedCapture.capture());
+
+        for (int attempt = 0; attempt < 3; attempt++) {
+            completableReactor.submit(new CompletableReactorTest.BreakerPayload(true)).getResultFuture()
+                    .handle((result, throwable) -> null)
+                    .get(10, TimeUnit.SECONDS);
+        }
+
+        /**
+         * Breaker opened after two failures and short-circuited third invocation
+         */
+        assertEquals(Long.valueOf(1), stateCapture.getValue().mark());
+        assertEquals(Long.valueOf(1), shortCircuitedCapture.getValue().mark());
+
+        completableReactor.close();
+    }
+
+    static class TimeoutGraph extends Graph<TracablePayload> {
+
+        Vertex slow =
+                handler(p -> new CompletableFuture<>()
+                ).withTimeout(50).withoutMerger();
+
+        {
+            payload().handleBy(slow);
+        }
+    }
+
+    @Test
+    public void vertex_timeout_is_counted_by_profiler() throws Exception {
+
+        Profiler profiler = mock(Profiler.class);
+        ProfiledCall profiledCall = mock(ProfiledCall.class);
+
+        when(profiler.profiledCall(ArgumentMatchers.<Identity>any())).thenReturn(profiledCall);
+        when(profiledCall.start()).thenReturn(profiledCall);
+
+        CompletableReactor completableReactor = new CompletableReactor(profiler);
+        completableReactor.registerGraph(new TimeoutGraph());
+        completableReactor.submit(new TracablePayload()).getChainExecutionFuture()
+                .handle((result, throwable) -> null)
+                .get(10, TimeUnit.SECONDS);
+        completableReactor.close();
+
+        Map<String, String> tags = new HashMap<>();
+        tags.put("payload", TracablePayload.class.getName());
+        tags.put("operation", Tags.TIMEOUT);
+        tags.put("vertex", "slow");
+
+        verify(profiler).profiledCall(eq(new Identity(Metrics.COMPLETABLE_REACTOR_GRAPH, tags)));
+        verify(profiledCall).call();
+    }
+
+    @Test
+    public void hedged_invocations_and_wins_are_counted_by_profiler() throws Exception {
+
+        Profiler profiler = mock(Profiler.class);
+        ProfiledCall profiledCall = mock(ProfiledCall.class);
+
+        when(profiler.profiledCall(ArgumentMatchers.<Identity>any())).thenReturn(profiledCall);
+        when(profiledCall.start()).thenReturn(profiledCall);
+
+        CompletableReactor completableReactor = new CompletableReactor(profiler);
+        completableReactor.registerGraph(new CompletableReactorTest.HedgedGraph());
+        completableReactor.submit(new CompletableReactorTest.HedgedPayload()).getResultFuture()
+                .get(10, TimeUnit.SECONDS);
+        completableReactor.close();
+
+        for (String operation : new String[]{Tags.HEDGE, Tags.HEDGE_WIN}) {
+            Map<String, String> tags = new HashMap<>();
+            tags.put("payload", CompletableReactorTest.HedgedPayload.class.getName());
+            tags.put("operation", operation);
+            tags.put("vertex", "replica");
+
+            verify(profiler).profiledCall(eq(new Identity(Metrics.COMPLETABLE_REACTOR_GRAPH, tags)));
+        }
+    }
+
+    @Test
+    public void vertex_single_flight_is_exposed_as_indicators() throws Exception {
+
+        Profiler profiler = mock(Profiler.class);
+        ProfiledCall profiledCall = mock(ProfiledCall.class);
+
+        when(profiler.profiledCall(ArgumentMatchers.<Identity>any())).thenReturn(profiledCall);
+        when(profiledCall.start()).thenReturn(profiledCall);
+
+        Map<String, String> tags = new HashMap<>();
+        tags.put("payload", CompletableReactorTest.ProfilePayload.class.getName());
+        tags.put("vertex", "profile");
+
+        CompletableReactorTest.SingleFlightGraph graph = new CompletableReactorTest.SingleFlightGraph();
+        graph.lookupResult.complete("profile");
+
+        CompletableReactor completableReactor = new CompletableReactor(profiler);
+        completableReactor.registerGraph(graph);
+        completableReactor.submit(new CompletableReactorTest.ProfilePayload("user-1")).getResultFuture()
+                .get(10, TimeUnit.SECONDS);
+
+        ArgumentCaptor<Indicator> leaderCapture = ArgumentCaptor.forClass(Indicator.class);
+        verify(profiler).attachIndicator(
+                eq(new Identity(Metrics.VERTEX_SINGLE_FLIGHT_LEADER, tags)), leaderCapture.capture());
+        assertEquals(Long.valueOf(1), leaderCapture.getValue().mark());
+
+        ArgumentCaptor<Indicator> coalescedCapture = ArgumentCaptor.forClass(Indicator.class);
+        verify(profiler).attachIndicator(
+                eq(new Identity(Metrics.VERTEX_SINGLE_FLIGHT_COALESCED, tags)), coalescedCapture.capture());
+        assertEquals(Long.valueOf(0), coalescedCapture.getValue().mark());
+
+        completableReactor.close();
+    }
+
+    @Test
+    public void vertex_cache_hits_misses_and_evictions_are_exposed_as_indicators() throws Exception {
+
+        Profiler profiler = mock(Profiler.class);
+        ProfiledCall profiledCall = mock(ProfiledCall.class);
+
+        when(profiler.profiledCall(ArgumentMatchers.<Identity>any())).thenReturn(profiledCall);
+        when(profiledCall.start()).thenReturn(profiledCall);
+
+        Map<String, String> tags = new HashMap<>();
+        tags.put("payload", CompletableReactorTest.ServicePayload.class.getName());
+        tags.put("vertex", "registry");
+
+        CompletableReactor completableReactor = new CompletableReactor(profiler);
+        completableReactor.registerGraph(new CompletableReactorTest.CachedGraph(new CachePolicy().setMaxEntries(1)));
+
+        for (String serviceId : new String[]{"a", "a", "b"}) {
+            completableReactor.submit(new CompletableReactorTest.ServicePayload(serviceId)).getResultFuture()
+                    .get(10, TimeUnit.SECONDS);
+        }
+
+        assertIndicator(profiler, new Identity(Metrics.VERTEX_CACHE_HIT, tags), 1);
+        assertIndicator(profiler, new Identity(Metrics.VERTEX_CACHE_MISS, tags), 2);
+        assertIndicator(profiler, new Identity(Metrics.VERTEX_CACHE_EVICTION, tags), 1);
+
+        completableReactor.close();
+    }
+
+    @Test
+    public void blocked_time_of_blocking_handler_is_measured_by_profiler() throws Exception {
+
+        Profiler profiler = mock(Profiler.class);
+        ProfiledCall profiledCall = mock(ProfiledCall.class);
+
+        when(profiler.profiledCall(ArgumentMatchers.<Identity>any())).thenReturn(profiledCall);
+        when(profiledCall.start()).thenReturn(profiledCall);
+
+        CompletableReactor completableReactor = new CompletableReactor(profiler);
+        completableReactor.registerGraph(new CompletableReactorTest.BlockingGraph());
+        completableReactor.submit(new CompletableReactorTest.BlockingPayload(10)).getResultFuture()
+                .get(10, TimeUnit.SECONDS);
+        completableReactor.close();
+
+        Map<String, String> tags = new HashMap<>();
+        tags.put("payload", CompletableReactorTest.BlockingPayload.class.getName());
+        tags.put("operation", Tags.BLOCKING);
+        tags.put("vertex", "legacyClient");
+
+        verify(profiler).profiledCall(eq(new Identity(Metrics.COMPLETABLE_REACTOR_GRAPH, tags)));
+    }
+
+    @Test
+    public void batch_size_and_wait_time_are_recorded_by_profiler() throws Exception {
+
+        Profiler profiler = mock(Profiler.class);
+        ProfiledCall profiledCall = mock(ProfiledCall.class);
+
+        when(profiler.profiledCall(ArgumentMatchers.<Identity>any())).thenReturn(profiledCall);
+        when(profiledCall.start()).thenReturn(profiledCall);
+
+        CompletableReactor completableReactor = new CompletableReactor(profiler);
+        completableReactor.registerGraph(new CompletableReactorTest.BatchedGraph(
+                new BatchPolicy().setMaxBatchSize(2).setMaxDelayMs(10_000)));
+
+        List<CompletableFuture<CompletableReactorTest.ServicePayload>> results = new ArrayList<>();
+        for (String serviceId : new String[]{"a", "b"}) {
+            results.add(completableReactor.submit(new CompletableReactorTest.ServicePayload(serviceId))
+                    .getResultFuture());
+        }
+        for (CompletableFuture<CompletableReactorTest.ServicePayload> result : results) {
+            result.get(10, TimeUnit.SECONDS);
+        }
+
+        Map<String, String> tags = new HashMap<>();
+        tags.put("payload", CompletableReactorTest.ServicePayload.class.getName());
+        tags.put("vertex", "registry");
+
+        assertIndicator(profiler, new Identity(Metrics.VERTEX_BATCH_QUEUE_SIZE, tags), 0);
+
+        for (String operation : new String[]{Tags.BATCH, Tags.BATCH_WAIT}) {
+            Map<String, String> operationTags = new HashMap<>(tags);
+            operationTags.put("operation", operation);
+
+            verify(profiler).profiledCall(eq(new Identity(Metrics.COMPLETABLE_REACTOR_GRAPH, operationTags)));
+        }
+        /**
+         * Both keys are sent by single bulk call
+         */
+        verify(profiledCall, atLeastOnce()).call(2L);
+
+        completableReactor.close();
+    }
+
+    @Test
+    public void subgraph_execution_is_profiled_by_parent_vertex_instead_of_submission() throws Exception {
+
+        Profiler profiler = mock(Profiler.class);
+        ProfiledCall profiledCall = mock(ProfiledCall.class);
+
+        when(profiler.profiledCall(ArgumentMatchers.<Identity>any())).thenReturn(profiledCall);
+        when(profiledCall.start()).thenReturn(profiledCall);
+
+        CompletableReactor completableReactor = new CompletableReactor(profiler);
+        completableReactor.registerGraph(CompletableReactorTest.ParentGraphPayloadGraph.class);
+        completableReactor.registerGraph(CompletableReactorTest.SubgraphPayloadGraph.class);
+        completableReactor.submit(new CompletableReactorTest.IdListPayload()).getChainExecutionFuture()
+                .get(10, TimeUnit.SECONDS);
+        completableReactor.close();
+
+        Map<String, String> tags = new HashMap<>();
+        tags.put("payload", CompletableReactorTest.IdListPayload.class.getName());
+        tags.put("operation", Tags.SUBGRAPH);
+        tags.put("vertex", "subgraphProcessor");
+        tags.put("subgraph", CompletableReactorTest.SubgraphPaylaod.class.getName());
+
+        verify(profiler).profiledCall(eq(new Identity(Metrics.COMPLETABLE_REACTOR_GRAPH, tags)));
+        verify(profiler, never()).profiledCall(
+                eq(ProfilerIdentity.submitIdentity(CompletableReactorTest.SubgraphPaylaod.class)));
+
+        /**
+         * Child vertices are tagged by path of the parent vertex
+         */
+        verify(profiler).profiledCall(eq(childHandleIdentity(PARENT_PATH)));
+        verify(profiler, never()).profiledCall(eq(childHandleIdentity(null)));
+    }
+
+    @Test
+    public void subgraph_execution_follows_profiling_decision_of_parent_execution() throws Exception {
+
+        Profiler profiler = mock(Profiler.class);
+        ProfiledCall profiledCall = mock(ProfiledCall.class);
+
+        when(profiler.profiledCall(ArgumentMatchers.<Identity>any())).thenReturn(profiledCall);
+        when(profiledCall.start()).thenReturn(profiledCall);
+
+        CompletableReactor completableReactor = new CompletableReactor(profiler)
+                .setProfilingSampler(ProfilingSampler.never())
+                .setProfilingSampler(CompletableReactorTest.SubgraphPaylaod.class, ProfilingSampler.always());
+        completableReactor.registerGraph(CompletableReactorTest.ParentGraphPayloadGraph.class);
+        completableReactor.registerGraph(CompletableReactorTest.SubgraphPayloadGraph.class);
+        completableReactor.submit(new CompletableReactorTest.IdListPayload()).getChainExecutionFuture()
+                .get(10, TimeUnit.SECONDS);
+        completableReactor.close();
+
+        /**
+         * Sampler of subgraph payload type is not consulted, parent execution is not sampled
+         */
+        verify(profiler, never()).profiledCall(eq(childHandleIdentity(PARENT_PATH)));
+        verify(profiler, never()).profiledCall(eq(childHandleIdentity(null)));
+    }
+
+    private static final String PARENT_PATH =
+            CompletableReactorTest.IdListPayload.class.getName() + "/subgraphProcessor";
+
+    private static Identity childHandleIdentity(String parent) {
+        Map<String, String> tags = new HashMap<>();
+        tags.put("payload", CompletableReactorTest.SubgraphPaylaod.class.getName());
+        tags.put("operation", Tags.HANDLE);
+        tags.put("vertex", "idProcessor11");
+        if (parent != null) {
+            tags.put("parent", parent);
+        }
+        return new Identity(Metrics.COMPLETABLE_REACTOR_GRAPH, tags);
+    }
+
+    private static void assertIndicator(Profiler profiler, Identity identity, long expected) {
+        ArgumentCaptor<Indicator> capture = ArgumentCaptor.forClass(Indicator.class);
+        verify(profiler).attachIndicator(eq(identity), capture.capture());
+        assertEquals(Long.valueOf(expected), capture.getValue().mark());
+    }
+
     private static List<Identity> vertexIdentities(String operation, String vertex, int number) {
         return IntStream.range(0, number)
                 .mapToObj(i -> {
@@ -7,9 +7,17 @@ import ru.fix.completable.reactor.graph.Graph;
 import ru.fix.completable.reactor.graph.Vertex;
 import ru.fix.completable.reactor.runtime.CompletableReactor;
 import ru.fix.completable.reactor.runtime.LogTracer;
+import ru.fix.completable.reactor.runtime.tracing.AsyncTracer;
+import ru.fix.completable.reactor.runtime.tracing.Tracer;
 
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 /**
@@ -120,4 +128,183 @@ public class TracingTest {
         assertTrue(beforeHandle.get());
         assertTrue(beforeMerge.get());
     }
+
+    /**
+     * Records delivered events and checks that after events receive marker of corresponding before event
+     */
+    static class RecordingTracer implements Tracer {
+        final AtomicInteger isTraceableCalls = new AtomicInteger();
+        final AtomicInteger beforeEvents = new AtomicInteger();
+        final AtomicInteger afterEvents = new AtomicInteger();
+        final Set<Object> pendingMarkers = ConcurrentHashMap.newKeySet();
+        final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public boolean isTraceable(Object payload) {
+            isTraceableCalls.incrementAndGet();
+            return true;
+        }
+
+        private Object before() {
+            threads.add(Thread.currentThread());
+            beforeEvents.incrementAndGet();
+            Object marker = new Object();
+            pendingMarkers.add(marker);
+            return marker;
+        }
+
+        private void after(Object tracingMarker) {
+            threads.add(Thread.currentThread());
+            afterEvents.incrementAndGet();
+            assertTrue(pendingMarkers.remove(tracingMarker));
+        }
+
+        @Override
+        public Object beforeHandle(String vertexName, Object payload) {
+            return before();
+        }
+
+        @Override
+        public void afterHandle(Object tracingMarker, String vertexName, Object handlerResult, Throwable throwable) {
+            after(tracingMarker);
+        }
+
+        @Override
+        public Object beforeMerge(String vertexName, Object payload, Object handleResult) {
+            return before();
+        }
+
+        @Override
+        public void afterMerger(Object tracingMarker, String vertexName, Object payload) {
+            after(tracingMarker);
+        }
+    }
+
+    @Test
+    public void traceable_decision_is_made_once_per_execution() throws Exception {
+        completableReactor.registerGraph(new SimpleGraph());
+
+        RecordingTracer tracer = new RecordingTracer();
+        completableReactor.setTracer(tracer);
+
+        for (int num = 0; num < 10; num++) {
+            completableReactor.submit(new TracablePayload().setNumber(num))
+                    .getChainExecutionFuture()
+                    .get(10, TimeUnit.SECONDS);
+        }
+        completableReactor.close();
+
+        assertEquals(10, tracer.isTraceableCalls.get());
+        assertTrue(tracer.beforeEvents.get() > 0);
+        assertEquals(tracer.beforeEvents.get(), tracer.afterEvents.get());
+        assertTrue(tracer.pendingMarkers.isEmpty());
+    }
+
+    @Test
+    public void each_retry_attempt_is_traced_as_separate_handling() throws Exception {
+        completableReactor.registerGraph(new CompletableReactorTest.RetryGraph());
+
+        RecordingTracer tracer = new RecordingTracer();
+        completableReactor.setTracer(tracer);
+
+        completableReactor.submit(new CompletableReactorTest.FlakyPayload(2))
+                .getChainExecutionFuture()
+                .get(10, TimeUnit.SECONDS);
+        completableReactor.close();
+
+        /**
+         * Three handling attempts and single merge
+         */
+        assertEquals(4, tracer.beforeEvents.get());
+        assertEquals(4, tracer.afterEvents.get());
+        assertTrue(tracer.pendingMarkers.isEmpty());
+    }
+
+    @Test
+    public void async_tracer_delivers_events_by_background_thread() throws Exception {
+        completableReactor.registerGraph(new SimpleGraph());
+
+        RecordingTracer tracer = new RecordingTracer();
+        AsyncTracer asyncTracer = new AsyncTracer(tracer);
+        completableReactor.setTracer(asyncTracer);
+
+        for (int num = 0; num < 10; num++) {
+            completableReactor.submit(new TracablePayload().setNumber(num))
+                    .getChainExecutionFuture()
+                    .get(10, TimeUnit.SECONDS);
+        }
+        completableReactor.close();
+        asyncTracer.close();
+
+        assertEquals(0, asyncTracer.getDroppedEventCount());
+        assertTrue(tracer.beforeEvents.get() > 0);
+        assertEquals(tracer.beforeEvents.get(), tracer.afterEvents.get());
+        assertTrue(tracer.pendingMarkers.isEmpty());
+        assertEquals(1, tracer.threads.size());
+        assertEquals("completable-reactor-async-tracer", tracer.threads.iterator().next().getName());
+    }
+
+    @Test
+    public void async_tracer_drops_events_on_buffer_overflow() throws Exception {
+        CountDownLatch deliveryBlocked = new CountDownLatch(1);
+        CountDownLatch releaseDelivery = new CountDownLatch(1);
+        CountDownLatch mergesDelivered = new CountDownLatch(4);
+        CountDownLatch mergersDelivered = new CountDownLatch(4);
+
+        RecordingTracer tracer = new RecordingTracer() {
+            @Override
+            public Object beforeHandle(String vertexName, Object payload) {
+                deliveryBlocked.countDown();
+                try {
+                    releaseDelivery.await();
+                } catch (InterruptedException exc) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.beforeHandle(vertexName, payload);
+            }
+
+            @Override
+            public Object beforeMerge(String vertexName, Object payload, Object handleResult) {
+                Object marker = super.beforeMerge(vertexName, payload, handleResult);
+                mergesDelivered.countDown();
+                return marker;
+            }
+
+            @Override
+            public void afterMerger(Object tracingMarker, String vertexName, Object payload) {
+                super.afterMerger(tracingMarker, vertexName, payload);
+                mergersDelivered.countDown();
+            }
+        };
+
+        AsyncTracer asyncTracer = new AsyncTracer(tracer, 4);
+
+        Object firstMarker = asyncTracer.beforeHandle("vertex", "payload");
+        assertTrue(deliveryBlocked.await(10, TimeUnit.SECONDS));
+
+        Object[] markers = new Object[10];
+        for (int i = 0; i < markers.length; i++) {
+            markers[i] = asyncTracer.beforeMerge("vertex", "payload", null);
+        }
+        assertEquals(6, asyncTracer.getDroppedEventCount());
+
+        /**
+         * Buffer is empty once accepted events are delivered, after events are published only then
+         */
+        releaseDelivery.countDown();
+        assertTrue(mergesDelivered.await(10, TimeUnit.SECONDS));
+
+        for (Object marker : markers) {
+            asyncTracer.afterMerger(marker, "vertex", "payload");
+        }
+        assertTrue(mergersDelivered.await(10, TimeUnit.SECONDS));
+
+        asyncTracer.afterHandle(firstMarker, "vertex", null, null);
+        asyncTracer.close();
+
+        assertEquals(12, asyncTracer.getDroppedEventCount());
+        assertEquals(5, tracer.beforeEvents.get());
+        assertEquals(5, tracer.afterEvents.get());
+        assertTrue(tracer.pendingMarkers.isEmpty());
+    }
 }